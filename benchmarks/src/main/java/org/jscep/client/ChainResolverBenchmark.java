@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the selection of the CA and RA certificates from a GetCACert
+ * chain, for chains of one, two and three certificates.
+ * <p>
+ * The certificates are listed RA first, which is the worst case for the
+ * pairwise search.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChainResolverBenchmark {
+	@Param({"1", "2", "3"})
+	public int chainLength;
+	private List<X509Certificate> chain;
+	private ChainResolver cached;
+	
+	@Setup
+	public void setUp() throws Exception {
+		final KeyPair caKeyPair = TestCertificates.createKeyPair();
+		final X509Certificate ca = TestCertificates.createCa("CN=CA", caKeyPair);
+		chain = new ArrayList<X509Certificate>();
+		if (chainLength == 3) {
+			chain.add(TestCertificates.createRa("CN=RA Signing", TestCertificates.createKeyPair().getPublic(), KeyUsage.digitalSignature, ca, caKeyPair));
+		}
+		if (chainLength >= 2) {
+			chain.add(TestCertificates.createRa("CN=RA Encryption", TestCertificates.createKeyPair().getPublic(), KeyUsage.keyEncipherment, ca, caKeyPair));
+		}
+		chain.add(ca);
+		cached = new ChainResolver(16);
+		cached.resolve(chain);
+	}
+	
+	/**
+	 * Resolves the chain from scratch, as happens the first time a chain 
+	 * is seen.
+	 */
+	@Benchmark
+	public CaChain resolve() {
+		return new ChainResolver(1).resolve(chain);
+	}
+	
+	/**
+	 * Resolves a chain which has been seen before.
+	 */
+	@Benchmark
+	public CaChain resolveCached() {
+		return cached.resolve(chain);
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.jscep.transaction.EnrolmentTransaction;
+
+/**
+ * Drives a shared {@link Client} from many threads against a 
+ * {@link StubScepServer}, and reports throughput and latency percentiles.
+ * <p>
+ * Usage: <code>ClientLoadTest [threads] [seconds] [minLatencyMs] 
+ * [maxLatencyMs] [errorRate]</code>
+ */
+public class ClientLoadTest {
+	private static final int MAX_SAMPLES = 1 << 20;
+	
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		final long minLatency = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		final long maxLatency = args.length > 3 ? Long.parseLong(args[3]) : 0;
+		final double errorRate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+		
+		final StubScepServer server = new StubScepServer(true);
+		server.setLatency(minLatency, maxLatency, TimeUnit.MILLISECONDS);
+		server.setErrorRate(errorRate);
+		server.start();
+		try {
+			final KeyPair keyPair = TestCertificates.createKeyPair();
+			final Client client = new Client(server.getUrl(), TestCertificates.createSelfSigned("CN=Client", keyPair), keyPair.getPrivate(), new TrustingCallbackHandler());
+			final CertificationRequest csr = TestCertificates.createCsr("CN=Device", keyPair);
+			
+			run(client, csr, threads, 5, null);
+			final long[] samples = new long[MAX_SAMPLES];
+			final AtomicLong count = new AtomicLong();
+			final AtomicLong failures = run(client, csr, threads, seconds, new Recorder(samples, count));
+			
+			final int n = (int) Math.min(count.get(), MAX_SAMPLES);
+			final long[] sorted = Arrays.copyOf(samples, n);
+			Arrays.sort(sorted);
+			System.out.printf("threads=%d duration=%ds requests=%d failures=%d throughput=%.1f/s%n", threads, seconds, count.get(), failures.get(), count.get() / (double) seconds);
+			System.out.printf("latency ms: p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n", percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1.0));
+			System.out.printf("server requests: GetCACaps=%d GetCACert=%d PKCSReq=%d%n", server.getRequestCount("GetCACaps"), server.getRequestCount("GetCACert"), server.getRequestCount("PKCSReq"));
+		} finally {
+			server.stop();
+		}
+	}
+	
+	private static AtomicLong run(final Client client, final CertificationRequest csr, int threads, int seconds, final Recorder recorder) throws InterruptedException {
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicLong failures = new AtomicLong();
+		for (int i = 0; i < threads; i++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (System.nanoTime() < end) {
+							final long start = System.nanoTime();
+							try {
+								final EnrolmentTransaction t = client.enrol(csr);
+								t.send();
+							} catch (Exception e) {
+								failures.incrementAndGet();
+							}
+							if (recorder != null) {
+								recorder.record(System.nanoTime() - start);
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load-" + i).start();
+		}
+		done.await();
+		
+		return failures;
+	}
+	
+	static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		final int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+		
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+	
+	private static final class Recorder {
+		private final long[] samples;
+		private final AtomicLong count;
+		
+		private Recorder(long[] samples, AtomicLong count) {
+			this.samples = samples;
+			this.count = count;
+		}
+		
+		private void record(long nanos) {
+			final long i = count.getAndIncrement();
+			if (i < samples.length) {
+				samples[(int) i] = nanos;
+			}
+		}
+	}
+}
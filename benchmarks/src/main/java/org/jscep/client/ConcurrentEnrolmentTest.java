@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.net.URL;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.jscep.transport.Http2TransportFactory;
+import org.jscep.transport.NioTransportFactory;
+import org.jscep.transport.PooledTransportFactory;
+import org.jscep.transport.StandardTransportFactory;
+import org.jscep.transport.TransportFactory;
+
+/**
+ * Starts a burst of concurrent enrolments through a shared {@link Client}, 
+ * and reports how many sockets the {@link StubScepServer} saw and the 
+ * latency of each enrolment.
+ * <p>
+ * With <code>http2</code>, the enrolments are multiplexed over cleartext 
+ * HTTP/2 connections to the same stub.
+ * <p>
+ * Usage: <code>ConcurrentEnrolmentTest [transactions] [standard|pooled|nio|http2] 
+ * [maxConnections] [latencyMs]</code>
+ */
+public class ConcurrentEnrolmentTest {
+	public static void main(String[] args) throws Exception {
+		final int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		final String transport = args.length > 1 ? args[1] : "pooled";
+		final int maxConnections = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		final long latency = args.length > 3 ? Long.parseLong(args[3]) : 10;
+		
+		final StubScepServer server = new StubScepServer(true);
+		server.setLatency(latency, latency, TimeUnit.MILLISECONDS);
+		server.start();
+		URL url = server.getUrl();
+		final TransportFactory factory;
+		if (transport.equals("standard")) {
+			factory = StandardTransportFactory.INSTANCE;
+		} else if (transport.equals("nio")) {
+			final NioTransportFactory nio = new NioTransportFactory();
+			nio.setMaxConnectionsPerHost(maxConnections);
+			factory = nio;
+		} else if (transport.equals("http2")) {
+			final Http2TransportFactory http2 = new Http2TransportFactory();
+			http2.setMaxConnectionsPerHost(maxConnections);
+			factory = http2;
+			url = server.startHttp2();
+		} else {
+			final PooledTransportFactory pooled = new PooledTransportFactory();
+			pooled.setMaxConnectionsPerHost(maxConnections);
+			factory = pooled;
+		}
+		try {
+			final KeyPair keyPair = TestCertificates.createKeyPair();
+			final Client client = new Client(url, TestCertificates.createSelfSigned("CN=Client", keyPair), keyPair.getPrivate(), new TrustingCallbackHandler());
+			client.setTransportFactory(factory);
+			final CertificationRequest csr = TestCertificates.createCsr("CN=Device", keyPair);
+			// Discover the CA before the burst, so that only PKCSReq is measured.
+			client.enrol(csr);
+			server.resetRequestCounts();
+			
+			final long[] samples = new long[transactions];
+			final AtomicLong failures = new AtomicLong();
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(transactions);
+			for (int i = 0; i < transactions; i++) {
+				final int index = i;
+				new Thread(new Runnable() {
+					public void run() {
+						try {
+							start.await();
+							final long begin = System.nanoTime();
+							try {
+								client.enrol(csr).send();
+							} catch (Exception e) {
+								failures.incrementAndGet();
+							}
+							samples[index] = System.nanoTime() - begin;
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} finally {
+							done.countDown();
+						}
+					}
+				}, "enrol-" + i).start();
+			}
+			final long begin = System.nanoTime();
+			start.countDown();
+			done.await();
+			final double seconds = (System.nanoTime() - begin) / 1e9;
+			
+			final long[] sorted = Arrays.copyOf(samples, transactions);
+			Arrays.sort(sorted);
+			System.out.printf("transport=%s transactions=%d failures=%d elapsed=%.2fs sockets=%d%n", transport, transactions, failures.get(), seconds, server.getConnectionCount());
+			System.out.printf("latency ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f%n", ClientLoadTest.percentile(sorted, 0.5), ClientLoadTest.percentile(sorted, 0.9), ClientLoadTest.percentile(sorted, 0.99), ClientLoadTest.percentile(sorted, 1.0));
+		} finally {
+			if (factory instanceof PooledTransportFactory) {
+				((PooledTransportFactory) factory).close();
+			} else if (factory instanceof NioTransportFactory) {
+				((NioTransportFactory) factory).close();
+			} else if (factory instanceof Http2TransportFactory) {
+				((Http2TransportFactory) factory).close();
+			}
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.jscep.transaction.EnrolmentTransaction;
+import org.jscep.transaction.Transaction.State;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a complete enrolment against a {@link StubScepServer} on the 
+ * loopback interface.
+ * <p>
+ * <code>enrol</code> uses the cached CA state, as in steady state, while
+ * <code>enrolCold</code> discards it first, so the difference is the cost 
+ * of CA discovery.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EnrolmentBenchmark {
+	@Param({"false", "true"})
+	public boolean withRa;
+	private StubScepServer server;
+	private Client client;
+	private CertificationRequest csr;
+	
+	@Setup
+	public void setUp() throws Exception {
+		server = new StubScepServer(withRa);
+		server.start();
+		
+		final KeyPair keyPair = TestCertificates.createKeyPair();
+		client = new Client(server.getUrl(), TestCertificates.createSelfSigned("CN=Client", keyPair), keyPair.getPrivate(), new TrustingCallbackHandler());
+		csr = TestCertificates.createCsr("CN=Device", keyPair);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		server.stop();
+	}
+	
+	@Benchmark
+	public State enrol() throws Exception {
+		final EnrolmentTransaction t = client.enrol(csr);
+		t.send();
+		
+		return t.getState();
+	}
+	
+	@Benchmark
+	public State enrolCold() throws Exception {
+		client.setCapabilitiesCache(new DefaultCapabilitiesCache());
+		client.invalidateCaCertificate();
+		
+		return enrol();
+	}
+}
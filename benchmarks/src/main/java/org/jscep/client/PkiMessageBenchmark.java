@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.cms.CMSSignedData;
+import org.jscep.message.PkcsPkiEnvelopeDecoder;
+import org.jscep.message.PkcsReq;
+import org.jscep.message.PkiMessage;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.TransactionId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the signing and enveloping of a PKCSReq with 
+ * {@link PkiMessageEncoder}, and the reverse with {@link PkiMessageDecoder}.
+ * <p>
+ * Each message is enveloped with every cipher a client may negotiate, to 
+ * show the saving of AES over triple DES, particularly on hardware with 
+ * AES instructions.  Run with <code>-prof gc</code> to see the allocation 
+ * per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PkiMessageBenchmark {
+	@Param({Algorithms.DES_EDE, Algorithms.AES})
+	public String cipher;
+	private PkiMessageEncoder encoder;
+	private PkiMessageDecoder decoder;
+	private PkcsReq request;
+	private CMSSignedData encoded;
+	
+	@Setup
+	public void setUp() throws Exception {
+		final KeyPair caKeyPair = TestCertificates.createKeyPair();
+		final X509Certificate ca = TestCertificates.createCa("CN=CA", caKeyPair);
+		final KeyPair clientKeyPair = TestCertificates.createKeyPair();
+		final X509Certificate client = TestCertificates.createSelfSigned("CN=Client", clientKeyPair);
+		
+		encoder = new PkiMessageEncoder(clientKeyPair.getPrivate(), client, new NegotiatedEnvelopeEncoder(ca, Algorithms.getCipherOid(cipher), NegotiatedEnvelopeEncoder.DEFAULT_PROVIDER));
+		decoder = new PkiMessageDecoder(new PkcsPkiEnvelopeDecoder(caKeyPair.getPrivate()));
+		request = new PkcsReq(TransactionId.createTransactionId(clientKeyPair.getPublic(), "SHA-1"), Nonce.nextNonce(), TestCertificates.createCsr("CN=Device", clientKeyPair));
+		encoded = encoder.encode(request);
+	}
+	
+	@Benchmark
+	public CMSSignedData encode() throws IOException {
+		return encoder.encode(request);
+	}
+	
+	@Benchmark
+	public PkiMessage<?> decode() throws IOException {
+		return decoder.decode(encoded);
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cryptographic operations of a single enrolment with each 
+ * JCA provider, to choose the providers passed to 
+ * {@link Client#setEnvelopeProvider(String)} and 
+ * {@link Client#setVerificationProvider(String)}.
+ * <p>
+ * Each enrolment signs the request, envelopes it to the RA, verifies the 
+ * signature of the response and decrypts its envelope.  The CA chain is 
+ * verified once per distinct chain.
+ * <p>
+ * Messages are enveloped with AES; see {@link PkiMessageBenchmark} for the 
+ * difference between ciphers.  "JDK" uses SunRsaSign for signatures and 
+ * SunJCE for ciphers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProviderBenchmark {
+	private static final String SIGNATURE = "SHA1withRSA";
+	private static final String KEY_TRANSPORT = "RSA/ECB/PKCS1Padding";
+	private static final String CONTENT_CIPHER = "AES/CBC/PKCS5Padding";
+	@Param({"BC", "JDK"})
+	public String provider;
+	private String signatureProvider;
+	private String cipherProvider;
+	private KeyPair clientKeyPair;
+	private KeyPair caKeyPair;
+	private X509Certificate ca;
+	private X509Certificate ra;
+	private byte[] payload;
+	private byte[] signature;
+	private byte[] wrappedKey;
+	private byte[] encryptedPayload;
+	private byte[] iv;
+	private NegotiatedEnvelopeEncoder envelope;
+	
+	@Setup
+	public void setUp() throws Exception {
+		signatureProvider = provider.equals("JDK") ? "SunRsaSign" : provider;
+		cipherProvider = provider.equals("JDK") ? "SunJCE" : provider;
+		caKeyPair = TestCertificates.createKeyPair();
+		ca = TestCertificates.createCa("CN=CA", caKeyPair);
+		ra = TestCertificates.createRa("CN=RA", TestCertificates.createKeyPair().getPublic(), KeyUsage.keyEncipherment, ca, caKeyPair);
+		clientKeyPair = TestCertificates.createKeyPair();
+		payload = TestCertificates.createCsr("CN=Device", clientKeyPair).getEncoded();
+		signature = sign();
+		
+		final KeyGenerator generator = KeyGenerator.getInstance("AES", cipherProvider);
+		generator.init(128);
+		final SecretKey key = generator.generateKey();
+		final Cipher wrap = Cipher.getInstance(KEY_TRANSPORT, cipherProvider);
+		wrap.init(Cipher.WRAP_MODE, ca.getPublicKey());
+		wrappedKey = wrap.wrap(key);
+		final Cipher encrypt = Cipher.getInstance(CONTENT_CIPHER, cipherProvider);
+		encrypt.init(Cipher.ENCRYPT_MODE, key);
+		iv = encrypt.getIV();
+		encryptedPayload = encrypt.doFinal(payload);
+		
+		envelope = new NegotiatedEnvelopeEncoder(ra, Algorithms.getCipherOid(Algorithms.AES), cipherProvider);
+	}
+	
+	/**
+	 * Signs a request, as the message encoder does.
+	 */
+	@Benchmark
+	public byte[] sign() throws GeneralSecurityException {
+		final Signature s = Signature.getInstance(SIGNATURE, signatureProvider);
+		s.initSign(clientKeyPair.getPrivate());
+		s.update(payload);
+		
+		return s.sign();
+	}
+	
+	/**
+	 * Verifies the signature of a response, as the message decoder does.
+	 */
+	@Benchmark
+	public boolean verify() throws GeneralSecurityException {
+		final Signature s = Signature.getInstance(SIGNATURE, signatureProvider);
+		s.initVerify(clientKeyPair.getPublic());
+		s.update(payload);
+		
+		return s.verify(signature);
+	}
+	
+	/**
+	 * Envelopes a request with AES.
+	 */
+	@Benchmark
+	public byte[] envelope() throws IOException {
+		return envelope.encode(payload);
+	}
+	
+	/**
+	 * Unwraps the content key and decrypts a response, as the envelope 
+	 * decoder does.
+	 */
+	@Benchmark
+	public byte[] decrypt() throws GeneralSecurityException {
+		final Cipher unwrap = Cipher.getInstance(KEY_TRANSPORT, cipherProvider);
+		unwrap.init(Cipher.UNWRAP_MODE, caKeyPair.getPrivate());
+		final SecretKey key = (SecretKey) unwrap.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+		final Cipher decrypt = Cipher.getInstance(CONTENT_CIPHER, cipherProvider);
+		decrypt.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+		
+		return decrypt.doFinal(encryptedPayload);
+	}
+	
+	/**
+	 * Verifies the signature on a certificate in the CA chain.
+	 */
+	@Benchmark
+	public X509Certificate verifyCertificate() throws GeneralSecurityException {
+		ra.verify(ca.getPublicKey(), signatureProvider);
+		
+		return ra;
+	}
+}
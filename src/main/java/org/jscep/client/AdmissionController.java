@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jscep.transport.Transport;
+import org.jscep.transport.TransportFactory;
+
+/**
+ * This class holds a circuit breaker and a concurrency limiter for each 
+ * endpoint used by a {@link Client}.
+ * 
+ * @see AdmissionTransport
+ */
+final class AdmissionController {
+	private final ConcurrentMap<String, Gate> gates = new ConcurrentHashMap<String, Gate>();
+	
+	/**
+	 * Returns a factory whose transports are admitted through this 
+	 * controller.
+	 * 
+	 * @param factory the factory creating the underlying transports.
+	 * @param metrics the metrics to receive rejections and limits.
+	 * @return the admitting factory.
+	 */
+	TransportFactory wrap(final TransportFactory factory, final ClientMetrics metrics) {
+		return new TransportFactory() {
+			public Transport createTransport(Transport.Method method, URL url) {
+				return admit(factory.createTransport(method, url), metrics);
+			}
+		};
+	}
+	
+	/**
+	 * Wraps the provided transport so that its requests are admitted through 
+	 * the gate of its endpoint.
+	 * 
+	 * @param t the transport.
+	 * @param metrics the metrics to receive rejections and limits.
+	 * @return the admitting transport.
+	 */
+	Transport admit(Transport t, ClientMetrics metrics) {
+		final Gate gate = getGate(t.getURL());
+		
+		return new AdmissionTransport(t.getURL(), t, gate.breaker, gate.limiter, metrics);
+	}
+	
+	/**
+	 * Returns the current concurrency limit of an endpoint.
+	 * 
+	 * @param endpoint the endpoint.
+	 * @return the limit.
+	 */
+	int getConcurrencyLimit(URL endpoint) {
+		return getGate(endpoint).limiter.getLimit();
+	}
+	
+	private Gate getGate(URL endpoint) {
+		final String key = endpoint.toExternalForm();
+		Gate gate = gates.get(key);
+		if (gate == null) {
+			final Gate created = new Gate();
+			gate = gates.putIfAbsent(key, created);
+			if (gate == null) {
+				gate = created;
+			}
+		}
+		return gate;
+	}
+	
+	private static final class Gate {
+		private final CircuitBreaker breaker = new CircuitBreaker(CircuitBreaker.OPEN_DURATION, CircuitBreaker.SLOW_CALL);
+		private final ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+	}
+}
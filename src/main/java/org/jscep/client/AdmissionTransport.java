@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import org.jscep.request.Operation;
+import org.jscep.request.Request;
+import org.jscep.transport.ForwardingTransport;
+import org.jscep.transport.Transport;
+
+/**
+ * This class admits requests to an endpoint through its circuit breaker 
+ * and concurrency limiter, rejecting any which would overload it.
+ * <p>
+ * Every request counts against the concurrency limit, but only the 
+ * round-trip times of PKIOperation requests adjust it.
+ */
+final class AdmissionTransport extends ForwardingTransport {
+	private final CircuitBreaker breaker;
+	private final ConcurrencyLimiter limiter;
+	private final ClientMetrics metrics;
+	
+	AdmissionTransport(URL url, Transport delegate, CircuitBreaker breaker, ConcurrencyLimiter limiter, ClientMetrics metrics) {
+		super(url, delegate);
+		this.breaker = breaker;
+		this.limiter = limiter;
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public <T> T sendRequest(Request<T> msg) throws IOException {
+		final URL url = getURL();
+		if (limiter.tryAcquire() == false) {
+			metrics.recordRejection(url, RequestRejectedException.Reason.CONCURRENCY_LIMIT);
+			throw new RequestRejectedException(url, RequestRejectedException.Reason.CONCURRENCY_LIMIT);
+		}
+		final long start = System.nanoTime();
+		if (breaker.allow(start) == false) {
+			limiter.cancel();
+			metrics.recordRejection(url, RequestRejectedException.Reason.CIRCUIT_OPEN);
+			throw new RequestRejectedException(url, RequestRejectedException.Reason.CIRCUIT_OPEN);
+		}
+		final int before = limiter.getLimit();
+		try {
+			final T response = super.sendRequest(msg);
+			final long rtt = System.nanoTime() - start;
+			breaker.record(rtt, false);
+			if (msg.getOperation() == Operation.PKIOperation) {
+				limiter.onSuccess(rtt);
+			} else {
+				// Informational requests are much faster than enrolments, 
+				// so their round-trip times would make every enrolment 
+				// look like congestion.
+				limiter.cancel();
+			}
+			
+			return response;
+		} catch (SocketTimeoutException e) {
+			// An endpoint which hangs is exactly what the breaker is for.
+			breaker.record(System.nanoTime() - start, true);
+			limiter.onFailure();
+			throw e;
+		} catch (InterruptedIOException e) {
+			// The caller gave up, which says nothing about the endpoint.
+			breaker.cancel();
+			limiter.cancel();
+			throw e;
+		} catch (IOException e) {
+			breaker.record(System.nanoTime() - start, true);
+			limiter.onFailure();
+			throw e;
+		} catch (RuntimeException e) {
+			breaker.record(System.nanoTime() - start, true);
+			limiter.onFailure();
+			throw e;
+		} finally {
+			final int after = limiter.getLimit();
+			if (after != before) {
+				metrics.recordConcurrencyLimit(url, after);
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.util.Locale;
+
+import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
+import org.jscep.response.Capabilities;
+
+/**
+ * This class chooses the cipher and digest algorithms used with a CA.
+ * <p>
+ * An explicit preference is always used.  Otherwise, the strongest 
+ * algorithm advertised by the CA is used, which is also the fastest: AES 
+ * is several times faster than triple DES in software, and more so with 
+ * hardware support, while SHA-256 costs little more than SHA-1 for the 
+ * small messages of SCEP.
+ */
+final class Algorithms {
+	/**
+	 * The JCA name of AES.
+	 */
+	static final String AES = "AES";
+	/**
+	 * The JCA name of triple DES, the cipher every SCEP server supports.
+	 */
+	static final String DES_EDE = "DESede";
+	/**
+	 * The JCA name of single DES, for CAs which support nothing better.
+	 */
+	static final String DES = "DES";
+	/**
+	 * The digest every SCEP server supports.
+	 */
+	static final String DEFAULT_DIGEST = "SHA-1";
+	// The generator has no constant for single DES.
+	private static final String DES_CBC = "1.3.14.3.2.7";
+	
+	private Algorithms() {
+		// This class should not be instantiated.
+	}
+	
+	/**
+	 * Returns the cipher to use with a CA.
+	 * 
+	 * @param caps the capabilities of the CA.
+	 * @param preferred the preferred cipher, or null.
+	 * @return the JCA name of the cipher.
+	 */
+	static String negotiateCipher(Capabilities caps, String preferred) {
+		if (preferred != null) {
+			return normaliseCipher(preferred);
+		}
+		final String strongest = caps.getStrongestCipher();
+		if (strongest == null) {
+			return DES_EDE;
+		}
+		return normaliseCipher(strongest);
+	}
+	
+	/**
+	 * Returns the digest to use with a CA.
+	 * 
+	 * @param caps the capabilities of the CA.
+	 * @param preferred the preferred digest, or null.
+	 * @return the JCA name of the digest.
+	 */
+	static String negotiateDigest(Capabilities caps, String preferred) {
+		if (preferred != null) {
+			return preferred;
+		}
+		final String strongest = caps.getStrongestMessageDigest();
+		
+		return strongest == null ? DEFAULT_DIGEST : strongest;
+	}
+	
+	/**
+	 * Returns the OID used to envelope messages with the given cipher.
+	 * 
+	 * @param cipher the JCA name of the cipher.
+	 * @return the OID of the cipher in CBC mode.
+	 */
+	static String getCipherOid(String cipher) {
+		if (AES.equals(cipher)) {
+			return CMSEnvelopedDataGenerator.AES128_CBC;
+		}
+		if (DES.equals(cipher)) {
+			return DES_CBC;
+		}
+		return CMSEnvelopedDataGenerator.DES_EDE3_CBC;
+	}
+	
+	/**
+	 * Returns the JCA name of a cipher, as named by a CA or a caller.
+	 * 
+	 * @param cipher the name of the cipher.
+	 * @return the JCA name.
+	 * @throws IllegalArgumentException if the cipher is not supported.
+	 */
+	static String normaliseCipher(String cipher) {
+		final String name = cipher.toUpperCase(Locale.ENGLISH);
+		if (name.startsWith("AES")) {
+			return AES;
+		}
+		if (name.equals("DESEDE") || name.equals("DES3") || name.equals("3DES") || name.equals("TRIPLEDES")) {
+			return DES_EDE;
+		}
+		if (name.equals("DES")) {
+			return DES;
+		}
+		throw new IllegalArgumentException("Unsupported cipher: " + cipher);
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.math.BigInteger;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.jscep.response.Capabilities;
+import org.jscep.transaction.EnrolmentTransaction;
+import org.jscep.transport.Deadline;
+
+/**
+ * This class provides a non-blocking view of a {@link Client}.
+ * <p>
+ * Every operation is run by the provided executor, and returns a 
+ * {@link ClientFuture} immediately.  Transactional operations depend upon
+ * the capabilities and certificate chain of the CA, so these are retrieved
+ * first, in parallel, and the operation itself is only handed to the 
+ * executor once both are available.  No executor thread is held waiting
+ * for another.
+ * <p>
+ * Each round trip with the CA does hold an executor thread until its 
+ * response arrives, because the client's transactions are synchronous.  A 
+ * request may be sent without holding any thread through an 
+ * {@link org.jscep.transport.AsyncTransport}, such as those created by 
+ * {@link org.jscep.transport.NioTransportFactory}.
+ */
+public class AsyncClient {
+	private final Client client;
+	private final Executor executor;
+	
+	/**
+	 * Creates a new AsyncClient.
+	 * 
+	 * @param client the client to delegate to.
+	 * @param executor the executor to run operations with.
+	 */
+	public AsyncClient(Client client, Executor executor) {
+		if (client == null) {
+			throw new NullPointerException("Client should not be null");
+		}
+		if (executor == null) {
+			throw new NullPointerException("Executor should not be null");
+		}
+		this.client = client;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Retrieves the set of SCEP capabilities from the CA.
+	 * 
+	 * @return the future capabilities of the server.
+	 * @see Client#getCaCapabilities()
+	 */
+	public ClientFuture<Capabilities> getCaCapabilities() {
+		return submit(new Callable<Capabilities>() {
+			public Capabilities call() throws Exception {
+				return client.getCaCapabilities();
+			}
+		});
+	}
+	
+	/**
+	 * Retrieves the CA certificate.
+	 * 
+	 * @return the future list of certificates.
+	 * @see Client#getCaCertificate()
+	 */
+	public ClientFuture<List<X509Certificate>> getCaCertificate() {
+		return submit(new Callable<List<X509Certificate>>() {
+			public List<X509Certificate> call() throws Exception {
+				return client.getCaCertificate();
+			}
+		});
+	}
+	
+	/**
+	 * Retrieves the "rollover" certificate to be used by the CA.
+	 * 
+	 * @return the future list of certificates.
+	 * @see Client#getRolloverCertificate()
+	 */
+	public ClientFuture<List<X509Certificate>> getRolloverCertificate() {
+		return afterDiscovery(new Callable<List<X509Certificate>>() {
+			public List<X509Certificate> call() throws Exception {
+				return client.getRolloverCertificate();
+			}
+		});
+	}
+	
+	/**
+	 * Returns the current CA's certificate revocation list
+	 * 
+	 * @return the future CRL.
+	 * @see Client#getRevocationList()
+	 */
+	public ClientFuture<X509CRL> getRevocationList() {
+		return afterDiscovery(new Callable<X509CRL>() {
+			public X509CRL call() throws Exception {
+				return client.getRevocationList();
+			}
+		});
+	}
+	
+	/**
+	 * Returns the certificate corresponding to the provided serial number.
+	 * 
+	 * @param serial the serial number.
+	 * @return the future certificates.
+	 * @see Client#getCertificate(BigInteger)
+	 */
+	public ClientFuture<List<X509Certificate>> getCertificate(final BigInteger serial) {
+		return afterDiscovery(new Callable<List<X509Certificate>>() {
+			public List<X509Certificate> call() throws Exception {
+				return client.getCertificate(serial);
+			}
+		});
+	}
+	
+	/**
+	 * Enrolls the provided CSR into a PKI.
+	 * 
+	 * @param csr the certificate signing request
+	 * @return the future enrollment transaction.
+	 * @see Client#enrol(CertificationRequest)
+	 */
+	public ClientFuture<EnrolmentTransaction> enrol(final CertificationRequest csr) {
+		return afterDiscovery(new Callable<EnrolmentTransaction>() {
+			public EnrolmentTransaction call() throws Exception {
+				return client.enrol(csr);
+			}
+		});
+	}
+	
+	private <T> ClientFuture<T> submit(Callable<T> task) {
+		final ClientFuture<T> future = new ClientFuture<T>(task);
+		execute(future);
+		
+		return future;
+	}
+	
+	private void execute(ClientFuture<?> future) {
+		try {
+			executor.execute(future);
+		} catch (RejectedExecutionException e) {
+			future.fail(e);
+		}
+	}
+	
+	/**
+	 * Runs the given task once the CA capabilities and certificate chain 
+	 * have been cached by the client.
+	 */
+	private <T> ClientFuture<T> afterDiscovery(Callable<T> task) {
+		final ClientFuture<T> result = new ClientFuture<T>(task);
+		final AtomicInteger pending = new AtomicInteger(2);
+		final FutureCallback<Object> stage = new FutureCallback<Object>() {
+			public void onSuccess(Object value) {
+				if (pending.decrementAndGet() == 0) {
+					execute(result);
+				}
+			}
+			
+			public void onFailure(Throwable cause) {
+				// Only the first failure is reported.
+				if (pending.getAndSet(-1) > 0) {
+					result.fail(cause);
+				}
+			}
+		};
+		// Each stage is bounded by the timeouts of the client, as a call 
+		// to one of its public methods would be.
+		submit(new Callable<Capabilities>() {
+			public Capabilities call() throws Exception {
+				final Deadline previous = Deadline.enter(client.getTimeouts());
+				try {
+					return client.getCaCapabilities(true);
+				} finally {
+					Deadline.restore(previous);
+				}
+			}
+		}).addCallback(stage);
+		submit(new Callable<CaChain>() {
+			public CaChain call() throws Exception {
+				final Deadline previous = Deadline.enter(client.getTimeouts());
+				try {
+					return client.getCaChain(true);
+				} finally {
+					Deadline.restore(previous);
+				}
+			}
+		}).addCallback(stage);
+		
+		return result;
+	}
+}
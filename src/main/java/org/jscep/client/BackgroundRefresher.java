@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class refreshes cached state in the background.
+ * <p>
+ * At most one refresh runs for each key at a time.  After a refresh fails, 
+ * no other is started for that key until the retry delay has passed, so 
+ * that callers served with stale state do not each retry an unavailable CA.
+ */
+final class BackgroundRefresher {
+	private static final Logger LOGGER = LoggingUtil.getLogger(BackgroundRefresher.class);
+	static final long RETRY_DELAY = TimeUnit.SECONDS.toNanos(30);
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, "scep-refresh");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private final ConcurrentMap<Object, Boolean> running = new ConcurrentHashMap<Object, Boolean>();
+	private final ConcurrentMap<Object, Long> failedAt = new ConcurrentHashMap<Object, Long>();
+	
+	/**
+	 * Starts a refresh for the given key, unless one is already running or 
+	 * the last one failed too recently.
+	 * 
+	 * @param key the key.
+	 * @param task the refresh.
+	 * @return true if the refresh was started.
+	 */
+	boolean refresh(final Object key, final Callable<?> task) {
+		final Long failed = failedAt.get(key);
+		if (failed != null && System.nanoTime() - failed < RETRY_DELAY) {
+			return false;
+		}
+		if (running.putIfAbsent(key, Boolean.TRUE) != null) {
+			return false;
+		}
+		EXECUTOR.execute(new Runnable() {
+			public void run() {
+				try {
+					task.call();
+					failedAt.remove(key);
+				} catch (Exception e) {
+					failedAt.put(key, System.nanoTime());
+					LOGGER.log(Level.WARNING, "Background refresh of " + key + " failed", e);
+				} finally {
+					running.remove(key);
+				}
+			}
+		});
+		return true;
+	}
+}
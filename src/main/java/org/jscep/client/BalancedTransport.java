@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jscep.request.Operation;
+import org.jscep.request.Request;
+import org.jscep.transport.ForwardingTransport;
+import org.jscep.transport.Transport;
+import org.jscep.transport.TransportFactory;
+
+/**
+ * This class sends each request to an endpoint chosen by a 
+ * {@link LoadBalancer}.
+ * <p>
+ * The endpoint which accepts the first PKIOperation request is used for 
+ * every later PKIOperation request through this transport, so that a 
+ * pending transaction is always polled at the endpoint which holds it.
+ * <p>
+ * A request refused by admission control before it was sent, for example 
+ * because the circuit of the endpoint is open, is sent to another endpoint 
+ * instead, unless it is pinned.
+ * <p>
+ * Since the pinned endpoint is held by the instance, each instance MUST be 
+ * used for a single transaction.  Sharing one between transactions sends 
+ * every one of them to the endpoint chosen for the first.
+ */
+final class BalancedTransport extends ForwardingTransport {
+	private final LoadBalancer balancer;
+	private final TransportFactory factory;
+	private final Method method;
+	// Guarded by this.
+	private final Map<LoadBalancer.Endpoint, Transport> transports = new HashMap<LoadBalancer.Endpoint, Transport>();
+	private volatile LoadBalancer.Endpoint pinned;
+	
+	BalancedTransport(URL url, LoadBalancer balancer, TransportFactory factory, Method method) {
+		super(url, null);
+		this.balancer = balancer;
+		this.factory = factory;
+		this.method = method;
+	}
+	
+	@Override
+	public <T> T sendRequest(Request<T> msg) throws IOException {
+		final boolean pkiOperation = msg.getOperation() == Operation.PKIOperation;
+		LoadBalancer.Endpoint endpoint = pkiOperation ? pinned : null;
+		final boolean isPinned = endpoint != null;
+		if (endpoint == null) {
+			endpoint = balancer.select();
+		}
+		Set<LoadBalancer.Endpoint> rejected = null;
+		while (true) {
+			endpoint.start();
+			final long start = System.nanoTime();
+			final T response;
+			try {
+				response = getTransport(endpoint).sendRequest(msg);
+			} catch (RequestRejectedException e) {
+				// The endpoint was never asked, so this is not one of its 
+				// failures, and another endpoint may be asked instead.
+				endpoint.rejected(e.getReason());
+				if (isPinned) {
+					throw e;
+				}
+				if (rejected == null) {
+					rejected = new HashSet<LoadBalancer.Endpoint>();
+				}
+				rejected.add(endpoint);
+				endpoint = balancer.select(rejected);
+				if (endpoint == null) {
+					throw e;
+				}
+				continue;
+			} catch (IOException e) {
+				endpoint.failed();
+				throw e;
+			} catch (RuntimeException e) {
+				endpoint.failed();
+				throw e;
+			}
+			endpoint.succeeded(System.nanoTime() - start);
+			if (pkiOperation && pinned == null) {
+				pinned = endpoint;
+			}
+			
+			return response;
+		}
+	}
+	
+	/**
+	 * Returns the endpoint to which PKIOperation requests are pinned.
+	 * 
+	 * @return the URL of the endpoint, or null if none has been chosen.
+	 */
+	URL getPinnedUrl() {
+		final LoadBalancer.Endpoint endpoint = pinned;
+		
+		return endpoint == null ? null : endpoint.getUrl();
+	}
+	
+	private synchronized Transport getTransport(LoadBalancer.Endpoint endpoint) {
+		Transport t = transports.get(endpoint);
+		if (t == null) {
+			t = factory.createTransport(method, endpoint.getUrl());
+			transports.put(endpoint, t);
+		}
+		return t;
+	}
+}
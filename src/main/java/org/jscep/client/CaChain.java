@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class represents a CA certificate chain, as returned by GetCACert,
+ * together with the role of each certificate in it.
+ * 
+ * @see ChainResolver
+ */
+final class CaChain {
+	private final String fingerprint;
+	private final String caFingerprint;
+	private final List<X509Certificate> certs;
+	private final X509Certificate ca;
+	private final X509Certificate recipient;
+	private final X509Certificate signer;
+
+	CaChain(String fingerprint, List<X509Certificate> certs, X509Certificate ca, X509Certificate recipient, X509Certificate signer) {
+		this.fingerprint = fingerprint;
+		this.certs = Collections.unmodifiableList(new ArrayList<X509Certificate>(certs));
+		this.ca = ca;
+		this.caFingerprint = Fingerprints.sha256(ca);
+		this.recipient = recipient;
+		this.signer = signer;
+	}
+
+	/**
+	 * Returns the SHA-256 fingerprint of this chain.
+	 *
+	 * @return the fingerprint.
+	 */
+	String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Returns the SHA-256 fingerprint of the CA certificate.
+	 *
+	 * @return the fingerprint.
+	 */
+	String getCaFingerprint() {
+		return caFingerprint;
+	}
+
+	/**
+	 * Returns the certificates in the order they were sent by the server.
+	 *
+	 * @return an unmodifiable list of certificates.
+	 */
+	List<X509Certificate> getCertificates() {
+		return certs;
+	}
+
+	/**
+	 * Returns the CA certificate.
+	 *
+	 * @return the CA certificate.
+	 */
+	X509Certificate getCa() {
+		return ca;
+	}
+
+	/**
+	 * Returns the certificate to which messages should be encrypted.
+	 * <p>
+	 * This is the RA certificate if the CA is using an RA, otherwise the
+	 * CA certificate.
+	 *
+	 * @return the recipient certificate.
+	 */
+	X509Certificate getRecipient() {
+		return recipient;
+	}
+
+	/**
+	 * Returns the certificate used by the server to sign its responses.
+	 * <p>
+	 * This is the RA signing certificate if the CA is using an RA, 
+	 * otherwise the CA certificate.
+	 *
+	 * @return the signer certificate.
+	 */
+	X509Certificate getSigner() {
+		return signer;
+	}
+
+	@Override
+	public String toString() {
+		return certs.toString();
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds the CA certificate chain of a single {@link Client}.
+ * <p>
+ * A cached chain is discarded when the CA certificate expires, when a 
+ * rollover certificate obtained through GetNextCACert becomes valid, or 
+ * when the maximum staleness has elapsed after its time-to-live.  Between 
+ * its time-to-live and its maximum staleness, a chain is only returned by 
+ * {@link #getStale()}.
+ */
+final class CaChainCache {
+	/**
+	 * The default time-to-live for a CA chain, in milliseconds.
+	 */
+	static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(1);
+	/**
+	 * The default maximum staleness for a CA chain, in milliseconds.
+	 */
+	static final long DEFAULT_MAX_STALENESS = TimeUnit.HOURS.toMillis(1);
+	private volatile Entry entry;
+	private volatile long ttl;
+	private volatile long maxStaleness = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_STALENESS);
+
+	CaChainCache(long ttl, TimeUnit unit) {
+		setTimeout(ttl, unit);
+	}
+
+	void setTimeout(long ttl, TimeUnit unit) {
+		if (ttl < 0) {
+			throw new IllegalArgumentException("Time-to-live should not be negative");
+		}
+		this.ttl = unit.toNanos(ttl);
+	}
+
+	void setMaxStaleness(long maxStaleness, TimeUnit unit) {
+		if (maxStaleness < 0) {
+			throw new IllegalArgumentException("Maximum staleness should not be negative");
+		}
+		this.maxStaleness = unit.toNanos(maxStaleness);
+	}
+
+	/**
+	 * Returns the cached chain, if it is fresh.
+	 *
+	 * @return the chain, or null if nothing fresh is cached.
+	 */
+	CaChain get() {
+		return get(false);
+	}
+
+	/**
+	 * Returns the cached chain, even if its time-to-live has elapsed.
+	 *
+	 * @return the chain, or null if nothing usable is cached.
+	 */
+	CaChain getStale() {
+		return get(true);
+	}
+
+	private CaChain get(boolean stale) {
+		final Entry e = entry;
+		if (e == null) {
+			return null;
+		}
+		final long age = System.nanoTime() - e.expiresAt;
+		if (age >= 0) {
+			if (age >= maxStaleness) {
+				invalidate(e);
+				return null;
+			}
+			if (stale == false) {
+				return null;
+			}
+		}
+		final long now = System.currentTimeMillis();
+		if (now > e.chain.getCa().getNotAfter().getTime()) {
+			invalidate(e);
+			return null;
+		}
+		if (e.rolloverAt != 0 && now >= e.rolloverAt) {
+			// The rollover certificate is now current, so the chain we
+			// hold is out of date.
+			invalidate(e);
+			return null;
+		}
+		return e.chain;
+	}
+
+	synchronized void put(CaChain chain) {
+		entry = new Entry(chain, System.nanoTime() + ttl, 0);
+	}
+
+	/**
+	 * Records the rollover CA certificate for the cached chain.
+	 *
+	 * @param rolloverCa the CA certificate returned by GetNextCACert.
+	 */
+	synchronized void putRollover(X509Certificate rolloverCa) {
+		final Entry e = entry;
+		if (e == null) {
+			return;
+		}
+		entry = new Entry(e.chain, e.expiresAt, rolloverCa.getNotBefore().getTime());
+	}
+
+	synchronized void invalidate() {
+		entry = null;
+	}
+
+	private synchronized void invalidate(Entry e) {
+		// Only remove the entry we inspected, not a newer one.
+		if (entry == e) {
+			entry = null;
+		}
+	}
+
+	private static final class Entry {
+		private final CaChain chain;
+		private final long expiresAt;
+		private final long rolloverAt;
+
+		private Entry(CaChain chain, long expiresAt, long rolloverAt) {
+			this.chain = chain;
+			this.expiresAt = expiresAt;
+			this.rolloverAt = rolloverAt;
+		}
+	}
+}
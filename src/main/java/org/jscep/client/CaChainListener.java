@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * This interface is notified when a {@link Client} retrieves a CA 
+ * certificate chain which differs from the one it held before.
+ * <p>
+ * Listeners may be called from a background thread, and SHOULD return 
+ * quickly.
+ * 
+ * @see Client#addCaChainListener(CaChainListener)
+ */
+public interface CaChainListener {
+	/**
+	 * Called when the CA certificate chain has changed.
+	 * 
+	 * @param previous the previous chain.
+	 * @param current the new chain, which has already been verified.
+	 */
+	void caChainChanged(List<X509Certificate> previous, List<X509Certificate> current);
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class is a snapshot of the state discovered from a CA, kept in a 
+ * local file so that it survives a restart.
+ * <p>
+ * The snapshot holds the raw GetCACaps response, the CA certificate chain 
+ * and the fingerprints of the CA certificates which have been verified.  
+ * The file is replaced atomically by writing a temporary file and renaming 
+ * it, and its content is protected by a checksum, so a reader never sees a 
+ * partly written snapshot.  Reads and writes hold an exclusive lock on a 
+ * companion <code>.lock</code> file, and a lock shared by every snapshot 
+ * of the same file in the JVM, so clients in one JVM or in several JVMs 
+ * on the same host may share a snapshot file.  A save merges with the 
+ * file as it is under the lock, so state written by another client since 
+ * the last load is kept.
+ * <p>
+ * The verified fingerprints are only a hint: the file may be stale or 
+ * have been altered, so a restored CA certificate must be verified again 
+ * before it is trusted.
+ */
+final class CaSnapshot {
+	private static Logger LOGGER = LoggingUtil.getLogger(CaSnapshot.class);
+	private static final byte[] MAGIC = {'S', 'C', 'E', 'P', 'S', 'N', 'P', '1'};
+	// Orders the snapshots of the same file in this JVM, by canonical path.
+	private static final ConcurrentMap<String, ReentrantLock> LOCAL_LOCKS = new ConcurrentHashMap<String, ReentrantLock>();
+	private final File file;
+	private final URL url;
+	private final String profile;
+	// Guarded by this.
+	private String capsType;
+	private byte[] caps;
+	private List<X509Certificate> chain = Collections.emptyList();
+	private final Set<String> verified = new LinkedHashSet<String>();
+	private boolean capsChanged;
+	private boolean chainChanged;
+	private boolean verifiedChanged;
+	private ReentrantLock localLock;
+	
+	CaSnapshot(File file, URL url, String profile) {
+		this.file = file;
+		this.url = url;
+		this.profile = profile;
+	}
+	
+	synchronized String getCapabilitiesType() {
+		return capsType;
+	}
+	
+	synchronized byte[] getCapabilities() {
+		return caps;
+	}
+	
+	synchronized void setCapabilities(String type, byte[] caps) {
+		if (Arrays.equals(this.caps, caps) && (type == null ? capsType == null : type.equals(capsType))) {
+			return;
+		}
+		this.capsType = type;
+		this.caps = caps;
+		this.capsChanged = true;
+	}
+	
+	synchronized List<X509Certificate> getChain() {
+		return chain;
+	}
+	
+	synchronized void setChain(List<X509Certificate> chain) {
+		if (this.chain.equals(chain)) {
+			return;
+		}
+		this.chain = new ArrayList<X509Certificate>(chain);
+		this.chainChanged = true;
+	}
+	
+	synchronized Set<String> getVerified() {
+		return new LinkedHashSet<String>(verified);
+	}
+	
+	synchronized boolean addVerified(String fingerprint) {
+		if (verified.add(fingerprint) == false) {
+			return false;
+		}
+		verifiedChanged = true;
+		
+		return true;
+	}
+	
+	/**
+	 * Reads the snapshot file, if it exists and belongs to the same CA URL
+	 * and profile.
+	 * 
+	 * @return true if the snapshot was read.
+	 * @throws IOException if the file exists but cannot be read.
+	 */
+	synchronized boolean load() throws IOException {
+		final byte[] payload;
+		final FileLock lock = lock();
+		try {
+			if (file.exists() == false) {
+				return false;
+			}
+			payload = read();
+		} finally {
+			release(lock);
+		}
+		if (payload == null || decode(payload, false) == false) {
+			return false;
+		}
+		capsChanged = false;
+		chainChanged = false;
+		verifiedChanged = false;
+		
+		return true;
+	}
+	
+	/**
+	 * Replaces the snapshot file with the current state, merged with the 
+	 * state in the file.
+	 * <p>
+	 * The capabilities and chain in the file are kept unless they were set 
+	 * since the last load or save, and the verified fingerprints of both 
+	 * are kept.  Nothing is written if nothing has changed since the last 
+	 * load or save.
+	 * 
+	 * @throws IOException if the file cannot be written.
+	 */
+	synchronized void save() throws IOException {
+		if (capsChanged == false && chainChanged == false && verifiedChanged == false) {
+			return;
+		}
+		final FileLock lock = lock();
+		try {
+			if (file.exists()) {
+				final byte[] payload = read();
+				if (payload != null) {
+					decode(payload, true);
+				}
+			}
+			write(encode());
+			capsChanged = false;
+			chainChanged = false;
+			verifiedChanged = false;
+		} finally {
+			release(lock);
+		}
+	}
+	
+	/**
+	 * Decodes a snapshot into this instance.
+	 * 
+	 * @param payload the snapshot.
+	 * @param merge true to keep the state set since the last load or save.
+	 * @return false if the snapshot belongs to another CA.
+	 * @throws IOException if the snapshot cannot be decoded.
+	 */
+	private boolean decode(byte[] payload, boolean merge) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		if (in.readUTF().equals(url.toExternalForm()) == false || readOptionalUTF(in, profile) == false) {
+			LOGGER.warning("Ignoring snapshot " + file + " of another CA");
+			return false;
+		}
+		String type = null;
+		byte[] caps = null;
+		if (in.readBoolean()) {
+			type = in.readUTF();
+			caps = readBytes(in);
+		}
+		final List<X509Certificate> chain = new ArrayList<X509Certificate>();
+		try {
+			final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+			for (int i = in.readInt(); i > 0; i--) {
+				chain.add((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(readBytes(in))));
+			}
+		} catch (CertificateException e) {
+			throw new IOException("Could not decode certificate", e);
+		}
+		final Set<String> verified = new LinkedHashSet<String>();
+		for (int i = in.readInt(); i > 0; i--) {
+			verified.add(in.readUTF());
+		}
+		if (merge == false || capsChanged == false) {
+			this.capsType = type;
+			this.caps = caps;
+		}
+		if (merge == false || chainChanged == false) {
+			this.chain = chain;
+		}
+		if (merge == false) {
+			this.verified.clear();
+		}
+		this.verified.addAll(verified);
+		
+		return true;
+	}
+	
+	private byte[] encode() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(url.toExternalForm());
+		out.writeBoolean(profile != null);
+		if (profile != null) {
+			out.writeUTF(profile);
+		}
+		out.writeBoolean(caps != null);
+		if (caps != null) {
+			out.writeUTF(capsType == null ? "" : capsType);
+			writeBytes(out, caps);
+		}
+		out.writeInt(chain.size());
+		try {
+			for (X509Certificate cert : chain) {
+				writeBytes(out, cert.getEncoded());
+			}
+		} catch (CertificateException e) {
+			throw new IOException("Could not encode certificate", e);
+		}
+		out.writeInt(verified.size());
+		for (String fingerprint : verified) {
+			out.writeUTF(fingerprint);
+		}
+		out.flush();
+		
+		return bytes.toByteArray();
+	}
+	
+	private byte[] read() throws IOException {
+		final DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			final byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (Arrays.equals(magic, MAGIC) == false) {
+				throw new IOException(file + " is not a snapshot");
+			}
+			final int checksum = in.readInt();
+			final byte[] payload = readBytes(in);
+			final CRC32 crc = new CRC32();
+			crc.update(payload);
+			if ((int) crc.getValue() != checksum) {
+				LOGGER.warning("Ignoring corrupt snapshot " + file);
+				return null;
+			}
+			return payload;
+		} finally {
+			in.close();
+		}
+	}
+	
+	private void write(byte[] payload) throws IOException {
+		final CRC32 crc = new CRC32();
+		crc.update(payload);
+		final File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			final FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				final DataOutputStream out = new DataOutputStream(fos);
+				out.write(MAGIC);
+				out.writeInt((int) crc.getValue());
+				writeBytes(out, payload);
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			if (tmp.renameTo(file) == false) {
+				// Some platforms will not rename over an existing file.
+				if (file.delete() == false || tmp.renameTo(file) == false) {
+					throw new IOException("Could not replace " + file);
+				}
+			}
+		} finally {
+			if (tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+	
+	private FileLock lock() throws IOException {
+		// A file lock is held by the whole JVM, and a second attempt to 
+		// take it from this JVM fails rather than waits.
+		final ReentrantLock local = getLocalLock();
+		local.lock();
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(file.getPath() + ".lock", "rw");
+			try {
+				return raf.getChannel().lock();
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		} catch (IOException e) {
+			local.unlock();
+			throw e;
+		}
+	}
+	
+	private void release(FileLock lock) throws IOException {
+		try {
+			lock.release();
+		} finally {
+			try {
+				// Closing the channel also closes the file.
+				lock.channel().close();
+			} finally {
+				localLock.unlock();
+			}
+		}
+	}
+	
+	private ReentrantLock getLocalLock() throws IOException {
+		if (localLock == null) {
+			final String path = file.getCanonicalPath();
+			final ReentrantLock created = new ReentrantLock();
+			final ReentrantLock existing = LOCAL_LOCKS.putIfAbsent(path, created);
+			localLock = existing == null ? created : existing;
+		}
+		return localLock;
+	}
+	
+	private static boolean readOptionalUTF(DataInputStream in, String expected) throws IOException {
+		final String value = in.readBoolean() ? in.readUTF() : null;
+		
+		return expected == null ? value == null : expected.equals(value);
+	}
+	
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Invalid length " + length);
+		}
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		
+		return bytes;
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+
+import org.jscep.CertificateVerificationCallback;
+import org.jscep.transport.Deadline;
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class asks a callback handler to verify CA certificates, on a 
+ * thread of its own.
+ * <p>
+ * Callers waiting for the same fingerprint share a single invocation of 
+ * the callback handler, and each waits no longer than the verification 
+ * timeout or its own {@link Deadline}.  A caller which gives up does not 
+ * cancel the invocation, so a later caller may still receive its result.  
+ * A rejection is remembered for a while, so that the callback handler is 
+ * not asked again by every caller.
+ */
+final class CaVerifier {
+	private static Logger LOGGER = LoggingUtil.getLogger(CaVerifier.class);
+	/**
+	 * The default time for which a rejection is remembered, in milliseconds.
+	 */
+	static final long DEFAULT_REJECTION_TTL = TimeUnit.MINUTES.toMillis(1);
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, "scep-verify");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private final ConcurrentMap<String, FutureTask<Boolean>> pending = new ConcurrentHashMap<String, FutureTask<Boolean>>();
+	private final ConcurrentMap<String, Long> rejections = new ConcurrentHashMap<String, Long>();
+	private volatile long timeout;
+	private volatile long rejectionTtl = TimeUnit.MILLISECONDS.toNanos(DEFAULT_REJECTION_TTL);
+	
+	void setTimeouts(long timeout, long rejectionTtl, TimeUnit unit) {
+		if (timeout < 0 || rejectionTtl < 0) {
+			throw new IllegalArgumentException("Timeout should not be negative");
+		}
+		this.timeout = unit.toNanos(timeout);
+		this.rejectionTtl = unit.toNanos(rejectionTtl);
+		rejections.clear();
+	}
+	
+	/**
+	 * Verifies a CA certificate, adding it to the cache if it is accepted.
+	 * 
+	 * @param cert the CA certificate.
+	 * @param fingerprint the fingerprint of the CA certificate.
+	 * @param cache the cache of verified certificates.
+	 * @param cbh the callback handler.
+	 * @throws IOException if the certificate is rejected, or the caller 
+	 *         times out waiting for it to be verified.
+	 */
+	void verify(final X509Certificate cert, final String fingerprint, final VerificationCache cache, final CallbackHandler cbh) throws IOException {
+		final Long rejectedAt = rejections.get(fingerprint);
+		if (rejectedAt != null) {
+			if (System.nanoTime() - rejectedAt < rejectionTtl) {
+				throw new IOException("CA certificate fingerprint could not be verified.");
+			}
+			rejections.remove(fingerprint, rejectedAt);
+		}
+		final FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				final CertificateVerificationCallback callback = new CertificateVerificationCallback(cert);
+				cbh.handle(new Callback[] {callback});
+				// Recorded before any waiting caller sees the result.
+				record(fingerprint, callback.isVerified(), cache);
+				
+				return callback.isVerified();
+			}
+		});
+		FutureTask<Boolean> current = pending.putIfAbsent(fingerprint, task);
+		if (current == null) {
+			current = task;
+			EXECUTOR.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						pending.remove(fingerprint, task);
+					}
+				}
+			});
+		}
+		if (await(fingerprint, current) == false) {
+			throw new IOException("CA certificate fingerprint could not be verified.");
+		}
+	}
+	
+	private void record(String fingerprint, boolean verified, VerificationCache cache) {
+		if (verified) {
+			try {
+				cache.addVerified(fingerprint);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not pin CA certificate " + fingerprint, e);
+			}
+		} else {
+			rejections.put(fingerprint, System.nanoTime());
+		}
+	}
+	
+	private boolean await(String fingerprint, FutureTask<Boolean> task) throws IOException {
+		long wait = timeout == 0 ? Long.MAX_VALUE : timeout;
+		final Deadline deadline = Deadline.current();
+		if (deadline != null) {
+			wait = Math.min(wait, deadline.getRemaining(TimeUnit.NANOSECONDS));
+		}
+		try {
+			if (wait == Long.MAX_VALUE) {
+				return task.get();
+			}
+			return task.get(wait, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			throw new SocketTimeoutException("Timed out waiting for verification of CA certificate " + fingerprint);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for verification of CA certificate " + fingerprint);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+}
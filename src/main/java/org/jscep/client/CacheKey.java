@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.net.URL;
+
+/**
+ * This class identifies a CA by its URL and profile.
+ * <p>
+ * The URL is compared by its external form, since {@link URL#equals(Object)}
+ * may resolve the host name.
+ */
+final class CacheKey {
+	private final String url;
+	private final String profile;
+	private final int hash;
+
+	CacheKey(URL url, String profile) {
+		this.url = url.toExternalForm();
+		this.profile = profile;
+		this.hash = 31 * this.url.hashCode() + (profile == null ? 0 : profile.hashCode());
+	}
+
+	String getUrl() {
+		return url;
+	}
+
+	String getProfile() {
+		return profile;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o instanceof CacheKey == false) {
+			return false;
+		}
+		final CacheKey other = (CacheKey) o;
+		if (url.equals(other.url) == false) {
+			return false;
+		}
+		return profile == null ? other.profile == null : profile.equals(other.profile);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return profile == null ? url : url + " [" + profile + "]";
+	}
+}
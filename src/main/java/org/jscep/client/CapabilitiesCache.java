@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.jscep.response.Capabilities;
+
+/**
+ * This interface represents a cache of SCEP server capabilities.
+ * <p>
+ * Entries are keyed by the URL of the SCEP server and the CA profile.  A
+ * single cache may be shared by many {@link Client} instances, so
+ * implementations MUST be safe for use by multiple threads.
+ */
+public interface CapabilitiesCache {
+	/**
+	 * Returns the cached capabilities for the given CA.
+	 *
+	 * @param url the URL to the SCEP server.
+	 * @param profile the name of the CA profile, or null.
+	 * @return the capabilities, or null if nothing usable is cached.
+	 * @throws IOException if a failed lookup is cached for the CA.
+	 */
+	Capabilities get(URL url, String profile) throws IOException;
+
+	/**
+	 * Returns capabilities for the given CA which are no longer fresh, but
+	 * which may still be used while they are refreshed.
+	 * <p>
+	 * This method is called when {@link #get(URL, String)} returns null.
+	 *
+	 * @param url the URL to the SCEP server.
+	 * @param profile the name of the CA profile, or null.
+	 * @return the stale capabilities, or null if they are too stale to use.
+	 */
+	Capabilities getStale(URL url, String profile);
+
+	/**
+	 * Caches the capabilities of the given CA.
+	 *
+	 * @param url the URL to the SCEP server.
+	 * @param profile the name of the CA profile, or null.
+	 * @param caps the capabilities of the server.
+	 */
+	void put(URL url, String profile, Capabilities caps);
+
+	/**
+	 * Caches a failed lookup of the capabilities of the given CA.
+	 *
+	 * @param url the URL to the SCEP server.
+	 * @param profile the name of the CA profile, or null.
+	 * @param failure the cause of the failure.
+	 */
+	void putFailure(URL url, String profile, IOException failure);
+
+	/**
+	 * Removes any entry cached for the given CA.
+	 *
+	 * @param url the URL to the SCEP server.
+	 * @param profile the name of the CA profile, or null.
+	 */
+	void remove(URL url, String profile);
+
+	/**
+	 * Removes all entries from this cache.
+	 */
+	void clear();
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.x509.extension.X509ExtensionUtil;
+
+/**
+ * This class works out the role of each certificate in a GetCACert chain.
+ * <p>
+ * Signature verification is expensive, so candidate issuers are first
+ * matched by distinguished name and key identifier, and the result for
+ * each distinct chain is remembered by the fingerprint of the chain and 
+ * the provider used to verify signatures, so a chain is resolved again 
+ * for a client with another provider.
+ */
+final class ChainResolver {
+	private static final String AUTHORITY_KEY_IDENTIFIER = "2.5.29.35";
+	private static final String SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+	// KeyUsage bits, as defined in RFC 5280
+	private static final int DIGITAL_SIGNATURE = 0;
+	private static final int CRL_SIGN = 6;
+	private final ConcurrentMap<String, CaChain> resolved = new ConcurrentHashMap<String, CaChain>();
+	private final int maxEntries;
+	
+	ChainResolver(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+	
+	/**
+	 * Resolves the roles of the certificates in the given chain.
+	 * 
+	 * @param certs the chain returned by the server.
+	 * @return the resolved chain.
+	 * @throws IllegalStateException if the chain is not a valid CA chain.
+	 */
+	CaChain resolve(List<X509Certificate> certs) {
+		return resolve(certs, null);
+	}
+	
+	/**
+	 * Resolves the roles of the certificates in the given chain, verifying 
+	 * signatures with the given provider.
+	 * 
+	 * @param certs the chain returned by the server.
+	 * @param provider the JCA provider, or null for the default.
+	 * @return the resolved chain.
+	 * @throws IllegalStateException if the chain is not a valid CA chain.
+	 */
+	CaChain resolve(List<X509Certificate> certs, String provider) {
+		final String fingerprint = Fingerprints.sha256(certs);
+		final String key = provider == null ? fingerprint : fingerprint + "/" + provider;
+		CaChain chain = resolved.get(key);
+		if (chain != null) {
+			return chain;
+		}
+		chain = doResolve(fingerprint, certs, provider);
+		if (resolved.size() >= maxEntries) {
+			// Servers only ever send a handful of distinct chains, so
+			// starting again is cheaper than tracking usage.
+			resolved.clear();
+		}
+		final CaChain existing = resolved.putIfAbsent(key, chain);
+		
+		return existing == null ? chain : existing;
+	}
+	
+	private CaChain doResolve(String fingerprint, List<X509Certificate> certs, String provider) {
+		final int numCerts = certs.size();
+		if (numCerts == 0 || numCerts > 3) {
+			// We've either got NO certificates here, or more than 3.
+			// Whatever the case, the server is in error.
+			throw new IllegalStateException("Invalid number of certificates in chain: " + numCerts);
+		}
+		if (numCerts == 1) {
+			// Only one certificate, so it must be the CA.
+			final X509Certificate ca = certs.get(0);
+			return new CaChain(fingerprint, certs, ca, ca, ca);
+		}
+		final X509Certificate ca = selectCA(certs, provider);
+		final List<X509Certificate> ras = new ArrayList<X509Certificate>(certs);
+		ras.remove(ca);
+		
+		if (ras.size() == 1) {
+			final X509Certificate ra = ras.get(0);
+			return new CaChain(fingerprint, certs, ca, ra, ra);
+		}
+		// Entrust Case, we have CA certificate and two RA certificates
+		// (Encryption and Verification).  The encryption certificate has
+		// neither the digitalSignature nor the cRLSign key usage.
+		X509Certificate encryption = null;
+		for (X509Certificate ra : ras) {
+			if (isEncryptionOnly(ra)) {
+				encryption = ra;
+				break;
+			}
+		}
+		if (encryption == null) {
+			encryption = certs.get(1) == ca ? ras.get(0) : certs.get(1);
+		}
+		ras.remove(encryption);
+		
+		return new CaChain(fingerprint, certs, ca, encryption, ras.get(0));
+	}
+	
+	private X509Certificate selectCA(List<X509Certificate> certs, String provider) {
+		// We don't know the order in the chain, but we know the RA
+		// certificate MUST have been issued by the CA certificate.
+		for (X509Certificate ca : certs) {
+			for (X509Certificate ra : certs) {
+				if (ra == ca || isCandidateIssuer(ca, ra) == false) {
+					continue;
+				}
+				if (verifies(ca, ra, provider)) {
+					return ca;
+				}
+			}
+		}
+		// Names or key identifiers may be encoded inconsistently, so
+		// fall back to trying every pair.
+		for (X509Certificate ca : certs) {
+			for (X509Certificate ra : certs) {
+				if (verifies(ca, ra, provider)) {
+					return ca;
+				}
+			}
+		}
+		throw new IllegalStateException("No CA in chain");
+	}
+	
+	/**
+	 * Checks whether the hypothetical CA could have issued the hypothetical
+	 * RA without checking the signature.
+	 */
+	private boolean isCandidateIssuer(X509Certificate ca, X509Certificate ra) {
+		if (ra.getIssuerX500Principal().equals(ca.getSubjectX500Principal()) == false) {
+			return false;
+		}
+		final byte[] aki = getAuthorityKeyIdentifier(ra);
+		final byte[] ski = getSubjectKeyIdentifier(ca);
+		if (aki == null || ski == null) {
+			return true;
+		}
+		return Arrays.equals(aki, ski);
+	}
+	
+	private boolean verifies(X509Certificate ca, X509Certificate ra, String provider) {
+		try {
+			// If the hypothetical RA is signed by the
+			// hypothetical CA, the CA is legitimate.
+			if (provider == null) {
+				ra.verify(ca.getPublicKey());
+			} else {
+				ra.verify(ca.getPublicKey(), provider);
+			}
+			
+			return true;
+		} catch (Exception e) {
+			// Problem verifying, move on.
+			return false;
+		}
+	}
+	
+	private boolean isEncryptionOnly(X509Certificate cert) {
+		final boolean[] keyUsage = cert.getKeyUsage();
+		if (keyUsage == null) {
+			// No key usage extension means no restriction.
+			return false;
+		}
+		return keyUsage[DIGITAL_SIGNATURE] == false && keyUsage[CRL_SIGN] == false;
+	}
+	
+	private static byte[] getAuthorityKeyIdentifier(X509Certificate cert) {
+		final byte[] ext = cert.getExtensionValue(AUTHORITY_KEY_IDENTIFIER);
+		if (ext == null) {
+			return null;
+		}
+		try {
+			return AuthorityKeyIdentifier.getInstance(X509ExtensionUtil.fromExtensionValue(ext)).getKeyIdentifier();
+		} catch (IOException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+	
+	private static byte[] getSubjectKeyIdentifier(X509Certificate cert) {
+		final byte[] ext = cert.getExtensionValue(SUBJECT_KEY_IDENTIFIER);
+		if (ext == null) {
+			return null;
+		}
+		try {
+			return SubjectKeyIdentifier.getInstance(X509ExtensionUtil.fromExtensionValue(ext)).getKeyIdentifier();
+		} catch (IOException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class stops requests to an endpoint which is failing.
+ * <p>
+ * The outcomes of the most recent calls are kept in a window.  When the 
+ * proportion of failures in the window reaches a threshold, the circuit 
+ * opens and every call is refused.  Once the open duration has passed, a 
+ * single probe call is allowed: if it succeeds the circuit closes, and if 
+ * it fails the circuit opens again.  A call slower than the slow call 
+ * threshold counts as a failure.
+ */
+final class CircuitBreaker {
+	static final int WINDOW = 20;
+	static final int MIN_CALLS = 10;
+	static final int FAILURE_PERCENT = 50;
+	static final long OPEN_DURATION = TimeUnit.SECONDS.toNanos(30);
+	static final long SLOW_CALL = TimeUnit.SECONDS.toNanos(10);
+	
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private final boolean[] outcomes = new boolean[WINDOW];
+	private final long openDuration;
+	private final long slowCall;
+	private State state = State.CLOSED;
+	private int count;
+	private int next;
+	private int failures;
+	private long openedAt;
+	private boolean probing;
+	
+	CircuitBreaker(long openDuration, long slowCall) {
+		this.openDuration = openDuration;
+		this.slowCall = slowCall;
+	}
+	
+	/**
+	 * Returns true if a call may be made now.
+	 * <p>
+	 * Every allowed call MUST be followed by {@link #record(long, boolean)} 
+	 * or {@link #cancel()}.
+	 * 
+	 * @param now the current time.
+	 * @return true if the call is allowed.
+	 */
+	synchronized boolean allow(long now) {
+		if (state == State.OPEN) {
+			if (now - openedAt < openDuration) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			probing = false;
+		}
+		if (state == State.HALF_OPEN) {
+			if (probing) {
+				return false;
+			}
+			probing = true;
+		}
+		return true;
+	}
+	
+	/**
+	 * Records the outcome of an allowed call.
+	 * 
+	 * @param nanos the duration of the call.
+	 * @param failed true if the call failed.
+	 */
+	synchronized void record(long nanos, boolean failed) {
+		final boolean failure = failed || (slowCall > 0 && nanos >= slowCall);
+		if (state == State.HALF_OPEN) {
+			probing = false;
+			if (failure) {
+				open();
+			} else {
+				state = State.CLOSED;
+				reset();
+			}
+			return;
+		}
+		if (state == State.OPEN) {
+			// A call allowed before the circuit opened.
+			return;
+		}
+		if (count == WINDOW) {
+			if (outcomes[next]) {
+				failures--;
+			}
+		} else {
+			count++;
+		}
+		outcomes[next] = failure;
+		if (failure) {
+			failures++;
+		}
+		next = (next + 1) % WINDOW;
+		if (count >= MIN_CALLS && failures * 100 >= FAILURE_PERCENT * count) {
+			open();
+		}
+	}
+	
+	/**
+	 * Releases an allowed call which was never made.
+	 */
+	synchronized void cancel() {
+		if (state == State.HALF_OPEN) {
+			probing = false;
+		}
+	}
+	
+	synchronized State getState() {
+		return state;
+	}
+	
+	private void open() {
+		state = State.OPEN;
+		openedAt = System.nanoTime();
+		reset();
+	}
+	
+	private void reset() {
+		count = 0;
+		next = 0;
+		failures = 0;
+	}
+}
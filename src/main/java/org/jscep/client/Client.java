@@ -23,40 +23,47 @@
 
 package org.jscep.client;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.math.BigInteger;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
+import java.security.Security;
 import java.security.SignatureException;
 import java.security.cert.CertStoreException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
-import javax.security.auth.callback.UnsupportedCallbackException;
 
 import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
 import org.bouncycastle.asn1.pkcs.CertificationRequest;
 import org.bouncycastle.asn1.x509.X509Name;
-import org.jscep.CertificateVerificationCallback;
 import org.jscep.content.CaCapabilitiesContentHandler;
 import org.jscep.content.CaCertificateContentHandler;
 import org.jscep.content.NextCaCertificateContentHandler;
-import org.jscep.message.PkcsPkiEnvelopeDecoder;
-import org.jscep.message.PkcsPkiEnvelopeEncoder;
 import org.jscep.message.PkiMessageDecoder;
 import org.jscep.message.PkiMessageEncoder;
 import org.jscep.request.GetCaCaps;
@@ -69,7 +76,12 @@ import org.jscep.transaction.NonEnrollmentTransaction;
 import org.jscep.transaction.OperationFailureException;
 import org.jscep.transaction.Transaction;
 import org.jscep.transaction.Transaction.State;
+import org.jscep.transport.Deadline;
+import org.jscep.transport.PooledTransportFactory;
+import org.jscep.transport.StandardTransportFactory;
+import org.jscep.transport.Timeouts;
 import org.jscep.transport.Transport;
+import org.jscep.transport.TransportFactory;
 import org.jscep.util.LoggingUtil;
 
 /**
@@ -77,10 +89,41 @@ import org.jscep.util.LoggingUtil;
  */
 public class Client {
 	private static Logger LOGGER = LoggingUtil.getLogger(Client.class);
-	private Map<String, Capabilities> capabilitiesCache = new HashMap<String, Capabilities>();
-	private Set<X509Certificate> verified = new HashSet<X509Certificate>(1);
-	private String preferredDigestAlg;
-	private String preferredCipherAlg;
+	// Chains are public and shared by every client in the JVM.
+	private static final ChainResolver CHAIN_RESOLVER = new ChainResolver(64);
+	// Concurrent informational requests for the same CA and profile are 
+	// sent once, by any client in the JVM.
+	private static final SingleFlight<CacheKey, RecordingContentHandler<Capabilities>> CAPS_FLIGHTS = new SingleFlight<CacheKey, RecordingContentHandler<Capabilities>>();
+	private static final SingleFlight<CacheKey, List<X509Certificate>> CA_CERT_FLIGHTS = new SingleFlight<CacheKey, List<X509Certificate>>();
+	private static final SingleFlight<CacheKey, List<X509Certificate>> NEXT_CA_CERT_FLIGHTS = new SingleFlight<CacheKey, List<X509Certificate>>();
+	// Runs the requests of every batch enrolment in the JVM.
+	private static final ExecutorService ENROLMENT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, "scep-enrol");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private volatile CapabilitiesCache capabilitiesCache = new DefaultCapabilitiesCache();
+	private final CaChainCache caChainCache = new CaChainCache(CaChainCache.DEFAULT_TTL, TimeUnit.MILLISECONDS);
+	private final BackgroundRefresher refresher = new BackgroundRefresher();
+	private final List<CaChainListener> chainListeners = new CopyOnWriteArrayList<CaChainListener>();
+	private volatile CaChain lastChain;
+	private volatile CaSnapshot snapshot;
+	private volatile ClientMetrics metrics = NoOpClientMetrics.INSTANCE;
+	private volatile TransportFactory transportFactory = StandardTransportFactory.INSTANCE;
+	private volatile Timeouts timeouts = Timeouts.NONE;
+	private volatile URL hedgingUrl;
+	private volatile LoadBalancer balancer;
+	private volatile AdmissionController admission;
+	private volatile RateLimiter rateLimiter;
+	private final LatencyWindow informationalLatency = new LatencyWindow(256, 20);
+	private volatile VerificationCache verificationCache = new VerificationCache();
+	private final CaVerifier verifier = new CaVerifier();
+	private volatile String preferredDigestAlg;
+	private volatile String preferredCipherAlg;
+	private volatile String envelopeProvider = NegotiatedEnvelopeEncoder.DEFAULT_PROVIDER;
+	private volatile String verificationProvider;
 	
 	// A requester MUST have the following information locally configured:
 	//
@@ -95,6 +138,7 @@ public class Client {
     // The following identity and key pair is used for this case.
     private final X509Certificate identity;
     private final PrivateKey priKey;
+    private final CodecCache codecs;
     // A requester MUST have the following information locally configured:
     //
     // 3. The identifying information that is used for authentication of the 
@@ -143,6 +187,7 @@ public class Client {
     	this.url = url;
     	this.identity = client;
     	this.priKey = priKey;
+    	this.codecs = new CodecCache(priKey, client);
     	this.cbh = cbh;
     	this.profile = profile;
     	
@@ -159,7 +204,12 @@ public class Client {
      */
     public Capabilities getCaCapabilities() throws IOException {
     	// NON-TRANSACTIONAL
-    	return getCaCapabilities(false);
+    	final Deadline previous = Deadline.enter(timeouts);
+    	try {
+    		return getCaCapabilities(false);
+    	} finally {
+    		Deadline.restore(previous);
+    	}
     }
     
     /**
@@ -175,11 +225,14 @@ public class Client {
     	// NON-TRANSACTIONAL
     	// CA and RA public key distribution
     	LOGGER.entering(getClass().getName(), "getCaCertificate");
-    	final GetCaCert req = new GetCaCert(profile, new CaCertificateContentHandler());
-        final Transport trans = Transport.createTransport(Transport.Method.GET, url);
-        
-        final List<X509Certificate> certs = trans.sendRequest(req);
-        verifyCA(selectCA(certs));
+    	
+    	final List<X509Certificate> certs;
+    	final Deadline previous = Deadline.enter(timeouts);
+    	try {
+    		certs = new ArrayList<X509Certificate>(getCaChain(false).getCertificates());
+    	} finally {
+    		Deadline.restore(previous);
+    	}
         
         LOGGER.exiting(getClass().getName(), "getCaCertificate", certs);
         return certs;
@@ -196,15 +249,28 @@ public class Client {
      */
     public List<X509Certificate> getRolloverCertificate() throws IOException {
     	// NON-TRANSACTIONAL
-    	if (getCaCapabilities().isRolloverSupported() == false) {
-    		throw new UnsupportedOperationException();
+    	final Deadline previous = Deadline.enter(timeouts);
+    	try {
+	    	if (getCaCapabilities().isRolloverSupported() == false) {
+	    		throw new UnsupportedOperationException();
+	    	}
+	    	final X509Certificate issuer = getRecipientCertificate();
+	    	
+	    	final List<X509Certificate> certs = NEXT_CA_CERT_FLIGHTS.execute(new CacheKey(url, profile), new SingleFlight.Loader<List<X509Certificate>>() {
+	    		public List<X509Certificate> load() throws IOException {
+	    			final Transport trans = createInformationalTransport();
+	    			final GetNextCaCert req = new GetNextCaCert(profile, new NextCaCertificateContentHandler(issuer));
+	    			
+	    			return trans.sendRequest(req);
+	    		}
+	    	});
+	    	// The cached chain must be replaced once the rollover CA is current.
+	    	caChainCache.putRollover(CHAIN_RESOLVER.resolve(certs, verificationProvider).getCa());
+	    	
+	    	return certs;
+    	} finally {
+    		Deadline.restore(previous);
     	}
-    	final X509Certificate issuer = getRecipientCertificate();
-    	
-    	final Transport trans = Transport.createTransport(Transport.Method.GET, url);
-    	final GetNextCaCert req = new GetNextCaCert(profile, new NextCaCertificateContentHandler(issuer));
-    	
-    	return trans.sendRequest(req);
     }
     
     // TRANSACTIONAL
@@ -220,33 +286,38 @@ public class Client {
 	public X509CRL getRevocationList() throws IOException, OperationFailureException {
     	// TRANSACTIONAL
     	// CRL query
-    	final X509Certificate ca = retrieveCA();
-    	if (supportsDistributionPoints(ca)) {
-    		throw new RuntimeException("Unimplemented");
-    	}
+    	final Deadline previous = Deadline.enter(timeouts);
+    	try {
+	    	final X509Certificate ca = retrieveCA();
+	    	if (supportsDistributionPoints(ca)) {
+	    		throw new RuntimeException("Unimplemented");
+	    	}
     	
-    	X509Name name = new X509Name(ca.getIssuerX500Principal().toString());
-    	BigInteger serialNumber = ca.getSerialNumber();
-    	IssuerAndSerialNumber iasn = new IssuerAndSerialNumber(name, serialNumber);
-    	Transport transport = createTransport();
-    	final Transaction t = new NonEnrollmentTransaction(transport, getEncoder(), getDecoder(), iasn, MessageType.GetCRL);
-    	t.send();
+	    	X509Name name = new X509Name(ca.getIssuerX500Principal().toString());
+	    	BigInteger serialNumber = ca.getSerialNumber();
+	    	IssuerAndSerialNumber iasn = new IssuerAndSerialNumber(name, serialNumber);
+	    	Transport transport = bound(meter(createTransport(), ScepOperation.GetCRL, ScepOperation.GetCRL));
+	    	final Transaction t = new NonEnrollmentTransaction(transport, getEncoder(), getDecoder(), iasn, MessageType.GetCRL);
+	    	t.send();
     	
-    	if (t.getState() == State.CERT_ISSUED) {
-			try {
-				Collection<X509CRL> crls = (Collection<X509CRL>) t.getCertStore().getCRLs(null);
-				if (crls.size() == 0) {
-					return null;
+	    	if (t.getState() == State.CERT_ISSUED) {
+				try {
+					Collection<X509CRL> crls = (Collection<X509CRL>) t.getCertStore().getCRLs(null);
+					if (crls.size() == 0) {
+						return null;
+					}
+					return crls.iterator().next();
+				} catch (CertStoreException e) {
+					throw new RuntimeException(e);
 				}
-				return crls.iterator().next();
-			} catch (CertStoreException e) {
-				throw new RuntimeException(e);
+			} else if (t.getState() == State.CERT_REQ_PENDING) {
+				throw new IllegalStateException();
+			} else {
+				throw new OperationFailureException(t.getFailInfo());
 			}
-		} else if (t.getState() == State.CERT_REQ_PENDING) {
-			throw new IllegalStateException();
-		} else {
-			throw new OperationFailureException(t.getFailInfo());
-		}
+    	} finally {
+    		Deadline.restore(previous);
+    	}
     }
     
     /**
@@ -262,27 +333,32 @@ public class Client {
 	public List<X509Certificate> getCertificate(BigInteger serial) throws IOException, OperationFailureException {
     	// TRANSACTIONAL
     	// Certificate query
-    	final X509Certificate ca = retrieveCA();;
+    	final Deadline previous = Deadline.enter(timeouts);
+    	try {
+	    	final X509Certificate ca = retrieveCA();;
     	
-    	X509Name name = new X509Name(ca.getIssuerX500Principal().toString());
-    	BigInteger serialNumber = ca.getSerialNumber();
-    	IssuerAndSerialNumber iasn = new IssuerAndSerialNumber(name, serialNumber);
-    	Transport transport = createTransport();
-    	final Transaction t = new NonEnrollmentTransaction(transport, getEncoder(), getDecoder(), iasn, MessageType.GetCert);
-		t.send();
+	    	X509Name name = new X509Name(ca.getIssuerX500Principal().toString());
+	    	BigInteger serialNumber = ca.getSerialNumber();
+	    	IssuerAndSerialNumber iasn = new IssuerAndSerialNumber(name, serialNumber);
+	    	Transport transport = bound(meter(createTransport(), ScepOperation.GetCert, ScepOperation.GetCert));
+	    	final Transaction t = new NonEnrollmentTransaction(transport, getEncoder(), getDecoder(), iasn, MessageType.GetCert);
+			t.send();
     	
-		if (t.getState() == State.CERT_ISSUED) {
-			try {
-				Collection<X509Certificate> certs = (Collection<X509Certificate>) t.getCertStore().getCertificates(null);
-				return new ArrayList<X509Certificate>(certs);
-			} catch (CertStoreException e) {
-				throw new RuntimeException(e);
+			if (t.getState() == State.CERT_ISSUED) {
+				try {
+					Collection<X509Certificate> certs = (Collection<X509Certificate>) t.getCertStore().getCertificates(null);
+					return new ArrayList<X509Certificate>(certs);
+				} catch (CertStoreException e) {
+					throw new RuntimeException(e);
+				}
+			} else if (t.getState() == State.CERT_REQ_PENDING) {
+				throw new IllegalStateException();
+			} else {
+				throw new OperationFailureException(t.getFailInfo());
 			}
-		} else if (t.getState() == State.CERT_REQ_PENDING) {
-			throw new IllegalStateException();
-		} else {
-			throw new OperationFailureException(t.getFailInfo());
-		}
+    	} finally {
+    		Deadline.restore(previous);
+    	}
     }
     
     
@@ -296,18 +372,117 @@ public class Client {
     public EnrolmentTransaction enrol(CertificationRequest csr) throws IOException {
     	// TRANSACTIONAL
     	// Certificate enrollment
-    	final Transport transport = createTransport();
-    	List<X509Certificate> cas = getCaCertificate();
-    	X509Certificate encoderCa = selectRecipient(cas);
-    	X509Certificate ca = selectCA(cas);
-    	PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(encoderCa);
-    	PkiMessageEncoder encoder = new PkiMessageEncoder(priKey, identity, envEncoder);
+    	final Deadline previous = Deadline.enter(timeouts);
+    	try {
+	    	final Transport transport = bound(meter(createTransport(), ScepOperation.PKCSReq, ScepOperation.GetCertInitial));
+	    	final CaChain chain = getCaChain(true);
+    	
+	    	final EnrolmentTransaction t = new EnrolmentTransaction(transport, getEncoder(chain), getDecoder(), csr);
+	    	t.setIssuer(chain.getCa());
     	
+	    	return t;
+    	} finally {
+    		Deadline.restore(previous);
+    	}
+    }
+    
+    /**
+     * Enrolls each of the provided CSRs into a PKI.
+     * <p>
+     * The CA is only discovered once for the whole batch, and the same
+     * encoder and decoder are used for every request.  Each request is a 
+     * transaction of its own, with its own transport, so that requests may 
+     * be spread across endpoints.  At most <code>maxConcurrency</code> 
+     * requests are in progress at any time.
+     * <p>
+     * The results are returned in the iteration order of the CSRs.  A
+     * failure to send one request does not affect the others.
+     * 
+     * @param csrs the certificate signing requests.
+     * @param maxConcurrency the maximum number of concurrent requests.
+     * @return the result of each enrolment.
+     * @throws IOException if the CA could not be discovered.
+     */
+    public List<EnrolmentResult> enrolAll(Collection<CertificationRequest> csrs, int maxConcurrency) throws IOException {
+    	// TRANSACTIONAL
+    	// Certificate enrollment
+    	if (maxConcurrency < 1) {
+    		throw new IllegalArgumentException("Concurrency should be at least 1");
+    	}
+    	final List<CertificationRequest> requests = new ArrayList<CertificationRequest>(csrs);
+    	final EnrolmentResult[] results = new EnrolmentResult[requests.size()];
+    	if (requests.isEmpty()) {
+    		return new ArrayList<EnrolmentResult>(0);
+    	}
+    	final CaChain chain;
+    	final PkiMessageEncoder encoder;
+    	final PkiMessageDecoder decoder;
+    	final Deadline previous = Deadline.enter(timeouts);
+    	try {
+    		chain = getCaChain(true);
+    		encoder = getEncoder(chain);
+    		decoder = getDecoder();
+    	} finally {
+    		Deadline.restore(previous);
+    	}
     	
-    	final EnrolmentTransaction t = new EnrolmentTransaction(transport, encoder, getDecoder(), csr);
-    	t.setIssuer(ca);
+    	// Each worker takes the next request until none are left.
+    	final AtomicInteger next = new AtomicInteger();
+    	final int workers = Math.min(maxConcurrency, results.length);
+    	final List<Future<?>> futures = new ArrayList<Future<?>>(workers);
+    	try {
+    		for (int i = 0; i < workers; i++) {
+    			futures.add(ENROLMENT_EXECUTOR.submit(new Runnable() {
+    				public void run() {
+    					int i;
+    					while ((i = next.getAndIncrement()) < results.length && Thread.currentThread().isInterrupted() == false) {
+    						results[i] = enrol(encoder, decoder, chain, requests.get(i));
+    					}
+    				}
+    			}));
+    		}
+    		for (Future<?> future : futures) {
+    			future.get();
+    		}
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException("Interrupted during batch enrolment");
+    	} catch (ExecutionException e) {
+    		// Cannot happen, as every failure is captured in the result.
+    		throw new RuntimeException(e.getCause());
+    	} finally {
+    		for (Future<?> future : futures) {
+    			future.cancel(true);
+    		}
+    	}
     	
-    	return t;
+    	return new ArrayList<EnrolmentResult>(Arrays.asList(results));
+    }
+    
+    private EnrolmentResult enrol(PkiMessageEncoder encoder, PkiMessageDecoder decoder, CaChain chain, CertificationRequest csr) {
+    	final EnrolmentTransaction t;
+    	try {
+    		final Deadline previous = Deadline.enter(timeouts);
+    		try {
+    			// Each transaction needs its own meter to tell PKCSReq from 
+    			// GetCertInitial, and its own transport to pin its endpoint.
+    			t = new EnrolmentTransaction(bound(meter(createTransport(), ScepOperation.PKCSReq, ScepOperation.GetCertInitial)), encoder, decoder, csr);
+    			t.setIssuer(chain.getCa());
+    		} finally {
+    			Deadline.restore(previous);
+    		}
+    		t.send();
+    	} catch (Exception e) {
+    		return new EnrolmentResult(csr, EnrolmentResult.Status.FAILED, null, e);
+    	}
+    	
+    	if (t.getState() == State.CERT_ISSUED) {
+    		return new EnrolmentResult(csr, EnrolmentResult.Status.ISSUED, t, null);
+    	} else if (t.getState() == State.CERT_REQ_PENDING) {
+    		return new EnrolmentResult(csr, EnrolmentResult.Status.PENDING, t, null);
+    	} else {
+    		return new EnrolmentResult(csr, EnrolmentResult.Status.FAILED, t, null);
+    	}
     }
     
     /**
@@ -349,15 +524,17 @@ public class Client {
     }
     
     private PkiMessageEncoder getEncoder() throws IOException {
-    	PkcsPkiEnvelopeEncoder envEncoder = new PkcsPkiEnvelopeEncoder(getRecipientCertificate());
+    	return getEncoder(getCaChain(true));
+    }
+    
+    private PkiMessageEncoder getEncoder(CaChain chain) throws IOException {
+    	final String cipher = Algorithms.negotiateCipher(getCaCapabilities(true), preferredCipherAlg);
     	
-		return new PkiMessageEncoder(priKey, identity, envEncoder);
+    	return codecs.getEncoder(chain, cipher, envelopeProvider, metrics);
     }
     
     private PkiMessageDecoder getDecoder() {
-    	PkcsPkiEnvelopeDecoder envDecoder = new PkcsPkiEnvelopeDecoder(priKey);
-    	
-		return new PkiMessageDecoder(envDecoder);
+    	return codecs.getDecoder(metrics);
     }
     
     /**
@@ -378,9 +555,9 @@ public class Client {
     	
     	final Transport t;
     	if (getCaCapabilities(true).isPostSupported()) {
-    		t = Transport.createTransport(Transport.Method.POST, url);
+    		t = newTransport(Transport.Method.POST);
     	} else {
-    		t = Transport.createTransport(Transport.Method.GET, url);
+    		t = newTransport(Transport.Method.GET);
     	}
     	
     	LOGGER.exiting(getClass().getName(), "createTransport", t);
@@ -388,122 +565,669 @@ public class Client {
     	return t;
     }
     
-    private Capabilities getCaCapabilities(boolean useCache) throws IOException {
+    /**
+     * Creates a new transport to the endpoint, or endpoints, of the CA.
+     * 
+     * @param method the method for PKIOperation requests.
+     * @return the new transport.
+     */
+    private Transport newTransport(Transport.Method method) {
+    	final TransportFactory factory = getTransportFactory();
+    	final LoadBalancer lb = balancer;
+    	if (lb == null) {
+    		return factory.createTransport(method, url);
+    	}
+    	return new BalancedTransport(url, lb, factory, method);
+    }
+    
+    /**
+     * Returns the factory for transports to a single endpoint.
+     * 
+     * @return the configured factory, admitting requests if admission 
+     *         control is enabled.
+     */
+    private TransportFactory getTransportFactory() {
+    	final AdmissionController ac = admission;
+    	if (ac == null) {
+    		return transportFactory;
+    	}
+    	return ac.wrap(transportFactory, metrics);
+    }
+    
+    /**
+     * Creates a new transport for GetCACaps, GetCACert and GetNextCACert.
+     * 
+     * @return the new transport.
+     */
+    private Transport createInformationalTransport() {
+    	Transport t = meter(newTransport(Transport.Method.GET), null, null);
+    	final URL alternate = hedgingUrl;
+    	if (alternate != null) {
+    		final Transport hedge = meter(getTransportFactory().createTransport(Transport.Method.GET, alternate), null, null);
+    		t = new HedgingTransport(url, t, hedge, informationalLatency);
+    	}
+    	return bound(t);
+    }
+    
+    /**
+     * Wraps the provided transport so that each request is bounded by the
+     * timeouts and rate limits of this client.
+     * 
+     * @param t the transport.
+     * @return the bounded transport, or <code>t</code> if there are no 
+     *         timeouts or rate limits.
+     */
+    private Transport bound(Transport t) {
+    	final RateLimiter limiter = rateLimiter;
+    	if (limiter != null) {
+    		t = new RateLimitedTransport(url, t, limiter, profile, metrics);
+    	}
+    	final Timeouts current = timeouts;
+    	if (current == Timeouts.NONE) {
+    		return t;
+    	}
+    	// Outermost, so that waiting for a token counts against the deadline.
+    	return new DeadlineTransport(url, t, current);
+    }
+    
+    /**
+     * Wraps the provided transport so that its requests are measured.
+     * 
+     * @param t the transport.
+     * @param first the operation of the first PKIOperation request.
+     * @param subsequent the operation of any later PKIOperation requests.
+     * @return the measured transport, or <code>t</code> if metrics are disabled.
+     */
+    private Transport meter(Transport t, ScepOperation first, ScepOperation subsequent) {
+    	final ClientMetrics m = metrics;
+    	if (m == NoOpClientMetrics.INSTANCE) {
+    		return t;
+    	}
+    	return new MeteredTransport(url, t, m, first, subsequent);
+    }
+    
+    Capabilities getCaCapabilities(boolean useCache) throws IOException {
     	// NON-TRANSACTIONAL
     	LOGGER.entering(getClass().getName(), "getCaCapabilities", useCache);
     	
+    	final CapabilitiesCache cache = capabilitiesCache;
     	Capabilities caps = null;
     	if (useCache == true) {
-    		caps = capabilitiesCache.get(profile);
+    		caps = cache.get(url, profile);
+    		if (caps == null) {
+    			caps = cache.getStale(url, profile);
+    			if (caps != null) {
+    				refreshInBackground(CacheType.CAPABILITIES);
+    			}
+    		}
+    		if (caps == null) {
+    			metrics.recordCacheMiss(CacheType.CAPABILITIES);
+    		} else {
+    			metrics.recordCacheHit(CacheType.CAPABILITIES);
+    		}
     	}
     	if (caps == null) {
-	    	final GetCaCaps req = new GetCaCaps(profile, new CaCapabilitiesContentHandler());
-	        final Transport trans = Transport.createTransport(Transport.Method.GET, url);
-	        caps = trans.sendRequest(req);
-	        capabilitiesCache.put(profile, caps);
+    		// The call may be made for another client, so every caller 
+    		// fills its own cache with the outcome.
+    		final RecordingContentHandler<Capabilities> handler;
+    		try {
+    			handler = CAPS_FLIGHTS.execute(new CacheKey(url, profile), new SingleFlight.Loader<RecordingContentHandler<Capabilities>>() {
+    				public RecordingContentHandler<Capabilities> load() throws IOException {
+    					final RecordingContentHandler<Capabilities> h = new RecordingContentHandler<Capabilities>(new CaCapabilitiesContentHandler());
+    					final Transport trans = createInformationalTransport();
+    					trans.sendRequest(new GetCaCaps(profile, h));
+    					
+    					return h;
+    				}
+    			});
+    		} catch (IOException e) {
+    			if (e instanceof InterruptedIOException == false || e instanceof SocketTimeoutException) {
+    				cache.putFailure(url, profile, e);
+    			}
+    			throw e;
+    		}
+    		caps = handler.getResult();
+    		cache.put(url, profile, caps);
+    		final CaSnapshot s = snapshot;
+    		if (s != null) {
+    			s.setCapabilities(handler.getRecordedMimeType(), handler.getRecordedContent());
+    			saveSnapshot(s);
+    		}
     	}
         
         LOGGER.exiting(getClass().getName(), "getCaCapabilities", caps);
         return caps;
     }
     
-    private void verifyCA(X509Certificate cert) throws IOException {
-    	// Cache
-    	if (verified.contains(cert)) {
+    private void verifyCA(CaChain chain) throws IOException {
+    	final VerificationCache cache = verificationCache;
+    	final X509Certificate cert = chain.getCa();
+    	if (cache.isVerified(chain.getCaFingerprint())) {
     		LOGGER.finer("Verification Cache Hit.");
+    		metrics.recordCacheHit(CacheType.VERIFICATION);
     		return;
     	} else {
     		LOGGER.finer("Verification Cache Missed.");
+    		metrics.recordCacheMiss(CacheType.VERIFICATION);
     	}
 
-		CertificateVerificationCallback callback = new CertificateVerificationCallback(cert);
-		try {
-			cbh.handle(new Callback[] {callback});
-		} catch (UnsupportedCallbackException e) {
-			throw new RuntimeException(e);
-		}
-		if (callback.isVerified() == false) {
-			throw new IOException("CA certificate fingerprint could not be verified.");
-		} else {
-			verified.add(cert);
-		}
+		// Runs the callback handler on another thread, shared with any 
+		// other caller waiting for the same certificate.
+		verifier.verify(cert, chain.getCaFingerprint(), cache, cbh);
+    }
+    
+    /**
+     * Retrieves the CA certificate chain, optionally from the cache.
+     * 
+     * @param useCache true if a cached chain may be returned.
+     * @return the chain.
+     * @throws IOException if any I/O error occurs.
+     */
+    CaChain getCaChain(boolean useCache) throws IOException {
+    	LOGGER.entering(getClass().getName(), "getCaChain", useCache);
+    	
+    	CaChain chain = null;
+    	if (useCache == true) {
+    		chain = caChainCache.get();
+    		if (chain == null) {
+    			chain = caChainCache.getStale();
+    			if (chain != null) {
+    				refreshInBackground(CacheType.CA_CHAIN);
+    			}
+    		}
+    		if (chain == null) {
+    			metrics.recordCacheMiss(CacheType.CA_CHAIN);
+    		} else {
+    			metrics.recordCacheHit(CacheType.CA_CHAIN);
+    		}
+    	}
+    	if (chain == null) {
+    		final List<X509Certificate> certs = CA_CERT_FLIGHTS.execute(new CacheKey(url, profile), new SingleFlight.Loader<List<X509Certificate>>() {
+    			public List<X509Certificate> load() throws IOException {
+    				final GetCaCert req = new GetCaCert(profile, new CaCertificateContentHandler());
+    				final Transport trans = createInformationalTransport();
+    				
+    				return trans.sendRequest(req);
+    			}
+    		});
+    		// Each client verifies the CA through its own callback handler.
+    		chain = CHAIN_RESOLVER.resolve(certs, verificationProvider);
+    		verifyCA(chain);
+    		
+    		caChainCache.put(chain);
+    		final CaSnapshot s = snapshot;
+    		if (s != null) {
+    			s.setChain(chain.getCertificates());
+    			s.addVerified(chain.getCaFingerprint());
+    			saveSnapshot(s);
+    		}
+    		final CaChain previous = lastChain;
+    		lastChain = chain;
+    		if (previous != null && previous.getFingerprint().equals(chain.getFingerprint()) == false) {
+    			fireCaChainChanged(previous, chain);
+    		}
+    	}
+    	
+    	LOGGER.exiting(getClass().getName(), "getCaChain", chain);
+    	return chain;
+    }
+    
+    /**
+     * Refreshes the given cache in the background, bounded by the timeouts
+     * of this client.
+     * 
+     * @param cache the cache to refresh.
+     */
+    private void refreshInBackground(final CacheType cache) {
+    	refresher.refresh(cache, new Callable<Void>() {
+    		public Void call() throws Exception {
+    			final Deadline previous = Deadline.enter(timeouts);
+    			try {
+    				if (cache == CacheType.CAPABILITIES) {
+    					getCaCapabilities(false);
+    				} else {
+    					getCaChain(false);
+    				}
+    			} finally {
+    				Deadline.restore(previous);
+    			}
+    			return null;
+    		}
+    	});
+    }
+    
+    private void saveSnapshot(CaSnapshot s) {
+    	try {
+    		s.save();
+    	} catch (IOException e) {
+    		LOGGER.log(Level.WARNING, "Could not save CA snapshot", e);
+    	}
+    }
+    
+    private void fireCaChainChanged(CaChain previous, CaChain current) {
+    	LOGGER.info("CA certificate chain changed from " + previous + " to " + current);
+    	for (CaChainListener listener : chainListeners) {
+    		try {
+    			listener.caChainChanged(previous.getCertificates(), current.getCertificates());
+    		} catch (RuntimeException e) {
+    			LOGGER.log(Level.WARNING, "CA chain listener failed", e);
+    		}
+    	}
     }
     
     private X509Certificate retrieveCA() throws IOException {
-    	return selectCA(getCaCertificate());
+    	return getCaChain(true).getCa();
     }
     
     private X509Certificate getRecipientCertificate() throws IOException {
-    	final List<X509Certificate> certs = getCaCertificate();
     	// The CA or RA
-    	return selectRecipient(certs);
+    	return getCaChain(true).getRecipient();
     }
     
-    private X509Certificate selectRecipient(List<X509Certificate> chain) {
-    	int numCerts = chain.size();
-    	if (numCerts == 2) {
-    		final X509Certificate ca = selectCA(chain);
-    		// The RA certificate is the other one.
-    		int caIndex = chain.indexOf(ca);
-    		int raIndex = 1 - caIndex;
-    		
-    		return chain.get(raIndex);
-    	} else if (numCerts == 1) {
-    		return chain.get(0);
-    	} else if (numCerts == 3) {
-    		// Entrust Case, we have CA certificate and two RA 
-    		// certificates (Encryption and Verification) we use the 
-    		// RA Encryption certificate as recipient
-    		int raIndex = 1;
-    		for (int i = 0; i < chain.size(); i++) {
-    			X509Certificate raCert = chain.get(i);
-    			if (raCert.getKeyUsage()[0] == false && raCert.getKeyUsage()[6] == false) {
-    				//this must be the Encryption certificate because 
-    				// no digitalSignature and no CRL sign extension is set
-    				raIndex = i;
-    			}
+    /**
+     * Sets the cache used to hold the capabilities of the CA.
+     * <p>
+     * The same cache may be shared by many clients, in which case a
+     * capabilities lookup for a given URL and profile is only sent once
+     * in the lifetime of each cache entry.
+     * 
+     * @param cache the capabilities cache.
+     */
+    public void setCapabilitiesCache(CapabilitiesCache cache) {
+    	if (cache == null) {
+    		throw new NullPointerException("Capabilities cache should not be null");
+    	}
+    	capabilitiesCache = cache;
+    }
+    
+    /**
+     * Sets how long the CA certificate chain is cached for.
+     * <p>
+     * The chain is used by every transactional operation, so it is only
+     * retrieved again once this timeout has elapsed, the CA certificate
+     * has expired, or a rollover certificate has become current.
+     * 
+     * @param timeout the time-to-live of the cached chain.
+     * @param unit the unit of the timeout.
+     */
+    public void setCaCertificateCacheTimeout(long timeout, TimeUnit unit) {
+    	caChainCache.setTimeout(timeout, unit);
+    }
+    
+    /**
+     * Sets how long the CA certificate chain may be used after its cache 
+     * timeout has elapsed.
+     * <p>
+     * During this time, operations use the stale chain while a single 
+     * background request retrieves it again.  Once it has elapsed, 
+     * operations wait for the chain to be retrieved.  The staleness of 
+     * capabilities is set on the {@link DefaultCapabilitiesCache}.
+     * 
+     * @param maxStaleness the maximum staleness, or 0 to always wait.
+     * @param unit the unit of the maximum staleness.
+     */
+    public void setCaCertificateMaxStaleness(long maxStaleness, TimeUnit unit) {
+    	caChainCache.setMaxStaleness(maxStaleness, unit);
+    }
+    
+    /**
+     * Sets the cache of verified CA certificates.
+     * <p>
+     * By default, each client has its own cache, so a new client asks its 
+     * callback handler to verify a CA certificate even if another client 
+     * has already done so.  Sharing a cache between clients avoids this, 
+     * and a cache with a pin file also avoids it after a restart.
+     * 
+     * @param cache the verification cache.
+     */
+    public void setVerificationCache(VerificationCache cache) {
+    	if (cache == null) {
+    		throw new NullPointerException("Verification cache should not be null");
+    	}
+    	verificationCache = cache;
+    }
+    
+    /**
+     * Sets how long callers wait for a CA certificate to be verified, and 
+     * how long a rejected CA certificate is remembered.
+     * <p>
+     * The callback handler is invoked on a thread of its own, once for all 
+     * the callers waiting for the same certificate.  A caller which stops 
+     * waiting fails with a {@link java.net.SocketTimeoutException}, but the 
+     * invocation continues, and its result is used by later callers.  
+     * While a rejection is remembered, callers fail at once.
+     * 
+     * @param timeout the verification timeout, or 0 to wait until the 
+     *        deadline of the call, if any.
+     * @param rejectionTtl how long to remember a rejection, or 0 to ask 
+     *        the callback handler again each time.
+     * @param unit the unit of both values.
+     */
+    public void setVerificationTimeouts(long timeout, long rejectionTtl, TimeUnit unit) {
+    	verifier.setTimeouts(timeout, rejectionTtl, unit);
+    }
+    
+    /**
+     * Sets the file in which the capabilities and certificate chain of the 
+     * CA are kept between restarts.
+     * <p>
+     * If the file holds a snapshot for the URL and profile of this client, 
+     * the capabilities and chain are restored from it at once, so the 
+     * first operation does not wait for them, and are then retrieved again 
+     * in the background.  A chain is only restored if its CA certificate 
+     * was verified when the snapshot was written, and is verified again 
+     * now, so the callback handler may be invoked.  The file is rewritten 
+     * whenever either is retrieved.  Several clients, in one JVM or many, 
+     * may share the same file as long as they use the same CA.
+     * 
+     * @param file the snapshot file, or null to stop using a snapshot.
+     * @throws IOException if the file exists but cannot be read.
+     */
+    public void setSnapshotFile(File file) throws IOException {
+    	if (file == null) {
+    		snapshot = null;
+    		return;
+    	}
+    	final CaSnapshot s = new CaSnapshot(file, url, profile);
+    	if (s.load()) {
+    		restore(s);
+    	}
+    	snapshot = s;
+    }
+    
+    private void restore(CaSnapshot s) throws IOException {
+    	final byte[] bytes = s.getCapabilities();
+    	if (bytes != null) {
+    		final Capabilities caps = new CaCapabilitiesContentHandler().getContent(new ByteArrayInputStream(bytes), s.getCapabilitiesType());
+    		capabilitiesCache.put(url, profile, caps);
+    		refreshInBackground(CacheType.CAPABILITIES);
+    	}
+    	if (s.getChain().isEmpty() == false) {
+    		final CaChain chain = CHAIN_RESOLVER.resolve(s.getChain(), verificationProvider);
+    		// The snapshot only says which chain was trusted; it is verified 
+    		// again before it is pinned, in case the file has been altered.
+    		if (s.getVerified().contains(chain.getCaFingerprint()) && isVerified(chain)) {
+    			caChainCache.put(chain);
+    			lastChain = chain;
+    			refreshInBackground(CacheType.CA_CHAIN);
     		}
-    		return chain.get(raIndex);
-    	} else {
-    		// We've either got NO certificates here, or more than 2.
-    		// Whatever the case, the server is in error. 
-    		throw new IllegalStateException();
     	}
+    	LOGGER.fine("Restored CA snapshot");
     }
     
-    private X509Certificate selectCA(List<X509Certificate> certs) {
-    	if (certs.size() == 1) {
-    		// Only one certificate, so it must be the CA.
-    		return certs.get(0);
+    private boolean isVerified(CaChain chain) {
+    	try {
+    		verifyCA(chain);
+    		
+    		return true;
+    	} catch (IOException e) {
+    		LOGGER.warning("Not restoring CA certificate chain: " + e.getMessage());
+    		
+    		return false;
     	}
-    	// We don't know the order in the chain, but we know the RA 
-    	// certificate MUST have been issued by the CA certificate.
-    	for (int i = 0; i < certs.size(); i++) {
-    		// Hypothetical CA
-    		X509Certificate ca = certs.get(i);
-    		for (int j = 0; j < certs.size(); j++) {
-    			// Hypothetical RA
-    			X509Certificate ra = certs.get(j);
-    			try {
-    				// If the hypothetical RA is signed by the
-    				// hypothetical CA, the CA is legitimate.
-					ra.verify(ca.getPublicKey());
-					
-					// No exception, so return.
-					return ca;
-				} catch (Exception e) {
-					// Problem verifying, move on.
-				}
+    }
+    
+    /**
+     * Adds a listener to be notified when a retrieved CA certificate chain
+     * differs from the one this client held before.
+     * 
+     * @param listener the listener.
+     */
+    public void addCaChainListener(CaChainListener listener) {
+    	if (listener == null) {
+    		throw new NullPointerException("Listener should not be null");
+    	}
+    	chainListeners.add(listener);
+    }
+    
+    /**
+     * Removes a listener added by {@link #addCaChainListener(CaChainListener)}.
+     * 
+     * @param listener the listener.
+     */
+    public void removeCaChainListener(CaChainListener listener) {
+    	chainListeners.remove(listener);
+    }
+    
+    /**
+     * Discards the cached CA certificate chain.
+     * <p>
+     * The next operation which needs the chain will retrieve it from
+     * the CA.
+     */
+    public void invalidateCaCertificate() {
+    	caChainCache.invalidate();
+    }
+    
+    /**
+     * Sets the metrics which record the operations of this client.
+     * <p>
+     * By default, no metrics are recorded.  The same metrics may be shared
+     * by many clients.  Transactions which have already been created are 
+     * not affected.
+     * 
+     * @param metrics the metrics.
+     * @see SimpleClientMetrics
+     */
+    public void setMetrics(ClientMetrics metrics) {
+    	if (metrics == null) {
+    		throw new NullPointerException("Metrics should not be null");
+    	}
+    	this.metrics = metrics;
+    }
+    
+    /**
+     * Sets the factory used to create transports to the CA.
+     * <p>
+     * By default, {@link StandardTransportFactory} is used.  Pooling of 
+     * persistent connections is enabled by setting a 
+     * {@link PooledTransportFactory}, such as the one returned by 
+     * {@link PooledTransportFactory#getDefault()}.  Concurrent requests 
+     * to a CA which accepts cleartext HTTP/2 can instead be multiplexed over
+     * a few connections by setting a 
+     * {@link org.jscep.transport.Http2TransportFactory}.
+     * 
+     * @param factory the transport factory.
+     */
+    public void setTransportFactory(TransportFactory factory) {
+    	if (factory == null) {
+    		throw new NullPointerException("Transport factory should not be null");
+    	}
+    	transportFactory = factory;
+    }
+    
+    /**
+     * Sets the timeouts of each call made through this client.
+     * <p>
+     * The total timeout bounds each public method of this client, including 
+     * any discovery of the CA it performs, and each request later sent by 
+     * a transaction.  A call made while a {@link Deadline} is already 
+     * attached to the thread finishes no later than that deadline.
+     * <p>
+     * Timeouts are only honoured by the transports of 
+     * {@link PooledTransportFactory}, 
+     * {@link org.jscep.transport.NioTransportFactory} and 
+     * {@link org.jscep.transport.Http2TransportFactory}.
+     * 
+     * @param timeouts the timeouts.
+     */
+    public void setTimeouts(Timeouts timeouts) {
+    	if (timeouts == null) {
+    		throw new NullPointerException("Timeouts should not be null");
+    	}
+    	this.timeouts = timeouts;
+    }
+    
+    Timeouts getTimeouts() {
+    	return timeouts;
+    }
+    
+    /**
+     * Sets an alternate endpoint to which GetCACaps, GetCACert and 
+     * GetNextCACert requests are hedged.
+     * <p>
+     * Once enough requests have been seen, a request which has not been 
+     * answered within the 95th percentile of recent latencies is sent again 
+     * to the alternate endpoint, and whichever answer arrives first is used.
+     * The alternate endpoint may be the same as the primary one, in which 
+     * case the second request is sent on another connection.
+     * 
+     * @param alternate the alternate endpoint, or null to disable hedging.
+     */
+    public void setHedgingEndpoint(URL alternate) {
+    	if (alternate != null && alternate.getProtocol().matches("^https?$") == false) {
+    		throw new IllegalArgumentException("URL protocol should be HTTP or HTTPS");
+    	}
+    	hedgingUrl = alternate;
+    }
+    
+    /**
+     * Sets the endpoints to which requests for the CA are sent.
+     * <p>
+     * Each request is sent to the endpoint chosen by the provided policy.
+     * An endpoint which fails several requests in a row is ejected for a
+     * while.  Every request of a transaction after the first is sent to
+     * the endpoint which accepted the first, so a pending enrolment is
+     * always polled where it was made.
+     * <p>
+     * All endpoints must serve the same CA, since capabilities and the CA
+     * certificate chain are still cached against the URL given at
+     * construction.
+     * 
+     * @param endpoints the endpoints, or null to use only the URL given at
+     *        construction.
+     * @param policy the balancing policy.
+     */
+    public void setEndpoints(Collection<URL> endpoints, BalancingPolicy policy) {
+    	if (endpoints == null || endpoints.isEmpty()) {
+    		balancer = null;
+    		return;
+    	}
+    	if (policy == null) {
+    		throw new NullPointerException("Policy should not be null");
+    	}
+    	for (URL endpoint : endpoints) {
+    		if (endpoint == null) {
+    			throw new NullPointerException("Endpoint should not be null");
+    		}
+    		if (endpoint.getProtocol().matches("^https?$") == false) {
+    			throw new IllegalArgumentException("URL protocol should be HTTP or HTTPS");
     		}
     	}
-    	throw new IllegalStateException("No CA in chain");
+    	balancer = new LoadBalancer(endpoints, policy);
     }
     
-    void setPreferredCipherAlgorithm(String algorithm) {
-    	preferredCipherAlg = algorithm;
+    /**
+     * Sets the rate limiter for requests to the CA.
+     * <p>
+     * Requests are limited per CA URL and profile, so a limiter shared by 
+     * several clients paces their combined traffic.  Bulk enrolment through 
+     * {@link #enrolAll(Collection, int)} is paced request by request.
+     * 
+     * @param limiter the rate limiter, or null to disable rate limiting.
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+    	rateLimiter = limiter;
+    }
+    
+    /**
+     * Enables or disables admission control for requests to the CA.
+     * <p>
+     * When enabled, each endpoint has a circuit breaker, which opens when 
+     * half of its recent requests have failed or taken longer than ten 
+     * seconds, and a concurrency limiter, which adapts the number of 
+     * requests in progress to the round-trip times it observes.  A request
+     * refused by either fails immediately with a 
+     * {@link RequestRejectedException}, and is reported to the metrics of 
+     * this client along with any change to the concurrency limit.
+     * 
+     * @param enabled true to enable admission control.
+     */
+    public void setAdmissionControl(boolean enabled) {
+    	if (enabled == false) {
+    		admission = null;
+    	} else if (admission == null) {
+    		admission = new AdmissionController();
+    	}
     }
     
-    void setPreferredDigestAlgorithm(String algorithm) {
+    X509Certificate getIdentity() {
+    	return identity;
+    }
+    
+    /**
+     * Returns the message digest algorithm to use with the CA.
+     * <p>
+     * This is the preferred algorithm if one has been set, or else the 
+     * strongest algorithm advertised by the CA.  Certification requests 
+     * should be signed with this algorithm.
+     * 
+     * @return the JCA name of the digest algorithm.
+     * @throws IOException if the CA capabilities could not be retrieved.
+     */
+    public String getMessageDigestAlgorithm() throws IOException {
+    	return Algorithms.negotiateDigest(getCaCapabilities(true), preferredDigestAlg);
+    }
+    
+    /**
+     * Sets the cipher used to envelope messages to the CA.
+     * <p>
+     * By default, the strongest cipher advertised by the CA is used, 
+     * which is AES if the CA supports it.  A preferred cipher is used even 
+     * if the CA does not advertise it.
+     * 
+     * @param algorithm "AES", "DESede" or "DES", or null to negotiate.
+     * @throws IllegalArgumentException if the cipher is not supported.
+     */
+    public void setPreferredCipherAlgorithm(String algorithm) {
+    	preferredCipherAlg = algorithm == null ? null : Algorithms.normaliseCipher(algorithm);
+    }
+    
+    /**
+     * Sets the message digest algorithm returned by 
+     * {@link #getMessageDigestAlgorithm()}.
+     * 
+     * @param algorithm the JCA name of the algorithm, or null to negotiate.
+     */
+    public void setPreferredDigestAlgorithm(String algorithm) {
     	preferredDigestAlg = algorithm;
     }
+    
+    /**
+     * Sets the JCA provider used to envelope messages to the CA.
+     * <p>
+     * The provider must supply both the negotiated cipher and RSA key 
+     * transport.  The default is BouncyCastle.
+     * 
+     * @param provider the name of an installed provider.
+     * @throws IllegalArgumentException if the provider is not installed.
+     */
+    public void setEnvelopeProvider(String provider) {
+    	if (provider == null) {
+    		throw new NullPointerException("Provider should not be null");
+    	}
+    	checkInstalled(provider);
+    	envelopeProvider = provider;
+    }
+    
+    /**
+     * Sets the JCA provider used to verify the signatures in the CA 
+     * certificate chain.
+     * 
+     * @param provider the name of an installed provider, or null to use the 
+     * most preferred provider for each algorithm.
+     * @throws IllegalArgumentException if the provider is not installed.
+     */
+    public void setVerificationProvider(String provider) {
+    	if (provider != null) {
+    		checkInstalled(provider);
+    	}
+    	verificationProvider = provider;
+    }
+    
+    private static void checkInstalled(String provider) {
+    	if (Security.getProvider(provider) == null) {
+    		throw new IllegalArgumentException("Provider " + provider + " is not installed");
+    	}
+    }
 }
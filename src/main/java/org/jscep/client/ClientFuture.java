@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class represents the pending result of an asynchronous client 
+ * operation.
+ * <p>
+ * In addition to the usual {@link java.util.concurrent.Future} methods, 
+ * callbacks may be registered to be told of the outcome without blocking.
+ * 
+ * @param <V> the type of the result.
+ * @see AsyncClient
+ */
+public class ClientFuture<V> extends FutureTask<V> {
+	private static Logger LOGGER = LoggingUtil.getLogger(ClientFuture.class);
+	private final List<FutureCallback<? super V>> callbacks = new ArrayList<FutureCallback<? super V>>(1);
+	private boolean finished;
+	
+	ClientFuture(Callable<V> callable) {
+		super(callable);
+	}
+	
+	/**
+	 * Registers a callback to be told of the outcome of this operation.
+	 * <p>
+	 * If the operation has already completed, the callback is notified
+	 * immediately on the calling thread.  Otherwise, it is notified on the 
+	 * thread which completes the operation, so it should not block.
+	 * 
+	 * @param callback the callback.
+	 */
+	public void addCallback(FutureCallback<? super V> callback) {
+		synchronized (callbacks) {
+			// A waiter may be woken before done() has run.
+			if (finished == false && isDone() == false) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		notify(callback);
+	}
+	
+	@Override
+	protected void done() {
+		final List<FutureCallback<? super V>> toNotify;
+		synchronized (callbacks) {
+			finished = true;
+			toNotify = new ArrayList<FutureCallback<? super V>>(callbacks);
+			callbacks.clear();
+		}
+		for (FutureCallback<? super V> callback : toNotify) {
+			notify(callback);
+		}
+	}
+	
+	/**
+	 * Completes this operation with the given failure, without running it.
+	 * 
+	 * @param cause the cause of the failure.
+	 */
+	void fail(Throwable cause) {
+		setException(cause);
+	}
+	
+	private void notify(FutureCallback<? super V> callback) {
+		try {
+			final V result;
+			try {
+				result = get();
+			} catch (ExecutionException e) {
+				callback.onFailure(e.getCause());
+				return;
+			} catch (CancellationException e) {
+				callback.onFailure(e);
+				return;
+			} catch (InterruptedException e) {
+				// Cannot happen, as this future is done.
+				Thread.currentThread().interrupt();
+				callback.onFailure(e);
+				return;
+			}
+			callback.onSuccess(result);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Callback failed", e);
+		}
+	}
+}
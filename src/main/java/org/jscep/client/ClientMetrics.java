@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.net.URL;
+
+/**
+ * This interface receives measurements from a {@link Client}.
+ * <p>
+ * Implementations are called on the thread performing the operation, so 
+ * they MUST be thread-safe and SHOULD return quickly.
+ * 
+ * @see Client#setMetrics(ClientMetrics)
+ * @see SimpleClientMetrics
+ */
+public interface ClientMetrics {
+	/**
+	 * Records a request sent to the CA.
+	 * <p>
+	 * The time covers the network round-trip only, not the encoding of 
+	 * the request or the decoding of the response.
+	 * 
+	 * @param operation the operation.
+	 * @param nanos the duration of the request, in nanoseconds.
+	 * @param success false if the request failed with an exception.
+	 */
+	void recordRequest(ScepOperation operation, long nanos, boolean success);
+	
+	/**
+	 * Records the signing and encryption of an outgoing message.
+	 * 
+	 * @param nanos the duration, in nanoseconds.
+	 */
+	void recordEncode(long nanos);
+	
+	/**
+	 * Records the verification and decryption of an incoming message.
+	 * 
+	 * @param nanos the duration, in nanoseconds.
+	 */
+	void recordDecode(long nanos);
+	
+	/**
+	 * Records a lookup which was answered by a cache.
+	 * 
+	 * @param cache the cache.
+	 */
+	void recordCacheHit(CacheType cache);
+	
+	/**
+	 * Records a lookup which was not answered by a cache.
+	 * 
+	 * @param cache the cache.
+	 */
+	void recordCacheMiss(CacheType cache);
+	
+	/**
+	 * Records a request which was rejected without being sent.
+	 * 
+	 * @param endpoint the endpoint the request was for.
+	 * @param reason the reason for the rejection.
+	 */
+	void recordRejection(URL endpoint, RequestRejectedException.Reason reason);
+	
+	/**
+	 * Records a change to the concurrency limit of an endpoint.
+	 * 
+	 * @param endpoint the endpoint.
+	 * @param limit the new limit.
+	 */
+	void recordConcurrencyLimit(URL endpoint, int limit);
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import org.jscep.message.PkcsPkiEnvelopeDecoder;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+
+/**
+ * This class holds the message encoder and decoder of a {@link Client}, 
+ * so that they are only built again when the CA chain, the cipher, the 
+ * provider or the metrics change.
+ * <p>
+ * The encoders and decoders hold nothing but their keys and certificates, 
+ * and build their CMS generators for each message, so a single instance 
+ * may be used by many transactions at once.
+ */
+final class CodecCache {
+	private final PrivateKey priKey;
+	private final X509Certificate identity;
+	private volatile EncoderEntry encoder;
+	private volatile DecoderEntry decoder;
+	
+	CodecCache(PrivateKey priKey, X509Certificate identity) {
+		this.priKey = priKey;
+		this.identity = identity;
+	}
+	
+	/**
+	 * Returns an encoder for messages to the recipient of the given chain.
+	 * 
+	 * @param chain the CA chain.
+	 * @param cipher the JCA name of the cipher to envelope messages with.
+	 * @param provider the JCA provider of the cipher.
+	 * @param metrics the metrics to record encoding times.
+	 * @return the encoder.
+	 */
+	PkiMessageEncoder getEncoder(CaChain chain, String cipher, String provider, ClientMetrics metrics) {
+		final EncoderEntry e = encoder;
+		if (e != null && e.fingerprint.equals(chain.getFingerprint()) && e.cipher.equals(cipher) && e.provider.equals(provider) && e.metrics == metrics) {
+			return e.encoder;
+		}
+		final PkcsPkiEnvelopeEncoder envEncoder = new NegotiatedEnvelopeEncoder(chain.getRecipient(), Algorithms.getCipherOid(cipher), provider);
+		final PkiMessageEncoder created;
+		if (metrics != NoOpClientMetrics.INSTANCE) {
+			created = new MeteredPkiMessageEncoder(priKey, identity, envEncoder, metrics);
+		} else {
+			created = new PkiMessageEncoder(priKey, identity, envEncoder);
+		}
+		// Racing threads may each build one, but any of them will do.
+		encoder = new EncoderEntry(chain.getFingerprint(), cipher, provider, metrics, created);
+		
+		return created;
+	}
+	
+	/**
+	 * Returns a decoder for messages to this client.
+	 * 
+	 * @param metrics the metrics to record decoding times.
+	 * @return the decoder.
+	 */
+	PkiMessageDecoder getDecoder(ClientMetrics metrics) {
+		final DecoderEntry d = decoder;
+		if (d != null && d.metrics == metrics) {
+			return d.decoder;
+		}
+		final PkcsPkiEnvelopeDecoder envDecoder = new PkcsPkiEnvelopeDecoder(priKey);
+		final PkiMessageDecoder created;
+		if (metrics != NoOpClientMetrics.INSTANCE) {
+			created = new MeteredPkiMessageDecoder(envDecoder, metrics);
+		} else {
+			created = new PkiMessageDecoder(envDecoder);
+		}
+		decoder = new DecoderEntry(metrics, created);
+		
+		return created;
+	}
+	
+	private static final class EncoderEntry {
+		private final String fingerprint;
+		private final String cipher;
+		private final String provider;
+		private final ClientMetrics metrics;
+		private final PkiMessageEncoder encoder;
+		
+		private EncoderEntry(String fingerprint, String cipher, String provider, ClientMetrics metrics, PkiMessageEncoder encoder) {
+			this.fingerprint = fingerprint;
+			this.cipher = cipher;
+			this.provider = provider;
+			this.metrics = metrics;
+			this.encoder = encoder;
+		}
+	}
+	
+	private static final class DecoderEntry {
+		private final ClientMetrics metrics;
+		private final PkiMessageDecoder decoder;
+		
+		private DecoderEntry(ClientMetrics metrics, PkiMessageDecoder decoder) {
+			this.metrics = metrics;
+			this.decoder = decoder;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class limits the number of requests in progress to an endpoint, 
+ * adapting the limit to the round-trip times it observes.
+ * <p>
+ * The limit grows additively while round-trip times stay close to the 
+ * shortest recently seen, and shrinks multiplicatively when they exceed 
+ * it by a tolerance, or when a request fails.  The shortest round-trip 
+ * time is forgotten periodically, so that the limit can follow a CA whose 
+ * normal latency has changed.
+ */
+final class ConcurrencyLimiter {
+	static final int INITIAL_LIMIT = 20;
+	static final int MIN_LIMIT = 1;
+	static final int MAX_LIMIT = 1000;
+	private static final double TOLERANCE = 2.0;
+	private static final double BACKOFF = 0.9;
+	private static final long MIN_RTT_WINDOW = TimeUnit.SECONDS.toNanos(30);
+	private double limit = INITIAL_LIMIT;
+	private int inFlight;
+	private long minRtt = Long.MAX_VALUE;
+	private long minRttSince = System.nanoTime();
+	
+	/**
+	 * Starts a request, if the limit allows.
+	 * 
+	 * @return true if the request may proceed.
+	 */
+	synchronized boolean tryAcquire() {
+		if (inFlight >= (int) limit) {
+			return false;
+		}
+		inFlight++;
+		return true;
+	}
+	
+	/**
+	 * Records a successful request.
+	 * 
+	 * @param rtt the round-trip time of the request.
+	 */
+	synchronized void onSuccess(long rtt) {
+		inFlight--;
+		final long now = System.nanoTime();
+		if (now - minRttSince >= MIN_RTT_WINDOW) {
+			minRtt = Long.MAX_VALUE;
+			minRttSince = now;
+		}
+		if (rtt < minRtt) {
+			minRtt = rtt;
+		}
+		if (rtt > minRtt * TOLERANCE) {
+			decrease();
+		} else if ((inFlight + 1) * 2 >= limit) {
+			// Only grow while the limit is actually being used.
+			limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+		}
+	}
+	
+	/**
+	 * Records a failed request.
+	 */
+	synchronized void onFailure() {
+		inFlight--;
+		decrease();
+	}
+	
+	/**
+	 * Releases a request without adjusting the limit.
+	 */
+	synchronized void cancel() {
+		inFlight--;
+	}
+	
+	synchronized int getLimit() {
+		return (int) limit;
+	}
+	
+	private void decrease() {
+		limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.jscep.request.Request;
+import org.jscep.transport.Deadline;
+import org.jscep.transport.ForwardingTransport;
+import org.jscep.transport.Timeouts;
+import org.jscep.transport.Transport;
+
+/**
+ * This class bounds each request sent through a transport by a deadline.
+ * <p>
+ * Transactions send their requests after the {@link Client} call which 
+ * created them has returned, so the deadline cannot be attached by the 
+ * client itself.
+ */
+final class DeadlineTransport extends ForwardingTransport {
+	private final Timeouts timeouts;
+	
+	DeadlineTransport(URL url, Transport delegate, Timeouts timeouts) {
+		super(url, delegate);
+		this.timeouts = timeouts;
+	}
+	
+	@Override
+	public <T> T sendRequest(Request<T> msg) throws IOException {
+		final Deadline previous = Deadline.enter(timeouts);
+		try {
+			return super.sendRequest(msg);
+		} finally {
+			Deadline.restore(previous);
+		}
+	}
+}
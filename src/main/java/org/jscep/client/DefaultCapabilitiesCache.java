@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jscep.response.Capabilities;
+
+/**
+ * This class is the default, in-memory {@link CapabilitiesCache}.
+ * <p>
+ * Capabilities are held for a fixed time-to-live, after which the next
+ * lookup will go to the server.  Failed lookups are held for a separate,
+ * usually much shorter, time-to-live so that an unavailable CA is not
+ * asked again by every caller.
+ * <p>
+ * Capabilities whose time-to-live has elapsed are kept for a further 
+ * maximum staleness, during which they are returned by 
+ * {@link #getStale(URL, String)} while a client refreshes them.
+ */
+public class DefaultCapabilitiesCache implements CapabilitiesCache {
+	/**
+	 * The default time-to-live for capabilities, in milliseconds.
+	 */
+	public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(1);
+	/**
+	 * The default time-to-live for failed lookups, in milliseconds.
+	 */
+	public static final long DEFAULT_FAILURE_TTL = TimeUnit.SECONDS.toMillis(30);
+	/**
+	 * The default maximum staleness for capabilities, in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_STALENESS = TimeUnit.HOURS.toMillis(1);
+	private final ConcurrentMap<CacheKey, Entry> entries = new ConcurrentHashMap<CacheKey, Entry>();
+	private final long ttl;
+	private final long failureTtl;
+	private final long maxStaleness;
+
+	/**
+	 * Creates a new cache with the default time-to-live values.
+	 */
+	public DefaultCapabilitiesCache() {
+		this(DEFAULT_TTL, DEFAULT_FAILURE_TTL, DEFAULT_MAX_STALENESS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a new cache with the provided time-to-live values.
+	 * <p>
+	 * A failure time-to-live of zero disables the caching of failures.
+	 *
+	 * @param ttl how long to hold capabilities.
+	 * @param failureTtl how long to hold failed lookups.
+	 * @param unit the unit of both time-to-live values.
+	 */
+	public DefaultCapabilitiesCache(long ttl, long failureTtl, TimeUnit unit) {
+		this(unit.toNanos(ttl), unit.toNanos(failureTtl), TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_STALENESS));
+	}
+
+	/**
+	 * Creates a new cache with the provided time-to-live values and maximum 
+	 * staleness.
+	 * <p>
+	 * A failure time-to-live of zero disables the caching of failures, and
+	 * a maximum staleness of zero disables the use of stale capabilities.
+	 *
+	 * @param ttl how long to hold capabilities.
+	 * @param failureTtl how long to hold failed lookups.
+	 * @param maxStaleness how long capabilities may be used after their 
+	 *        time-to-live has elapsed.
+	 * @param unit the unit of all three values.
+	 */
+	public DefaultCapabilitiesCache(long ttl, long failureTtl, long maxStaleness, TimeUnit unit) {
+		this(unit.toNanos(ttl), unit.toNanos(failureTtl), unit.toNanos(maxStaleness));
+	}
+
+	private DefaultCapabilitiesCache(long ttl, long failureTtl, long maxStaleness) {
+		if (ttl < 0 || failureTtl < 0) {
+			throw new IllegalArgumentException("Time-to-live should not be negative");
+		}
+		if (maxStaleness < 0) {
+			throw new IllegalArgumentException("Maximum staleness should not be negative");
+		}
+		this.ttl = ttl;
+		this.failureTtl = failureTtl;
+		this.maxStaleness = maxStaleness;
+	}
+
+	public Capabilities get(URL url, String profile) throws IOException {
+		final CacheKey key = new CacheKey(url, profile);
+		final Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		final long now = System.nanoTime();
+		if (entry.isExpired(now)) {
+			if (entry.isUnusable(now)) {
+				entries.remove(key, entry);
+			}
+			return null;
+		}
+		if (entry.failure != null) {
+			final IOException e = new IOException("Cached failure for " + key + ": " + entry.failure.getMessage());
+			e.initCause(entry.failure);
+			throw e;
+		}
+		return entry.caps;
+	}
+
+	public Capabilities getStale(URL url, String profile) {
+		final Entry entry = entries.get(new CacheKey(url, profile));
+		if (entry == null || entry.isUnusable(System.nanoTime())) {
+			return null;
+		}
+		return entry.caps;
+	}
+
+	public void put(URL url, String profile, Capabilities caps) {
+		if (caps == null) {
+			throw new NullPointerException("Capabilities should not be null");
+		}
+		final long now = System.nanoTime();
+		entries.put(new CacheKey(url, profile), new Entry(caps, null, now + ttl, now + ttl + maxStaleness));
+	}
+
+	public void putFailure(URL url, String profile, IOException failure) {
+		if (failureTtl == 0) {
+			return;
+		}
+		final CacheKey key = new CacheKey(url, profile);
+		final long now = System.nanoTime();
+		final Entry entry = new Entry(null, failure, now + failureTtl, now + failureTtl);
+		// A failure should never replace capabilities which are still usable,
+		// even if stale, since they are better than no answer at all.
+		final Entry current = entries.putIfAbsent(key, entry);
+		if (current != null && current.isUnusable(now)) {
+			entries.replace(key, current, entry);
+		}
+	}
+
+	public void remove(URL url, String profile) {
+		entries.remove(new CacheKey(url, profile));
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	private static final class Entry {
+		private final Capabilities caps;
+		private final IOException failure;
+		private final long expiresAt;
+		private final long unusableAt;
+
+		private Entry(Capabilities caps, IOException failure, long expiresAt, long unusableAt) {
+			this.caps = caps;
+			this.failure = failure;
+			this.expiresAt = expiresAt;
+			this.unusableAt = unusableAt;
+		}
+
+		private boolean isExpired(long now) {
+			return now - expiresAt >= 0;
+		}
+
+		private boolean isUnusable(long now) {
+			return now - unusableAt >= 0;
+		}
+	}
+}
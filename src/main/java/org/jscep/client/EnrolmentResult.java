@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.jscep.transaction.EnrolmentTransaction;
+
+/**
+ * This class represents the outcome of enrolling one CSR as part of a 
+ * batch.
+ * 
+ * @see Client#enrolAll(java.util.Collection, int)
+ */
+public final class EnrolmentResult {
+	/**
+	 * The status of an enrolment.
+	 */
+	public enum Status {
+		/**
+		 * The certificate has been issued.
+		 */
+		ISSUED,
+		/**
+		 * The request is awaiting manual approval by the CA.
+		 */
+		PENDING,
+		/**
+		 * The request was rejected, or could not be sent.
+		 */
+		FAILED
+	}
+	private final CertificationRequest csr;
+	private final Status status;
+	private final EnrolmentTransaction transaction;
+	private final Throwable failure;
+	
+	EnrolmentResult(CertificationRequest csr, Status status, EnrolmentTransaction transaction, Throwable failure) {
+		this.csr = csr;
+		this.status = status;
+		this.transaction = transaction;
+		this.failure = failure;
+	}
+	
+	/**
+	 * Returns the CSR which was enrolled.
+	 * 
+	 * @return the CSR.
+	 */
+	public CertificationRequest getCertificationRequest() {
+		return csr;
+	}
+	
+	/**
+	 * Returns the status of the enrolment.
+	 * 
+	 * @return the status.
+	 */
+	public Status getStatus() {
+		return status;
+	}
+	
+	/**
+	 * Returns the transaction used for the enrolment.
+	 * <p>
+	 * The transaction holds the issued certificate or, if the CA rejected
+	 * the request, the reason for the failure.
+	 * 
+	 * @return the transaction, or null if it could not be created.
+	 */
+	public EnrolmentTransaction getTransaction() {
+		return transaction;
+	}
+	
+	/**
+	 * Returns the error which prevented the request from being sent.
+	 * 
+	 * @return the error, or null if the CA responded.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+	
+	@Override
+	public String toString() {
+		return status + (failure == null ? "" : " (" + failure + ")");
+	}
+}
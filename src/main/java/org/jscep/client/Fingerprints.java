@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * This class computes the fingerprints used to identify certificates and
+ * certificate chains in the client caches.
+ */
+final class Fingerprints {
+	private static final String ALGORITHM = "SHA-256";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	// Looking up a digest is far more costly than using one, and digests 
+	// are not thread-safe, so each thread keeps its own.
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				// Every Java platform is required to support SHA-256.
+				throw new RuntimeException(e);
+			}
+		}
+	};
+	
+	private Fingerprints() {
+		// This class should not be instantiated.
+	}
+	
+	/**
+	 * Returns the SHA-256 fingerprint of the given certificate.
+	 * 
+	 * @param cert the certificate.
+	 * @return the fingerprint, in lower case hexadecimal.
+	 */
+	static String sha256(X509Certificate cert) {
+		final MessageDigest digest = getDigest();
+		digest.update(getEncoded(cert));
+		
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Returns the SHA-256 fingerprint of the given certificate chain.
+	 * <p>
+	 * The fingerprint depends upon the order of the certificates.
+	 * 
+	 * @param certs the certificate chain.
+	 * @return the fingerprint, in lower case hexadecimal.
+	 */
+	static String sha256(List<X509Certificate> certs) {
+		final MessageDigest digest = getDigest();
+		for (X509Certificate cert : certs) {
+			digest.update(getEncoded(cert));
+		}
+		
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Returns the SHA-256 fingerprint of the given bytes.
+	 * 
+	 * @param bytes the bytes to digest.
+	 * @return the fingerprint, in lower case hexadecimal.
+	 */
+	static String sha256(byte[] bytes) {
+		return toHex(getDigest().digest(bytes));
+	}
+	
+	static String toHex(byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+	
+	private static MessageDigest getDigest() {
+		final MessageDigest digest = DIGEST.get();
+		// A previous caller may have failed part way through.
+		digest.reset();
+		
+		return digest;
+	}
+	
+	private static byte[] getEncoded(X509Certificate cert) {
+		try {
+			return cert.getEncoded();
+		} catch (CertificateEncodingException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jscep.content.ScepContentHandler;
+import org.jscep.request.GetCaCaps;
+import org.jscep.request.GetCaCert;
+import org.jscep.request.GetNextCaCert;
+import org.jscep.request.Operation;
+import org.jscep.request.Request;
+import org.jscep.transport.Deadline;
+import org.jscep.transport.ForwardingTransport;
+import org.jscep.transport.Transport;
+
+/**
+ * This class hedges informational requests: if the delegate has not 
+ * answered within the 95th percentile of recent latencies, the same 
+ * request is sent through an alternate transport, and whichever answer 
+ * arrives first is used.  Each attempt reads the response with a content 
+ * handler of its own, and only the winning response is passed to the 
+ * handler of the request.
+ * <p>
+ * PKIOperation requests are never hedged, as they are not idempotent.
+ */
+final class HedgingTransport extends ForwardingTransport {
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, "scep-hedge");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private final Transport alternate;
+	private final LatencyWindow latencies;
+	
+	HedgingTransport(URL url, Transport delegate, Transport alternate, LatencyWindow latencies) {
+		super(url, delegate);
+		this.alternate = alternate;
+		this.latencies = latencies;
+	}
+	
+	@Override
+	public <T> T sendRequest(Request<T> msg) throws IOException {
+		if (msg.getOperation() == Operation.PKIOperation) {
+			return super.sendRequest(msg);
+		}
+		final long delay = latencies.getPercentile(95);
+		if (delay < 0) {
+			// Too few samples to know when to hedge.
+			return send(getDelegate(), msg);
+		}
+		final Deadline deadline = Deadline.current();
+		final CompletionService<RawContentHandler> cs = new ExecutorCompletionService<RawContentHandler>(EXECUTOR);
+		final Future<RawContentHandler> primary = cs.submit(new Attempt(getDelegate(), msg, deadline));
+		Future<RawContentHandler> hedge = null;
+		RawContentHandler winner = null;
+		try {
+			Future<RawContentHandler> done = cs.poll(delay, TimeUnit.NANOSECONDS);
+			if (done == null) {
+				hedge = cs.submit(new Attempt(alternate, msg, deadline));
+			}
+			int outstanding = hedge == null ? 1 : 2;
+			Throwable failure = null;
+			while (winner == null && outstanding > 0) {
+				if (done == null) {
+					done = deadline == null ? cs.take() : cs.poll(deadline.getRemaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+					if (done == null) {
+						throw new SocketTimeoutException("Deadline expired");
+					}
+				}
+				outstanding--;
+				try {
+					winner = done.get();
+				} catch (ExecutionException e) {
+					// Wait for the other attempt, if there is one.
+					failure = e.getCause();
+				}
+				done = null;
+			}
+			if (winner == null) {
+				if (failure instanceof IOException) {
+					throw (IOException) failure;
+				} else if (failure instanceof RuntimeException) {
+					throw (RuntimeException) failure;
+				} else {
+					throw (Error) failure;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + msg.getOperation());
+		} finally {
+			primary.cancel(true);
+			if (hedge != null) {
+				hedge.cancel(true);
+			}
+		}
+		// Only the winning response ever reaches the caller's handler.
+		return msg.getContentHandler().getContent(new ByteArrayInputStream(winner.content), winner.mimeType);
+	}
+	
+	private <T> T send(Transport transport, Request<T> msg) throws IOException {
+		final long start = System.nanoTime();
+		final T response = transport.sendRequest(msg);
+		latencies.record(System.nanoTime() - start);
+		
+		return response;
+	}
+	
+	/**
+	 * Copies an informational request, giving it another content handler.
+	 * 
+	 * @param msg the request.
+	 * @param handler the content handler of the copy.
+	 * @return the copy.
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static Request<?> copy(Request<?> msg, ScepContentHandler handler) {
+		switch (msg.getOperation()) {
+		case GetCACaps:
+			return new GetCaCaps(msg.getMessage(), handler);
+		case GetCACert:
+			return new GetCaCert(msg.getMessage(), handler);
+		case GetNextCACert:
+			return new GetNextCaCert(msg.getMessage(), handler);
+		default:
+			throw new IllegalArgumentException(msg.getOperation() + " cannot be hedged");
+		}
+	}
+	
+	/**
+	 * This class sends a copy of the request through one transport, with a 
+	 * content handler of its own, so that an attempt which loses the race 
+	 * cannot touch the handler of the caller.
+	 */
+	private final class Attempt implements Callable<RawContentHandler> {
+		private final Transport transport;
+		private final Request<?> msg;
+		private final Deadline deadline;
+		
+		private Attempt(Transport transport, Request<?> msg, Deadline deadline) {
+			this.transport = transport;
+			this.msg = msg;
+			this.deadline = deadline;
+		}
+		
+		public RawContentHandler call() throws IOException {
+			final RawContentHandler handler = new RawContentHandler();
+			final Deadline previous = Deadline.attach(deadline);
+			try {
+				send(transport, copy(msg, handler));
+			} finally {
+				Deadline.restore(previous);
+			}
+			if (handler.content == null) {
+				throw new IOException("No response to " + msg.getOperation());
+			}
+			return handler;
+		}
+	}
+	
+	/**
+	 * This class keeps the raw content of the response to one attempt.
+	 */
+	private static final class RawContentHandler implements ScepContentHandler<Object> {
+		private volatile byte[] content;
+		private volatile String mimeType;
+		
+		public Object getContent(InputStream in, String mimeType) throws IOException {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, n);
+			}
+			this.mimeType = mimeType;
+			this.content = bytes.toByteArray();
+			
+			return null;
+		}
+	}
+}
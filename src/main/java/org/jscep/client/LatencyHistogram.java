@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a lock-free histogram of durations.
+ * <p>
+ * Durations are counted in buckets whose bounds are powers of two 
+ * nanoseconds, so percentiles are accurate to within a factor of two.  
+ * The count, mean and maximum are exact.
+ */
+public final class LatencyHistogram {
+	private static final int BUCKETS = 64;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Records a duration.
+	 * 
+	 * @param nanos the duration, in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		// Bucket i holds durations in [2^i, 2^(i+1)), and bucket 0 also holds 0.
+		buckets.incrementAndGet(Math.max(0, BUCKETS - 1 - Long.numberOfLeadingZeros(nanos)));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long current;
+		while (nanos > (current = max.get())) {
+			if (max.compareAndSet(current, nanos)) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of durations recorded.
+	 * 
+	 * @return the count.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Returns the mean duration.
+	 * 
+	 * @return the mean, in nanoseconds.
+	 */
+	public double getMean() {
+		final long n = count.get();
+		
+		return n == 0 ? 0 : total.get() / (double) n;
+	}
+	
+	/**
+	 * Returns the longest duration.
+	 * 
+	 * @return the maximum, in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns an upper bound for the given percentile.
+	 * 
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the upper bound, in nanoseconds.
+	 */
+	public long getPercentile(double percentile) {
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			n += buckets.get(i);
+		}
+		final long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				// The upper bound of this bucket, but never above the maximum.
+				return Math.min(i == BUCKETS - 1 ? Long.MAX_VALUE : (2L << i) - 1, max.get());
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the most recent latencies of an operation, from which 
+ * percentiles can be calculated exactly.
+ */
+final class LatencyWindow {
+	private final long[] samples;
+	private final int minSamples;
+	private int count;
+	private int next;
+	
+	/**
+	 * Creates a new window.
+	 * 
+	 * @param size the number of latencies to hold.
+	 * @param minSamples the number of latencies needed for a percentile.
+	 */
+	LatencyWindow(int size, int minSamples) {
+		this.samples = new long[size];
+		this.minSamples = minSamples;
+	}
+	
+	synchronized void record(long nanos) {
+		samples[next] = nanos;
+		next = (next + 1) % samples.length;
+		if (count < samples.length) {
+			count++;
+		}
+	}
+	
+	/**
+	 * Returns the given percentile of the latencies in this window.
+	 * 
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the latency in nanoseconds, or -1 if there are too few samples.
+	 */
+	long getPercentile(double percentile) {
+		final long[] sorted;
+		synchronized (this) {
+			if (count < minSamples) {
+				return -1;
+			}
+			sorted = Arrays.copyOf(samples, count);
+		}
+		Arrays.sort(sorted);
+		final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class chooses among several endpoints for the same CA.
+ * <p>
+ * An endpoint which fails {@link #EJECTION_THRESHOLD} requests in a row is 
+ * ejected, and only chosen again once its ejection time has passed or every 
+ * endpoint has been ejected.  The ejection time doubles each time an 
+ * endpoint is ejected again without a success in between.  An endpoint 
+ * whose circuit breaker is open is ejected until the breaker would allow 
+ * a probe.
+ */
+final class LoadBalancer {
+	private static Logger LOGGER = LoggingUtil.getLogger(LoadBalancer.class);
+	static final int EJECTION_THRESHOLD = 3;
+	static final long BASE_EJECTION = TimeUnit.SECONDS.toNanos(10);
+	static final long MAX_EJECTION = TimeUnit.MINUTES.toNanos(5);
+	// The weight of each new latency in the moving average.
+	private static final double ALPHA = 0.2;
+	private final List<Endpoint> endpoints;
+	private final BalancingPolicy policy;
+	private final Random random = new Random();
+	
+	LoadBalancer(Collection<URL> urls, BalancingPolicy policy) {
+		final List<Endpoint> list = new ArrayList<Endpoint>(urls.size());
+		for (URL url : urls) {
+			list.add(new Endpoint(url));
+		}
+		this.endpoints = Collections.unmodifiableList(list);
+		this.policy = policy;
+	}
+	
+	List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+	
+	/**
+	 * Chooses an endpoint for the next request.
+	 * 
+	 * @return the endpoint.
+	 */
+	Endpoint select() {
+		return select(Collections.<Endpoint>emptySet());
+	}
+	
+	/**
+	 * Chooses an endpoint for the next request, other than the given ones.
+	 * 
+	 * @param excluded the endpoints which must not be chosen.
+	 * @return the endpoint, or null if every endpoint is excluded.
+	 */
+	Endpoint select(Collection<Endpoint> excluded) {
+		final long now = System.nanoTime();
+		final int n = endpoints.size();
+		// Start at a random endpoint, so that ties are broken fairly.
+		final int offset = n == 1 ? 0 : nextInt(n);
+		Endpoint best = null;
+		double bestScore = Double.MAX_VALUE;
+		Endpoint soonest = null;
+		for (int i = 0; i < n; i++) {
+			final Endpoint e = endpoints.get((offset + i) % n);
+			if (excluded.contains(e)) {
+				continue;
+			}
+			if (e.isEjected(now)) {
+				if (soonest == null || e.ejectedUntil - soonest.ejectedUntil < 0) {
+					soonest = e;
+				}
+				continue;
+			}
+			final double score = score(e);
+			if (score < bestScore) {
+				best = e;
+				bestScore = score;
+			}
+		}
+		// If every endpoint is ejected, use the one which recovers first.
+		return best != null ? best : soonest;
+	}
+	
+	private double score(Endpoint e) {
+		final int outstanding = e.outstanding.get();
+		if (policy == BalancingPolicy.LEAST_OUTSTANDING) {
+			return outstanding;
+		}
+		return e.ewma * (outstanding + 1);
+	}
+	
+	private int nextInt(int n) {
+		synchronized (random) {
+			return random.nextInt(n);
+		}
+	}
+	
+	/**
+	 * This class holds the state of a single endpoint.
+	 */
+	static final class Endpoint {
+		private final URL url;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		// Guarded by this.
+		private int failures;
+		private int ejections;
+		private volatile double ewma;
+		private volatile long ejectedUntil;
+		private volatile boolean ejected;
+		
+		private Endpoint(URL url) {
+			this.url = url;
+		}
+		
+		URL getUrl() {
+			return url;
+		}
+		
+		int getOutstanding() {
+			return outstanding.get();
+		}
+		
+		boolean isEjected(long now) {
+			return ejected && now - ejectedUntil < 0;
+		}
+		
+		/**
+		 * Records the start of a request to this endpoint.
+		 */
+		void start() {
+			outstanding.incrementAndGet();
+		}
+		
+		/**
+		 * Records a successful request to this endpoint.
+		 * 
+		 * @param nanos the latency of the request.
+		 */
+		synchronized void succeeded(long nanos) {
+			outstanding.decrementAndGet();
+			ewma = ewma == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * ewma;
+			failures = 0;
+			ejections = 0;
+			ejected = false;
+		}
+		
+		/**
+		 * Records a request to this endpoint which was refused before it 
+		 * was sent.
+		 * <p>
+		 * An endpoint whose circuit breaker is open is ejected for as long 
+		 * as a breaker stays open, so that it is not chosen again until 
+		 * the breaker would allow a probe.
+		 * 
+		 * @param reason the reason the request was refused.
+		 */
+		synchronized void rejected(RequestRejectedException.Reason reason) {
+			outstanding.decrementAndGet();
+			final long now = System.nanoTime();
+			if (reason == RequestRejectedException.Reason.CIRCUIT_OPEN && isEjected(now) == false) {
+				ejectedUntil = now + CircuitBreaker.OPEN_DURATION;
+				ejected = true;
+				LOGGER.fine("Skipping " + url + " while its circuit is open");
+			}
+		}
+		
+		/**
+		 * Records a failed request to this endpoint.
+		 */
+		synchronized void failed() {
+			outstanding.decrementAndGet();
+			failures++;
+			if (failures >= EJECTION_THRESHOLD && isEjected(System.nanoTime()) == false) {
+				final long duration = Math.min(MAX_EJECTION, BASE_EJECTION << Math.min(ejections, 16));
+				ejections++;
+				failures = 0;
+				ejectedUntil = System.nanoTime() + duration;
+				ejected = true;
+				LOGGER.warning("Ejecting " + url + " for " + TimeUnit.NANOSECONDS.toSeconds(duration) + "s");
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return url.toExternalForm();
+		}
+	}
+}
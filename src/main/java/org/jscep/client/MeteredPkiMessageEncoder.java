@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.cms.CMSSignedData;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessage;
+import org.jscep.message.PkiMessageEncoder;
+
+/**
+ * This class records the time taken to sign and encrypt each message.
+ */
+final class MeteredPkiMessageEncoder extends PkiMessageEncoder {
+	private final ClientMetrics metrics;
+	
+	MeteredPkiMessageEncoder(PrivateKey priKey, X509Certificate identity, PkcsPkiEnvelopeEncoder envEncoder, ClientMetrics metrics) {
+		super(priKey, identity, envEncoder);
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public CMSSignedData encode(PkiMessage<?> message) throws IOException {
+		final long start = System.nanoTime();
+		try {
+			return super.encode(message);
+		} finally {
+			metrics.recordEncode(System.nanoTime() - start);
+		}
+	}
+}
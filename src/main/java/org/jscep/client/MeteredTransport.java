@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.jscep.request.Operation;
+import org.jscep.request.Request;
+import org.jscep.transport.ForwardingTransport;
+import org.jscep.transport.Transport;
+
+/**
+ * This class records the network time of each request sent through a 
+ * transport.
+ * <p>
+ * A PKIOperation does not say which SCEP message it carries, so the caller 
+ * names the message for the first PKIOperation, and for any which follow.  
+ * For an enrolment these are PKCSReq and GetCertInitial respectively.
+ */
+final class MeteredTransport extends ForwardingTransport {
+	private final ClientMetrics metrics;
+	private final ScepOperation first;
+	private final ScepOperation subsequent;
+	private volatile boolean sent;
+	
+	MeteredTransport(URL url, Transport delegate, ClientMetrics metrics, ScepOperation first, ScepOperation subsequent) {
+		super(url, delegate);
+		this.metrics = metrics;
+		this.first = first;
+		this.subsequent = subsequent;
+	}
+	
+	@Override
+	public <T> T sendRequest(Request<T> msg) throws IOException {
+		final ScepOperation op = getOperation(msg.getOperation());
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			final T response = super.sendRequest(msg);
+			success = true;
+			
+			return response;
+		} finally {
+			metrics.recordRequest(op, System.nanoTime() - start, success);
+		}
+	}
+	
+	private ScepOperation getOperation(Operation op) {
+		switch (op) {
+		case GetCACaps:
+			return ScepOperation.GetCACaps;
+		case GetCACert:
+			return ScepOperation.GetCACert;
+		case GetNextCACert:
+			return ScepOperation.GetNextCACert;
+		default:
+			if (sent) {
+				return subsequent;
+			}
+			sent = true;
+			return first;
+		}
+	}
+}
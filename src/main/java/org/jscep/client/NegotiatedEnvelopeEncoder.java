@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+
+/**
+ * This class envelopes messages with a cipher negotiated with the CA, 
+ * rather than the default cipher of {@link PkcsPkiEnvelopeEncoder}, using 
+ * the JCA provider chosen for the client.
+ * 
+ * @see Algorithms
+ */
+final class NegotiatedEnvelopeEncoder extends PkcsPkiEnvelopeEncoder {
+	/**
+	 * The provider used unless another is chosen.
+	 */
+	static final String DEFAULT_PROVIDER = "BC";
+	private final X509Certificate recipient;
+	private final String cipherOid;
+	private final String provider;
+	
+	NegotiatedEnvelopeEncoder(X509Certificate recipient, String cipherOid, String provider) {
+		super(recipient);
+		this.recipient = recipient;
+		this.cipherOid = cipherOid;
+		this.provider = provider;
+	}
+	
+	@Override
+	public byte[] encode(byte[] payload) throws IOException {
+		final CMSEnvelopedDataGenerator generator = new CMSEnvelopedDataGenerator();
+		generator.addKeyTransRecipient(recipient);
+		try {
+			return generator.generate(new CMSProcessableByteArray(payload), cipherOid, provider).getEncoded();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Cipher " + cipherOid + " is not available from " + provider, e);
+		} catch (NoSuchProviderException e) {
+			throw new IOException("Provider " + provider + " is not installed", e);
+		} catch (CMSException e) {
+			throw new IOException("Could not envelope message", e);
+		}
+	}
+	
+	String getCipherOid() {
+		return cipherOid;
+	}
+}
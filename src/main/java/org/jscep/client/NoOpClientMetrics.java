@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.net.URL;
+
+/**
+ * This class discards all measurements.  It is used by default.
+ */
+public final class NoOpClientMetrics implements ClientMetrics {
+	/**
+	 * The single instance of this class.
+	 */
+	public static final NoOpClientMetrics INSTANCE = new NoOpClientMetrics();
+	
+	private NoOpClientMetrics() {
+	}
+	
+	public void recordRequest(ScepOperation operation, long nanos, boolean success) {
+	}
+	
+	public void recordEncode(long nanos) {
+	}
+	
+	public void recordDecode(long nanos) {
+	}
+	
+	public void recordCacheHit(CacheType cache) {
+	}
+	
+	public void recordCacheMiss(CacheType cache) {
+	}
+	
+	public void recordRejection(URL endpoint, RequestRejectedException.Reason reason) {
+	}
+	
+	public void recordConcurrencyLimit(URL endpoint, int limit) {
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+
+/**
+ * This class represents an enrolment which the CA has left pending, as
+ * recorded in a {@link PendingEnrolmentJournal}.
+ */
+public final class PendingEnrolment {
+	private final String id;
+	private final CertificationRequest csr;
+	private final X509Certificate issuer;
+	private final X509Certificate identity;
+	
+	/**
+	 * Creates a new PendingEnrolment.
+	 * 
+	 * @param csr the certificate signing request.
+	 * @param issuer the CA certificate the request was sent to.
+	 * @param identity the certificate the request was signed with.
+	 * @throws IOException if the CSR cannot be encoded.
+	 */
+	public PendingEnrolment(CertificationRequest csr, X509Certificate issuer, X509Certificate identity) throws IOException {
+		this(idOf(csr), csr, issuer, identity);
+	}
+	
+	PendingEnrolment(String id, CertificationRequest csr, X509Certificate issuer, X509Certificate identity) {
+		this.id = id;
+		this.csr = csr;
+		this.issuer = issuer;
+		this.identity = identity;
+	}
+	
+	/**
+	 * Returns the identifier of this enrolment.
+	 * <p>
+	 * The identifier is the SHA-256 fingerprint of the public key in the
+	 * CSR, which stays the same when the request is sent again.
+	 * 
+	 * @return the identifier.
+	 */
+	public String getId() {
+		return id;
+	}
+	
+	/**
+	 * Returns the certificate signing request.
+	 * 
+	 * @return the CSR.
+	 */
+	public CertificationRequest getCertificationRequest() {
+		return csr;
+	}
+	
+	/**
+	 * Returns the CA certificate the request was sent to.
+	 * 
+	 * @return the issuer.
+	 */
+	public X509Certificate getIssuer() {
+		return issuer;
+	}
+	
+	/**
+	 * Returns the certificate the request was signed with.
+	 * 
+	 * @return the signing identity.
+	 */
+	public X509Certificate getIdentity() {
+		return identity;
+	}
+	
+	static String idOf(CertificationRequest csr) throws IOException {
+		final byte[] key = csr.getCertificationRequestInfo().getSubjectPublicKeyInfo().getEncoded();
+		
+		return Fingerprints.sha256(key);
+	}
+	
+	@Override
+	public String toString() {
+		return id;
+	}
+}
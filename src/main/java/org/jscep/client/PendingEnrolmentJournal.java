@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class is an append-only, memory-mapped journal of pending 
+ * enrolments.
+ * <p>
+ * Each enrolment left pending by the CA is appended to the journal, and a
+ * removal record is appended once it is resolved.  When the journal is 
+ * opened, the records are replayed so that polling can be resumed after a
+ * restart.  A record which was only partly written when the JVM stopped
+ * fails its checksum and is discarded along with anything after it.
+ * <p>
+ * Once removed enrolments outnumber pending ones, the journal is 
+ * compacted by writing the pending enrolments to a new file, which then
+ * replaces the old one.
+ * <p>
+ * A journal file may only be opened by one instance at a time.
+ * 
+ * @see PendingEnrolmentScheduler#setJournal(PendingEnrolmentJournal)
+ */
+public class PendingEnrolmentJournal {
+	private static Logger LOGGER = LoggingUtil.getLogger(PendingEnrolmentJournal.class);
+	private static final byte[] MAGIC = {'S', 'C', 'E', 'P', 'J', 'N', 'L', '1'};
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	// Length and checksum
+	private static final int RECORD_HEADER = 8;
+	private static final int INITIAL_SIZE = 1 << 20;
+	private static final int COMPACTION_THRESHOLD = 1024;
+	private final File file;
+	private final Map<String, PendingEnrolment> pending = new LinkedHashMap<String, PendingEnrolment>();
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private FileLock lock;
+	private MappedByteBuffer buffer;
+	private int obsolete;
+	private boolean syncOnWrite = true;
+	
+	/**
+	 * Opens the given journal file, creating it if necessary.
+	 * 
+	 * @param file the journal file.
+	 * @throws IOException if the file cannot be opened or is not a journal.
+	 */
+	public PendingEnrolmentJournal(File file) throws IOException {
+		this.file = file;
+		open();
+	}
+	
+	/**
+	 * Sets whether each record is forced to disk as it is written.
+	 * <p>
+	 * If not, records written shortly before a crash of the host may be 
+	 * lost, but not those written before a crash of the JVM.
+	 * 
+	 * @param syncOnWrite true to force each record to disk.
+	 */
+	public synchronized void setSyncOnWrite(boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
+	
+	/**
+	 * Records a pending enrolment.
+	 * 
+	 * @param enrolment the pending enrolment.
+	 * @throws IOException if the record cannot be written.
+	 */
+	public synchronized void add(PendingEnrolment enrolment) throws IOException {
+		write(ADD, encode(enrolment));
+		if (pending.put(enrolment.getId(), enrolment) != null) {
+			obsolete++;
+		}
+	}
+	
+	/**
+	 * Records that an enrolment is no longer pending.
+	 * 
+	 * @param id the identifier of the enrolment.
+	 * @return true if the enrolment was pending.
+	 * @throws IOException if the record cannot be written.
+	 */
+	public synchronized boolean remove(String id) throws IOException {
+		if (pending.containsKey(id) == false) {
+			return false;
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeUTF(id);
+		write(REMOVE, bytes.toByteArray());
+		pending.remove(id);
+		// Both the addition and the removal are now obsolete.
+		obsolete += 2;
+		if (obsolete > COMPACTION_THRESHOLD && obsolete > pending.size()) {
+			compact();
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the enrolments which are still pending, in the order they 
+	 * were added.
+	 * 
+	 * @return the pending enrolments.
+	 */
+	public synchronized List<PendingEnrolment> getPending() {
+		return new ArrayList<PendingEnrolment>(pending.values());
+	}
+	
+	/**
+	 * Rewrites the journal so that it only holds pending enrolments.
+	 * 
+	 * @throws IOException if the journal cannot be rewritten.
+	 */
+	public synchronized void compact() throws IOException {
+		final File tmp = new File(file.getPath() + ".compact");
+		if (tmp.exists() && tmp.delete() == false) {
+			throw new IOException("Could not delete " + tmp);
+		}
+		final PendingEnrolmentJournal compacted = new PendingEnrolmentJournal(tmp);
+		try {
+			compacted.setSyncOnWrite(false);
+			for (PendingEnrolment enrolment : pending.values()) {
+				compacted.add(enrolment);
+			}
+		} finally {
+			compacted.close();
+		}
+		close();
+		if (tmp.renameTo(file) == false) {
+			// Some platforms will not rename over an existing file.
+			if (file.delete() == false || tmp.renameTo(file) == false) {
+				open();
+				throw new IOException("Could not replace " + file);
+			}
+		}
+		LOGGER.fine("Compacted journal to " + pending.size() + " entries");
+		open();
+	}
+	
+	/**
+	 * Forces outstanding records to disk and closes the journal.
+	 * 
+	 * @throws IOException if the journal cannot be closed.
+	 */
+	public synchronized void close() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		try {
+			buffer.force();
+			lock.release();
+			channel.close();
+		} finally {
+			raf.close();
+			channel = null;
+			buffer = null;
+		}
+	}
+	
+	private void open() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		lock = channel.tryLock();
+		if (lock == null) {
+			raf.close();
+			channel = null;
+			throw new IOException("Journal " + file + " is in use");
+		}
+		final long size = channel.size();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_SIZE));
+		if (size == 0) {
+			buffer.put(MAGIC);
+		} else {
+			final byte[] magic = new byte[MAGIC.length];
+			buffer.get(magic);
+			if (Arrays.equals(magic, MAGIC) == false) {
+				close();
+				throw new IOException(file + " is not a journal");
+			}
+		}
+		pending.clear();
+		obsolete = 0;
+		replay();
+		// Terminate the journal, in case a partial record follows.
+		if (buffer.remaining() >= 4) {
+			buffer.putInt(buffer.position(), 0);
+		}
+	}
+	
+	private void replay() throws IOException {
+		final CRC32 crc = new CRC32();
+		while (buffer.remaining() > RECORD_HEADER) {
+			final int start = buffer.position();
+			final int length = buffer.getInt();
+			final int checksum = buffer.getInt();
+			if (length <= 0 || length > buffer.remaining()) {
+				buffer.position(start);
+				return;
+			}
+			final byte[] record = new byte[length];
+			buffer.get(record);
+			crc.reset();
+			crc.update(record);
+			if ((int) crc.getValue() != checksum) {
+				LOGGER.warning("Discarding incomplete journal record at offset " + start);
+				buffer.position(start);
+				return;
+			}
+			apply(record);
+		}
+	}
+	
+	private void apply(byte[] record) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1));
+		if (record[0] == ADD) {
+			final PendingEnrolment enrolment = decode(in);
+			if (pending.put(enrolment.getId(), enrolment) != null) {
+				obsolete++;
+			}
+		} else if (record[0] == REMOVE) {
+			if (pending.remove(in.readUTF()) != null) {
+				obsolete += 2;
+			} else {
+				obsolete++;
+			}
+		} else {
+			throw new IOException("Unknown journal record type " + record[0]);
+		}
+	}
+	
+	private void write(byte type, byte[] payload) throws IOException {
+		if (channel == null) {
+			throw new IOException("Journal is closed");
+		}
+		final int length = payload.length + 1;
+		final CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		
+		// Leave room for the terminator.
+		ensureCapacity(RECORD_HEADER + length + 4);
+		final int start = buffer.position();
+		buffer.position(start + RECORD_HEADER);
+		buffer.put(type);
+		buffer.put(payload);
+		buffer.putInt(buffer.position(), 0);
+		// Write the header last, so a torn record is never replayed.
+		buffer.putInt(start + 4, (int) crc.getValue());
+		buffer.putInt(start, length);
+		if (syncOnWrite) {
+			buffer.force();
+		}
+	}
+	
+	private void ensureCapacity(int required) throws IOException {
+		if (buffer.remaining() >= required) {
+			return;
+		}
+		final int position = buffer.position();
+		long capacity = buffer.capacity();
+		while (capacity - position < required) {
+			capacity *= 2;
+		}
+		if (capacity > Integer.MAX_VALUE) {
+			throw new IOException("Journal " + file + " is full");
+		}
+		buffer.force();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		buffer.position(position);
+	}
+	
+	private static byte[] encode(PendingEnrolment enrolment) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeUTF(enrolment.getId());
+			writeBytes(out, enrolment.getCertificationRequest().getEncoded());
+			writeBytes(out, enrolment.getIssuer().getEncoded());
+			writeBytes(out, enrolment.getIdentity().getEncoded());
+		} catch (CertificateException e) {
+			throw new IOException("Could not encode certificate", e);
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static PendingEnrolment decode(DataInputStream in) throws IOException {
+		final String id = in.readUTF();
+		final PKCS10CertificationRequest csr = new PKCS10CertificationRequest(readBytes(in));
+		try {
+			final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+			final X509Certificate issuer = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(readBytes(in)));
+			final X509Certificate identity = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(readBytes(in)));
+			
+			return new PendingEnrolment(id, csr, issuer, identity);
+		} catch (CertificateException e) {
+			throw new IOException("Could not decode certificate", e);
+		}
+	}
+	
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		
+		return bytes;
+	}
+}
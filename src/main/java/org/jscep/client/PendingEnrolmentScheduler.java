@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.jscep.transaction.EnrolmentTransaction;
+import org.jscep.transaction.Transaction.State;
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class polls the CA for enrolments which are awaiting manual 
+ * approval.
+ * <p>
+ * All pending transactions share a single delay queue, serviced by a 
+ * small pool of threads, so no thread sleeps on behalf of a transaction.
+ * Each transaction is polled with GetCertInitial after an exponentially 
+ * increasing, randomly jittered delay until the CA issues or rejects the 
+ * certificate, or the maximum number of polls is reached.  Registering the
+ * same transaction more than once adds listeners, not polls.
+ * <p>
+ * If a journal is set, enrolments made through this scheduler are 
+ * recorded while they are pending, and can be resumed after a restart.
+ */
+public class PendingEnrolmentScheduler {
+	private static Logger LOGGER = LoggingUtil.getLogger(PendingEnrolmentScheduler.class);
+	private final Client client;
+	private final ScheduledExecutorService executor;
+	private final ConcurrentMap<EnrolmentTransaction, Pending> pending = new ConcurrentHashMap<EnrolmentTransaction, Pending>();
+	private final Random random = new Random();
+	private volatile long initialDelay = TimeUnit.SECONDS.toMillis(30);
+	private volatile long maxDelay = TimeUnit.HOURS.toMillis(1);
+	private volatile double multiplier = 2.0;
+	private volatile double jitter = 0.2;
+	private volatile int maxAttempts = 100;
+	private volatile PendingEnrolmentJournal journal;
+	
+	/**
+	 * Creates a new scheduler.
+	 * 
+	 * @param client the client to enrol with.
+	 * @param threads the number of daemon threads used for polling.
+	 */
+	public PendingEnrolmentScheduler(Client client, int threads) {
+		if (client == null) {
+			throw new NullPointerException("Client should not be null");
+		}
+		this.client = client;
+		this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "scep-poll");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * Enrols the provided CSR, and polls for the certificate if the CA 
+	 * leaves the request pending.
+	 * <p>
+	 * The listener is notified on a polling thread, even if the CA 
+	 * responds to the initial request.
+	 * 
+	 * @param csr the certificate signing request.
+	 * @param listener the listener to notify of the outcome.
+	 * @return the enrolment transaction.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	public EnrolmentTransaction enrol(CertificationRequest csr, PendingEnrolmentListener listener) throws IOException {
+		final EnrolmentTransaction t = client.enrol(csr);
+		try {
+			t.send();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		PendingEnrolment record = null;
+		final PendingEnrolmentJournal j = journal;
+		if (j != null && t.getState() == State.CERT_REQ_PENDING) {
+			record = new PendingEnrolment(csr, client.getCaChain(true).getCa(), client.getIdentity());
+			j.add(record);
+		}
+		track(new Pending(t, listener, record, false));
+		
+		return t;
+	}
+	
+	/**
+	 * Resumes polling for the enrolments recorded in the journal.
+	 * <p>
+	 * Only enrolments signed with the identity of the client are resumed.
+	 * Each request is sent again with the same key, and so the same 
+	 * transaction ID, after the initial delay.
+	 * 
+	 * @param listener the listener to notify of the outcome.
+	 * @return the number of enrolments resumed.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	public int resume(PendingEnrolmentListener listener) throws IOException {
+		final PendingEnrolmentJournal j = journal;
+		if (j == null) {
+			throw new IllegalStateException("No journal has been set");
+		}
+		int resumed = 0;
+		for (PendingEnrolment record : j.getPending()) {
+			if (record.getIdentity().equals(client.getIdentity()) == false) {
+				LOGGER.fine("Not resuming enrolment " + record + " for another identity");
+				continue;
+			}
+			final EnrolmentTransaction t = client.enrol(record.getCertificationRequest());
+			track(new Pending(t, listener, record, true));
+			resumed++;
+		}
+		return resumed;
+	}
+	
+	/**
+	 * Sets the journal used to record pending enrolments.
+	 * 
+	 * @param journal the journal, or null to disable recording.
+	 */
+	public void setJournal(PendingEnrolmentJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Polls the provided transaction until it is no longer pending.
+	 * 
+	 * @param transaction the transaction which has been sent.
+	 * @param listener the listener to notify of the outcome.
+	 */
+	public void track(EnrolmentTransaction transaction, PendingEnrolmentListener listener) {
+		track(new Pending(transaction, listener, null, false));
+	}
+	
+	private void track(final Pending p) {
+		final EnrolmentTransaction transaction = p.transaction;
+		final Pending existing = pending.putIfAbsent(transaction, p);
+		if (existing != null && existing.addListener(p.listeners.get(0))) {
+			// Already being polled.
+			return;
+		}
+		if (existing != null) {
+			// The existing entry has just completed.
+			pending.put(transaction, p);
+		}
+		if (p.unsent || transaction.getState() == State.CERT_REQ_PENDING) {
+			schedule(p, 0);
+		} else {
+			// The CA has already responded, so notify straight away.
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						complete(p, null);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOGGER.fine("Scheduler has been shut down");
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of transactions being polled.
+	 * 
+	 * @return the number of pending transactions.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+	
+	/**
+	 * Sets the delay before the first poll.
+	 * 
+	 * @param delay the initial delay.
+	 * @param unit the unit of the delay.
+	 */
+	public void setInitialDelay(long delay, TimeUnit unit) {
+		initialDelay = unit.toMillis(delay);
+	}
+	
+	/**
+	 * Sets the greatest delay between polls.
+	 * 
+	 * @param delay the maximum delay.
+	 * @param unit the unit of the delay.
+	 */
+	public void setMaxDelay(long delay, TimeUnit unit) {
+		maxDelay = unit.toMillis(delay);
+	}
+	
+	/**
+	 * Sets the factor by which the delay grows after each poll.
+	 * 
+	 * @param multiplier the backoff multiplier, at least 1.
+	 */
+	public void setMultiplier(double multiplier) {
+		if (multiplier < 1) {
+			throw new IllegalArgumentException("Multiplier should be at least 1");
+		}
+		this.multiplier = multiplier;
+	}
+	
+	/**
+	 * Sets the fraction of each delay which is randomised.
+	 * <p>
+	 * Randomisation stops transactions created together from being 
+	 * polled together.
+	 * 
+	 * @param jitter the jitter, between 0 and 1.
+	 */
+	public void setJitter(double jitter) {
+		if (jitter < 0 || jitter > 1) {
+			throw new IllegalArgumentException("Jitter should be between 0 and 1");
+		}
+		this.jitter = jitter;
+	}
+	
+	/**
+	 * Sets the number of polls after which a transaction is abandoned.
+	 * 
+	 * @param maxAttempts the maximum number of polls.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+	
+	/**
+	 * Stops polling.  Pending transactions are not notified.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		pending.clear();
+	}
+	
+	/**
+	 * Returns the delay before the given poll.
+	 * 
+	 * @param attempt the number of polls already made.
+	 * @param random a random number between 0 and 1.
+	 * @return the delay, in milliseconds.
+	 */
+	long getDelay(int attempt, double random) {
+		final double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt));
+		
+		return (long) (delay * (1 - jitter * random));
+	}
+	
+	private void schedule(final Pending p, int attempt) {
+		final double r;
+		synchronized (random) {
+			r = random.nextDouble();
+		}
+		try {
+			executor.schedule(new Runnable() {
+				public void run() {
+					poll(p);
+				}
+			}, getDelay(attempt, r), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			LOGGER.fine("Scheduler has been shut down");
+		}
+	}
+	
+	private void poll(Pending p) {
+		final EnrolmentTransaction t = p.transaction;
+		final int attempt = ++p.attempts;
+		try {
+			if (p.unsent) {
+				LOGGER.finer("Resending resumed transaction");
+				t.send();
+				p.unsent = false;
+			} else if (t.getState() == State.CERT_REQ_PENDING) {
+				LOGGER.finer("Polling pending transaction, attempt " + attempt);
+				t.poll();
+			}
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "Poll failed", e);
+			if (attempt >= maxAttempts) {
+				complete(p, e);
+			} else {
+				schedule(p, attempt);
+			}
+			return;
+		}
+		
+		if (t.getState() == State.CERT_REQ_PENDING) {
+			if (attempt >= maxAttempts) {
+				complete(p, new IOException("Certificate still pending after " + attempt + " polls"));
+			} else {
+				schedule(p, attempt);
+			}
+		} else {
+			complete(p, null);
+		}
+	}
+	
+	private void complete(Pending p, Throwable cause) {
+		pending.remove(p.transaction, p);
+		final PendingEnrolmentJournal j = journal;
+		if (j != null && p.record != null) {
+			try {
+				j.remove(p.record.getId());
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not record completion of " + p.record, e);
+			}
+		}
+		for (PendingEnrolmentListener listener : p.close()) {
+			try {
+				if (cause == null && p.transaction.getState() == State.CERT_ISSUED) {
+					listener.onIssued(p.transaction);
+				} else {
+					listener.onFailure(p.transaction, cause);
+				}
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Listener failed", e);
+			}
+		}
+	}
+	
+	private static final class Pending {
+		private final EnrolmentTransaction transaction;
+		private final PendingEnrolment record;
+		private final List<PendingEnrolmentListener> listeners = new ArrayList<PendingEnrolmentListener>(1);
+		private boolean closed;
+		// Only accessed by the thread polling this transaction.
+		private int attempts;
+		private boolean unsent;
+		
+		private Pending(EnrolmentTransaction transaction, PendingEnrolmentListener listener, PendingEnrolment record, boolean unsent) {
+			if (listener == null) {
+				throw new NullPointerException("Listener should not be null");
+			}
+			this.transaction = transaction;
+			this.listeners.add(listener);
+			this.record = record;
+			this.unsent = unsent;
+		}
+		
+		private synchronized boolean addListener(PendingEnrolmentListener listener) {
+			if (closed) {
+				return false;
+			}
+			return listeners.add(listener);
+		}
+		
+		private synchronized List<PendingEnrolmentListener> close() {
+			closed = true;
+			return listeners;
+		}
+	}
+}
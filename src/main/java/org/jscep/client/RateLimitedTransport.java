@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.jscep.request.Operation;
+import org.jscep.request.Request;
+import org.jscep.transport.Deadline;
+import org.jscep.transport.ForwardingTransport;
+import org.jscep.transport.Transport;
+
+/**
+ * This class takes a token from a {@link RateLimiter} before each request.
+ */
+final class RateLimitedTransport extends ForwardingTransport {
+	private final RateLimiter limiter;
+	private final String profile;
+	private final ClientMetrics metrics;
+	
+	RateLimitedTransport(URL url, Transport delegate, RateLimiter limiter, String profile, ClientMetrics metrics) {
+		super(url, delegate);
+		this.limiter = limiter;
+		this.profile = profile;
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public <T> T sendRequest(Request<T> msg) throws IOException {
+		final TokenBucket bucket = limiter.getBucket(getURL(), profile, msg.getOperation() == Operation.PKIOperation);
+		if (bucket != null) {
+			acquire(bucket);
+		}
+		return super.sendRequest(msg);
+	}
+	
+	private void acquire(TokenBucket bucket) throws IOException {
+		long wait;
+		while ((wait = bucket.tryAcquire(System.nanoTime())) > 0) {
+			final Deadline deadline = Deadline.current();
+			if (limiter.isBlocking() == false || (deadline != null && deadline.getRemaining(TimeUnit.NANOSECONDS) < wait)) {
+				metrics.recordRejection(getURL(), RequestRejectedException.Reason.RATE_LIMITED);
+				throw new RequestRejectedException(getURL(), RequestRejectedException.Reason.RATE_LIMITED);
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for " + getURL());
+			}
+		}
+	}
+}
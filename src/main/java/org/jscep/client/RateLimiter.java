@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This class limits the rate of requests sent to each CA.
+ * <p>
+ * Each CA URL and profile has two token buckets: one for the requests of 
+ * transactions (PKCSReq, GetCertInitial, GetCert and GetCRL) and one for 
+ * informational requests (GetCACaps, GetCACert and GetNextCACert).  A 
+ * single instance may be shared by many {@link Client} instances, in which 
+ * case clients for the same CA and profile share the same buckets.
+ * <p>
+ * When no token is available, a request either waits for one or fails 
+ * immediately with a {@link RequestRejectedException}.  A request never 
+ * waits beyond the {@link org.jscep.transport.Deadline} of its call.
+ * 
+ * @see Client#setRateLimiter(RateLimiter)
+ */
+public class RateLimiter {
+	private final ConcurrentMap<CacheKey, TokenBucket> transactional = new ConcurrentHashMap<CacheKey, TokenBucket>();
+	private final ConcurrentMap<CacheKey, TokenBucket> informational = new ConcurrentHashMap<CacheKey, TokenBucket>();
+	private final double transactionalRate;
+	private final double informationalRate;
+	private final int burst;
+	private final boolean blocking;
+	
+	/**
+	 * Creates a new RateLimiter.
+	 * 
+	 * @param transactionalRate the number of transaction requests per second 
+	 *        for each CA and profile, or 0 for no limit.
+	 * @param informationalRate the number of informational requests per 
+	 *        second for each CA and profile, or 0 for no limit.
+	 * @param burst the number of requests which may be sent at once after
+	 *        a quiet period.
+	 * @param blocking true to wait for a token, false to fail immediately.
+	 */
+	public RateLimiter(double transactionalRate, double informationalRate, int burst, boolean blocking) {
+		if (transactionalRate < 0 || informationalRate < 0) {
+			throw new IllegalArgumentException("Rate should not be negative");
+		}
+		if (burst < 1) {
+			throw new IllegalArgumentException("Burst should be at least 1");
+		}
+		this.transactionalRate = transactionalRate;
+		this.informationalRate = informationalRate;
+		this.burst = burst;
+		this.blocking = blocking;
+	}
+	
+	/**
+	 * Returns true if requests wait for a token.
+	 * 
+	 * @return true if blocking.
+	 */
+	public boolean isBlocking() {
+		return blocking;
+	}
+	
+	/**
+	 * Returns the bucket for the given CA, profile and kind of request.
+	 * 
+	 * @param url the URL of the CA.
+	 * @param profile the profile, or null.
+	 * @param transaction true for the requests of a transaction.
+	 * @return the bucket, or null if that kind of request is not limited.
+	 */
+	TokenBucket getBucket(URL url, String profile, boolean transaction) {
+		final double rate = transaction ? transactionalRate : informationalRate;
+		if (rate == 0) {
+			return null;
+		}
+		final ConcurrentMap<CacheKey, TokenBucket> buckets = transaction ? transactional : informational;
+		final CacheKey key = new CacheKey(url, profile);
+		TokenBucket bucket = buckets.get(key);
+		if (bucket == null) {
+			final TokenBucket created = new TokenBucket(rate, burst);
+			bucket = buckets.putIfAbsent(key, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		return bucket;
+	}
+}
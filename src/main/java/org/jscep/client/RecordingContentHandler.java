@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jscep.content.ScepContentHandler;
+
+/**
+ * This class keeps the raw content of a response before passing it to 
+ * another content handler.
+ * 
+ * @param <T> the type of the content.
+ */
+final class RecordingContentHandler<T> implements ScepContentHandler<T> {
+	private final ScepContentHandler<T> delegate;
+	private volatile byte[] content;
+	private volatile String mimeType;
+	private volatile T result;
+	
+	RecordingContentHandler(ScepContentHandler<T> delegate) {
+		this.delegate = delegate;
+	}
+	
+	public T getContent(InputStream in, String mimeType) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, n);
+		}
+		this.content = bytes.toByteArray();
+		this.mimeType = mimeType;
+		
+		result = delegate.getContent(new ByteArrayInputStream(content), mimeType);
+		
+		return result;
+	}
+	
+	/**
+	 * Returns the content as read by the other content handler.
+	 * 
+	 * @return the content, or null if no response has been read.
+	 */
+	T getResult() {
+		return result;
+	}
+	
+	byte[] getRecordedContent() {
+		return content;
+	}
+	
+	String getRecordedMimeType() {
+		return mimeType;
+	}
+}
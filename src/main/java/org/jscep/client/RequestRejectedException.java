@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * This exception is thrown when a request is refused by the client 
+ * itself, without being sent to the CA.
+ */
+public class RequestRejectedException extends IOException {
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * This enum represents the reasons a request may be rejected.
+	 */
+	public enum Reason {
+		/**
+		 * The circuit breaker for the endpoint is open.
+		 */
+		CIRCUIT_OPEN,
+		/**
+		 * The endpoint already has as many requests in progress as its 
+		 * concurrency limit allows.
+		 */
+		CONCURRENCY_LIMIT,
+		/**
+		 * The rate limit for the CA and profile has been reached.
+		 */
+		RATE_LIMITED
+	}
+	
+	private final URL endpoint;
+	private final Reason reason;
+	
+	/**
+	 * Creates a new RequestRejectedException.
+	 * 
+	 * @param endpoint the endpoint the request was for.
+	 * @param reason the reason for the rejection.
+	 */
+	public RequestRejectedException(URL endpoint, Reason reason) {
+		super("Request to " + endpoint + " rejected: " + reason);
+		this.endpoint = endpoint;
+		this.reason = reason;
+	}
+	
+	/**
+	 * Returns the endpoint the request was for.
+	 * 
+	 * @return the endpoint.
+	 */
+	public URL getEndpoint() {
+		return endpoint;
+	}
+	
+	/**
+	 * Returns the reason for the rejection.
+	 * 
+	 * @return the reason.
+	 */
+	public Reason getReason() {
+		return reason;
+	}
+}
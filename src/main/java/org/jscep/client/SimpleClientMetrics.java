@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.net.URL;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is an in-memory {@link ClientMetrics}, holding counters and 
+ * latency histograms which may be read at any time.
+ * <p>
+ * A single instance may be shared by many {@link Client} instances.
+ */
+public class SimpleClientMetrics implements ClientMetrics {
+	private final Map<ScepOperation, LatencyHistogram> latencies = new EnumMap<ScepOperation, LatencyHistogram>(ScepOperation.class);
+	private final Map<ScepOperation, AtomicLong> failures = new EnumMap<ScepOperation, AtomicLong>(ScepOperation.class);
+	private final Map<CacheType, AtomicLong> hits = new EnumMap<CacheType, AtomicLong>(CacheType.class);
+	private final Map<CacheType, AtomicLong> misses = new EnumMap<CacheType, AtomicLong>(CacheType.class);
+	private final Map<RequestRejectedException.Reason, AtomicLong> rejections = new EnumMap<RequestRejectedException.Reason, AtomicLong>(RequestRejectedException.Reason.class);
+	private final ConcurrentMap<String, Integer> limits = new ConcurrentHashMap<String, Integer>();
+	private final LatencyHistogram encode = new LatencyHistogram();
+	private final LatencyHistogram decode = new LatencyHistogram();
+	
+	/**
+	 * Creates a new SimpleClientMetrics instance.
+	 */
+	public SimpleClientMetrics() {
+		// The maps are fully populated here and never modified afterwards,
+		// so they are safe to read without locking.
+		for (ScepOperation op : ScepOperation.values()) {
+			latencies.put(op, new LatencyHistogram());
+			failures.put(op, new AtomicLong());
+		}
+		for (CacheType cache : CacheType.values()) {
+			hits.put(cache, new AtomicLong());
+			misses.put(cache, new AtomicLong());
+		}
+		for (RequestRejectedException.Reason reason : RequestRejectedException.Reason.values()) {
+			rejections.put(reason, new AtomicLong());
+		}
+	}
+	
+	public void recordRequest(ScepOperation operation, long nanos, boolean success) {
+		latencies.get(operation).record(nanos);
+		if (success == false) {
+			failures.get(operation).incrementAndGet();
+		}
+	}
+	
+	public void recordEncode(long nanos) {
+		encode.record(nanos);
+	}
+	
+	public void recordDecode(long nanos) {
+		decode.record(nanos);
+	}
+	
+	public void recordCacheHit(CacheType cache) {
+		hits.get(cache).incrementAndGet();
+	}
+	
+	public void recordCacheMiss(CacheType cache) {
+		misses.get(cache).incrementAndGet();
+	}
+	
+	public void recordRejection(URL endpoint, RequestRejectedException.Reason reason) {
+		rejections.get(reason).incrementAndGet();
+	}
+	
+	public void recordConcurrencyLimit(URL endpoint, int limit) {
+		limits.put(endpoint.toExternalForm(), limit);
+	}
+	
+	/**
+	 * Returns the number of requests sent for the given operation, 
+	 * including those which failed.
+	 * 
+	 * @param operation the operation.
+	 * @return the number of requests.
+	 */
+	public long getRequestCount(ScepOperation operation) {
+		return latencies.get(operation).getCount();
+	}
+	
+	/**
+	 * Returns the number of requests for the given operation which failed.
+	 * 
+	 * @param operation the operation.
+	 * @return the number of failed requests.
+	 */
+	public long getFailureCount(ScepOperation operation) {
+		return failures.get(operation).get();
+	}
+	
+	/**
+	 * Returns the network latency of requests for the given operation.
+	 * 
+	 * @param operation the operation.
+	 * @return the latency histogram.
+	 */
+	public LatencyHistogram getRequestLatency(ScepOperation operation) {
+		return latencies.get(operation);
+	}
+	
+	/**
+	 * Returns the time spent signing and encrypting messages.
+	 * 
+	 * @return the latency histogram.
+	 */
+	public LatencyHistogram getEncodeLatency() {
+		return encode;
+	}
+	
+	/**
+	 * Returns the time spent verifying and decrypting messages.
+	 * 
+	 * @return the latency histogram.
+	 */
+	public LatencyHistogram getDecodeLatency() {
+		return decode;
+	}
+	
+	/**
+	 * Returns the number of lookups answered by the given cache.
+	 * 
+	 * @param cache the cache.
+	 * @return the number of hits.
+	 */
+	public long getCacheHits(CacheType cache) {
+		return hits.get(cache).get();
+	}
+	
+	/**
+	 * Returns the number of lookups not answered by the given cache.
+	 * 
+	 * @param cache the cache.
+	 * @return the number of misses.
+	 */
+	public long getCacheMisses(CacheType cache) {
+		return misses.get(cache).get();
+	}
+	
+	/**
+	 * Returns the number of requests rejected for the given reason.
+	 * 
+	 * @param reason the reason.
+	 * @return the number of rejections.
+	 */
+	public long getRejectionCount(RequestRejectedException.Reason reason) {
+		return rejections.get(reason).get();
+	}
+	
+	/**
+	 * Returns the most recently recorded concurrency limit of an endpoint.
+	 * 
+	 * @param endpoint the endpoint.
+	 * @return the limit, or -1 if none has been recorded.
+	 */
+	public int getConcurrencyLimit(URL endpoint) {
+		final Integer limit = limits.get(endpoint.toExternalForm());
+		
+		return limit == null ? -1 : limit.intValue();
+	}
+}
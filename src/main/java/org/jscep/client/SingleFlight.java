@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jscep.transport.Deadline;
+
+/**
+ * This class coalesces concurrent calls for the same key.
+ * <p>
+ * The first caller for a key performs the call on its own thread.  Any 
+ * caller arriving while it is in progress waits for it, and receives the 
+ * same result or the same exception, instead of making a call of its own.
+ * A waiting caller gives up when its own {@link Deadline} expires.
+ * 
+ * @param <K> the type of the key.
+ * @param <V> the type of the result.
+ */
+final class SingleFlight<K, V> {
+	private final ConcurrentMap<K, Call<V>> calls = new ConcurrentHashMap<K, Call<V>>();
+	
+	/**
+	 * This interface performs the call being coalesced.
+	 * 
+	 * @param <V> the type of the result.
+	 */
+	interface Loader<V> {
+		V load() throws IOException;
+	}
+	
+	/**
+	 * Performs the call for the given key, or waits for the call already in 
+	 * progress.
+	 * 
+	 * @param key the key.
+	 * @param loader the call to perform.
+	 * @return the result.
+	 * @throws IOException if the call failed.
+	 */
+	V execute(K key, Loader<V> loader) throws IOException {
+		final Call<V> call = new Call<V>();
+		final Call<V> current = calls.putIfAbsent(key, call);
+		if (current != null) {
+			return current.await(key);
+		}
+		Throwable failure = null;
+		V value = null;
+		try {
+			value = loader.load();
+			return value;
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		} catch (Error e) {
+			failure = e;
+			throw e;
+		} finally {
+			call.complete(value, failure);
+			calls.remove(key, call);
+		}
+	}
+	
+	/**
+	 * Returns the number of calls in progress.
+	 * 
+	 * @return the number of calls.
+	 */
+	int size() {
+		return calls.size();
+	}
+	
+	private static final class Call<V> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private V value;
+		private Throwable failure;
+		
+		void complete(V value, Throwable failure) {
+			this.value = value;
+			this.failure = failure;
+			// Publishes the fields to every waiting thread.
+			done.countDown();
+		}
+		
+		V await(Object key) throws IOException {
+			final Deadline deadline = Deadline.current();
+			try {
+				if (deadline == null) {
+					done.await();
+				} else if (done.await(deadline.getRemaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS) == false) {
+					throw new SocketTimeoutException("Timed out waiting for " + key);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for " + key);
+			}
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			return value;
+		}
+	}
+}
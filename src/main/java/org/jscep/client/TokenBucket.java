@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a lock-free token bucket.
+ * <p>
+ * Rather than counting tokens, the bucket holds the time at which it will 
+ * next be full, so that taking a token is a single compare-and-set.  A 
+ * token may be taken while that time is no more than <code>burst - 1</code> 
+ * intervals ahead of now.
+ */
+final class TokenBucket {
+	private final long interval;
+	private final long tolerance;
+	private final AtomicLong full;
+	
+	/**
+	 * Creates a new, full, token bucket.
+	 * 
+	 * @param perSecond the rate at which tokens are added.
+	 * @param burst the capacity of the bucket.
+	 */
+	TokenBucket(double perSecond, int burst) {
+		if (perSecond <= 0) {
+			throw new IllegalArgumentException("Rate should be positive");
+		}
+		if (burst < 1) {
+			throw new IllegalArgumentException("Burst should be at least 1");
+		}
+		this.interval = Math.max(1, (long) (1000000000L / perSecond));
+		this.tolerance = interval * (burst - 1);
+		this.full = new AtomicLong(System.nanoTime());
+	}
+	
+	/**
+	 * Takes a token, if one is available.
+	 * 
+	 * @param now the current value of {@link System#nanoTime()}.
+	 * @return 0 if a token was taken, otherwise the time in nanoseconds 
+	 *         until one will be available.
+	 */
+	long tryAcquire(long now) {
+		while (true) {
+			final long current = full.get();
+			final long wait = current - now - tolerance;
+			if (wait > 0) {
+				return wait;
+			}
+			final long next = (current - now > 0 ? current : now) + interval;
+			if (full.compareAndSet(current, next)) {
+				return 0;
+			}
+		}
+	}
+}
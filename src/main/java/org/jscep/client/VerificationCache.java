@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class remembers the CA certificates which have been verified, by 
+ * their SHA-256 fingerprints.
+ * <p>
+ * A single instance may be shared by many {@link Client} instances, so 
+ * that each CA certificate is only verified once.  The cache holds a 
+ * bounded number of fingerprints, discarding the least recently used.
+ * <p>
+ * If a pin file is used, each verified fingerprint is also appended to it, 
+ * one per line, and fingerprints in the file are trusted without 
+ * verification, even after a restart or once discarded from memory.  A pin 
+ * file may be written by hand, and fingerprints may be removed from it to 
+ * revoke trust, which takes effect when the file is next loaded.
+ * 
+ * @see Client#setVerificationCache(VerificationCache)
+ */
+public class VerificationCache {
+	private static Logger LOGGER = LoggingUtil.getLogger(VerificationCache.class);
+	/**
+	 * The default maximum number of fingerprints held in memory.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 64;
+	private static final String CHARSET = "US-ASCII";
+	// Guarded by itself.
+	private final Map<String, Boolean> fingerprints;
+	private final File pinFile;
+	
+	/**
+	 * Creates a new in-memory cache with the default maximum size.
+	 */
+	public VerificationCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+	
+	/**
+	 * Creates a new in-memory cache.
+	 * 
+	 * @param maxEntries the maximum number of fingerprints held.
+	 */
+	public VerificationCache(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("Maximum entries should be at least 1");
+		}
+		this.fingerprints = new LruMap(maxEntries);
+		this.pinFile = null;
+	}
+	
+	/**
+	 * Creates a new cache backed by a pin file, loading any fingerprints 
+	 * already pinned in it.
+	 * 
+	 * @param maxEntries the maximum number of fingerprints held in memory.
+	 * @param pinFile the pin file, which is created if necessary.
+	 * @throws IOException if the pin file cannot be read.
+	 */
+	public VerificationCache(int maxEntries, File pinFile) throws IOException {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("Maximum entries should be at least 1");
+		}
+		if (pinFile == null) {
+			throw new NullPointerException("Pin file should not be null");
+		}
+		this.fingerprints = new LruMap(maxEntries);
+		this.pinFile = pinFile;
+		if (pinFile.exists()) {
+			load(null);
+		}
+	}
+	
+	/**
+	 * Returns true if the CA certificate with the given fingerprint has been
+	 * verified.
+	 * 
+	 * @param fingerprint the SHA-256 fingerprint, in lower case hexadecimal.
+	 * @return true if verified.
+	 * @throws IOException if the pin file cannot be read.
+	 */
+	public boolean isVerified(String fingerprint) throws IOException {
+		synchronized (fingerprints) {
+			if (fingerprints.get(fingerprint) != null) {
+				return true;
+			}
+		}
+		// It may have been pinned by another JVM, or discarded from memory.
+		return pinFile != null && pinFile.exists() && load(fingerprint);
+	}
+	
+	/**
+	 * Records that the CA certificate with the given fingerprint has been 
+	 * verified, pinning it if this cache has a pin file.
+	 * 
+	 * @param fingerprint the SHA-256 fingerprint, in lower case hexadecimal.
+	 * @throws IOException if the pin file cannot be written.
+	 */
+	public void addVerified(String fingerprint) throws IOException {
+		if (isFingerprint(fingerprint) == false) {
+			throw new IllegalArgumentException("Invalid fingerprint: " + fingerprint);
+		}
+		synchronized (fingerprints) {
+			if (fingerprints.put(fingerprint, Boolean.TRUE) != null) {
+				return;
+			}
+		}
+		if (pinFile != null) {
+			pin(fingerprint);
+		}
+	}
+	
+	/**
+	 * Forgets every fingerprint held in memory.  The pin file is not 
+	 * changed.
+	 */
+	public void clear() {
+		synchronized (fingerprints) {
+			fingerprints.clear();
+		}
+	}
+	
+	private synchronized boolean load(String wanted) throws IOException {
+		boolean found = false;
+		final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(pinFile), CHARSET));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				if (isFingerprint(line) == false) {
+					LOGGER.warning("Ignoring invalid pin " + line + " in " + pinFile);
+					continue;
+				}
+				if (wanted == null || wanted.equals(line)) {
+					synchronized (fingerprints) {
+						fingerprints.put(line, Boolean.TRUE);
+					}
+					found = true;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return found;
+	}
+	
+	private synchronized void pin(String fingerprint) throws IOException {
+		final FileOutputStream fos = new FileOutputStream(pinFile, true);
+		try {
+			// Several JVMs may pin at the same time.
+			fos.getChannel().lock();
+			final Writer out = new OutputStreamWriter(fos, CHARSET);
+			out.write(fingerprint + "\n");
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			// Closing the stream releases the lock.
+			fos.close();
+		}
+	}
+	
+	private static boolean isFingerprint(String s) {
+		return s != null && s.matches("^[0-9a-f]{64}$");
+	}
+	
+	private static final class LruMap extends LinkedHashMap<String, Boolean> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+		
+		private LruMap(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > maxEntries;
+		}
+	}
+}
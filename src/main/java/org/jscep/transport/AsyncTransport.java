@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.util.concurrent.Executor;
+
+import org.jscep.request.Request;
+
+/**
+ * This interface is implemented by transports which can send a request 
+ * without a thread waiting for its response.
+ * <p>
+ * Transports created by {@link NioTransportFactory} implement this 
+ * interface, unless the URL is reached through a proxy.
+ */
+public interface AsyncTransport {
+	/**
+	 * Sends the provided request, without waiting for the response.
+	 * <p>
+	 * The {@link Deadline} of the calling thread, if any, bounds the 
+	 * exchange.  Once the response has arrived, it is parsed by the 
+	 * request's content handler and the callback is notified, both on a 
+	 * thread of the given executor.  If the executor rejects the task, the 
+	 * callback is notified of the rejection on the thread which completed 
+	 * the exchange.
+	 * 
+	 * @param <T> the response type.
+	 * @param msg the message to send.
+	 * @param executor the executor to parse the response and notify the callback with.
+	 * @param callback the callback.
+	 */
+	<T> void sendRequest(Request<T> msg, Executor executor, ResponseCallback<? super T> callback);
+}
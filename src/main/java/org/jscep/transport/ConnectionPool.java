@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This class holds persistent connections, keyed by scheme, host and port.
+ * <p>
+ * The number of connections to each host, whether idle or in use, is 
+ * bounded.  A request which finds every connection in use waits for one 
+ * to be released.
+ * <p>
+ * A GET which fails on a reused connection before any of the response 
+ * has been read is sent once more on a new connection.  Other requests 
+ * are never sent twice.
+ */
+final class ConnectionPool {
+	private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+	private final AtomicLong opened = new AtomicLong();
+	private final int maxConnections;
+	private final long idleTimeout;
+	private final SSLSocketFactory sslFactory;
+	private final HostnameVerifier verifier;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private volatile boolean closed;
+	
+	ConnectionPool(int maxConnections, long idleTimeout, SSLSocketFactory sslFactory, HostnameVerifier verifier, int connectTimeout, int readTimeout) {
+		this.maxConnections = maxConnections;
+		this.idleTimeout = idleTimeout;
+		this.sslFactory = sslFactory;
+		this.verifier = verifier;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+	
+	/**
+	 * Sends a request on a pooled connection.
+	 * 
+	 * @param url the URL of the server.
+	 * @param method the HTTP method.
+	 * @param target the path and query of the request.
+	 * @param body the request body, or null.
+	 * @return the response.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	HttpResponse execute(URL url, String method, String target, byte[] body) throws IOException {
+		if (closed) {
+			throw new IOException("Connection pool is closed");
+		}
+		final Host host = getHost(url);
+		final Deadline deadline = Deadline.current();
+		try {
+			if (deadline == null) {
+				host.permits.acquire();
+			} else if (host.permits.tryAcquire(deadline.getRemaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS) == false) {
+				throw new SocketTimeoutException("Timed out waiting for a connection to " + url);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a connection to " + url);
+		}
+		try {
+			final boolean idempotent = method.equals("GET");
+			HttpConnection conn = host.poll(System.nanoTime());
+			if (conn != null && idempotent == false && conn.isStale()) {
+				// A request which must not be sent twice cannot be retried,
+				// so it is never sent on a connection the server has closed.
+				conn.close();
+				conn = null;
+			}
+			final boolean reused = conn != null;
+			if (conn == null) {
+				conn = open(url);
+			}
+			HttpResponse response;
+			try {
+				response = conn.execute(method, target, body);
+			} catch (IOException e) {
+				final boolean received = conn.hasReceived();
+				conn.close();
+				if (reused == false || idempotent == false || received || e instanceof SocketTimeoutException) {
+					throw e;
+				}
+				// The server may have closed the connection while it was idle,
+				// so try once more on a new one.
+				conn = open(url);
+				try {
+					response = conn.execute(method, target, body);
+				} catch (IOException retry) {
+					conn.close();
+					throw retry;
+				}
+			}
+			if (response.isKeepAlive() && closed == false) {
+				host.offer(conn);
+			} else {
+				conn.close();
+			}
+			return response;
+		} finally {
+			host.permits.release();
+		}
+	}
+	
+	private HttpConnection open(URL url) throws IOException {
+		final HttpConnection conn = HttpConnection.open(url, sslFactory, verifier, connectTimeout, readTimeout);
+		opened.incrementAndGet();
+		
+		return conn;
+	}
+	
+	private Host getHost(URL url) {
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		final String key = url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+		Host host = hosts.get(key);
+		if (host == null) {
+			final Host created = new Host(maxConnections);
+			host = hosts.putIfAbsent(key, created);
+			if (host == null) {
+				host = created;
+			}
+		}
+		return host;
+	}
+	
+	/**
+	 * Closes every connection which has been idle for longer than the 
+	 * idle timeout.
+	 */
+	void evictIdle() {
+		final long now = System.nanoTime();
+		for (Host host : hosts.values()) {
+			for (HttpConnection conn : host.removeIdle(now)) {
+				conn.close();
+			}
+		}
+	}
+	
+	/**
+	 * Closes every idle connection, and every connection released after 
+	 * this call.
+	 */
+	void close() {
+		closed = true;
+		for (Host host : hosts.values()) {
+			for (HttpConnection conn : host.removeIdle(Long.MAX_VALUE)) {
+				conn.close();
+			}
+		}
+	}
+	
+	long getOpenedCount() {
+		return opened.get();
+	}
+	
+	int getIdleCount() {
+		int count = 0;
+		for (Host host : hosts.values()) {
+			count += host.size();
+		}
+		return count;
+	}
+	
+	private final class Host {
+		private final Semaphore permits;
+		// Most recently used first, so that older connections go idle.
+		private final Deque<HttpConnection> idle = new ArrayDeque<HttpConnection>();
+		
+		private Host(int maxConnections) {
+			permits = new Semaphore(maxConnections, true);
+		}
+		
+		private HttpConnection poll(long now) {
+			final List<HttpConnection> expired = new ArrayList<HttpConnection>(0);
+			HttpConnection conn;
+			synchronized (idle) {
+				while ((conn = idle.pollFirst()) != null && isExpired(conn, now)) {
+					expired.add(conn);
+				}
+			}
+			for (HttpConnection e : expired) {
+				e.close();
+			}
+			return conn;
+		}
+		
+		private void offer(HttpConnection conn) {
+			synchronized (idle) {
+				idle.offerFirst(conn);
+			}
+		}
+		
+		private List<HttpConnection> removeIdle(long now) {
+			final List<HttpConnection> removed = new ArrayList<HttpConnection>(0);
+			synchronized (idle) {
+				final Iterator<HttpConnection> it = idle.iterator();
+				while (it.hasNext()) {
+					final HttpConnection conn = it.next();
+					if (now == Long.MAX_VALUE || isExpired(conn, now)) {
+						it.remove();
+						removed.add(conn);
+					}
+				}
+			}
+			return removed;
+		}
+		
+		private int size() {
+			synchronized (idle) {
+				return idle.size();
+			}
+		}
+		
+		private boolean isExpired(HttpConnection conn, long now) {
+			return now - conn.getLastUsed() >= idleTimeout;
+		}
+	}
+}
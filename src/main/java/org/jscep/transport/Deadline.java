@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is the deadline of the call in progress on the current thread.
+ * <p>
+ * A deadline is attached to a thread for the duration of a call, and every 
+ * request sent by that thread through a transport from 
+ * {@link PooledTransportFactory} or {@link NioTransportFactory} is bounded 
+ * by it.  Deadlines nest: a call made within another call finishes no 
+ * later than the outer one, and each phase uses the shorter of the two 
+ * timeouts.
+ * <p>
+ * Transports from {@link StandardTransportFactory} do not honour deadlines.
+ */
+public final class Deadline {
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+	private final long connect;
+	private final long handshake;
+	private final long firstByte;
+	// Only meaningful if bounded is true.
+	private final long expiresAt;
+	private final boolean bounded;
+	
+	private Deadline(Timeouts timeouts, Deadline outer) {
+		final long now = System.nanoTime();
+		final long total = timeouts.getTotalTimeout(TimeUnit.NANOSECONDS);
+		long expiresAt = now + total;
+		boolean bounded = total > 0;
+		if (outer != null && outer.bounded && (bounded == false || outer.expiresAt - expiresAt < 0)) {
+			expiresAt = outer.expiresAt;
+			bounded = true;
+		}
+		this.expiresAt = expiresAt;
+		this.bounded = bounded;
+		this.connect = min(timeouts.getConnectTimeout(TimeUnit.NANOSECONDS), outer == null ? 0 : outer.connect);
+		this.handshake = min(timeouts.getHandshakeTimeout(TimeUnit.NANOSECONDS), outer == null ? 0 : outer.handshake);
+		this.firstByte = min(timeouts.getFirstByteTimeout(TimeUnit.NANOSECONDS), outer == null ? 0 : outer.firstByte);
+	}
+	
+	/**
+	 * Returns the deadline attached to the current thread.
+	 * 
+	 * @return the deadline, or null if there is none.
+	 */
+	public static Deadline current() {
+		return CURRENT.get();
+	}
+	
+	/**
+	 * Attaches a deadline built from the given timeouts to the current 
+	 * thread, nested within any deadline already attached.
+	 * <p>
+	 * The caller MUST pass the returned value to {@link #restore(Deadline)} 
+	 * once the call completes.
+	 * 
+	 * @param timeouts the timeouts of the call.
+	 * @return the deadline which was previously attached, or null.
+	 */
+	public static Deadline enter(Timeouts timeouts) {
+		final Deadline previous = CURRENT.get();
+		CURRENT.set(new Deadline(timeouts, previous));
+		
+		return previous;
+	}
+	
+	/**
+	 * Attaches the given deadline to the current thread, so that work 
+	 * handed to another thread remains bounded by the caller's deadline.
+	 * 
+	 * @param deadline the deadline, or null.
+	 * @return the deadline which was previously attached, or null.
+	 */
+	public static Deadline attach(Deadline deadline) {
+		final Deadline previous = CURRENT.get();
+		restore(deadline);
+		
+		return previous;
+	}
+	
+	/**
+	 * Restores the deadline returned by {@link #enter(Timeouts)} or 
+	 * {@link #attach(Deadline)}.
+	 * 
+	 * @param previous the previous deadline, or null.
+	 */
+	public static void restore(Deadline previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+	}
+	
+	/**
+	 * Returns the time remaining before this deadline expires.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the remaining time, or {@link Long#MAX_VALUE} if unbounded.
+	 */
+	public long getRemaining(TimeUnit unit) {
+		if (bounded == false) {
+			return Long.MAX_VALUE;
+		}
+		return unit.convert(expiresAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns true if this deadline has passed.
+	 * 
+	 * @return true if expired.
+	 */
+	public boolean isExpired() {
+		return bounded && expiresAt - System.nanoTime() <= 0;
+	}
+	
+	long getConnectTimeout() {
+		return connect;
+	}
+	
+	long getFirstByteTimeout() {
+		return firstByte;
+	}
+	
+	/**
+	 * Returns the socket connect timeout for the current thread.
+	 * 
+	 * @param configured the configured timeout in milliseconds, or 0.
+	 * @return the timeout in milliseconds, or 0 for none.
+	 * @throws SocketTimeoutException if the deadline has expired.
+	 */
+	static int getConnectMillis(int configured) throws SocketTimeoutException {
+		final Deadline d = CURRENT.get();
+		
+		return toMillis(d, d == null ? 0 : d.connect, configured);
+	}
+	
+	/**
+	 * Returns the TLS handshake timeout for the current thread.
+	 * 
+	 * @param configured the configured timeout in milliseconds, or 0.
+	 * @return the timeout in milliseconds, or 0 for none.
+	 * @throws SocketTimeoutException if the deadline has expired.
+	 */
+	static int getHandshakeMillis(int configured) throws SocketTimeoutException {
+		final Deadline d = CURRENT.get();
+		
+		return toMillis(d, d == null ? 0 : d.handshake, configured);
+	}
+	
+	/**
+	 * Returns the timeout for the first byte of a response for the current 
+	 * thread.
+	 * 
+	 * @param configured the configured timeout in milliseconds, or 0.
+	 * @return the timeout in milliseconds, or 0 for none.
+	 * @throws SocketTimeoutException if the deadline has expired.
+	 */
+	static int getFirstByteMillis(int configured) throws SocketTimeoutException {
+		final Deadline d = CURRENT.get();
+		
+		return toMillis(d, d == null ? 0 : d.firstByte, configured);
+	}
+	
+	/**
+	 * Returns the timeout for any other read for the current thread.
+	 * 
+	 * @param configured the configured timeout in milliseconds, or 0.
+	 * @return the timeout in milliseconds, or 0 for none.
+	 * @throws SocketTimeoutException if the deadline has expired.
+	 */
+	static int getReadMillis(int configured) throws SocketTimeoutException {
+		return toMillis(CURRENT.get(), 0, configured);
+	}
+	
+	private static int toMillis(Deadline d, long phase, int configured) throws SocketTimeoutException {
+		long nanos = min(phase, TimeUnit.MILLISECONDS.toNanos(configured));
+		if (d != null && d.bounded) {
+			final long remaining = d.expiresAt - System.nanoTime();
+			if (remaining <= 0) {
+				throw new SocketTimeoutException("Deadline expired");
+			}
+			nanos = min(nanos, remaining);
+		}
+		if (nanos == 0) {
+			return 0;
+		}
+		// Round up, so that a short timeout is never mistaken for none.
+		return (int) Math.min(Integer.MAX_VALUE, (nanos + 999999) / 1000000);
+	}
+	
+	private static long min(long a, long b) {
+		if (a == 0) {
+			return b;
+		}
+		if (b == 0) {
+			return a;
+		}
+		return Math.min(a, b);
+	}
+}
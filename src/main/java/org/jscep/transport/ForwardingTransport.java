@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.jscep.request.Request;
+
+/**
+ * This class is a transport which forwards every request to another 
+ * transport.
+ * <p>
+ * Subclasses override {@link #sendRequest(Request)} to add behaviour 
+ * around the delegate, such as measurement or admission control.
+ */
+public abstract class ForwardingTransport extends Transport {
+	private final Transport delegate;
+	
+	/**
+	 * Creates a new ForwardingTransport.
+	 * 
+	 * @param url the URL of the delegate.
+	 * @param delegate the transport to forward requests to.
+	 */
+	protected ForwardingTransport(URL url, Transport delegate) {
+		super(url);
+		this.delegate = delegate;
+	}
+	
+	/**
+	 * Returns the transport which requests are forwarded to.
+	 * 
+	 * @return the delegate.
+	 */
+	protected Transport getDelegate() {
+		return delegate;
+	}
+	
+	@Override
+	public <T> T sendRequest(Request<T> msg) throws IOException {
+		return delegate.sendRequest(msg);
+	}
+}
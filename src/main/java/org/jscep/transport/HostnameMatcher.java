@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * This class checks the identity of an HTTPS server, as described in 
+ * RFC 2818, section 3.1.
+ * <p>
+ * A host name is matched against the DNS names in the subjectAltName 
+ * extension of the server certificate, or against the most specific common 
+ * name of the subject if there are none.  A wildcard may only stand for the 
+ * whole of the left-most label.  An IP address is only matched against the 
+ * IP addresses in the subjectAltName extension.
+ */
+final class HostnameMatcher {
+	// GeneralName tags, as defined in RFC 5280
+	private static final int DNS_NAME = 2;
+	private static final int IP_ADDRESS = 7;
+	
+	private HostnameMatcher() {
+		// This class should not be instantiated.
+	}
+	
+	/**
+	 * Returns true if the given certificate identifies the given host.
+	 * 
+	 * @param host the host name or IP address from the URL.
+	 * @param cert the certificate of the server.
+	 * @return true if the host matches.
+	 */
+	static boolean matches(String host, X509Certificate cert) {
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		final Collection<List<?>> altNames;
+		try {
+			altNames = cert.getSubjectAlternativeNames();
+		} catch (CertificateParsingException e) {
+			return false;
+		}
+		if (isIpAddress(host)) {
+			return matchesIpAddress(host, altNames);
+		}
+		final String name = normalise(host);
+		final List<String> dnsNames = new ArrayList<String>();
+		if (altNames != null) {
+			for (List<?> altName : altNames) {
+				if (((Integer) altName.get(0)).intValue() == DNS_NAME) {
+					dnsNames.add((String) altName.get(1));
+				}
+			}
+		}
+		if (dnsNames.isEmpty()) {
+			final String cn = getCommonName(cert.getSubjectX500Principal());
+			
+			return cn != null && matchesDnsName(name, normalise(cn));
+		}
+		for (String dnsName : dnsNames) {
+			if (matchesDnsName(name, normalise(dnsName))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean matchesDnsName(String host, String pattern) {
+		if (pattern.startsWith("*.") == false) {
+			return host.equals(pattern);
+		}
+		final String suffix = pattern.substring(1);
+		// "*.com" would match far too much.
+		if (suffix.indexOf('.', 1) == -1) {
+			return false;
+		}
+		final int dot = host.indexOf('.');
+		
+		return dot > 0 && host.substring(dot).equals(suffix);
+	}
+	
+	private static boolean matchesIpAddress(String host, Collection<List<?>> altNames) {
+		if (altNames == null) {
+			return false;
+		}
+		try {
+			final InetAddress address = InetAddress.getByName(host);
+			for (List<?> altName : altNames) {
+				if (((Integer) altName.get(0)).intValue() == IP_ADDRESS) {
+					final String ip = (String) altName.get(1);
+					if (isIpAddress(ip) && address.equals(InetAddress.getByName(ip))) {
+						return true;
+					}
+				}
+			}
+		} catch (UnknownHostException e) {
+			// Only literal addresses are resolved, so this cannot happen.
+		}
+		return false;
+	}
+	
+	private static String getCommonName(X500Principal subject) {
+		try {
+			final List<Rdn> rdns = new LdapName(subject.getName(X500Principal.RFC2253)).getRdns();
+			// The list is ordered least specific first.
+			for (int i = rdns.size() - 1; i >= 0; i--) {
+				final Rdn rdn = rdns.get(i);
+				if (rdn.getType().equalsIgnoreCase("CN")) {
+					return rdn.getValue().toString();
+				}
+			}
+		} catch (InvalidNameException e) {
+			// Fall through.
+		}
+		return null;
+	}
+	
+	private static boolean isIpAddress(String host) {
+		if (host.indexOf(':') != -1) {
+			return true;
+		}
+		for (int i = 0; i < host.length(); i++) {
+			final char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9')) {
+				return false;
+			}
+		}
+		return host.length() > 0;
+	}
+	
+	private static String normalise(String name) {
+		final String lower = name.toLowerCase(Locale.ENGLISH);
+		
+		return lower.endsWith(".") ? lower.substring(0, lower.length() - 1) : lower;
+	}
+}
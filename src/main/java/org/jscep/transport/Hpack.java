@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This class encodes and decodes HTTP/2 header blocks, as described in 
+ * RFC 7541.
+ * <p>
+ * Headers are encoded as literals which are never added to the dynamic 
+ * table, so the encoder needs no state.  The decoder supports the whole 
+ * format, including Huffman coded strings.
+ */
+final class Hpack {
+	private static final String[][] STATIC_TABLE = {
+		{":authority", ""},
+		{":method", "GET"},
+		{":method", "POST"},
+		{":path", "/"},
+		{":path", "/index.html"},
+		{":scheme", "http"},
+		{":scheme", "https"},
+		{":status", "200"},
+		{":status", "204"},
+		{":status", "206"},
+		{":status", "304"},
+		{":status", "400"},
+		{":status", "404"},
+		{":status", "500"},
+		{"accept-charset", ""},
+		{"accept-encoding", "gzip, deflate"},
+		{"accept-language", ""},
+		{"accept-ranges", ""},
+		{"accept", ""},
+		{"access-control-allow-origin", ""},
+		{"age", ""},
+		{"allow", ""},
+		{"authorization", ""},
+		{"cache-control", ""},
+		{"content-disposition", ""},
+		{"content-encoding", ""},
+		{"content-language", ""},
+		{"content-length", ""},
+		{"content-location", ""},
+		{"content-range", ""},
+		{"content-type", ""},
+		{"cookie", ""},
+		{"date", ""},
+		{"etag", ""},
+		{"expect", ""},
+		{"expires", ""},
+		{"from", ""},
+		{"host", ""},
+		{"if-match", ""},
+		{"if-modified-since", ""},
+		{"if-none-match", ""},
+		{"if-range", ""},
+		{"if-unmodified-since", ""},
+		{"last-modified", ""},
+		{"link", ""},
+		{"location", ""},
+		{"max-forwards", ""},
+		{"proxy-authenticate", ""},
+		{"proxy-authorization", ""},
+		{"range", ""},
+		{"referer", ""},
+		{"refresh", ""},
+		{"retry-after", ""},
+		{"server", ""},
+		{"set-cookie", ""},
+		{"strict-transport-security", ""},
+		{"transfer-encoding", ""},
+		{"user-agent", ""},
+		{"vary", ""},
+		{"via", ""},
+		{"www-authenticate", ""}
+	};
+	// The Huffman code of each octet, and of EOS, from Appendix B.
+	private static final int[] CODES = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+		0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+		0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+		0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+		0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+		0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+		0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+		0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+		0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+		0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+		0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+		0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+		0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+		0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+		0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+		0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+		0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+		0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+		0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+		0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+		0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+		0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+		0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+		0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+		0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+		0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+		0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+		0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+		0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+		0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+		0x3fffffff
+	};
+	private static final byte[] LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+		30
+	};
+	private static final int EOS = 256;
+	// Each node of the decoding tree takes two entries, for a zero bit and 
+	// a one bit.  A positive entry is the index of the next node, and a 
+	// negative entry is the complement of a symbol.
+	private static final int[] TREE = buildTree();
+	// The size of an entry beyond the length of its name and value.
+	private static final int ENTRY_OVERHEAD = 32;
+	
+	private Hpack() {
+	}
+	
+	/**
+	 * Appends a header field to a header block.
+	 * <p>
+	 * Fields which match an entry of the static table are encoded as an 
+	 * index.  Other fields are encoded as literals, naming the static table 
+	 * entry if there is one.
+	 * 
+	 * @param out the header block.
+	 * @param name the lower case name of the field.
+	 * @param value the value of the field.
+	 * @throws IOException if the field cannot be encoded.
+	 */
+	static void encode(ByteArrayOutputStream out, String name, String value) throws IOException {
+		int nameIndex = 0;
+		for (int i = 0; i < STATIC_TABLE.length; i++) {
+			if (STATIC_TABLE[i][0].equals(name)) {
+				if (STATIC_TABLE[i][1].equals(value)) {
+					encodeInteger(out, 0x80, 7, i + 1);
+					return;
+				}
+				if (nameIndex == 0) {
+					nameIndex = i + 1;
+				}
+			}
+		}
+		// A literal field without indexing.
+		encodeInteger(out, 0x00, 4, nameIndex);
+		if (nameIndex == 0) {
+			encodeString(out, name);
+		}
+		encodeString(out, value);
+	}
+	
+	private static void encodeString(ByteArrayOutputStream out, String s) throws IOException {
+		final byte[] bytes = s.getBytes("ISO-8859-1");
+		encodeInteger(out, 0x00, 7, bytes.length);
+		out.write(bytes);
+	}
+	
+	private static void encodeInteger(ByteArrayOutputStream out, int first, int prefix, int value) {
+		final int max = (1 << prefix) - 1;
+		if (value < max) {
+			out.write(first | value);
+			return;
+		}
+		out.write(first | max);
+		value -= max;
+		while (value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	private static int[] buildTree() {
+		int[] tree = new int[2];
+		int nodes = 1;
+		for (int symbol = 0; symbol <= EOS; symbol++) {
+			int node = 0;
+			for (int bit = LENGTHS[symbol] - 1; bit >= 0; bit--) {
+				final int slot = node * 2 + ((CODES[symbol] >>> bit) & 1);
+				if (bit == 0) {
+					tree[slot] = ~symbol;
+				} else {
+					if (tree[slot] == 0) {
+						if (nodes * 2 == tree.length) {
+							final int[] larger = new int[tree.length * 2];
+							System.arraycopy(tree, 0, larger, 0, tree.length);
+							tree = larger;
+						}
+						tree[slot] = nodes++;
+					}
+					node = tree[slot];
+				}
+			}
+		}
+		return tree;
+	}
+	
+	/**
+	 * This class decodes the header blocks received on one connection.
+	 * <p>
+	 * The dynamic table is shared by every block, so blocks must be decoded 
+	 * in the order they were received, by a single thread.
+	 */
+	static final class Decoder {
+		// The most recently added entry first.
+		private final LinkedList<String[]> dynamicTable = new LinkedList<String[]>();
+		private final int maxTableSize;
+		private int tableSize;
+		private int capacity;
+		private byte[] block;
+		private int position;
+		
+		/**
+		 * Creates a new decoder.
+		 * 
+		 * @param maxTableSize the largest dynamic table the peer may use.
+		 */
+		Decoder(int maxTableSize) {
+			this.maxTableSize = maxTableSize;
+			this.capacity = maxTableSize;
+		}
+		
+		/**
+		 * Decodes a complete header block.
+		 * 
+		 * @param block the header block.
+		 * @return the name and value of each field, in order.
+		 * @throws IOException if the block is malformed.
+		 */
+		List<String[]> decode(byte[] block) throws IOException {
+			this.block = block;
+			this.position = 0;
+			final List<String[]> fields = new ArrayList<String[]>();
+			while (position < block.length) {
+				final int b = block[position] & 0xff;
+				if ((b & 0x80) != 0) {
+					// An indexed field.
+					fields.add(getEntry(decodeInteger(7)));
+				} else if ((b & 0xc0) == 0x40) {
+					// A literal field added to the dynamic table.
+					final String[] field = decodeLiteral(6);
+					add(field);
+					fields.add(field);
+				} else if ((b & 0xe0) == 0x20) {
+					final int size = decodeInteger(5);
+					if (size > maxTableSize) {
+						throw new IOException("Header table size " + size + " exceeds " + maxTableSize);
+					}
+					capacity = size;
+					evict();
+				} else {
+					// A literal field without indexing, or never indexed.
+					fields.add(decodeLiteral(4));
+				}
+			}
+			this.block = null;
+			
+			return fields;
+		}
+		
+		private String[] decodeLiteral(int prefix) throws IOException {
+			final int index = decodeInteger(prefix);
+			final String name = index == 0 ? decodeString() : getEntry(index)[0];
+			
+			return new String[] {name, decodeString()};
+		}
+		
+		private String[] getEntry(int index) throws IOException {
+			if (index >= 1 && index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1];
+			}
+			final int dynamic = index - STATIC_TABLE.length - 1;
+			if (index == 0 || dynamic >= dynamicTable.size()) {
+				throw new IOException("Invalid header table index: " + index);
+			}
+			return dynamicTable.get(dynamic);
+		}
+		
+		private void add(String[] field) {
+			dynamicTable.addFirst(field);
+			tableSize += field[0].length() + field[1].length() + ENTRY_OVERHEAD;
+			// An entry larger than the table empties it.
+			evict();
+		}
+		
+		private void evict() {
+			while (tableSize > capacity) {
+				final String[] evicted = dynamicTable.removeLast();
+				tableSize -= evicted[0].length() + evicted[1].length() + ENTRY_OVERHEAD;
+			}
+		}
+		
+		private int decodeInteger(int prefix) throws IOException {
+			final int max = (1 << prefix) - 1;
+			int value = next() & max;
+			if (value < max) {
+				return value;
+			}
+			int shift = 0;
+			int b;
+			do {
+				b = next();
+				if (shift > 21) {
+					throw new IOException("Header block integer overflow");
+				}
+				value += (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			
+			return value;
+		}
+		
+		private String decodeString() throws IOException {
+			if (position == block.length) {
+				throw new IOException("Truncated header block");
+			}
+			final boolean huffman = (block[position] & 0x80) != 0;
+			final int length = decodeInteger(7);
+			if (length > block.length - position) {
+				throw new IOException("Truncated header block");
+			}
+			final int start = position;
+			position += length;
+			if (huffman) {
+				return decodeHuffman(start, length);
+			}
+			return new String(block, start, length, "ISO-8859-1");
+		}
+		
+		private String decodeHuffman(int start, int length) throws IOException {
+			final StringBuilder s = new StringBuilder(length * 8 / 5);
+			int node = 0;
+			// The bits read since the last symbol, and whether all were ones.
+			int pending = 0;
+			boolean ones = true;
+			for (int i = start; i < start + length; i++) {
+				final int b = block[i] & 0xff;
+				for (int bit = 7; bit >= 0; bit--) {
+					final int one = (b >>> bit) & 1;
+					final int next = TREE[node * 2 + one];
+					pending++;
+					ones &= one == 1;
+					if (next < 0) {
+						if (~next == EOS) {
+							throw new IOException("Huffman coded string contains EOS");
+						}
+						s.append((char) ~next);
+						node = 0;
+						pending = 0;
+						ones = true;
+					} else {
+						node = next;
+					}
+				}
+			}
+			// Padding is the shortest prefix of EOS which fills the last octet.
+			if (pending > 7 || ones == false) {
+				throw new IOException("Invalid Huffman padding");
+			}
+			return s.toString();
+		}
+		
+		private int next() throws IOException {
+			if (position == block.length) {
+				throw new IOException("Truncated header block");
+			}
+			return block[position++] & 0xff;
+		}
+	}
+}
@@ -0,0 +1,797 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class is a cleartext HTTP/2 connection, started with prior 
+ * knowledge of the server's support as described in section 3.4 of 
+ * RFC 7540.
+ * <p>
+ * Every exchange has its own stream, and many streams share the 
+ * connection.  A thread which sends a request writes its frames itself 
+ * and then waits for the response, which is read by the single reader 
+ * thread of the connection.  Server push is disabled, and responses are 
+ * buffered whole.
+ * <p>
+ * Before sending a request, a stream must be reserved with 
+ * {@link #tryReserve()}, so that no more streams are opened than the 
+ * server allows.
+ */
+final class Http2Connection implements Runnable {
+	private static Logger LOGGER = LoggingUtil.getLogger(Http2Connection.class);
+	// The receive window of the connection and of every stream.
+	private static final int WINDOW = 16 * 1024 * 1024;
+	// The concurrent streams assumed until the server's settings arrive.
+	private static final int INITIAL_MAX_STREAMS = 100;
+	private final Socket socket;
+	private final InputStream in;
+	private final String authority;
+	private final Http2ConnectionPool pool;
+	// Guarded by writeLock, which is never taken while holding this.
+	private final Object writeLock = new Object();
+	private final OutputStream out;
+	// Guarded by this.
+	private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+	private int nextStreamId = 1;
+	private int reserved;
+	private int maxStreams = INITIAL_MAX_STREAMS;
+	private int initialWindow = Http2Frame.DEFAULT_WINDOW;
+	private int maxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+	private long sendWindow = Http2Frame.DEFAULT_WINDOW;
+	private boolean settingsReceived;
+	private boolean goingAway;
+	private IOException failure;
+	// Only accessed by the reader thread.
+	private final Hpack.Decoder decoder = new Hpack.Decoder(Http2Frame.DEFAULT_HEADER_TABLE_SIZE);
+	private int unacknowledged;
+	private ByteArrayOutputStream headerBlock;
+	private int headerStreamId;
+	private boolean headerEndStream;
+	
+	private Http2Connection(Socket socket, String authority, Http2ConnectionPool pool) throws IOException {
+		this.socket = socket;
+		this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+		this.authority = authority;
+		this.pool = pool;
+	}
+	
+	/**
+	 * Opens a connection and sends the connection preface.
+	 * 
+	 * @param url the URL of the server.
+	 * @param pool the pool to tell when streams become available.
+	 * @return the connection.
+	 * @throws IOException if the connection cannot be opened.
+	 */
+	static Http2Connection open(URL url, Http2ConnectionPool pool) throws IOException {
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		final Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(url.getHost(), port), Deadline.getConnectMillis(0));
+			final Http2Connection conn = new Http2Connection(socket, HttpTransport.getHostHeader(url), pool);
+			conn.start();
+			conn.awaitSettings();
+			
+			return conn;
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+				// Nothing more can be done.
+			}
+			throw e;
+		}
+	}
+	
+	private void start() throws IOException {
+		synchronized (writeLock) {
+			out.write(Http2Frame.PREFACE);
+			Http2Frame.writeSettings(out, Http2Frame.SETTINGS_ENABLE_PUSH, 0, Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE, WINDOW);
+			Http2Frame.writeInts(out, Http2Frame.WINDOW_UPDATE, 0, WINDOW - Http2Frame.DEFAULT_WINDOW);
+			out.flush();
+		}
+		final Thread reader = new Thread(this, "scep-h2-" + authority);
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	/**
+	 * Waits for the settings which the server sends first, so that its 
+	 * limit on concurrent streams is known before any are opened.
+	 */
+	private void awaitSettings() throws IOException {
+		final Deadline deadline = Deadline.current();
+		IOException cause = null;
+		synchronized (this) {
+			while (settingsReceived == false && failure == null) {
+				final long remaining = deadline == null ? 0 : deadline.getRemaining(TimeUnit.MILLISECONDS);
+				if (deadline != null && remaining <= 0) {
+					cause = new SocketTimeoutException("Timed out waiting for the settings of " + authority);
+					break;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					cause = new InterruptedIOException("Interrupted waiting for the settings of " + authority);
+					break;
+				}
+			}
+		}
+		if (cause != null) {
+			close(cause);
+		}
+		synchronized (this) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of streams which could be reserved now.
+	 * 
+	 * @return the number of streams, which is 0 once the connection is 
+	 * closed or closing.
+	 */
+	synchronized int getAvailableStreams() {
+		if (failure != null || goingAway) {
+			return 0;
+		}
+		return Math.max(0, maxStreams - reserved);
+	}
+	
+	/**
+	 * Reserves a stream for a request.
+	 * 
+	 * @return true if a stream was reserved, false otherwise.
+	 */
+	synchronized boolean tryReserve() {
+		if ((long) nextStreamId + 2L * reserved > Integer.MAX_VALUE) {
+			// Stream identifiers cannot be reused, so this connection is 
+			// finished.
+			goingAway = true;
+		}
+		if (getAvailableStreams() == 0) {
+			return false;
+		}
+		reserved++;
+		
+		return true;
+	}
+	
+	synchronized boolean isClosed() {
+		return failure != null;
+	}
+	
+	/**
+	 * Sends a request on a reserved stream and waits for the response.
+	 * <p>
+	 * The reservation is released whatever the outcome.
+	 * 
+	 * @param method the HTTP method.
+	 * @param target the path and query of the request.
+	 * @param body the request body, or null.
+	 * @return the response.
+	 * @throws RetryableException if the request may be sent again.
+	 * @throws IOException if any other I/O error occurs.
+	 */
+	HttpResponse execute(String method, String target, byte[] body) throws IOException {
+		final Deadline deadline = Deadline.current();
+		final ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+		Hpack.encode(block, ":method", method);
+		Hpack.encode(block, ":scheme", "http");
+		Hpack.encode(block, ":authority", authority);
+		Hpack.encode(block, ":path", target);
+		if (body != null) {
+			Hpack.encode(block, "content-type", "application/octet-stream");
+			Hpack.encode(block, "content-length", Integer.toString(body.length));
+		}
+		Stream stream = null;
+		try {
+			stream = open(block.toByteArray(), body == null, method.equals("GET"));
+			if (body != null) {
+				send(stream, body, deadline);
+			}
+			return stream.await(deadline);
+		} finally {
+			if (stream != null) {
+				cancel(stream);
+			}
+			release();
+		}
+	}
+	
+	private Stream open(byte[] block, boolean endStream, boolean idempotent) throws IOException {
+		synchronized (writeLock) {
+			final Stream stream;
+			final int frameSize;
+			synchronized (this) {
+				if (failure != null || goingAway) {
+					throw new RetryableException("Connection to " + authority + " is closing");
+				}
+				stream = new Stream(nextStreamId, initialWindow, idempotent);
+				// Streams must be opened in the order of their identifiers, 
+				// which is why this happens while holding the write lock.
+				nextStreamId += 2;
+				streams.put(stream.id, stream);
+				frameSize = maxFrameSize;
+			}
+			try {
+				int offset = 0;
+				do {
+					final int length = Math.min(frameSize, block.length - offset);
+					int flags = offset + length == block.length ? Http2Frame.FLAG_END_HEADERS : 0;
+					if (offset == 0 && endStream) {
+						flags |= Http2Frame.FLAG_END_STREAM;
+					}
+					Http2Frame.write(out, offset == 0 ? Http2Frame.HEADERS : Http2Frame.CONTINUATION, flags, stream.id, block, offset, length);
+					offset += length;
+				} while (offset < block.length);
+				out.flush();
+			} catch (IOException e) {
+				// The stream fails with the connection.
+				close(e);
+			}
+			return stream;
+		}
+	}
+	
+	private void send(Stream stream, byte[] body, Deadline deadline) throws IOException {
+		int offset = 0;
+		while (offset < body.length) {
+			final int length;
+			synchronized (this) {
+				while (failure == null && stream.isDone() == false && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+					final long remaining = deadline == null ? 0 : deadline.getRemaining(TimeUnit.MILLISECONDS);
+					if (deadline != null && remaining <= 0) {
+						throw new SocketTimeoutException("Deadline expired");
+					}
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for the flow control window of " + authority);
+					}
+				}
+				if (failure != null || stream.isDone()) {
+					// The outcome is reported by the stream.
+					return;
+				}
+				length = (int) Math.min(Math.min(body.length - offset, maxFrameSize), Math.min(sendWindow, stream.sendWindow));
+				sendWindow -= length;
+				stream.sendWindow -= length;
+			}
+			synchronized (writeLock) {
+				try {
+					Http2Frame.write(out, Http2Frame.DATA, offset + length == body.length ? Http2Frame.FLAG_END_STREAM : 0, stream.id, body, offset, length);
+					out.flush();
+				} catch (IOException e) {
+					close(e);
+					return;
+				}
+			}
+			offset += length;
+		}
+	}
+	
+	/**
+	 * Resets the given stream if it is still open.
+	 */
+	private void cancel(Stream stream) {
+		synchronized (this) {
+			if (streams.remove(stream.id) == null || failure != null) {
+				return;
+			}
+		}
+		try {
+			writeInts(Http2Frame.RST_STREAM, stream.id, Http2Frame.CANCEL);
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+	
+	private void release() {
+		final boolean finished;
+		synchronized (this) {
+			reserved--;
+			finished = goingAway && reserved == 0 && failure == null;
+		}
+		if (finished) {
+			close(new IOException("Connection to " + authority + " was closed by the server"));
+		}
+		pool.signal();
+	}
+	
+	/**
+	 * Closes this connection, failing every open stream.
+	 * 
+	 * @param cause the reason for closing.
+	 */
+	void close(IOException cause) {
+		final List<Stream> failed;
+		synchronized (this) {
+			if (failure != null) {
+				return;
+			}
+			failure = cause;
+			failed = new ArrayList<Stream>(streams.values());
+			streams.clear();
+			notifyAll();
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing more can be done.
+		}
+		for (Stream stream : failed) {
+			// A GET may be sent again if none of the response arrived.
+			if (stream.idempotent && stream.received == false && cause instanceof SocketTimeoutException == false) {
+				stream.fail(new RetryableException(cause.getMessage(), cause));
+			} else {
+				stream.fail(cause);
+			}
+		}
+		pool.signal();
+	}
+	
+	public void run() {
+		try {
+			while (isClosed() == false) {
+				handle(Http2Frame.read(in, Http2Frame.DEFAULT_MAX_FRAME_SIZE));
+			}
+		} catch (IOException e) {
+			close(e);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "HTTP/2 connection to " + authority + " failed", e);
+			final IOException cause = new IOException(e.getMessage());
+			cause.initCause(e);
+			close(cause);
+		}
+	}
+	
+	private void handle(Http2Frame frame) throws IOException {
+		if (headerBlock != null && (frame.getType() != Http2Frame.CONTINUATION || frame.getStreamId() != headerStreamId)) {
+			throw error(Http2Frame.PROTOCOL_ERROR, "Expected CONTINUATION of stream " + headerStreamId);
+		}
+		switch (frame.getType()) {
+		case Http2Frame.DATA:
+			onData(frame);
+			break;
+		case Http2Frame.HEADERS:
+			if (frame.getStreamId() == 0) {
+				throw error(Http2Frame.PROTOCOL_ERROR, "HEADERS on stream 0");
+			}
+			headerStreamId = frame.getStreamId();
+			headerEndStream = frame.hasFlag(Http2Frame.FLAG_END_STREAM);
+			headerBlock = new ByteArrayOutputStream();
+			headerBlock.write(frame.getFragment());
+			if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+				onHeaders();
+			}
+			break;
+		case Http2Frame.CONTINUATION:
+			if (headerBlock == null) {
+				throw error(Http2Frame.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+			}
+			headerBlock.write(frame.getPayload());
+			if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+				onHeaders();
+			}
+			break;
+		case Http2Frame.RST_STREAM:
+			if (frame.getPayload().length != 4) {
+				throw error(Http2Frame.FRAME_SIZE_ERROR, "Invalid RST_STREAM");
+			}
+			onReset(frame.getStreamId(), frame.getInt(0));
+			break;
+		case Http2Frame.SETTINGS:
+			onSettings(frame);
+			break;
+		case Http2Frame.PUSH_PROMISE:
+			throw error(Http2Frame.PROTOCOL_ERROR, "Server push is disabled");
+		case Http2Frame.PING:
+			if (frame.getPayload().length != 8) {
+				throw error(Http2Frame.FRAME_SIZE_ERROR, "Invalid PING");
+			}
+			if (frame.hasFlag(Http2Frame.FLAG_ACK) == false) {
+				synchronized (writeLock) {
+					Http2Frame.write(out, Http2Frame.PING, Http2Frame.FLAG_ACK, 0, frame.getPayload(), 0, 8);
+					out.flush();
+				}
+			}
+			break;
+		case Http2Frame.GOAWAY:
+			if (frame.getPayload().length < 8) {
+				throw error(Http2Frame.FRAME_SIZE_ERROR, "Invalid GOAWAY");
+			}
+			onGoAway(frame.getInt(0) & Integer.MAX_VALUE, frame.getInt(4));
+			break;
+		case Http2Frame.WINDOW_UPDATE:
+			if (frame.getPayload().length != 4) {
+				throw error(Http2Frame.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+			}
+			onWindowUpdate(frame.getStreamId(), frame.getInt(0) & Integer.MAX_VALUE);
+			break;
+		default:
+			// PRIORITY and unknown frames are ignored.
+		}
+	}
+	
+	private void onHeaders() throws IOException {
+		// The block is decoded even if the stream has been cancelled, to 
+		// keep the dynamic table in step with the server's.
+		final List<String[]> fields = decoder.decode(headerBlock.toByteArray());
+		headerBlock = null;
+		final Stream stream = getStream(headerStreamId);
+		if (stream == null) {
+			return;
+		}
+		if (stream.onHeaders(fields, headerEndStream)) {
+			finish(stream);
+		}
+	}
+	
+	private void onData(Http2Frame frame) throws IOException {
+		if (frame.getStreamId() == 0) {
+			throw error(Http2Frame.PROTOCOL_ERROR, "DATA on stream 0");
+		}
+		// Padding counts against the window too.
+		final int length = frame.getPayload().length;
+		unacknowledged += length;
+		if (unacknowledged >= WINDOW / 2) {
+			writeInts(Http2Frame.WINDOW_UPDATE, 0, unacknowledged);
+			unacknowledged = 0;
+		}
+		final Stream stream = getStream(frame.getStreamId());
+		if (stream == null) {
+			return;
+		}
+		final boolean endStream = frame.hasFlag(Http2Frame.FLAG_END_STREAM);
+		stream.body.write(frame.getFragment());
+		stream.received = true;
+		if (endStream) {
+			if (stream.complete()) {
+				finish(stream);
+			}
+			return;
+		}
+		stream.unacknowledged += length;
+		if (stream.unacknowledged >= WINDOW / 2) {
+			writeInts(Http2Frame.WINDOW_UPDATE, stream.id, stream.unacknowledged);
+			stream.unacknowledged = 0;
+		}
+	}
+	
+	private void onReset(int streamId, int errorCode) {
+		final Stream stream = getStream(streamId);
+		if (stream == null) {
+			return;
+		}
+		finish(stream);
+		if (errorCode == Http2Frame.REFUSED_STREAM) {
+			// The server did not process the request.
+			stream.fail(new RetryableException("Stream refused by " + authority));
+		} else {
+			stream.fail(new IOException("Stream reset by " + authority + " with error code " + errorCode));
+		}
+	}
+	
+	private void onSettings(Http2Frame frame) throws IOException {
+		final byte[] payload = frame.getPayload();
+		if (frame.hasFlag(Http2Frame.FLAG_ACK)) {
+			return;
+		}
+		if (frame.getStreamId() != 0 || payload.length % 6 != 0) {
+			throw error(Http2Frame.FRAME_SIZE_ERROR, "Invalid SETTINGS");
+		}
+		for (int i = 0; i < payload.length; i += 6) {
+			final int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+			final int value = frame.getInt(i + 2);
+			if (id == Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE && value < 0) {
+				throw error(Http2Frame.FLOW_CONTROL_ERROR, "Invalid initial window size");
+			}
+			if (id == Http2Frame.SETTINGS_MAX_FRAME_SIZE && (value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff)) {
+				throw error(Http2Frame.PROTOCOL_ERROR, "Invalid maximum frame size");
+			}
+		}
+		synchronized (this) {
+			for (int i = 0; i < payload.length; i += 6) {
+				final int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+				final int value = frame.getInt(i + 2);
+				if (id == Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS) {
+					// The value is unsigned.
+					maxStreams = value < 0 ? Integer.MAX_VALUE : value;
+				} else if (id == Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE) {
+					// Every open stream's window moves by the difference.
+					for (Stream stream : streams.values()) {
+						stream.sendWindow += value - initialWindow;
+					}
+					initialWindow = value;
+				} else if (id == Http2Frame.SETTINGS_MAX_FRAME_SIZE) {
+					maxFrameSize = value;
+				}
+			}
+			settingsReceived = true;
+			notifyAll();
+		}
+		synchronized (writeLock) {
+			Http2Frame.write(out, Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, payload, 0, 0);
+			out.flush();
+		}
+		pool.signal();
+	}
+	
+	private void onGoAway(int lastStreamId, int errorCode) {
+		final List<Stream> refused = new ArrayList<Stream>();
+		final boolean finished;
+		synchronized (this) {
+			goingAway = true;
+			final Iterator<Stream> it = streams.values().iterator();
+			while (it.hasNext()) {
+				final Stream stream = it.next();
+				if (stream.id > lastStreamId) {
+					it.remove();
+					refused.add(stream);
+				}
+			}
+			finished = reserved == 0;
+		}
+		if (errorCode != Http2Frame.NO_ERROR) {
+			LOGGER.warning("Server " + authority + " is going away with error code " + errorCode);
+		}
+		for (Stream stream : refused) {
+			// Streams after the last one are never processed.
+			stream.fail(new RetryableException("Server " + authority + " is going away"));
+		}
+		if (finished) {
+			close(new IOException("Connection to " + authority + " was closed by the server"));
+		}
+		pool.signal();
+	}
+	
+	private void onWindowUpdate(int streamId, int increment) throws IOException {
+		final boolean overflow;
+		synchronized (this) {
+			if (streamId == 0) {
+				overflow = increment == 0 || sendWindow + increment > Integer.MAX_VALUE;
+				if (overflow == false) {
+					sendWindow += increment;
+				}
+			} else {
+				overflow = false;
+				final Stream stream = streams.get(streamId);
+				if (stream != null) {
+					stream.sendWindow += increment;
+				}
+			}
+			notifyAll();
+		}
+		if (overflow) {
+			throw error(Http2Frame.FLOW_CONTROL_ERROR, "Invalid connection window update");
+		}
+	}
+	
+	private synchronized Stream getStream(int streamId) {
+		return streams.get(streamId);
+	}
+	
+	/**
+	 * Forgets a stream which has been closed by the server.
+	 */
+	private synchronized void finish(Stream stream) {
+		streams.remove(stream.id);
+		// A sender may be waiting for the window of this stream.
+		notifyAll();
+	}
+	
+	private void writeInts(int type, int streamId, int... values) throws IOException {
+		synchronized (writeLock) {
+			Http2Frame.writeInts(out, type, streamId, values);
+			out.flush();
+		}
+	}
+	
+	/**
+	 * Tells the server of a connection error, and returns an exception to 
+	 * close the connection with.
+	 */
+	private IOException error(int errorCode, String message) {
+		try {
+			writeInts(Http2Frame.GOAWAY, 0, 0, errorCode);
+		} catch (IOException e) {
+			// The connection is being closed anyway.
+		}
+		return new IOException("HTTP/2 error from " + authority + ": " + message);
+	}
+	
+	/**
+	 * This exception indicates that a request may safely be sent again, 
+	 * because the server did not process it, or because it is idempotent 
+	 * and none of the response arrived.
+	 */
+	static final class RetryableException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		RetryableException(String message) {
+			super(message);
+		}
+		
+		RetryableException(String message, Throwable cause) {
+			super(message);
+			initCause(cause);
+		}
+	}
+	
+	private static final class Stream {
+		private final int id;
+		private final boolean idempotent;
+		// Guarded by the connection.
+		private long sendWindow;
+		// Only accessed by the reader thread.
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private int unacknowledged;
+		private int status;
+		private String contentType;
+		private volatile boolean received;
+		// Guarded by this.
+		private boolean done;
+		private HttpResponse response;
+		private IOException failure;
+		
+		private Stream(int id, long sendWindow, boolean idempotent) {
+			this.id = id;
+			this.sendWindow = sendWindow;
+			this.idempotent = idempotent;
+		}
+		
+		/**
+		 * Reads a header block.
+		 * 
+		 * @return true if the stream is complete.
+		 */
+		private boolean onHeaders(List<String[]> fields, boolean endStream) {
+			received = true;
+			if (status == 0) {
+				int s = 0;
+				String type = null;
+				for (String[] field : fields) {
+					if (field[0].equals(":status")) {
+						try {
+							s = Integer.parseInt(field[1]);
+						} catch (NumberFormatException e) {
+							s = -1;
+						}
+					} else if (field[0].toLowerCase(Locale.ENGLISH).equals("content-type")) {
+						type = field[1];
+					}
+				}
+				if (s < 100 || s > 999) {
+					fail(new IOException("Invalid HTTP/2 response status"));
+					return true;
+				}
+				if (s < 200) {
+					// Skip interim responses.
+					return false;
+				}
+				status = s;
+				contentType = type;
+			}
+			// Later blocks are trailers, which are discarded.
+			return endStream && complete();
+		}
+		
+		private synchronized boolean complete() {
+			if (done) {
+				return false;
+			}
+			if (status == 0) {
+				failure = new IOException("HTTP/2 stream ended without a response");
+			} else {
+				response = new HttpResponse(status, "HTTP/2 " + status, contentType, body.toByteArray(), true);
+			}
+			done = true;
+			notifyAll();
+			
+			return true;
+		}
+		
+		private synchronized void fail(IOException e) {
+			if (done) {
+				return;
+			}
+			failure = e;
+			done = true;
+			notifyAll();
+		}
+		
+		private synchronized boolean isDone() {
+			return done;
+		}
+		
+		private HttpResponse await(Deadline deadline) throws IOException {
+			final long sentAt = System.nanoTime();
+			final long firstByte = deadline == null ? 0 : deadline.getFirstByteTimeout();
+			synchronized (this) {
+				while (done == false) {
+					long wait = deadline == null ? 0 : deadline.getRemaining(TimeUnit.NANOSECONDS);
+					if (deadline != null && wait <= 0) {
+						throw new SocketTimeoutException("Deadline expired");
+					}
+					if (firstByte > 0 && received == false) {
+						final long untilFirstByte = sentAt + firstByte - System.nanoTime();
+						if (untilFirstByte <= 0) {
+							throw new SocketTimeoutException("Timed out waiting for the first byte");
+						}
+						wait = wait == 0 ? untilFirstByte : Math.min(wait, untilFirstByte);
+					}
+					try {
+						// Round up, so that a short wait is never mistaken for none.
+						wait(wait == 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for stream " + id);
+					}
+				}
+				if (failure == null) {
+					return response;
+				}
+				// Wrap the failure, so that the stack trace shows the caller.
+				final IOException wrapped;
+				if (failure instanceof RetryableException) {
+					wrapped = new RetryableException(failure.getMessage(), failure);
+				} else {
+					wrapped = new IOException(failure.getMessage());
+					wrapped.initCause(failure);
+				}
+				throw wrapped;
+			}
+		}
+	}
+}
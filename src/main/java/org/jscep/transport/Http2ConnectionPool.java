@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds HTTP/2 connections, keyed by host and port.
+ * <p>
+ * A request takes a stream on the connection to its host with the most 
+ * streams available.  Another connection is only opened once every 
+ * connection has reached the server's limit on concurrent streams, and at 
+ * most <code>maxConnections</code> are open to each host.  A request 
+ * which finds no stream available waits for one, for no longer than the 
+ * current {@link Deadline} if there is one.
+ * <p>
+ * A request which the server did not process, because its stream was 
+ * refused or the server was going away, is sent once more.  So is a GET 
+ * which failed before any of the response arrived.  Other requests are 
+ * never sent twice.
+ */
+final class Http2ConnectionPool {
+	// Guarded by this.
+	private final Map<String, Host> hosts = new HashMap<String, Host>();
+	private final int maxConnections;
+	private boolean closed;
+	
+	Http2ConnectionPool(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+	
+	/**
+	 * Sends a request on a stream of a pooled connection.
+	 * 
+	 * @param url the URL of the server.
+	 * @param hostKey the host and port of the server.
+	 * @param method the HTTP method.
+	 * @param target the path and query of the request.
+	 * @param body the request body, or null.
+	 * @return the response.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	HttpResponse execute(URL url, String hostKey, String method, String target, byte[] body) throws IOException {
+		try {
+			return acquire(url, hostKey).execute(method, target, body);
+		} catch (Http2Connection.RetryableException e) {
+			return acquire(url, hostKey).execute(method, target, body);
+		}
+	}
+	
+	private Http2Connection acquire(URL url, String hostKey) throws IOException {
+		final Deadline deadline = Deadline.current();
+		Host host;
+		synchronized (this) {
+			while (true) {
+				if (closed) {
+					throw new IOException("Connection pool is closed");
+				}
+				host = hosts.get(hostKey);
+				if (host == null) {
+					host = new Host();
+					hosts.put(hostKey, host);
+				}
+				final Http2Connection conn = host.getLeastLoaded();
+				if (conn != null) {
+					if (conn.tryReserve()) {
+						return conn;
+					}
+					// The server's settings have just changed.
+					continue;
+				}
+				// Connections are opened one at a time, so that a burst of 
+				// requests does not open more than it needs.
+				if (host.opening == false && host.connections.size() < maxConnections) {
+					host.opening = true;
+					break;
+				}
+				final long remaining = deadline == null ? 0 : deadline.getRemaining(TimeUnit.MILLISECONDS);
+				if (deadline != null && remaining <= 0) {
+					throw new SocketTimeoutException("Timed out waiting for a stream to " + url);
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for a stream to " + url);
+				}
+			}
+		}
+		Http2Connection conn = null;
+		boolean discard = false;
+		boolean reserved = false;
+		try {
+			conn = Http2Connection.open(url, this);
+		} finally {
+			synchronized (this) {
+				host.opening = false;
+				if (conn != null) {
+					discard = closed;
+					if (discard == false) {
+						host.connections.add(conn);
+						reserved = conn.tryReserve();
+					}
+				}
+				notifyAll();
+			}
+		}
+		if (discard) {
+			conn.close(new IOException("Connection pool is closed"));
+			throw new IOException("Connection pool is closed");
+		}
+		if (reserved == false) {
+			// The server has already said it will take no more streams.
+			return acquire(url, hostKey);
+		}
+		return conn;
+	}
+	
+	/**
+	 * Wakes any request waiting for a stream, after a stream has been 
+	 * released or the state of a connection has changed.
+	 */
+	synchronized void signal() {
+		notifyAll();
+	}
+	
+	/**
+	 * Returns the number of open connections to every host.
+	 * 
+	 * @return the number of connections.
+	 */
+	synchronized int getConnectionCount() {
+		int count = 0;
+		for (Host host : hosts.values()) {
+			for (Http2Connection conn : host.connections) {
+				if (conn.isClosed() == false) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Closes every connection, failing any outstanding requests.
+	 */
+	void close() {
+		final List<Http2Connection> open = new ArrayList<Http2Connection>();
+		synchronized (this) {
+			closed = true;
+			for (Host host : hosts.values()) {
+				open.addAll(host.connections);
+				host.connections.clear();
+			}
+			notifyAll();
+		}
+		for (Http2Connection conn : open) {
+			conn.close(new IOException("Connection pool is closed"));
+		}
+	}
+	
+	private static final class Host {
+		private final List<Http2Connection> connections = new ArrayList<Http2Connection>();
+		private boolean opening;
+		
+		/**
+		 * Returns the connection with the most streams available, after 
+		 * forgetting those which have closed.
+		 * 
+		 * @return the connection, or null if none has a stream available.
+		 */
+		private Http2Connection getLeastLoaded() {
+			Http2Connection best = null;
+			int most = 0;
+			final Iterator<Http2Connection> it = connections.iterator();
+			while (it.hasNext()) {
+				final Http2Connection conn = it.next();
+				if (conn.isClosed()) {
+					it.remove();
+					continue;
+				}
+				final int available = conn.getAvailableStreams();
+				if (available > most) {
+					best = conn;
+					most = available;
+				}
+			}
+			return best;
+		}
+	}
+}
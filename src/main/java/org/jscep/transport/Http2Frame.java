@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class is an HTTP/2 frame, as described in RFC 7540.
+ */
+final class Http2Frame {
+	static final int DATA = 0x0;
+	static final int HEADERS = 0x1;
+	static final int RST_STREAM = 0x3;
+	static final int SETTINGS = 0x4;
+	static final int PUSH_PROMISE = 0x5;
+	static final int PING = 0x6;
+	static final int GOAWAY = 0x7;
+	static final int WINDOW_UPDATE = 0x8;
+	static final int CONTINUATION = 0x9;
+	
+	static final int FLAG_END_STREAM = 0x1;
+	static final int FLAG_ACK = 0x1;
+	static final int FLAG_END_HEADERS = 0x4;
+	static final int FLAG_PADDED = 0x8;
+	static final int FLAG_PRIORITY = 0x20;
+	
+	static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	static final int SETTINGS_ENABLE_PUSH = 0x2;
+	static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	
+	/**
+	 * The octets which begin every HTTP/2 connection.
+	 */
+	static final byte[] PREFACE = {
+		'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n', 
+		'\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+	};
+	/**
+	 * The initial flow control window and maximum frame size.
+	 */
+	static final int DEFAULT_WINDOW = 65535;
+	static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+	private static final int HEADER_LENGTH = 9;
+	private final int type;
+	private final int flags;
+	private final int streamId;
+	private final byte[] payload;
+	
+	Http2Frame(int type, int flags, int streamId, byte[] payload) {
+		this.type = type;
+		this.flags = flags;
+		this.streamId = streamId;
+		this.payload = payload;
+	}
+	
+	int getType() {
+		return type;
+	}
+	
+	boolean hasFlag(int flag) {
+		return (flags & flag) != 0;
+	}
+	
+	int getStreamId() {
+		return streamId;
+	}
+	
+	byte[] getPayload() {
+		return payload;
+	}
+	
+	/**
+	 * Returns the payload of a DATA or HEADERS frame without any padding 
+	 * or priority fields.
+	 * 
+	 * @return the data or header block fragment.
+	 * @throws IOException if the padding is invalid.
+	 */
+	byte[] getFragment() throws IOException {
+		int start = 0;
+		int padding = 0;
+		if (hasFlag(FLAG_PADDED)) {
+			if (payload.length == 0) {
+				throw new IOException("Missing HTTP/2 pad length");
+			}
+			padding = payload[0] & 0xff;
+			start = 1;
+		}
+		if (type == HEADERS && hasFlag(FLAG_PRIORITY)) {
+			start += 5;
+		}
+		final int length = payload.length - start - padding;
+		if (length < 0) {
+			throw new IOException("Invalid HTTP/2 padding");
+		}
+		final byte[] fragment = new byte[length];
+		System.arraycopy(payload, start, fragment, 0, length);
+		
+		return fragment;
+	}
+	
+	/**
+	 * Returns the 32-bit integer at the given offset of the payload.
+	 * 
+	 * @param offset the offset.
+	 * @return the integer.
+	 */
+	int getInt(int offset) {
+		return ((payload[offset] & 0xff) << 24) | ((payload[offset + 1] & 0xff) << 16) | ((payload[offset + 2] & 0xff) << 8) | (payload[offset + 3] & 0xff);
+	}
+	
+	/**
+	 * Reads the next frame.
+	 * 
+	 * @param in the stream to read from.
+	 * @param maxFrameSize the largest payload which may be received.
+	 * @return the frame.
+	 * @throws IOException if the frame cannot be read.
+	 */
+	static Http2Frame read(InputStream in, int maxFrameSize) throws IOException {
+		final byte[] header = new byte[HEADER_LENGTH];
+		if (readFully(in, header, true) == false) {
+			throw new EOFException("Connection closed by server");
+		}
+		final int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+		if (length > maxFrameSize) {
+			throw new IOException("HTTP/2 frame of " + length + " octets exceeds " + maxFrameSize);
+		}
+		final int streamId = (((header[5] & 0xff) << 24) | ((header[6] & 0xff) << 16) | ((header[7] & 0xff) << 8) | (header[8] & 0xff)) & Integer.MAX_VALUE;
+		final byte[] payload = new byte[length];
+		readFully(in, payload, false);
+		
+		return new Http2Frame(header[3] & 0xff, header[4] & 0xff, streamId, payload);
+	}
+	
+	/**
+	 * Writes a frame.
+	 * 
+	 * @param out the stream to write to.
+	 * @param type the frame type.
+	 * @param flags the frame flags.
+	 * @param streamId the stream, or 0 for the connection.
+	 * @param payload the buffer holding the payload.
+	 * @param offset the offset of the payload.
+	 * @param length the length of the payload.
+	 * @throws IOException if the frame cannot be written.
+	 */
+	static void write(OutputStream out, int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+		final byte[] header = new byte[HEADER_LENGTH];
+		header[0] = (byte) (length >>> 16);
+		header[1] = (byte) (length >>> 8);
+		header[2] = (byte) length;
+		header[3] = (byte) type;
+		header[4] = (byte) flags;
+		putInt(header, 5, streamId);
+		out.write(header);
+		out.write(payload, offset, length);
+	}
+	
+	/**
+	 * Writes a frame whose payload is a sequence of 32-bit integers, such as 
+	 * WINDOW_UPDATE, RST_STREAM or GOAWAY.
+	 * 
+	 * @param out the stream to write to.
+	 * @param type the frame type.
+	 * @param streamId the stream, or 0 for the connection.
+	 * @param values the integers.
+	 * @throws IOException if the frame cannot be written.
+	 */
+	static void writeInts(OutputStream out, int type, int streamId, int... values) throws IOException {
+		final byte[] payload = new byte[values.length * 4];
+		for (int i = 0; i < values.length; i++) {
+			putInt(payload, i * 4, values[i]);
+		}
+		write(out, type, 0, streamId, payload, 0, payload.length);
+	}
+	
+	/**
+	 * Writes a SETTINGS frame.
+	 * 
+	 * @param out the stream to write to.
+	 * @param settings pairs of setting identifier and value.
+	 * @throws IOException if the frame cannot be written.
+	 */
+	static void writeSettings(OutputStream out, int... settings) throws IOException {
+		final byte[] payload = new byte[settings.length / 2 * 6];
+		for (int i = 0; i < settings.length / 2; i++) {
+			payload[i * 6] = (byte) (settings[i * 2] >>> 8);
+			payload[i * 6 + 1] = (byte) settings[i * 2];
+			putInt(payload, i * 6 + 2, settings[i * 2 + 1]);
+		}
+		write(out, SETTINGS, 0, 0, payload, 0, payload.length);
+	}
+	
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+	
+	private static boolean readFully(InputStream in, byte[] b, boolean atStart) throws IOException {
+		int offset = 0;
+		while (offset < b.length) {
+			final int n = in.read(b, offset, b.length - offset);
+			if (n == -1) {
+				if (atStart && offset == 0) {
+					return false;
+				}
+				throw new EOFException("Connection closed in the middle of an HTTP/2 frame");
+			}
+			offset += n;
+		}
+		return true;
+	}
+}
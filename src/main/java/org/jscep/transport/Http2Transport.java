@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * This class is a transport which sends each request on its own stream of 
+ * a shared HTTP/2 connection.
+ */
+final class Http2Transport extends HttpTransport {
+	private final Http2ConnectionPool pool;
+	private final String hostKey;
+	
+	Http2Transport(Method method, URL url, Http2ConnectionPool pool, String hostKey) {
+		super(method, url);
+		this.pool = pool;
+		this.hostKey = hostKey;
+	}
+	
+	@Override
+	HttpResponse execute(String httpMethod, String target, byte[] body) throws IOException {
+		return pool.execute(getURL(), hostKey, httpMethod, target, body);
+	}
+	
+	@Override
+	public String toString() {
+		return getMethod() + " " + getURL() + " (h2c)";
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.net.URL;
+
+/**
+ * This class creates transports which multiplex requests over a small 
+ * number of HTTP/2 connections.
+ * <p>
+ * Each request is sent on its own stream, so many requests share one 
+ * socket.  A new connection to a host is only opened once every existing 
+ * connection has as many streams open as the server allows, and at most 
+ * {@link #setMaxConnectionsPerHost(int) maxConnectionsPerHost} are open.  
+ * A request which finds no stream available waits for one, for no longer 
+ * than the current {@link Deadline} if there is one.
+ * <p>
+ * Connections use cleartext HTTP/2 with prior knowledge, as described in 
+ * section 3.4 of RFC 7540, so the server must accept HTTP/2 on its HTTP 
+ * port.  HTTPS is not supported, as negotiating HTTP/2 over TLS needs ALPN.  
+ * If the JVM is configured to reach a URL through a proxy, transports for 
+ * that URL are created by {@link StandardTransportFactory} instead.  
+ * Connections stay open until the server closes them or {@link #close()} 
+ * is called.
+ */
+public class Http2TransportFactory implements TransportFactory {
+	/**
+	 * The default maximum number of connections to each host.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private Http2ConnectionPool pool;
+	
+	/**
+	 * Sets the maximum number of connections to each host.
+	 * 
+	 * @param max the maximum number of connections.
+	 */
+	public synchronized void setMaxConnectionsPerHost(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("Maximum connections should be at least 1");
+		}
+		if (pool != null) {
+			throw new IllegalStateException("Pool has already been created");
+		}
+		maxConnections = max;
+	}
+	
+	public Transport createTransport(Transport.Method method, URL url) {
+		if (url.getProtocol().equalsIgnoreCase("http") == false) {
+			throw new IllegalArgumentException("HTTP/2 transport only supports HTTP");
+		}
+		if (HttpTransport.isProxied(url)) {
+			return StandardTransportFactory.INSTANCE.createTransport(method, url);
+		}
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		
+		return new Http2Transport(method, url, getPool(), url.getHost().toLowerCase() + ":" + port);
+	}
+	
+	/**
+	 * Closes every connection.
+	 * <p>
+	 * Outstanding requests fail, as will transports created by this factory.
+	 */
+	public synchronized void close() {
+		if (pool != null) {
+			pool.close();
+		}
+	}
+	
+	synchronized Http2ConnectionPool getPool() {
+		if (pool == null) {
+			pool = new Http2ConnectionPool(maxConnections);
+		}
+		return pool;
+	}
+}
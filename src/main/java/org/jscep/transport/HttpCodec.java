@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * This class writes HTTP/1.1 requests and reads HTTP/1.1 responses.
+ * <p>
+ * Only what SCEP needs is supported: responses delimited by a content 
+ * length, chunked encoding or connection close.
+ */
+final class HttpCodec {
+	static final int MAX_LINE = 8192;
+	
+	private HttpCodec() {
+	}
+	
+	/**
+	 * Encodes a request.
+	 * 
+	 * @param method the HTTP method.
+	 * @param target the path and query of the request.
+	 * @param host the value of the Host header.
+	 * @param body the request body, or null.
+	 * @return the encoded request.
+	 * @throws IOException if the request cannot be encoded.
+	 */
+	static byte[] encodeRequest(String method, String target, String host, byte[] body) throws IOException {
+		final StringBuilder head = new StringBuilder(256);
+		head.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+		head.append("Host: ").append(host).append("\r\n");
+		head.append("Connection: keep-alive\r\n");
+		if (body != null) {
+			head.append("Content-Type: application/octet-stream\r\n");
+			head.append("Content-Length: ").append(body.length).append("\r\n");
+		}
+		head.append("\r\n");
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(head.length() + (body == null ? 0 : body.length));
+		out.write(head.toString().getBytes("ISO-8859-1"));
+		if (body != null) {
+			out.write(body);
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Reads a complete response.
+	 * <p>
+	 * If the stream ends before the response is complete, an 
+	 * {@link EOFException} is thrown.  A response delimited by connection 
+	 * close is only complete if <code>closed</code> is true.
+	 * 
+	 * @param in the stream to read from.
+	 * @param closed true if the end of the stream is the end of the connection.
+	 * @return the response.
+	 * @throws IOException if the response is incomplete or malformed.
+	 */
+	static HttpResponse readResponse(InputStream in, boolean closed) throws IOException {
+		String statusLine = readLine(in);
+		int status = parseStatus(statusLine);
+		while (status >= 100 && status < 200) {
+			// Skip interim responses.
+			while (readLine(in).length() > 0) {
+			}
+			statusLine = readLine(in);
+			status = parseStatus(statusLine);
+		}
+		boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+		String contentType = null;
+		long contentLength = -1;
+		boolean chunked = false;
+		
+		String line;
+		while ((line = readLine(in)).length() > 0) {
+			final int colon = line.indexOf(':');
+			if (colon == -1) {
+				continue;
+			}
+			final String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+			final String value = line.substring(colon + 1).trim();
+			if (name.equals("content-type")) {
+				contentType = value;
+			} else if (name.equals("content-length")) {
+				try {
+					contentLength = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid Content-Length: " + value);
+				}
+			} else if (name.equals("transfer-encoding")) {
+				chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+			} else if (name.equals("connection")) {
+				if (value.equalsIgnoreCase("close")) {
+					keepAlive = false;
+				} else if (value.equalsIgnoreCase("keep-alive")) {
+					keepAlive = true;
+				}
+			}
+		}
+		
+		final byte[] body;
+		if (status == 204 || status == 304) {
+			body = new byte[0];
+		} else if (chunked) {
+			body = readChunked(in);
+		} else if (contentLength >= 0) {
+			body = readFully(in, contentLength);
+		} else if (closed) {
+			// The body is delimited by the end of the connection.
+			body = readToEnd(in);
+			keepAlive = false;
+		} else {
+			throw new EOFException("Response is delimited by connection close");
+		}
+		
+		return new HttpResponse(status, statusLine, contentType, body, keepAlive);
+	}
+	
+	static int parseStatus(String statusLine) throws IOException {
+		final String[] parts = statusLine.split(" ", 3);
+		if (parts.length < 2 || parts[0].startsWith("HTTP/") == false) {
+			throw new IOException("Invalid HTTP status line: " + statusLine);
+		}
+		try {
+			return Integer.parseInt(parts[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid HTTP status line: " + statusLine);
+		}
+	}
+	
+	private static byte[] readChunked(InputStream in) throws IOException {
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		while (true) {
+			String size = readLine(in);
+			final int ext = size.indexOf(';');
+			if (ext != -1) {
+				size = size.substring(0, ext);
+			}
+			final long length;
+			try {
+				length = Long.parseLong(size.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + size);
+			}
+			if (length == 0) {
+				break;
+			}
+			buf.write(readFully(in, length));
+			readLine(in);
+		}
+		// Discard any trailers.
+		while (readLine(in).length() > 0) {
+		}
+		return buf.toByteArray();
+	}
+	
+	private static byte[] readFully(InputStream in, long length) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Response too large: " + length);
+		}
+		final byte[] data = new byte[(int) length];
+		int offset = 0;
+		while (offset < data.length) {
+			final int n = in.read(data, offset, data.length - offset);
+			if (n == -1) {
+				throw new EOFException("Connection closed after " + offset + " of " + length + " bytes");
+			}
+			offset += n;
+		}
+		return data;
+	}
+	
+	private static byte[] readToEnd(InputStream in) throws IOException {
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		final byte[] data = new byte[4096];
+		int n;
+		while ((n = in.read(data)) != -1) {
+			buf.write(data, 0, n);
+		}
+		return buf.toByteArray();
+	}
+	
+	private static String readLine(InputStream in) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				throw new EOFException("Connection closed by server");
+			}
+			if (line.length() == MAX_LINE) {
+				throw new IOException("HTTP header line too long");
+			}
+			line.append((char) b);
+		}
+		final int end = line.length() - 1;
+		if (end >= 0 && line.charAt(end) == '\r') {
+			line.setLength(end);
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This class is a persistent, blocking HTTP/1.1 connection to a single host.
+ * <p>
+ * One request is sent at a time.  Response bodies are read fully, so the 
+ * connection can be reused as soon as a request completes.
+ */
+final class HttpConnection {
+	private final Socket socket;
+	private final TimedInputStream timed;
+	private final InputStream in;
+	private final OutputStream out;
+	private final String host;
+	private volatile long lastUsed;
+	
+	private final int readTimeout;
+	
+	private HttpConnection(Socket socket, String host, int readTimeout) throws IOException {
+		this.socket = socket;
+		this.host = host;
+		this.readTimeout = readTimeout;
+		this.timed = new TimedInputStream(socket.getInputStream());
+		this.in = new BufferedInputStream(timed);
+		this.out = new BufferedOutputStream(socket.getOutputStream());
+		this.lastUsed = System.nanoTime();
+	}
+	
+	/**
+	 * Opens a new connection to the host of the given URL.
+	 * <p>
+	 * The timeouts are shortened to fit the {@link Deadline} of the current
+	 * thread, if any.
+	 * 
+	 * @param url the URL.
+	 * @param sslFactory the factory for HTTPS sockets.
+	 * @param verifier the verifier for HTTPS host names which do not match 
+	 * the server certificate.
+	 * @param connectTimeout the connect timeout in milliseconds, or 0 for none.
+	 * @param readTimeout the read timeout in milliseconds, or 0 for none.
+	 * @return the new connection.
+	 * @throws IOException if the connection cannot be established.
+	 */
+	static HttpConnection open(URL url, SSLSocketFactory sslFactory, HostnameVerifier verifier, int connectTimeout, int readTimeout) throws IOException {
+		final String hostName = url.getHost();
+		final boolean secure = url.getProtocol().equalsIgnoreCase("https");
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(hostName, port), Deadline.getConnectMillis(connectTimeout));
+			if (secure) {
+				socket.setSoTimeout(Deadline.getHandshakeMillis(readTimeout));
+				// Layering over a connected socket keeps the connect timeout, 
+				// and the host and port let the factory resume a cached session.
+				final SSLSocket ssl = (SSLSocket) sslFactory.createSocket(socket, hostName, port, true);
+				socket = ssl;
+				ssl.startHandshake();
+				// As with HttpsURLConnection, the verifier is only asked
+				// once the standard check has failed.
+				final SSLSession session = ssl.getSession();
+				if (matches(hostName, session) == false && verifier.verify(hostName, session) == false) {
+					throw new SSLException("Host name " + hostName + " does not match the server certificate");
+				}
+			}
+		} catch (IOException e) {
+			close(socket);
+			throw e;
+		}
+		return new HttpConnection(socket, HttpTransport.getHostHeader(url), readTimeout);
+	}
+	
+	private static boolean matches(String hostName, SSLSession session) throws SSLException {
+		final Certificate[] peer = session.getPeerCertificates();
+		if (peer.length == 0 || peer[0] instanceof X509Certificate == false) {
+			return false;
+		}
+		return HostnameMatcher.matches(hostName, (X509Certificate) peer[0]);
+	}
+	
+	/**
+	 * Sends a request and reads the complete response.
+	 * 
+	 * @param method the HTTP method.
+	 * @param target the path and query of the request.
+	 * @param body the request body, or null.
+	 * @return the response.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	HttpResponse execute(String method, String target, byte[] body) throws IOException {
+		// Fails fast if the deadline has already passed.
+		Deadline.getReadMillis(readTimeout);
+		timed.awaitFirstByte();
+		timed.received = false;
+		out.write(HttpCodec.encodeRequest(method, target, host, body));
+		out.flush();
+		
+		final HttpResponse response = HttpCodec.readResponse(in, true);
+		lastUsed = System.nanoTime();
+		
+		return response;
+	}
+	
+	/**
+	 * Returns whether any of the response to the last request was read.
+	 * 
+	 * @return true if a byte of the response was read, false otherwise.
+	 */
+	boolean hasReceived() {
+		return timed.received;
+	}
+	
+	/**
+	 * Returns whether the server has closed this idle connection, or sent 
+	 * something unexpected on it.
+	 * 
+	 * @return true if the connection cannot be used, false otherwise.
+	 */
+	boolean isStale() {
+		try {
+			if (in.available() > 0) {
+				return true;
+			}
+			socket.setSoTimeout(1);
+			timed.timeout = 1;
+			// Reads past the buffer, as the connection is closed on any data.
+			socket.getInputStream().read();
+			return true;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns when this connection last completed a request.
+	 * 
+	 * @return the time, as returned by {@link System#nanoTime()}.
+	 */
+	long getLastUsed() {
+		return lastUsed;
+	}
+	
+	void close() {
+		close(socket);
+	}
+	
+	/**
+	 * This class sets the socket timeout before each read, so that the 
+	 * first byte of a response, and the response as a whole, are bounded 
+	 * by the deadline of the current thread.
+	 */
+	private final class TimedInputStream extends FilterInputStream {
+		private boolean firstByte;
+		private boolean received;
+		private int timeout = -1;
+		
+		private TimedInputStream(InputStream in) {
+			super(in);
+		}
+		
+		private void awaitFirstByte() {
+			firstByte = true;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			setTimeout();
+			final int b = super.read();
+			firstByte = false;
+			received |= b != -1;
+			
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			setTimeout();
+			final int n = super.read(b, off, len);
+			firstByte = false;
+			received |= n > 0;
+			
+			return n;
+		}
+		
+		private void setTimeout() throws IOException {
+			final int t = firstByte ? Deadline.getFirstByteMillis(readTimeout) : Deadline.getReadMillis(readTimeout);
+			if (t != timeout) {
+				socket.setSoTimeout(t);
+				timeout = t;
+			}
+		}
+	}
+	
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing more can be done.
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+/**
+ * This class is a complete HTTP response.
+ */
+final class HttpResponse {
+	private final int status;
+	private final String statusLine;
+	private final String contentType;
+	private final byte[] body;
+	private final boolean keepAlive;
+	
+	HttpResponse(int status, String statusLine, String contentType, byte[] body, boolean keepAlive) {
+		this.status = status;
+		this.statusLine = statusLine;
+		this.contentType = contentType;
+		this.body = body;
+		this.keepAlive = keepAlive;
+	}
+	
+	int getStatus() {
+		return status;
+	}
+	
+	String getStatusLine() {
+		return statusLine;
+	}
+	
+	String getContentType() {
+		return contentType;
+	}
+	
+	byte[] getBody() {
+		return body;
+	}
+	
+	/**
+	 * Returns true if the connection may be used for another request.
+	 * 
+	 * @return true if the connection is persistent.
+	 */
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+}
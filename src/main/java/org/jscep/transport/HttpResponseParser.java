@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * This class reads an HTTP/1.1 response from bytes as they arrive.
+ * <p>
+ * The status line and headers are parsed once, after which only the 
+ * remaining length of the body or of the current chunk is tracked, so that 
+ * every byte is examined once however the response is split.  The same 
+ * framing as {@link HttpCodec} is supported.
+ */
+final class HttpResponseParser {
+	private static final int STATUS = 0;
+	private static final int HEADERS = 1;
+	private static final int BODY = 2;
+	private static final int CHUNK_SIZE = 3;
+	private static final int CHUNK_DATA = 4;
+	private static final int CHUNK_END = 5;
+	private static final int TRAILERS = 6;
+	private static final int UNTIL_CLOSE = 7;
+	private static final int DONE = 8;
+	private final StringBuilder line = new StringBuilder();
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private int state;
+	private boolean received;
+	private int status;
+	private String statusLine;
+	private String contentType;
+	private long contentLength;
+	private boolean chunked;
+	private boolean keepAlive;
+	private long remaining;
+	
+	HttpResponseParser() {
+		reset();
+	}
+	
+	/**
+	 * Prepares this parser for the next response.
+	 */
+	void reset() {
+		line.setLength(0);
+		body.reset();
+		state = STATUS;
+		received = false;
+		statusLine = null;
+		contentType = null;
+	}
+	
+	/**
+	 * Returns true if any of the response has been read.
+	 * 
+	 * @return true if a byte has been read since the last reset.
+	 */
+	boolean hasReceived() {
+		return received;
+	}
+	
+	/**
+	 * Reads the next bytes of the response.
+	 * <p>
+	 * Bytes which follow a complete response are unexpected, so the 
+	 * connection will not be kept alive.
+	 * 
+	 * @param data the buffer holding the bytes.
+	 * @param offset the offset of the first byte.
+	 * @param length the number of bytes.
+	 * @return true if the response is complete.
+	 * @throws IOException if the response is malformed.
+	 */
+	boolean feed(byte[] data, int offset, int length) throws IOException {
+		if (length > 0) {
+			received = true;
+		}
+		final int end = offset + length;
+		int i = offset;
+		while (i < end) {
+			switch (state) {
+			case BODY:
+			case CHUNK_DATA:
+				final int n = (int) Math.min(remaining, end - i);
+				body.write(data, i, n);
+				i += n;
+				remaining -= n;
+				if (remaining == 0) {
+					state = state == BODY ? DONE : CHUNK_END;
+				}
+				break;
+			case UNTIL_CLOSE:
+				body.write(data, i, end - i);
+				i = end;
+				break;
+			case DONE:
+				keepAlive = false;
+				return true;
+			default:
+				final int b = data[i++] & 0xff;
+				if (b != '\n') {
+					if (line.length() == HttpCodec.MAX_LINE) {
+						throw new IOException("HTTP header line too long");
+					}
+					line.append((char) b);
+				} else {
+					final int last = line.length() - 1;
+					if (last >= 0 && line.charAt(last) == '\r') {
+						line.setLength(last);
+					}
+					final String l = line.toString();
+					line.setLength(0);
+					onLine(l);
+				}
+			}
+		}
+		return state == DONE;
+	}
+	
+	/**
+	 * Reads the end of the connection.
+	 * 
+	 * @throws IOException if the response is incomplete.
+	 */
+	void finish() throws IOException {
+		if (state == UNTIL_CLOSE) {
+			state = DONE;
+		} else if (state != DONE) {
+			throw new EOFException("Connection closed by server");
+		}
+		keepAlive = false;
+	}
+	
+	/**
+	 * Returns the complete response.
+	 * 
+	 * @return the response.
+	 */
+	HttpResponse getResponse() {
+		if (state != DONE) {
+			throw new IllegalStateException("Response is incomplete");
+		}
+		return new HttpResponse(status, statusLine, contentType, body.toByteArray(), keepAlive);
+	}
+	
+	private void onLine(String l) throws IOException {
+		switch (state) {
+		case STATUS:
+			statusLine = l;
+			status = HttpCodec.parseStatus(l);
+			keepAlive = l.startsWith("HTTP/1.1");
+			contentType = null;
+			contentLength = -1;
+			chunked = false;
+			state = HEADERS;
+			break;
+		case HEADERS:
+			if (l.length() == 0) {
+				endHeaders();
+			} else {
+				onHeader(l);
+			}
+			break;
+		case CHUNK_SIZE:
+			String size = l;
+			final int ext = size.indexOf(';');
+			if (ext != -1) {
+				size = size.substring(0, ext);
+			}
+			try {
+				remaining = Long.parseLong(size.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + size);
+			}
+			checkSize(body.size() + remaining);
+			state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+			break;
+		case CHUNK_END:
+			state = CHUNK_SIZE;
+			break;
+		case TRAILERS:
+			// Discard any trailers.
+			if (l.length() == 0) {
+				state = DONE;
+			}
+			break;
+		default:
+			throw new IllegalStateException();
+		}
+	}
+	
+	private void onHeader(String l) throws IOException {
+		final int colon = l.indexOf(':');
+		if (colon == -1) {
+			return;
+		}
+		final String name = l.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+		final String value = l.substring(colon + 1).trim();
+		if (name.equals("content-type")) {
+			contentType = value;
+		} else if (name.equals("content-length")) {
+			try {
+				contentLength = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid Content-Length: " + value);
+			}
+		} else if (name.equals("transfer-encoding")) {
+			chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+		} else if (name.equals("connection")) {
+			if (value.equalsIgnoreCase("close")) {
+				keepAlive = false;
+			} else if (value.equalsIgnoreCase("keep-alive")) {
+				keepAlive = true;
+			}
+		}
+	}
+	
+	private void endHeaders() throws IOException {
+		if (status >= 100 && status < 200) {
+			// Skip interim responses.
+			state = STATUS;
+		} else if (status == 204 || status == 304) {
+			state = DONE;
+		} else if (chunked) {
+			state = CHUNK_SIZE;
+		} else if (contentLength >= 0) {
+			checkSize(contentLength);
+			remaining = contentLength;
+			state = remaining == 0 ? DONE : BODY;
+		} else {
+			// The body is delimited by the end of the connection.
+			state = UNTIL_CLOSE;
+			keepAlive = false;
+		}
+	}
+	
+	private static void checkSize(long length) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Response too large: " + length);
+		}
+	}
+}
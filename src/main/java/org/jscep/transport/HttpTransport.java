@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.List;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.jscep.request.Operation;
+import org.jscep.request.Request;
+
+/**
+ * This class is a transport which encodes SCEP requests as HTTP/1.1 
+ * messages itself, leaving subclasses to exchange them with the server.
+ * <p>
+ * Informational requests are always sent with GET.  PKIOperation requests 
+ * are sent with the method provided at construction.
+ */
+abstract class HttpTransport extends Transport {
+	private final Method method;
+	
+	HttpTransport(Method method, URL url) {
+		super(url);
+		this.method = method;
+	}
+	
+	@Override
+	public <T> T sendRequest(Request<T> msg) throws IOException {
+		final HttpResponse response;
+		if (isPost(msg)) {
+			response = execute("POST", getTarget(msg), getBody(msg));
+		} else {
+			response = execute("GET", getTarget(msg), null);
+		}
+		
+		return getContent(msg, response);
+	}
+	
+	/**
+	 * Returns true if the given request is sent with POST.
+	 * 
+	 * @param msg the request.
+	 * @return true for POST, false for GET.
+	 */
+	boolean isPost(Request<?> msg) {
+		return method == Method.POST && msg.getOperation() == Operation.PKIOperation;
+	}
+	
+	/**
+	 * Returns the path and query of the given request.
+	 * 
+	 * @param msg the request.
+	 * @return the target.
+	 * @throws IOException if the message cannot be encoded.
+	 */
+	String getTarget(Request<?> msg) throws IOException {
+		return getTarget(getURL(), msg.getOperation(), isPost(msg) ? null : msg.getMessage());
+	}
+	
+	/**
+	 * Returns the body of the given request, which must be sent with POST.
+	 * 
+	 * @param msg the request.
+	 * @return the body.
+	 */
+	static byte[] getBody(Request<?> msg) {
+		return Base64.decode(msg.getMessage());
+	}
+	
+	/**
+	 * Parses the response to the given request.
+	 * 
+	 * @param <T> the response type.
+	 * @param msg the request.
+	 * @param response the response.
+	 * @return the parsed response.
+	 * @throws IOException if the server reported an error, or the response cannot be parsed.
+	 */
+	static <T> T getContent(Request<T> msg, HttpResponse response) throws IOException {
+		if (response.getStatus() != 200) {
+			throw new IOException(response.getStatusLine());
+		}
+		
+		return msg.getContentHandler().getContent(new ByteArrayInputStream(response.getBody()), response.getContentType());
+	}
+	
+	/**
+	 * Sends a request to the server and reads the complete response.
+	 * 
+	 * @param httpMethod the HTTP method.
+	 * @param target the path and query of the request.
+	 * @param body the request body, or null.
+	 * @return the response.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	abstract HttpResponse execute(String httpMethod, String target, byte[] body) throws IOException;
+	
+	private static String getTarget(URL url, Operation op, String message) throws IOException {
+		final StringBuilder target = new StringBuilder();
+		target.append(url.getPath().length() == 0 ? "/" : url.getPath());
+		target.append("?operation=").append(op.getName());
+		if (message != null) {
+			target.append("&message=").append(URLEncoder.encode(message, "UTF-8"));
+		}
+		return target.toString();
+	}
+	
+	/**
+	 * Returns the value of the Host header for the given URL.
+	 * 
+	 * @param url the URL.
+	 * @return the host, with the port if it is not the default.
+	 */
+	static String getHostHeader(URL url) {
+		return url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+	}
+	
+	/**
+	 * Returns true if the JVM is configured to reach the given URL through 
+	 * a proxy, as with the <code>http.proxyHost</code> and 
+	 * <code>https.proxyHost</code> system properties.
+	 * 
+	 * @param url the URL.
+	 * @return true if a proxy should be used.
+	 */
+	static boolean isProxied(URL url) {
+		final ProxySelector selector = ProxySelector.getDefault();
+		if (selector == null) {
+			return false;
+		}
+		final List<Proxy> proxies;
+		try {
+			proxies = selector.select(url.toURI());
+		} catch (URISyntaxException e) {
+			return false;
+		}
+		return proxies.isEmpty() == false && proxies.get(0).type() != Proxy.Type.DIRECT;
+	}
+	
+	Method getMethod() {
+		return method;
+	}
+}
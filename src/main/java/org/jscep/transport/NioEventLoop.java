@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class performs the socket I/O of many HTTP exchanges on a single 
+ * thread, using non-blocking channels and a selector.
+ * <p>
+ * Connections are kept alive and reused for later exchanges with the same 
+ * host.  At most <code>maxConnections</code> are open to each host, and 
+ * exchanges beyond that wait for a connection to become free.  The 
+ * connect, first-byte and total timeouts of each exchange's 
+ * {@link Deadline} are checked on every iteration.  All state other than 
+ * the queue of submitted exchanges is confined to the loop thread.
+ * Responses are parsed by a {@link HttpResponseParser} as they arrive.
+ * <p>
+ * An idempotent exchange which fails on a reused connection before any of 
+ * the response has arrived is sent once more on a new connection.
+ */
+final class NioEventLoop implements Runnable {
+	private static Logger LOGGER = LoggingUtil.getLogger(NioEventLoop.class);
+	// The longest a timed out exchange can go unnoticed.
+	private static final long TIMEOUT_RESOLUTION = 50;
+	private final Selector selector;
+	private final Queue<NioExchange> submitted = new ConcurrentLinkedQueue<NioExchange>();
+	private final Map<String, Host> hosts = new HashMap<String, Host>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+	private final int maxConnections;
+	private final long idleTimeout;
+	private volatile boolean closed;
+	
+	NioEventLoop(int maxConnections, long idleTimeout) throws IOException {
+		this.selector = Selector.open();
+		this.maxConnections = maxConnections;
+		this.idleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * Queues an exchange for this loop.
+	 * 
+	 * @param exchange the exchange.
+	 */
+	void submit(NioExchange exchange) {
+		submitted.add(exchange);
+		if (closed) {
+			failSubmitted();
+		} else {
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Stops this loop, failing every outstanding exchange.
+	 */
+	void close() {
+		closed = true;
+		selector.wakeup();
+	}
+	
+	public void run() {
+		final long selectTimeout = Math.max(1, Math.min(TIMEOUT_RESOLUTION, TimeUnit.NANOSECONDS.toMillis(idleTimeout) / 2));
+		try {
+			while (closed == false) {
+				selector.select(selectTimeout);
+				NioExchange exchange;
+				while ((exchange = submitted.poll()) != null) {
+					dispatch(exchange);
+				}
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+				final long now = System.nanoTime();
+				checkTimeouts(now);
+				evictIdle(now);
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Event loop failed", e);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Event loop failed", e);
+		} finally {
+			shutdown();
+		}
+	}
+	
+	private void dispatch(NioExchange exchange) {
+		final Host host = getHost(exchange);
+		final Connection conn = host.idle.pollFirst();
+		if (conn != null) {
+			start(conn, exchange, true);
+		} else if (host.active < maxConnections) {
+			open(host, exchange);
+		} else {
+			host.waiting.add(exchange);
+		}
+	}
+	
+	private Host getHost(NioExchange exchange) {
+		Host host = hosts.get(exchange.getHostKey());
+		if (host == null) {
+			host = new Host();
+			hosts.put(exchange.getHostKey(), host);
+		}
+		return host;
+	}
+	
+	private void open(Host host, NioExchange exchange) {
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			final boolean connected = channel.connect(exchange.getAddress());
+			final Connection conn = new Connection(host, channel);
+			conn.connecting = connected == false;
+			conn.key = channel.register(selector, 0, conn);
+			host.active++;
+			start(conn, exchange, false);
+			if (connected == false) {
+				conn.key.interestOps(SelectionKey.OP_CONNECT);
+			}
+		} catch (IOException e) {
+			closeQuietly(channel);
+			exchange.fail(e);
+		}
+	}
+	
+	private void start(Connection conn, NioExchange exchange, boolean reused) {
+		conn.exchange = exchange;
+		conn.reused = reused;
+		conn.out = ByteBuffer.wrap(exchange.getRequest());
+		conn.parser.reset();
+		conn.startedAt = System.nanoTime();
+		conn.writtenAt = 0;
+		conn.key.interestOps(SelectionKey.OP_WRITE);
+	}
+	
+	private void handle(SelectionKey key) {
+		final Connection conn = (Connection) key.attachment();
+		if (key.isValid() == false) {
+			return;
+		}
+		try {
+			if (key.isConnectable()) {
+				conn.channel.finishConnect();
+				conn.connecting = false;
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (key.isWritable()) {
+				conn.channel.write(conn.out);
+				if (conn.out.hasRemaining() == false) {
+					conn.writtenAt = System.nanoTime();
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			} else if (key.isReadable()) {
+				read(conn);
+			}
+		} catch (IOException e) {
+			fail(conn, e);
+		}
+	}
+	
+	private void read(Connection conn) throws IOException {
+		readBuffer.clear();
+		final int n = conn.channel.read(readBuffer);
+		if (conn.exchange == null) {
+			// An idle connection was closed by the server, or sent 
+			// something unexpected.  Either way it cannot be reused.
+			release(conn, false);
+			return;
+		}
+		final boolean complete;
+		if (n == -1) {
+			conn.parser.finish();
+			complete = true;
+		} else {
+			complete = conn.parser.feed(readBuffer.array(), 0, n);
+		}
+		if (complete == false) {
+			// The response is incomplete, so wait for more.
+			return;
+		}
+		final HttpResponse response = conn.parser.getResponse();
+		final NioExchange exchange = conn.exchange;
+		release(conn, response.isKeepAlive());
+		exchange.complete(response);
+	}
+	
+	private void checkTimeouts(long now) {
+		List<Connection> expired = null;
+		for (SelectionKey key : selector.keys()) {
+			final Connection conn = (Connection) key.attachment();
+			if (conn.exchange != null && conn.getTimeout(now) != null) {
+				if (expired == null) {
+					expired = new ArrayList<Connection>();
+				}
+				expired.add(conn);
+			}
+		}
+		if (expired != null) {
+			for (Connection conn : expired) {
+				fail(conn, new SocketTimeoutException(conn.getTimeout(now)));
+			}
+		}
+		for (Host host : hosts.values()) {
+			final Iterator<NioExchange> it = host.waiting.iterator();
+			while (it.hasNext()) {
+				final NioExchange exchange = it.next();
+				final Deadline deadline = exchange.getDeadline();
+				if (deadline != null && deadline.isExpired()) {
+					it.remove();
+					exchange.fail(new SocketTimeoutException("Timed out waiting for a connection"));
+				}
+			}
+		}
+	}
+	
+	private void fail(Connection conn, IOException e) {
+		final NioExchange exchange = conn.exchange;
+		final boolean received = conn.parser.hasReceived();
+		final boolean reused = conn.reused;
+		release(conn, false);
+		if (exchange == null) {
+			return;
+		}
+		if (reused && received == false && exchange.isIdempotent() && exchange.isRetried() == false && e instanceof SocketTimeoutException == false) {
+			// The server may have closed the connection while it was idle,
+			// so try once more on a new one.
+			exchange.setRetried();
+			dispatch(exchange);
+		} else {
+			exchange.fail(e);
+		}
+	}
+	
+	private void release(Connection conn, boolean keepAlive) {
+		final Host host = conn.host;
+		conn.exchange = null;
+		if (keepAlive) {
+			conn.lastUsed = System.nanoTime();
+			final NioExchange next = host.waiting.poll();
+			if (next != null) {
+				start(conn, next, true);
+			} else {
+				// Watch for the server closing the idle connection.
+				conn.key.interestOps(SelectionKey.OP_READ);
+				host.idle.addFirst(conn);
+			}
+			return;
+		}
+		host.idle.remove(conn);
+		conn.key.cancel();
+		closeQuietly(conn.channel);
+		host.active--;
+		while (host.active < maxConnections && host.waiting.isEmpty() == false) {
+			open(host, host.waiting.poll());
+		}
+	}
+	
+	private void evictIdle(long now) {
+		for (Host host : hosts.values()) {
+			// The oldest connections are at the end.
+			Connection conn;
+			while ((conn = host.idle.peekLast()) != null && now - conn.lastUsed >= idleTimeout) {
+				release(conn, false);
+			}
+		}
+	}
+	
+	private void shutdown() {
+		final IOException e = new IOException("Event loop closed");
+		for (SelectionKey key : selector.keys()) {
+			final Connection conn = (Connection) key.attachment();
+			closeQuietly(conn.channel);
+			if (conn.exchange != null) {
+				conn.exchange.fail(e);
+			}
+		}
+		for (Host host : hosts.values()) {
+			for (NioExchange exchange : host.waiting) {
+				exchange.fail(e);
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException ignored) {
+			// Nothing more can be done.
+		}
+		closed = true;
+		failSubmitted();
+	}
+	
+	private void failSubmitted() {
+		final List<NioExchange> failed = new ArrayList<NioExchange>();
+		NioExchange exchange;
+		while ((exchange = submitted.poll()) != null) {
+			failed.add(exchange);
+		}
+		for (NioExchange f : failed) {
+			f.fail(new IOException("Event loop closed"));
+		}
+	}
+	
+	private static void closeQuietly(SocketChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing more can be done.
+		}
+	}
+	
+	private static final class Host {
+		private final Deque<Connection> idle = new ArrayDeque<Connection>();
+		private final Deque<NioExchange> waiting = new ArrayDeque<NioExchange>();
+		private int active;
+	}
+	
+	private static final class Connection {
+		private final Host host;
+		private final SocketChannel channel;
+		private final HttpResponseParser parser = new HttpResponseParser();
+		private SelectionKey key;
+		private NioExchange exchange;
+		private ByteBuffer out;
+		private boolean reused;
+		private boolean connecting;
+		private long startedAt;
+		private long writtenAt;
+		private long lastUsed;
+		
+		private Connection(Host host, SocketChannel channel) {
+			this.host = host;
+			this.channel = channel;
+		}
+		
+		/**
+		 * Returns the reason the current exchange has timed out.
+		 * 
+		 * @param now the current time.
+		 * @return the reason, or null if it has not timed out.
+		 */
+		private String getTimeout(long now) {
+			final Deadline deadline = exchange.getDeadline();
+			if (deadline == null) {
+				return null;
+			}
+			if (deadline.isExpired()) {
+				return "Deadline expired";
+			}
+			final long connect = deadline.getConnectTimeout();
+			if (connecting && connect > 0 && now - startedAt >= connect) {
+				return "Connect timed out";
+			}
+			final long firstByte = deadline.getFirstByteTimeout();
+			if (writtenAt != 0 && parser.hasReceived() == false && firstByte > 0 && now - writtenAt >= firstByte) {
+				return "Timed out waiting for the first byte";
+			}
+			return null;
+		}
+	}
+}
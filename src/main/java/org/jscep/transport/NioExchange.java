@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class is a single request and response handled by a 
+ * {@link NioEventLoop}.
+ * <p>
+ * The outcome may be waited for with {@link #get()}, or delivered to a 
+ * {@link Listener} on the thread which completes the exchange.
+ */
+final class NioExchange {
+	private final String hostKey;
+	private final InetSocketAddress address;
+	private final byte[] request;
+	private final boolean idempotent;
+	private final Deadline deadline;
+	private final Listener listener;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final AtomicBoolean finished = new AtomicBoolean();
+	private volatile HttpResponse response;
+	private volatile IOException failure;
+	// Only accessed by the event loop thread.
+	private boolean retried;
+	
+	NioExchange(String hostKey, InetSocketAddress address, byte[] request, boolean idempotent, Deadline deadline, Listener listener) {
+		this.hostKey = hostKey;
+		this.address = address;
+		this.request = request;
+		this.idempotent = idempotent;
+		this.deadline = deadline;
+		this.listener = listener;
+	}
+	
+	String getHostKey() {
+		return hostKey;
+	}
+	
+	InetSocketAddress getAddress() {
+		return address;
+	}
+	
+	byte[] getRequest() {
+		return request;
+	}
+	
+	/**
+	 * Returns whether the request may safely be sent more than once.
+	 * 
+	 * @return true if the request may be retried, false otherwise.
+	 */
+	boolean isIdempotent() {
+		return idempotent;
+	}
+	
+	/**
+	 * Returns the deadline of the caller which submitted this exchange.
+	 * 
+	 * @return the deadline, or null.
+	 */
+	Deadline getDeadline() {
+		return deadline;
+	}
+	
+	boolean isRetried() {
+		return retried;
+	}
+	
+	void setRetried() {
+		retried = true;
+	}
+	
+	void complete(HttpResponse response) {
+		if (finished.compareAndSet(false, true) == false) {
+			return;
+		}
+		this.response = response;
+		done.countDown();
+		if (listener != null) {
+			listener.onResponse(response);
+		}
+	}
+	
+	void fail(IOException failure) {
+		if (finished.compareAndSet(false, true) == false) {
+			return;
+		}
+		this.failure = failure;
+		done.countDown();
+		if (listener != null) {
+			listener.onFailure(failure);
+		}
+	}
+	
+	/**
+	 * Waits for the response.
+	 * 
+	 * @return the response.
+	 * @throws IOException if the exchange failed.
+	 */
+	HttpResponse get() throws IOException {
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + address);
+		}
+		final IOException e = failure;
+		if (e != null) {
+			// Wrap the failure, so that the stack trace shows the caller.
+			final IOException wrapped = new IOException(e.getMessage());
+			wrapped.initCause(e);
+			throw wrapped;
+		}
+		return response;
+	}
+	
+	/**
+	 * This interface is told of the outcome of an exchange.  It is called 
+	 * on the event loop thread, so it must not block.
+	 */
+	interface Listener {
+		void onResponse(HttpResponse response);
+		
+		void onFailure(IOException failure);
+	}
+}
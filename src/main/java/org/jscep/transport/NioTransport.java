@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jscep.request.Request;
+
+/**
+ * This class is a transport whose socket I/O is performed by a 
+ * {@link NioEventLoop}.
+ * <p>
+ * Requests sent through {@link AsyncTransport} hold no thread while they 
+ * are in flight.
+ */
+final class NioTransport extends HttpTransport implements AsyncTransport {
+	private final NioEventLoop loop;
+	private final String hostKey;
+	
+	NioTransport(Method method, URL url, NioEventLoop loop, String hostKey) {
+		super(method, url);
+		this.loop = loop;
+		this.hostKey = hostKey;
+	}
+	
+	@Override
+	HttpResponse execute(String httpMethod, String target, byte[] body) throws IOException {
+		final NioExchange exchange = newExchange(httpMethod, target, body, null);
+		loop.submit(exchange);
+		
+		return exchange.get();
+	}
+	
+	public <T> void sendRequest(final Request<T> msg, final Executor executor, final ResponseCallback<? super T> callback) {
+		if (executor == null) {
+			throw new NullPointerException("Executor should not be null");
+		}
+		if (callback == null) {
+			throw new NullPointerException("Callback should not be null");
+		}
+		final NioExchange.Listener listener = new NioExchange.Listener() {
+			public void onResponse(final HttpResponse response) {
+				deliver(executor, callback, new Runnable() {
+					public void run() {
+						final T content;
+						try {
+							content = getContent(msg, response);
+						} catch (IOException e) {
+							callback.onFailure(e);
+							return;
+						} catch (RuntimeException e) {
+							callback.onFailure(e);
+							return;
+						}
+						callback.onResponse(content);
+					}
+				});
+			}
+			
+			public void onFailure(final IOException failure) {
+				deliver(executor, callback, new Runnable() {
+					public void run() {
+						callback.onFailure(failure);
+					}
+				});
+			}
+		};
+		final NioExchange exchange;
+		try {
+			if (isPost(msg)) {
+				exchange = newExchange("POST", getTarget(msg), getBody(msg), listener);
+			} else {
+				exchange = newExchange("GET", getTarget(msg), null, listener);
+			}
+		} catch (IOException e) {
+			listener.onFailure(e);
+			return;
+		}
+		loop.submit(exchange);
+	}
+	
+	private NioExchange newExchange(String httpMethod, String target, byte[] body, NioExchange.Listener listener) throws IOException {
+		final URL url = getURL();
+		// Resolve the host here, so the event loop never blocks on DNS.
+		final InetSocketAddress address = new InetSocketAddress(url.getHost(), url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+		final Deadline deadline = Deadline.current();
+		if (deadline != null && deadline.isExpired()) {
+			throw new SocketTimeoutException("Deadline expired");
+		}
+		
+		return new NioExchange(hostKey, address, HttpCodec.encodeRequest(httpMethod, target, getHostHeader(url), body), httpMethod.equals("GET"), deadline, listener);
+	}
+	
+	private static void deliver(Executor executor, ResponseCallback<?> callback, Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			callback.onFailure(e);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return getMethod() + " " + getURL() + " (nio)";
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class creates transports which share a small number of selector 
+ * threads for all socket I/O.
+ * <p>
+ * Each host is served by one event loop, which keeps at most 
+ * {@link #setMaxConnectionsPerHost(int) maxConnectionsPerHost} persistent 
+ * connections open and queues any further requests.  Many thousands of 
+ * requests may be in flight without a thread per socket.  A thread which 
+ * sends a request with {@link Transport#sendRequest} still waits for its 
+ * response, but the transports also implement {@link AsyncTransport}, 
+ * through which a request holds no thread at all until its response has 
+ * arrived.
+ * <p>
+ * Only HTTP is supported, and connections are made directly.  If the JVM is 
+ * configured to reach a URL through a proxy, transports for that URL are 
+ * created by {@link StandardTransportFactory} instead, and do not 
+ * implement {@link AsyncTransport}.  The event loops are started when the 
+ * first transport is created, after which the configuration can no longer 
+ * be changed.
+ */
+public class NioTransportFactory implements TransportFactory {
+	/**
+	 * The default maximum number of connections to each host.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 64;
+	private final int threads;
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private long idleTimeout = TimeUnit.MILLISECONDS.toNanos(PooledTransportFactory.DEFAULT_IDLE_TIMEOUT);
+	private NioEventLoop[] loops;
+	
+	/**
+	 * Creates a new factory with a single event loop.
+	 */
+	public NioTransportFactory() {
+		this(1);
+	}
+	
+	/**
+	 * Creates a new factory.
+	 * 
+	 * @param threads the number of event loop threads.
+	 */
+	public NioTransportFactory(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads should be at least 1");
+		}
+		this.threads = threads;
+	}
+	
+	/**
+	 * Sets the maximum number of connections to each host.
+	 * 
+	 * @param max the maximum number of connections.
+	 */
+	public synchronized void setMaxConnectionsPerHost(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("Maximum connections should be at least 1");
+		}
+		checkNotStarted();
+		maxConnections = max;
+	}
+	
+	/**
+	 * Sets how long a connection may be idle before it is closed.
+	 * 
+	 * @param timeout the idle timeout.
+	 * @param unit the unit of the timeout.
+	 */
+	public synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Idle timeout should be positive");
+		}
+		checkNotStarted();
+		idleTimeout = unit.toNanos(timeout);
+	}
+	
+	public Transport createTransport(Transport.Method method, URL url) {
+		if (url.getProtocol().equalsIgnoreCase("http") == false) {
+			throw new IllegalArgumentException("NIO transport only supports HTTP");
+		}
+		if (HttpTransport.isProxied(url)) {
+			return StandardTransportFactory.INSTANCE.createTransport(method, url);
+		}
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		final String hostKey = url.getHost().toLowerCase() + ":" + port;
+		final NioEventLoop[] l = getLoops();
+		// Every request to a host goes through the same loop, so that its
+		// connections can be reused.
+		final NioEventLoop loop = l[(hostKey.hashCode() & Integer.MAX_VALUE) % l.length];
+		
+		return new NioTransport(method, url, loop, hostKey);
+	}
+	
+	/**
+	 * Stops the event loops, closing every connection.
+	 * <p>
+	 * Outstanding requests fail, as will transports created by this factory.
+	 */
+	public synchronized void close() {
+		if (loops != null) {
+			for (NioEventLoop loop : loops) {
+				loop.close();
+			}
+		}
+	}
+	
+	private synchronized NioEventLoop[] getLoops() {
+		if (loops == null) {
+			final NioEventLoop[] created = new NioEventLoop[threads];
+			try {
+				for (int i = 0; i < threads; i++) {
+					created[i] = new NioEventLoop(maxConnections, idleTimeout);
+				}
+			} catch (IOException e) {
+				for (NioEventLoop loop : created) {
+					if (loop != null) {
+						loop.close();
+					}
+				}
+				throw new IllegalStateException("Could not open selector", e);
+			}
+			for (int i = 0; i < threads; i++) {
+				final Thread t = new Thread(created[i], "scep-nio-" + i);
+				t.setDaemon(true);
+				t.start();
+			}
+			loops = created;
+		}
+		return loops;
+	}
+	
+	private void checkNotStarted() {
+		if (loops != null) {
+			throw new IllegalStateException("Event loops have already been started");
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This class creates transports which share a bounded pool of persistent 
+ * HTTP connections.
+ * <p>
+ * At most {@link #setMaxConnectionsPerHost(int) maxConnectionsPerHost} 
+ * connections are open to each host, and connections which have been idle 
+ * for longer than the {@link #setIdleTimeout(long, TimeUnit) idle timeout} 
+ * are closed in the background.  A request which finds every connection 
+ * to its host in use waits for one, for no longer than the current 
+ * {@link Deadline} if there is one.  Every HTTPS connection is created from 
+ * the same SSLSocketFactory, so later handshakes with a host resume the 
+ * TLS session of the first.
+ * <p>
+ * Connections are made directly.  If the JVM is configured to reach a URL 
+ * through a proxy, for example with the <code>http.proxyHost</code> or 
+ * <code>https.proxyHost</code> system properties, transports for that URL 
+ * are created by {@link StandardTransportFactory} instead, and are neither 
+ * pooled nor bounded by a {@link Deadline}.
+ * <p>
+ * The pool is created when the first transport is, after which the 
+ * configuration can no longer be changed.
+ */
+public class PooledTransportFactory implements TransportFactory {
+	/**
+	 * The default maximum number of connections to each host.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 8;
+	/**
+	 * The default idle timeout, in milliseconds.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+	private static final PooledTransportFactory DEFAULT = new PooledTransportFactory();
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private long idleTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT);
+	private SSLSocketFactory sslFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+	private HostnameVerifier verifier = HttpsURLConnection.getDefaultHostnameVerifier();
+	private int connectTimeout;
+	private int readTimeout;
+	private ConnectionPool pool;
+	private ScheduledExecutorService evictor;
+	
+	/**
+	 * Returns a factory which may be shared by every client in the JVM.
+	 * 
+	 * @return the shared factory.
+	 */
+	public static PooledTransportFactory getDefault() {
+		return DEFAULT;
+	}
+	
+	/**
+	 * Sets the maximum number of connections to each host.
+	 * 
+	 * @param max the maximum number of connections.
+	 */
+	public synchronized void setMaxConnectionsPerHost(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("Maximum connections should be at least 1");
+		}
+		checkNotStarted();
+		maxConnections = max;
+	}
+	
+	/**
+	 * Sets how long a connection may be idle before it is closed.
+	 * 
+	 * @param timeout the idle timeout.
+	 * @param unit the unit of the timeout.
+	 */
+	public synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Idle timeout should be positive");
+		}
+		checkNotStarted();
+		idleTimeout = unit.toNanos(timeout);
+	}
+	
+	/**
+	 * Sets the factory used to create HTTPS connections.
+	 * 
+	 * @param factory the SSL socket factory.
+	 */
+	public synchronized void setSSLSocketFactory(SSLSocketFactory factory) {
+		if (factory == null) {
+			throw new NullPointerException("SSL socket factory should not be null");
+		}
+		checkNotStarted();
+		sslFactory = factory;
+	}
+	
+	/**
+	 * Sets the verifier used to check the host name of HTTPS servers.
+	 * <p>
+	 * The host name is first matched against the server certificate as 
+	 * described in RFC 2818.  As with {@link HttpsURLConnection}, the 
+	 * verifier is only asked if that check fails, and by default rejects 
+	 * every host.
+	 * 
+	 * @param verifier the host name verifier.
+	 */
+	public synchronized void setHostnameVerifier(HostnameVerifier verifier) {
+		if (verifier == null) {
+			throw new NullPointerException("Hostname verifier should not be null");
+		}
+		checkNotStarted();
+		this.verifier = verifier;
+	}
+	
+	/**
+	 * Sets the connect and read timeouts of each connection.
+	 * 
+	 * @param connectTimeout the connect timeout, or 0 for none.
+	 * @param readTimeout the read timeout, or 0 for none.
+	 * @param unit the unit of both timeouts.
+	 */
+	public synchronized void setTimeouts(long connectTimeout, long readTimeout, TimeUnit unit) {
+		if (connectTimeout < 0 || readTimeout < 0) {
+			throw new IllegalArgumentException("Timeouts should not be negative");
+		}
+		checkNotStarted();
+		this.connectTimeout = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(connectTimeout));
+		this.readTimeout = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(readTimeout));
+	}
+	
+	public Transport createTransport(Transport.Method method, URL url) {
+		if (HttpTransport.isProxied(url)) {
+			return StandardTransportFactory.INSTANCE.createTransport(method, url);
+		}
+		return new PooledTransport(method, url, getPool());
+	}
+	
+	/**
+	 * Closes every pooled connection and stops the background eviction.
+	 * <p>
+	 * Transports created by this factory will fail after this call.
+	 */
+	public synchronized void close() {
+		if (pool != null) {
+			pool.close();
+			evictor.shutdownNow();
+		}
+	}
+	
+	synchronized ConnectionPool getPool() {
+		if (pool == null) {
+			pool = new ConnectionPool(maxConnections, idleTimeout, sslFactory, verifier, connectTimeout, readTimeout);
+			evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "scep-connection-evictor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			final ConnectionPool p = pool;
+			final long period = Math.max(idleTimeout / 2, TimeUnit.MILLISECONDS.toNanos(100));
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					p.evictIdle();
+				}
+			}, period, period, TimeUnit.NANOSECONDS);
+		}
+		return pool;
+	}
+	
+	private void checkNotStarted() {
+		if (pool != null) {
+			throw new IllegalStateException("Pool has already been created");
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class holds the timeouts for each phase of a request to a SCEP 
+ * server.
+ * <p>
+ * A timeout of zero means that phase is not bounded.
+ * 
+ * @see Deadline
+ */
+public final class Timeouts {
+	/**
+	 * No timeouts at all.
+	 */
+	public static final Timeouts NONE = new Timeouts(0, 0, 0, 0, TimeUnit.NANOSECONDS);
+	private final long connect;
+	private final long handshake;
+	private final long firstByte;
+	private final long total;
+	
+	/**
+	 * Creates a new set of timeouts.
+	 * 
+	 * @param connect the time allowed to establish a TCP connection.
+	 * @param handshake the time allowed for the TLS handshake.
+	 * @param firstByte the time allowed between sending a request and 
+	 *        receiving the first byte of the response.
+	 * @param total the time allowed for the whole call.
+	 * @param unit the unit of all timeouts.
+	 */
+	public Timeouts(long connect, long handshake, long firstByte, long total, TimeUnit unit) {
+		if (connect < 0 || handshake < 0 || firstByte < 0 || total < 0) {
+			throw new IllegalArgumentException("Timeouts should not be negative");
+		}
+		this.connect = unit.toNanos(connect);
+		this.handshake = unit.toNanos(handshake);
+		this.firstByte = unit.toNanos(firstByte);
+		this.total = unit.toNanos(total);
+	}
+	
+	/**
+	 * Returns the connect timeout.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the timeout, or 0 for none.
+	 */
+	public long getConnectTimeout(TimeUnit unit) {
+		return unit.convert(connect, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the TLS handshake timeout.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the timeout, or 0 for none.
+	 */
+	public long getHandshakeTimeout(TimeUnit unit) {
+		return unit.convert(handshake, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the first-byte timeout.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the timeout, or 0 for none.
+	 */
+	public long getFirstByteTimeout(TimeUnit unit) {
+		return unit.convert(firstByte, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the total timeout.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the timeout, or 0 for none.
+	 */
+	public long getTotalTimeout(TimeUnit unit) {
+		return unit.convert(total, TimeUnit.NANOSECONDS);
+	}
+	
+	@Override
+	public String toString() {
+		return "Timeouts [connect=" + connect + "ns, handshake=" + handshake + "ns, firstByte=" + firstByte + "ns, total=" + total + "ns]";
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jscep.content.CaCapabilitiesContentHandler;
+import org.jscep.request.GetCaCaps;
+import org.jscep.request.Request;
+import org.jscep.transport.ForwardingTransport;
+import org.jscep.transport.PooledTransportFactory;
+import org.jscep.transport.Transport;
+
+public class AdmissionTransportTest extends TestCase {
+	private URL url;
+	private AtomicInteger calls;
+	private SimpleClientMetrics metrics;
+	
+	@Override
+	protected void setUp() throws Exception {
+		url = new URL("http://127.0.0.1/scep");
+		calls = new AtomicInteger();
+		metrics = new SimpleClientMetrics();
+	}
+	
+	public void testCircuitOpensAfterFailures() throws Exception {
+		final Transport transport = new AdmissionTransport(url, new FailingTransport(url, calls), new CircuitBreaker(CircuitBreaker.OPEN_DURATION, 0), new ConcurrencyLimiter(), metrics);
+		for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+			try {
+				transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+				fail();
+			} catch (RequestRejectedException e) {
+				fail();
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+		try {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+			fail();
+		} catch (RequestRejectedException e) {
+			assertEquals(RequestRejectedException.Reason.CIRCUIT_OPEN, e.getReason());
+		}
+		assertEquals(CircuitBreaker.MIN_CALLS, calls.get());
+		assertEquals(1, metrics.getRejectionCount(RequestRejectedException.Reason.CIRCUIT_OPEN));
+		assertTrue(metrics.getConcurrencyLimit(url) < ConcurrencyLimiter.INITIAL_LIMIT);
+	}
+	
+	public void testCircuitOpensAfterTimeouts() throws Exception {
+		final StubScepServer server = new StubScepServer(false);
+		server.setLatency(1, 1, TimeUnit.SECONDS);
+		server.start();
+		final PooledTransportFactory factory = new PooledTransportFactory();
+		factory.setTimeouts(0, 20, TimeUnit.MILLISECONDS);
+		final CircuitBreaker breaker = new CircuitBreaker(CircuitBreaker.OPEN_DURATION, 0);
+		final ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+		try {
+			final Transport transport = new AdmissionTransport(server.getUrl(), factory.createTransport(Transport.Method.GET, server.getUrl()), breaker, limiter, metrics);
+			for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+				try {
+					transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+					fail();
+				} catch (SocketTimeoutException e) {
+					// Expected
+				}
+			}
+			
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+			assertTrue(limiter.getLimit() < ConcurrencyLimiter.INITIAL_LIMIT);
+			try {
+				transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+				fail();
+			} catch (RequestRejectedException e) {
+				assertEquals(RequestRejectedException.Reason.CIRCUIT_OPEN, e.getReason());
+			}
+		} finally {
+			factory.close();
+			server.stop();
+		}
+	}
+	
+	public void testHalfOpenAllowsSingleProbe() {
+		final CircuitBreaker breaker = new CircuitBreaker(1, 0);
+		for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+			assertTrue(breaker.allow(System.nanoTime()));
+			breaker.record(0, true);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		
+		assertTrue(breaker.allow(System.nanoTime()));
+		assertFalse(breaker.allow(System.nanoTime()));
+		breaker.record(0, false);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+	
+	public void testSlowCallsCountAsFailures() {
+		final CircuitBreaker breaker = new CircuitBreaker(CircuitBreaker.OPEN_DURATION, TimeUnit.SECONDS.toNanos(1));
+		for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+			assertTrue(breaker.allow(System.nanoTime()));
+			breaker.record(TimeUnit.SECONDS.toNanos(2), false);
+		}
+		assertFalse(breaker.allow(System.nanoTime()));
+	}
+	
+	public void testLimiterRejectsAboveLimit() {
+		final ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+		for (int i = 0; i < ConcurrencyLimiter.INITIAL_LIMIT; i++) {
+			assertTrue(limiter.tryAcquire());
+		}
+		assertFalse(limiter.tryAcquire());
+		limiter.cancel();
+		assertTrue(limiter.tryAcquire());
+	}
+	
+	public void testLimitFollowsRoundTripTimes() {
+		final ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+		for (int i = 0; i < 100; i++) {
+			for (int j = 0; j < ConcurrencyLimiter.INITIAL_LIMIT; j++) {
+				limiter.tryAcquire();
+			}
+			for (int j = 0; j < ConcurrencyLimiter.INITIAL_LIMIT; j++) {
+				limiter.onSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+			}
+		}
+		final int grown = limiter.getLimit();
+		assertTrue(grown > ConcurrencyLimiter.INITIAL_LIMIT);
+		
+		for (int i = 0; i < 10; i++) {
+			limiter.tryAcquire();
+			limiter.onSuccess(TimeUnit.MILLISECONDS.toNanos(100));
+		}
+		assertTrue(limiter.getLimit() < grown);
+	}
+	
+	public void testInformationalRoundTripsDoNotAdjustLimit() throws Exception {
+		final ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+		final Transport transport = new AdmissionTransport(url, new InstantTransport(url), new CircuitBreaker(CircuitBreaker.OPEN_DURATION, CircuitBreaker.SLOW_CALL), limiter, metrics);
+		// A fast GetCACaps must not make every slower PKCSReq look congested.
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		// As PKCSReq round trips through the transport would be recorded.
+		for (int i = 0; i < 10; i++) {
+			limiter.tryAcquire();
+			limiter.onSuccess(TimeUnit.MILLISECONDS.toNanos(100));
+		}
+		
+		assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, limiter.getLimit());
+	}
+	
+	private static final class InstantTransport extends ForwardingTransport {
+		private InstantTransport(URL url) {
+			super(url, null);
+		}
+		
+		@Override
+		public <T> T sendRequest(Request<T> msg) throws IOException {
+			return null;
+		}
+	}
+	
+	private static final class FailingTransport extends ForwardingTransport {
+		private final AtomicInteger calls;
+		
+		private FailingTransport(URL url, AtomicInteger calls) {
+			super(url, null);
+			this.calls = calls;
+		}
+		
+		@Override
+		public <T> T sendRequest(Request<T> msg) throws IOException {
+			calls.incrementAndGet();
+			throw new IOException("Connection refused");
+		}
+	}
+}
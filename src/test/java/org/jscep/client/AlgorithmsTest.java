@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
+import org.jscep.response.Capabilities;
+
+public class AlgorithmsTest extends TestCase {
+	public void testPreferredCipherOverridesCapabilities() {
+		assertEquals(Algorithms.AES, Algorithms.negotiateCipher(new Capabilities(), "aes"));
+	}
+	
+	public void testPreferredDigestOverridesCapabilities() {
+		assertEquals("SHA-512", Algorithms.negotiateDigest(new Capabilities(), "SHA-512"));
+	}
+	
+	public void testCipherNamesAreNormalised() {
+		assertEquals(Algorithms.AES, Algorithms.normaliseCipher("AES128"));
+		assertEquals(Algorithms.DES_EDE, Algorithms.normaliseCipher("DES3"));
+		assertEquals(Algorithms.DES_EDE, Algorithms.normaliseCipher("desede"));
+		assertEquals(Algorithms.DES, Algorithms.normaliseCipher("DES"));
+	}
+	
+	public void testUnknownCipherIsRejected() {
+		try {
+			Algorithms.normaliseCipher("RC2");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	public void testCipherOids() {
+		assertEquals(CMSEnvelopedDataGenerator.AES128_CBC, Algorithms.getCipherOid(Algorithms.AES));
+		assertEquals(CMSEnvelopedDataGenerator.DES_EDE3_CBC, Algorithms.getCipherOid(Algorithms.DES_EDE));
+		assertEquals("1.3.14.3.2.7", Algorithms.getCipherOid(Algorithms.DES));
+	}
+}
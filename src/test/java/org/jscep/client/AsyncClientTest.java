@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+
+import junit.framework.TestCase;
+
+import org.jscep.response.Capabilities;
+import org.jscep.transport.PooledTransportFactory;
+import org.jscep.transport.Timeouts;
+
+public class AsyncClientTest extends TestCase {
+	private StubScepServer server;
+	private ExecutorService executor;
+	private KeyPair keyPair;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new StubScepServer(false);
+		server.start();
+		executor = Executors.newCachedThreadPool();
+		keyPair = TestCertificates.createKeyPair();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		server.stop();
+	}
+	
+	public void testCallbackIsToldOfSuccess() throws Exception {
+		final RecordingCallback<Capabilities> callback = new RecordingCallback<Capabilities>();
+		new AsyncClient(newClient(server.getUrl()), executor).getCaCapabilities().addCallback(callback);
+		
+		assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+		assertNotNull(callback.result.get());
+		assertNull(callback.failure.get());
+	}
+	
+	public void testCallbackIsToldOfFailure() throws Exception {
+		final RecordingCallback<Capabilities> callback = new RecordingCallback<Capabilities>();
+		new AsyncClient(newClient(closedUrl()), executor).getCaCapabilities().addCallback(callback);
+		
+		assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+		assertTrue(callback.failure.get() instanceof IOException);
+	}
+	
+	public void testDiscoveryFailureFailsTransaction() throws Exception {
+		final RecordingCallback<Object> callback = new RecordingCallback<Object>();
+		new AsyncClient(newClient(closedUrl()), executor).enrol(TestCertificates.createCsr("CN=Device", keyPair)).addCallback(callback);
+		
+		assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+		assertTrue(callback.failure.get() instanceof IOException);
+	}
+	
+	public void testDiscoveryIsBoundedByTimeouts() throws Exception {
+		final PooledTransportFactory factory = new PooledTransportFactory();
+		try {
+			final Client client = newClient(server.getUrl());
+			client.setTransportFactory(factory);
+			client.setTimeouts(new Timeouts(0, 0, 0, 200, TimeUnit.MILLISECONDS));
+			server.setLatency(5, 5, TimeUnit.SECONDS);
+			final RecordingCallback<Object> callback = new RecordingCallback<Object>();
+			new AsyncClient(client, executor).enrol(TestCertificates.createCsr("CN=Device", keyPair)).addCallback(callback);
+			
+			assertTrue(callback.done.await(2, TimeUnit.SECONDS));
+			assertTrue(callback.failure.get() instanceof SocketTimeoutException);
+		} finally {
+			factory.close();
+		}
+	}
+	
+	public void testCallbackAddedAfterCompletionIsToldImmediately() throws Exception {
+		final ClientFuture<Capabilities> future = new AsyncClient(newClient(server.getUrl()), executor).getCaCapabilities();
+		future.get(5, TimeUnit.SECONDS);
+		final RecordingCallback<Capabilities> callback = new RecordingCallback<Capabilities>();
+		future.addCallback(callback);
+		
+		assertEquals(0, callback.done.getCount());
+		assertNotNull(callback.result.get());
+	}
+	
+	public void testCancelBeforeCompletion() throws Exception {
+		final HeldExecutor held = new HeldExecutor();
+		final ClientFuture<Capabilities> future = new AsyncClient(newClient(server.getUrl()), held).getCaCapabilities();
+		final RecordingCallback<Capabilities> callback = new RecordingCallback<Capabilities>();
+		future.addCallback(callback);
+		
+		assertTrue(future.cancel(true));
+		held.runAll();
+		
+		assertTrue(future.isCancelled());
+		assertNull(callback.result.get());
+		assertTrue(callback.failure.get() instanceof CancellationException);
+	}
+	
+	public void testGetWithTimeout() throws Exception {
+		final HeldExecutor held = new HeldExecutor();
+		final ClientFuture<Capabilities> future = new AsyncClient(newClient(server.getUrl()), held).getCaCapabilities();
+		try {
+			future.get(50, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (TimeoutException e) {
+			// Expected
+		}
+		held.runAll();
+		
+		assertNotNull(future.get(5, TimeUnit.SECONDS));
+	}
+	
+	private Client newClient(URL url) throws Exception {
+		final CallbackHandler cbh = new CallbackHandler() {
+			public void handle(Callback[] callbacks) {
+			}
+		};
+		
+		return new Client(url, TestCertificates.createSelfSigned("CN=Client", keyPair), keyPair.getPrivate(), cbh);
+	}
+	
+	private static URL closedUrl() throws IOException {
+		final ServerSocket socket = new ServerSocket(0);
+		try {
+			return new URL("http", "127.0.0.1", socket.getLocalPort(), "/scep");
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Holds every task, so that nothing runs until the test says so.
+	 */
+	private static final class HeldExecutor implements Executor {
+		private final List<Runnable> queued = new ArrayList<Runnable>();
+		
+		public synchronized void execute(Runnable command) {
+			queued.add(command);
+		}
+		
+		void runAll() {
+			final List<Runnable> tasks;
+			synchronized (this) {
+				tasks = new ArrayList<Runnable>(queued);
+				queued.clear();
+			}
+			for (Runnable r : tasks) {
+				r.run();
+			}
+		}
+	}
+	
+	private static final class RecordingCallback<V> implements FutureCallback<V> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final AtomicReference<V> result = new AtomicReference<V>();
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		
+		public void onSuccess(V value) {
+			result.set(value);
+			done.countDown();
+		}
+		
+		public void onFailure(Throwable cause) {
+			failure.set(cause);
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class CaChainCacheTest extends TestCase {
+	private CaChain chain;
+	
+	@Override
+	protected void setUp() throws Exception {
+		final X509Certificate ca = TestCertificates.createCa("CN=CA", TestCertificates.createKeyPair());
+		chain = new CaChain("fingerprint", Collections.singletonList(ca), ca, ca, ca);
+	}
+	
+	public void testChainExpires() throws Exception {
+		final CaChainCache cache = new CaChainCache(50, TimeUnit.MILLISECONDS);
+		cache.put(chain);
+		assertSame(chain, cache.get());
+		Thread.sleep(100);
+		
+		assertNull(cache.get());
+	}
+	
+	public void testInvalidate() {
+		final CaChainCache cache = new CaChainCache(10, TimeUnit.SECONDS);
+		cache.put(chain);
+		cache.invalidate();
+		
+		assertNull(cache.get());
+	}
+	
+	public void testChainIsDiscardedOnceRolloverIsCurrent() throws Exception {
+		final CaChainCache cache = new CaChainCache(10, TimeUnit.SECONDS);
+		cache.put(chain);
+		// Certificates hold whole seconds, so allow for truncation.
+		final Date notBefore = new Date(System.currentTimeMillis() + 1200);
+		cache.putRollover(TestCertificates.createCa("CN=Next CA", TestCertificates.createKeyPair(), notBefore));
+		assertSame(chain, cache.get());
+		Thread.sleep(1500);
+		
+		assertNull(cache.get());
+	}
+	
+	public void testRolloverWithoutChainIsIgnored() throws Exception {
+		final CaChainCache cache = new CaChainCache(10, TimeUnit.SECONDS);
+		cache.putRollover(TestCertificates.createCa("CN=Next CA", TestCertificates.createKeyPair()));
+		cache.put(chain);
+		
+		assertSame(chain, cache.get());
+	}
+	
+	public void testStaleChainIsOnlyReturnedByGetStale() throws Exception {
+		final CaChainCache cache = new CaChainCache(20, TimeUnit.MILLISECONDS);
+		cache.setMaxStaleness(10, TimeUnit.SECONDS);
+		cache.put(chain);
+		assertSame(chain, cache.get());
+		Thread.sleep(50);
+		
+		assertNull(cache.get());
+		assertSame(chain, cache.getStale());
+	}
+	
+	public void testTooStaleChainIsDiscarded() throws Exception {
+		final CaChainCache cache = new CaChainCache(20, TimeUnit.MILLISECONDS);
+		cache.setMaxStaleness(20, TimeUnit.MILLISECONDS);
+		cache.put(chain);
+		Thread.sleep(100);
+		
+		assertNull(cache.getStale());
+		assertNull(cache.get());
+	}
+	
+	public void testCurrentRolloverDiscardsStaleChain() throws Exception {
+		final CaChainCache cache = new CaChainCache(20, TimeUnit.MILLISECONDS);
+		cache.setMaxStaleness(10, TimeUnit.SECONDS);
+		cache.put(chain);
+		cache.putRollover(TestCertificates.createCa("CN=Next CA", TestCertificates.createKeyPair()));
+		Thread.sleep(50);
+		
+		assertNull(cache.getStale());
+	}
+}
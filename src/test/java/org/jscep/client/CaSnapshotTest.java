@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class CaSnapshotTest extends TestCase {
+	private File file;
+	private URL url;
+	private X509Certificate ca;
+	
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("snapshot", ".snp");
+		file.delete();
+		url = new URL("http://127.0.0.1/scep");
+		ca = TestCertificates.createCa("CN=CA", TestCertificates.createKeyPair());
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		new File(file.getPath() + ".lock").delete();
+	}
+	
+	public void testSnapshotIsRestored() throws Exception {
+		final CaSnapshot snapshot = new CaSnapshot(file, url, "profile");
+		assertFalse(snapshot.load());
+		snapshot.setCapabilities("text/plain", "POSTPKIOperation\nSHA-256\n".getBytes("US-ASCII"));
+		snapshot.setChain(Collections.singletonList(ca));
+		snapshot.addVerified(Fingerprints.sha256(ca));
+		snapshot.save();
+		
+		final CaSnapshot restored = new CaSnapshot(file, url, "profile");
+		assertTrue(restored.load());
+		assertEquals("text/plain", restored.getCapabilitiesType());
+		assertTrue(Arrays.equals(snapshot.getCapabilities(), restored.getCapabilities()));
+		assertEquals(Collections.singletonList(ca), restored.getChain());
+		assertTrue(restored.getVerified().contains(Fingerprints.sha256(ca)));
+	}
+	
+	public void testSaveMergesWithAnotherWriter() throws Exception {
+		final X509Certificate other = TestCertificates.createCa("CN=Other", TestCertificates.createKeyPair());
+		final CaSnapshot first = new CaSnapshot(file, url, "profile");
+		final CaSnapshot second = new CaSnapshot(file, url, "profile");
+		first.setChain(Collections.singletonList(ca));
+		first.addVerified(Fingerprints.sha256(ca));
+		first.save();
+		second.setCapabilities("text/plain", "SHA-256\n".getBytes("US-ASCII"));
+		second.addVerified(Fingerprints.sha256(other));
+		second.save();
+		
+		final CaSnapshot restored = new CaSnapshot(file, url, "profile");
+		assertTrue(restored.load());
+		assertEquals(Collections.singletonList(ca), restored.getChain());
+		assertEquals("text/plain", restored.getCapabilitiesType());
+		assertTrue(restored.getVerified().contains(Fingerprints.sha256(ca)));
+		assertTrue(restored.getVerified().contains(Fingerprints.sha256(other)));
+	}
+	
+	public void testLocalChangesWinOverTheFile() throws Exception {
+		final X509Certificate other = TestCertificates.createCa("CN=Other", TestCertificates.createKeyPair());
+		final CaSnapshot first = new CaSnapshot(file, url, null);
+		final CaSnapshot second = new CaSnapshot(file, url, null);
+		first.setChain(Collections.singletonList(ca));
+		first.save();
+		second.setChain(Collections.singletonList(other));
+		second.save();
+		
+		final CaSnapshot restored = new CaSnapshot(file, url, null);
+		assertTrue(restored.load());
+		assertEquals(Collections.singletonList(other), restored.getChain());
+	}
+	
+	public void testUnchangedSnapshotIsNotWritten() throws Exception {
+		final CaSnapshot snapshot = new CaSnapshot(file, url, null);
+		snapshot.setCapabilities("text/plain", "SHA-256\n".getBytes("US-ASCII"));
+		snapshot.setChain(Collections.singletonList(ca));
+		snapshot.addVerified(Fingerprints.sha256(ca));
+		snapshot.save();
+		assertTrue(file.delete());
+		snapshot.setCapabilities("text/plain", "SHA-256\n".getBytes("US-ASCII"));
+		snapshot.setChain(Collections.singletonList(ca));
+		snapshot.addVerified(Fingerprints.sha256(ca));
+		snapshot.save();
+		
+		assertFalse(file.exists());
+	}
+	
+	public void testConcurrentSavesFromOneJvm() throws Exception {
+		final CaSnapshot first = new CaSnapshot(file, url, null);
+		// Another path to the same file.
+		final CaSnapshot second = new CaSnapshot(new File(file.getParentFile(), "./" + file.getName()), url, null);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final CaSnapshot snapshot = i == 0 ? first : second;
+			final String fingerprint = "fingerprint-" + i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < 20; j++) {
+							snapshot.setChain(Collections.singletonList(ca));
+							snapshot.addVerified(fingerprint + "-" + j);
+							snapshot.save();
+						}
+					} catch (Throwable t) {
+						failure.set(t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		
+		assertNull(failure.get());
+		final CaSnapshot restored = new CaSnapshot(file, url, null);
+		assertTrue(restored.load());
+		assertEquals(40, restored.getVerified().size());
+	}
+	
+	public void testSnapshotOfAnotherCaIsIgnored() throws Exception {
+		final CaSnapshot snapshot = new CaSnapshot(file, url, "profile");
+		snapshot.setChain(Collections.singletonList(ca));
+		snapshot.save();
+		
+		assertFalse(new CaSnapshot(file, url, "other").load());
+		assertFalse(new CaSnapshot(file, new URL("http://127.0.0.2/scep"), "profile").load());
+	}
+	
+	public void testCorruptSnapshotIsIgnored() throws Exception {
+		final CaSnapshot snapshot = new CaSnapshot(file, url, null);
+		snapshot.setChain(Collections.singletonList(ca));
+		snapshot.save();
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(raf.length() - 1);
+			final int last = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(last ^ 0xff);
+		} finally {
+			raf.close();
+		}
+		
+		assertFalse(new CaSnapshot(file, url, null).load());
+	}
+	
+	public void testSaveLeavesNoTemporaryFiles() throws Exception {
+		final CaSnapshot snapshot = new CaSnapshot(file, url, null);
+		snapshot.save();
+		snapshot.save();
+		
+		final File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+		for (File f : files) {
+			assertFalse(f.getName().startsWith(file.getName()) && f.getName().endsWith(".tmp"));
+		}
+	}
+}
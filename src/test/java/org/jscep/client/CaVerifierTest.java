@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+
+import junit.framework.TestCase;
+
+import org.jscep.CertificateVerificationCallback;
+
+public class CaVerifierTest extends TestCase {
+	private X509Certificate ca;
+	private String fingerprint;
+	private VerificationCache cache;
+	private CaVerifier verifier;
+	private CountDownLatch approve;
+	private AtomicInteger invocations;
+	
+	@Override
+	protected void setUp() throws Exception {
+		ca = TestCertificates.createCa("CN=CA", TestCertificates.createKeyPair());
+		fingerprint = Fingerprints.sha256(ca);
+		cache = new VerificationCache();
+		verifier = new CaVerifier();
+		approve = new CountDownLatch(1);
+		invocations = new AtomicInteger();
+	}
+	
+	public void testConcurrentCallersShareOneInvocation() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(20);
+		try {
+			final List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 20; i++) {
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						verifier.verify(ca, fingerprint, cache, new SlowHandler(true));
+						return null;
+					}
+				}));
+			}
+			Thread.sleep(100);
+			approve.countDown();
+			for (Future<Void> result : results) {
+				result.get(5, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, invocations.get());
+		assertTrue(cache.isVerified(fingerprint));
+	}
+	
+	public void testCallerTimesOutWithoutCancellingInvocation() throws Exception {
+		verifier.setTimeouts(50, 0, TimeUnit.MILLISECONDS);
+		try {
+			verifier.verify(ca, fingerprint, cache, new SlowHandler(true));
+			fail();
+		} catch (SocketTimeoutException e) {
+			// Expected
+		}
+		approve.countDown();
+		verifier.setTimeouts(0, 0, TimeUnit.MILLISECONDS);
+		verifier.verify(ca, fingerprint, cache, new SlowHandler(true));
+		
+		assertTrue(invocations.get() <= 2);
+		assertTrue(cache.isVerified(fingerprint));
+	}
+	
+	public void testRejectionIsRemembered() throws Exception {
+		approve.countDown();
+		for (int i = 0; i < 3; i++) {
+			try {
+				verifier.verify(ca, fingerprint, cache, new SlowHandler(false));
+				fail();
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+		assertEquals(1, invocations.get());
+		assertFalse(cache.isVerified(fingerprint));
+	}
+	
+	private final class SlowHandler implements CallbackHandler {
+		private final boolean verified;
+		
+		private SlowHandler(boolean verified) {
+			this.verified = verified;
+		}
+		
+		public void handle(Callback[] callbacks) throws IOException {
+			invocations.incrementAndGet();
+			try {
+				approve.await();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			((CertificateVerificationCallback) callbacks[0]).setVerified(verified);
+		}
+	}
+}
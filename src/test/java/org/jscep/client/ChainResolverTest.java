@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.x509.KeyUsage;
+
+public class ChainResolverTest extends TestCase {
+	private KeyPair caKeyPair;
+	private X509Certificate ca;
+	private X509Certificate raEncryption;
+	private X509Certificate raSigning;
+	private ChainResolver resolver;
+	
+	@Override
+	protected void setUp() throws Exception {
+		caKeyPair = TestCertificates.createKeyPair();
+		ca = TestCertificates.createCa("CN=CA", caKeyPair);
+		raEncryption = TestCertificates.createRa("CN=RA Encryption", TestCertificates.createKeyPair().getPublic(), KeyUsage.keyEncipherment, ca, caKeyPair);
+		raSigning = TestCertificates.createRa("CN=RA Signing", TestCertificates.createKeyPair().getPublic(), KeyUsage.digitalSignature, ca, caKeyPair);
+		resolver = new ChainResolver(4);
+	}
+	
+	public void testSingleCertificate() {
+		final CaChain chain = resolver.resolve(Collections.singletonList(ca));
+		
+		assertSame(ca, chain.getCa());
+		assertSame(ca, chain.getRecipient());
+		assertSame(ca, chain.getSigner());
+	}
+	
+	public void testCaAndRaInEitherOrder() {
+		CaChain chain = resolver.resolve(Arrays.asList(ca, raEncryption));
+		assertSame(ca, chain.getCa());
+		assertSame(raEncryption, chain.getRecipient());
+		
+		chain = resolver.resolve(Arrays.asList(raEncryption, ca));
+		assertSame(ca, chain.getCa());
+		assertSame(raEncryption, chain.getRecipient());
+	}
+	
+	public void testSeparateEncryptionAndSigningCertificates() {
+		final CaChain chain = resolver.resolve(Arrays.asList(raSigning, ca, raEncryption));
+		
+		assertSame(ca, chain.getCa());
+		assertSame(raEncryption, chain.getRecipient());
+		assertSame(raSigning, chain.getSigner());
+	}
+	
+	public void testCaIsFoundWithExplicitProvider() {
+		final CaChain chain = resolver.resolve(Arrays.asList(raEncryption, ca), "BC");
+		
+		assertSame(ca, chain.getCa());
+		assertSame(raEncryption, chain.getRecipient());
+	}
+	
+	public void testResolvedChainIsReused() {
+		final CaChain first = resolver.resolve(Arrays.asList(raEncryption, ca));
+		final CaChain second = resolver.resolve(Arrays.asList(raEncryption, ca));
+		
+		assertSame(first, second);
+		assertNotSame(first, resolver.resolve(Arrays.asList(ca, raEncryption)));
+	}
+	
+	public void testChainIsResolvedAgainForAnotherProvider() {
+		resolver.resolve(Arrays.asList(raEncryption, ca));
+		
+		try {
+			resolver.resolve(Arrays.asList(raEncryption, ca), "NoSuchProvider");
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+	
+	public void testUnrelatedCertificates() throws Exception {
+		final X509Certificate other = TestCertificates.createSelfSigned("CN=Other", TestCertificates.createKeyPair());
+		final X509Certificate unrelated = TestCertificates.createRa("CN=RA", TestCertificates.createKeyPair().getPublic(), KeyUsage.keyEncipherment, other, TestCertificates.createKeyPair());
+		
+		try {
+			resolver.resolve(Arrays.asList(unrelated, raEncryption));
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+}
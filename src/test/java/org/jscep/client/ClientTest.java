@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.jscep.CertificateVerificationCallback;
+import org.jscep.response.Capabilities;
+import org.jscep.transaction.EnrolmentTransaction;
+import org.jscep.transaction.Transaction.State;
+
+public class ClientTest extends TestCase {
+	private StubScepServer server;
+	private KeyPair keyPair;
+	private Client client;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new StubScepServer(true);
+		server.start();
+		keyPair = TestCertificates.createKeyPair();
+		client = newClient();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+	
+	public void testGetCaCapabilities() throws Exception {
+		assertTrue(client.getCaCapabilities().isPostSupported());
+	}
+	
+	public void testGetCaCertificate() throws Exception {
+		final List<?> certs = client.getCaCertificate();
+		
+		assertEquals(2, certs.size());
+		assertTrue(certs.contains(server.getCaCertificate()));
+	}
+	
+	public void testEnrol() throws Exception {
+		final EnrolmentTransaction t = client.enrol(TestCertificates.createCsr("CN=Device", keyPair));
+		t.send();
+		
+		assertEquals(State.CERT_ISSUED, t.getState());
+	}
+	
+	public void testEnrolAllReturnsResultsInOrder() throws Exception {
+		final List<CertificationRequest> csrs = createCsrs(10);
+		final List<EnrolmentResult> results = client.enrolAll(csrs, 4);
+		
+		assertEquals(csrs.size(), results.size());
+		for (int i = 0; i < csrs.size(); i++) {
+			assertSame(csrs.get(i), results.get(i).getCertificationRequest());
+			assertEquals(EnrolmentResult.Status.ISSUED, results.get(i).getStatus());
+		}
+		assertEquals(1, server.getRequestCount("GetCACert"));
+	}
+	
+	public void testEnrolAllReportsEachFailure() throws Exception {
+		// Discover the CA first, so that only PKI operations are rejected.
+		client.getCaCertificate();
+		server.setRejectionRate(0.5);
+		final List<EnrolmentResult> results = client.enrolAll(createCsrs(20), 4);
+		
+		int issued = 0;
+		int failed = 0;
+		for (EnrolmentResult result : results) {
+			if (result.getStatus() == EnrolmentResult.Status.ISSUED) {
+				issued++;
+			} else if (result.getStatus() == EnrolmentResult.Status.FAILED) {
+				failed++;
+			}
+		}
+		assertEquals(20, issued + failed);
+		assertTrue(issued > 0);
+		assertTrue(failed > 0);
+	}
+	
+	public void testEnrolAllBoundsConcurrency() throws Exception {
+		client.getCaCertificate();
+		server.setLatency(50, 50, TimeUnit.MILLISECONDS);
+		server.resetRequestCounts();
+		client.enrolAll(createCsrs(12), 3);
+		
+		assertEquals(12, server.getRequestCount("PKCSReq"));
+		assertTrue(server.getMaxConcurrentOperations() <= 3);
+		assertTrue(server.getMaxConcurrentOperations() > 1);
+	}
+	
+	public void testCaStateIsCachedBetweenEnrolments() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			client.enrol(TestCertificates.createCsr("CN=Device", keyPair)).send();
+		}
+		
+		assertEquals(1, server.getRequestCount("GetCACaps"));
+		assertEquals(1, server.getRequestCount("GetCACert"));
+		assertEquals(3, server.getRequestCount("PKCSReq"));
+	}
+	
+	public void testCapabilitiesCacheIsShared() throws Exception {
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache();
+		client.setCapabilitiesCache(cache);
+		final Client other = newClient();
+		other.setCapabilitiesCache(cache);
+		
+		client.enrol(TestCertificates.createCsr("CN=Device", keyPair));
+		other.enrol(TestCertificates.createCsr("CN=Device", keyPair));
+		
+		assertEquals(1, server.getRequestCount("GetCACaps"));
+	}
+	
+	public void testCoalescedCapabilitiesAreCachedByEveryClient() throws Exception {
+		server.setLatency(200, 200, TimeUnit.MILLISECONDS);
+		final CountingCapabilitiesCache cache = new CountingCapabilitiesCache();
+		client.setCapabilitiesCache(cache);
+		final Client other = newClient();
+		final CountingCapabilitiesCache otherCache = new CountingCapabilitiesCache();
+		other.setCapabilitiesCache(otherCache);
+		
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					other.getCaCapabilities();
+				} catch (IOException e) {
+					// Detected by the assertions below.
+				}
+			}
+		};
+		t.start();
+		client.getCaCapabilities();
+		t.join();
+		
+		assertEquals(1, server.getRequestCount("GetCACaps"));
+		assertEquals(1, cache.puts.get());
+		assertEquals(1, otherCache.puts.get());
+	}
+	
+	public void testRestoredCaIsVerifiedAgain() throws Exception {
+		final File file = File.createTempFile("snapshot", ".snp");
+		file.delete();
+		try {
+			final X509Certificate ca = TestCertificates.createCa("CN=Tampered", TestCertificates.createKeyPair());
+			final CaSnapshot snapshot = new CaSnapshot(file, server.getUrl(), null);
+			snapshot.setChain(Collections.singletonList(ca));
+			snapshot.addVerified(Fingerprints.sha256(ca));
+			snapshot.save();
+			
+			final AtomicInteger asked = new AtomicInteger();
+			final Client other = new Client(server.getUrl(), TestCertificates.createSelfSigned("CN=Client", keyPair), keyPair.getPrivate(), new CallbackHandler() {
+				public void handle(Callback[] callbacks) {
+					asked.incrementAndGet();
+					for (Callback callback : callbacks) {
+						if (callback instanceof CertificateVerificationCallback) {
+							((CertificateVerificationCallback) callback).setVerified(false);
+						}
+					}
+				}
+			});
+			final VerificationCache cache = new VerificationCache();
+			other.setVerificationCache(cache);
+			other.setSnapshotFile(file);
+			
+			assertEquals(1, asked.get());
+			assertFalse(cache.isVerified(Fingerprints.sha256(ca)));
+		} finally {
+			file.delete();
+			new File(file.getPath() + ".lock").delete();
+		}
+	}
+	
+	public void testMetrics() throws Exception {
+		final SimpleClientMetrics metrics = new SimpleClientMetrics();
+		client.setMetrics(metrics);
+		
+		for (int i = 0; i < 2; i++) {
+			client.enrol(TestCertificates.createCsr("CN=Device", keyPair)).send();
+		}
+		
+		assertEquals(1, metrics.getRequestCount(ScepOperation.GetCACaps));
+		assertEquals(1, metrics.getRequestCount(ScepOperation.GetCACert));
+		assertEquals(2, metrics.getRequestCount(ScepOperation.PKCSReq));
+		assertEquals(0, metrics.getFailureCount(ScepOperation.PKCSReq));
+		assertEquals(2, metrics.getEncodeLatency().getCount());
+		assertEquals(2, metrics.getDecodeLatency().getCount());
+		assertEquals(1, metrics.getCacheMisses(CacheType.CA_CHAIN));
+		assertEquals(1, metrics.getCacheHits(CacheType.CA_CHAIN));
+	}
+	
+	private List<CertificationRequest> createCsrs(int n) throws Exception {
+		final List<CertificationRequest> csrs = new ArrayList<CertificationRequest>(n);
+		for (int i = 0; i < n; i++) {
+			csrs.add(TestCertificates.createCsr("CN=Device " + i, keyPair));
+		}
+		return csrs;
+	}
+	
+	private Client newClient() throws Exception {
+		return new Client(server.getUrl(), TestCertificates.createSelfSigned("CN=Client", keyPair), keyPair.getPrivate(), new TrustingCallbackHandler());
+	}
+	
+	private static final class CountingCapabilitiesCache implements CapabilitiesCache {
+		private final CapabilitiesCache delegate = new DefaultCapabilitiesCache();
+		private final AtomicInteger puts = new AtomicInteger();
+		
+		public Capabilities get(URL url, String profile) throws IOException {
+			return delegate.get(url, profile);
+		}
+		
+		public Capabilities getStale(URL url, String profile) {
+			return delegate.getStale(url, profile);
+		}
+		
+		public void put(URL url, String profile, Capabilities caps) {
+			puts.incrementAndGet();
+			delegate.put(url, profile, caps);
+		}
+		
+		public void putFailure(URL url, String profile, IOException failure) {
+			delegate.putFailure(url, profile, failure);
+		}
+		
+		public void remove(URL url, String profile) {
+			delegate.remove(url, profile);
+		}
+		
+		public void clear() {
+			delegate.clear();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+public class CodecCacheTest extends TestCase {
+	private static final String PROVIDER = NegotiatedEnvelopeEncoder.DEFAULT_PROVIDER;
+	private CodecCache codecs;
+	private CaChain chain;
+	private CaChain otherChain;
+	
+	@Override
+	protected void setUp() throws Exception {
+		final KeyPair keyPair = TestCertificates.createKeyPair();
+		codecs = new CodecCache(keyPair.getPrivate(), TestCertificates.createSelfSigned("CN=Client", keyPair));
+		chain = newChain("CN=CA");
+		otherChain = newChain("CN=Other CA");
+	}
+	
+	public void testEncoderIsReusedForSameChain() {
+		assertSame(codecs.getEncoder(chain, Algorithms.DES_EDE, PROVIDER, NoOpClientMetrics.INSTANCE), codecs.getEncoder(chain, Algorithms.DES_EDE, PROVIDER, NoOpClientMetrics.INSTANCE));
+	}
+	
+	public void testEncoderIsRebuiltForNewChain() {
+		final Object first = codecs.getEncoder(chain, Algorithms.DES_EDE, PROVIDER, NoOpClientMetrics.INSTANCE);
+		
+		assertNotSame(first, codecs.getEncoder(otherChain, Algorithms.DES_EDE, PROVIDER, NoOpClientMetrics.INSTANCE));
+	}
+	
+	public void testEncoderIsRebuiltForNewCipher() {
+		final Object first = codecs.getEncoder(chain, Algorithms.DES_EDE, PROVIDER, NoOpClientMetrics.INSTANCE);
+		
+		assertNotSame(first, codecs.getEncoder(chain, Algorithms.AES, PROVIDER, NoOpClientMetrics.INSTANCE));
+	}
+	
+	public void testEncoderIsRebuiltForNewProvider() {
+		final Object first = codecs.getEncoder(chain, Algorithms.AES, PROVIDER, NoOpClientMetrics.INSTANCE);
+		
+		assertNotSame(first, codecs.getEncoder(chain, Algorithms.AES, "SunJCE", NoOpClientMetrics.INSTANCE));
+	}
+	
+	public void testCodecsAreRebuiltForNewMetrics() {
+		final Object encoder = codecs.getEncoder(chain, Algorithms.DES_EDE, PROVIDER, NoOpClientMetrics.INSTANCE);
+		final Object decoder = codecs.getDecoder(NoOpClientMetrics.INSTANCE);
+		assertSame(decoder, codecs.getDecoder(NoOpClientMetrics.INSTANCE));
+		final ClientMetrics metrics = new SimpleClientMetrics();
+		
+		assertTrue(codecs.getEncoder(chain, Algorithms.DES_EDE, PROVIDER, metrics) instanceof MeteredPkiMessageEncoder);
+		assertNotSame(encoder, codecs.getEncoder(chain, Algorithms.DES_EDE, PROVIDER, metrics));
+		assertTrue(codecs.getDecoder(metrics) instanceof MeteredPkiMessageDecoder);
+	}
+	
+	private static CaChain newChain(String name) throws Exception {
+		final X509Certificate ca = TestCertificates.createCa(name, TestCertificates.createKeyPair());
+		
+		return new CaChain(Fingerprints.sha256(ca), Collections.singletonList(ca), ca, ca, ca);
+	}
+}
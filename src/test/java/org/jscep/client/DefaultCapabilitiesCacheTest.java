@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+
+import junit.framework.TestCase;
+
+import org.jscep.response.Capabilities;
+
+public class DefaultCapabilitiesCacheTest extends TestCase {
+	private URL url;
+	private Capabilities caps;
+	
+	@Override
+	protected void setUp() throws Exception {
+		url = new URL("http://127.0.0.1/scep");
+		caps = new Capabilities();
+	}
+	
+	public void testCapabilitiesExpire() throws Exception {
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache(50, 0, TimeUnit.MILLISECONDS);
+		cache.put(url, null, caps);
+		assertSame(caps, cache.get(url, null));
+		Thread.sleep(100);
+		
+		assertNull(cache.get(url, null));
+	}
+	
+	public void testFailureIsCachedUntilItExpires() throws Exception {
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache(10000, 50, TimeUnit.MILLISECONDS);
+		final IOException failure = new IOException("Connection refused");
+		cache.putFailure(url, null, failure);
+		try {
+			cache.get(url, null);
+			fail();
+		} catch (IOException e) {
+			assertSame(failure, e.getCause());
+		}
+		Thread.sleep(100);
+		
+		assertNull(cache.get(url, null));
+	}
+	
+	public void testZeroFailureTtlDisablesNegativeCaching() throws Exception {
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache(10000, 0, TimeUnit.MILLISECONDS);
+		cache.putFailure(url, null, new IOException("Connection refused"));
+		
+		assertNull(cache.get(url, null));
+	}
+	
+	public void testFailureDoesNotReplaceFreshCapabilities() throws Exception {
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache(10000, 10000, TimeUnit.MILLISECONDS);
+		cache.put(url, null, caps);
+		cache.putFailure(url, null, new IOException("Connection refused"));
+		
+		assertSame(caps, cache.get(url, null));
+	}
+	
+	public void testStaleCapabilitiesAreOnlyReturnedByGetStale() throws Exception {
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache(50, 0, 10000, TimeUnit.MILLISECONDS);
+		cache.put(url, null, caps);
+		assertSame(caps, cache.get(url, null));
+		Thread.sleep(100);
+		
+		assertNull(cache.get(url, null));
+		assertSame(caps, cache.getStale(url, null));
+	}
+	
+	public void testTooStaleCapabilitiesAreDiscarded() throws Exception {
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache(20, 0, 20, TimeUnit.MILLISECONDS);
+		cache.put(url, null, caps);
+		Thread.sleep(100);
+		
+		assertNull(cache.get(url, null));
+		assertNull(cache.getStale(url, null));
+	}
+	
+	public void testFailureDoesNotReplaceStaleCapabilities() throws Exception {
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache(20, 10000, 10000, TimeUnit.MILLISECONDS);
+		cache.put(url, null, caps);
+		Thread.sleep(50);
+		cache.putFailure(url, null, new IOException("Connection refused"));
+		
+		assertNull(cache.get(url, null));
+		assertSame(caps, cache.getStale(url, null));
+	}
+	
+	public void testProfilesAreSeparate() throws Exception {
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache();
+		cache.put(url, "a", caps);
+		
+		assertSame(caps, cache.get(url, "a"));
+		assertNull(cache.get(url, "b"));
+		assertNull(cache.getStale(url, "b"));
+	}
+	
+	public void testCacheIsSharedByClients() throws Exception {
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache();
+		final Client first = newClient(url);
+		final Client second = newClient(url);
+		first.setCapabilitiesCache(cache);
+		second.setCapabilitiesCache(cache);
+		cache.put(url, null, caps);
+		
+		// The URL has no server behind it, so both must use the cache.
+		assertSame(caps, first.getCaCapabilities(true));
+		assertSame(caps, second.getCaCapabilities(true));
+	}
+	
+	public void testFailureIsSharedByClients() throws Exception {
+		final URL closed = new URL("http", "127.0.0.1", closedPort(), "/scep");
+		final CapabilitiesCache cache = new DefaultCapabilitiesCache(10000, 10000, TimeUnit.MILLISECONDS);
+		final Client first = newClient(closed);
+		final Client second = newClient(closed);
+		first.setCapabilitiesCache(cache);
+		second.setCapabilitiesCache(cache);
+		
+		IOException failure = null;
+		try {
+			first.getCaCapabilities(true);
+			fail();
+		} catch (IOException e) {
+			failure = e;
+		}
+		try {
+			second.getCaCapabilities(true);
+			fail();
+		} catch (IOException e) {
+			assertSame(failure, e.getCause());
+		}
+	}
+	
+	private static Client newClient(URL url) throws Exception {
+		final KeyPair keyPair = TestCertificates.createKeyPair();
+		final CallbackHandler cbh = new CallbackHandler() {
+			public void handle(Callback[] callbacks) {
+			}
+		};
+		
+		return new Client(url, TestCertificates.createSelfSigned("CN=Client", keyPair), keyPair.getPrivate(), cbh);
+	}
+	
+	private static int closedPort() throws IOException {
+		final ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jscep.content.CaCapabilitiesContentHandler;
+import org.jscep.request.GetCaCaps;
+import org.jscep.request.Request;
+import org.jscep.response.Capabilities;
+import org.jscep.transport.ForwardingTransport;
+import org.jscep.transport.Transport;
+
+public class HedgingTransportTest extends TestCase {
+	private URL url;
+	private AtomicInteger primaryCalls;
+	private AtomicInteger alternateCalls;
+	private LatencyWindow latencies;
+	
+	@Override
+	protected void setUp() throws Exception {
+		url = new URL("http://127.0.0.1/scep");
+		primaryCalls = new AtomicInteger();
+		alternateCalls = new AtomicInteger();
+		latencies = new LatencyWindow(32, 20);
+	}
+	
+	public void testNoHedgeWithoutEnoughSamples() throws Exception {
+		final Transport transport = new HedgingTransport(url, new FakeTransport(url, primaryCalls, 0), new FakeTransport(url, alternateCalls, 0), latencies);
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		
+		assertEquals(1, primaryCalls.get());
+		assertEquals(0, alternateCalls.get());
+	}
+	
+	public void testSlowRequestIsHedged() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			latencies.record(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		final Transport transport = new HedgingTransport(url, new FakeTransport(url, primaryCalls, 5000), new FakeTransport(url, alternateCalls, 0), latencies);
+		final long start = System.nanoTime();
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		assertEquals(1, primaryCalls.get());
+		assertEquals(1, alternateCalls.get());
+	}
+	
+	public void testFastRequestIsNotHedged() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			latencies.record(TimeUnit.SECONDS.toNanos(1));
+		}
+		final Transport transport = new HedgingTransport(url, new FakeTransport(url, primaryCalls, 0), new FakeTransport(url, alternateCalls, 0), latencies);
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		
+		assertEquals(1, primaryCalls.get());
+		assertEquals(0, alternateCalls.get());
+	}
+	
+	public void testOnlyWinnerReachesHandler() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			latencies.record(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		// The primary answers after the hedge has won, despite being cancelled.
+		final Transport transport = new HedgingTransport(url, new FakeTransport(url, primaryCalls, 300, "primary", false), new FakeTransport(url, alternateCalls, 0, "alternate", true), latencies);
+		final RecordingContentHandler<Capabilities> handler = new RecordingContentHandler<Capabilities>(new CaCapabilitiesContentHandler());
+		transport.sendRequest(new GetCaCaps(null, handler));
+		Thread.sleep(600);
+		
+		assertEquals(1, primaryCalls.get());
+		assertEquals("alternate", new String(handler.getRecordedContent(), "US-ASCII"));
+	}
+	
+	private static final class FakeTransport extends ForwardingTransport {
+		private final AtomicInteger calls;
+		private final long delay;
+		private final String body;
+		private final boolean interruptible;
+		
+		private FakeTransport(URL url, AtomicInteger calls, long delay) {
+			this(url, calls, delay, "SHA-256\n", true);
+		}
+		
+		private FakeTransport(URL url, AtomicInteger calls, long delay, String body, boolean interruptible) {
+			super(url, null);
+			this.calls = calls;
+			this.delay = delay;
+			this.body = body;
+			this.interruptible = interruptible;
+		}
+		
+		@Override
+		public <T> T sendRequest(Request<T> msg) throws IOException {
+			calls.incrementAndGet();
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				if (interruptible) {
+					throw new InterruptedIOException();
+				}
+			}
+			return msg.getContentHandler().getContent(new ByteArrayInputStream(body.getBytes("US-ASCII")), "text/plain");
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+	public void testEmpty() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(99));
+		assertEquals(0.0, histogram.getMean(), 0.0);
+	}
+	
+	public void testCountMeanAndMax() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100);
+		histogram.record(300);
+		
+		assertEquals(2, histogram.getCount());
+		assertEquals(200.0, histogram.getMean(), 0.0);
+		assertEquals(300, histogram.getMax());
+	}
+	
+	public void testPercentileIsWithinFactorOfTwo() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000L);
+		}
+		final long p50 = histogram.getPercentile(50);
+		final long p99 = histogram.getPercentile(99);
+		
+		assertTrue(p50 >= 50000 && p50 < 100000);
+		assertTrue(p99 >= 99000 && p99 <= 100000);
+	}
+}
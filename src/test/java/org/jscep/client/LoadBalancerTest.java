@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jscep.content.CaCapabilitiesContentHandler;
+import org.jscep.request.GetCaCaps;
+import org.jscep.request.Operation;
+import org.jscep.request.Request;
+import org.jscep.transport.ForwardingTransport;
+import org.jscep.transport.Transport;
+import org.jscep.transport.TransportFactory;
+
+public class LoadBalancerTest extends TestCase {
+	private URL a;
+	private URL b;
+	
+	@Override
+	protected void setUp() throws Exception {
+		a = new URL("http://a.example.com/scep");
+		b = new URL("http://b.example.com/scep");
+	}
+	
+	public void testLeastOutstanding() {
+		final LoadBalancer lb = new LoadBalancer(Arrays.asList(a, b), BalancingPolicy.LEAST_OUTSTANDING);
+		final LoadBalancer.Endpoint first = lb.select();
+		first.start();
+		
+		assertNotSame(first, lb.select());
+	}
+	
+	public void testEwmaPrefersFasterEndpoint() {
+		final LoadBalancer lb = new LoadBalancer(Arrays.asList(a, b), BalancingPolicy.EWMA);
+		final LoadBalancer.Endpoint slow = lb.getEndpoints().get(0);
+		final LoadBalancer.Endpoint fast = lb.getEndpoints().get(1);
+		slow.start();
+		slow.succeeded(100000000L);
+		fast.start();
+		fast.succeeded(1000000L);
+		
+		for (int i = 0; i < 10; i++) {
+			assertSame(fast, lb.select());
+		}
+	}
+	
+	public void testFailingEndpointIsEjected() {
+		final LoadBalancer lb = new LoadBalancer(Arrays.asList(a, b), BalancingPolicy.LEAST_OUTSTANDING);
+		final LoadBalancer.Endpoint bad = lb.getEndpoints().get(0);
+		for (int i = 0; i < LoadBalancer.EJECTION_THRESHOLD; i++) {
+			bad.start();
+			bad.failed();
+		}
+		
+		assertTrue(bad.isEjected(System.nanoTime()));
+		for (int i = 0; i < 10; i++) {
+			assertNotSame(bad, lb.select());
+		}
+	}
+	
+	public void testEjectedEndpointIsUsedWhenNoneRemain() {
+		final LoadBalancer lb = new LoadBalancer(Arrays.asList(a), BalancingPolicy.LEAST_OUTSTANDING);
+		final LoadBalancer.Endpoint only = lb.getEndpoints().get(0);
+		for (int i = 0; i < LoadBalancer.EJECTION_THRESHOLD; i++) {
+			only.start();
+			only.failed();
+		}
+		
+		assertSame(only, lb.select());
+	}
+	
+	public void testPkiOperationsArePinned() throws Exception {
+		final LoadBalancer lb = new LoadBalancer(Arrays.asList(a, b), BalancingPolicy.LEAST_OUTSTANDING);
+		final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+		final BalancedTransport transport = new BalancedTransport(a, lb, new CountingFactory(calls), Transport.Method.POST);
+		final Request<Object> pkiOperation = new PkiOperation();
+		
+		transport.sendRequest(pkiOperation);
+		final URL pinned = transport.getPinnedUrl();
+		// Keep the pinned endpoint busy, so it would not otherwise be chosen.
+		lb.getEndpoints().get(pinned.equals(a) ? 0 : 1).start();
+		for (int i = 0; i < 5; i++) {
+			transport.sendRequest(pkiOperation);
+		}
+		
+		assertEquals(6, calls.get(pinned.getHost()).get());
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		assertEquals(6, calls.get(pinned.getHost()).get());
+	}
+	
+	public void testConcurrentTransactionsMayUseDifferentEndpoints() throws Exception {
+		final LoadBalancer lb = new LoadBalancer(Arrays.asList(a, b), BalancingPolicy.LEAST_OUTSTANDING);
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		// Holds the first request open, so that its endpoint stays busy.
+		final TransportFactory factory = new TransportFactory() {
+			public Transport createTransport(Transport.Method method, URL url) {
+				return new ForwardingTransport(url, null) {
+					@Override
+					public <T> T sendRequest(Request<T> msg) throws IOException {
+						if (entered.getCount() > 0) {
+							entered.countDown();
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								throw new InterruptedIOException();
+							}
+						}
+						return null;
+					}
+				};
+			}
+		};
+		final BalancedTransport first = new BalancedTransport(a, lb, factory, Transport.Method.POST);
+		final BalancedTransport second = new BalancedTransport(a, lb, factory, Transport.Method.POST);
+		final Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					first.sendRequest(new PkiOperation());
+				} catch (IOException e) {
+					// Detected by the assertions below.
+				}
+			}
+		};
+		t.start();
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+		second.sendRequest(new PkiOperation());
+		release.countDown();
+		t.join();
+		
+		assertNotNull(first.getPinnedUrl());
+		assertNotNull(second.getPinnedUrl());
+		assertFalse(first.getPinnedUrl().equals(second.getPinnedUrl()));
+	}
+	
+	public void testEndpointWithOpenCircuitIsSkipped() throws Exception {
+		final LoadBalancer lb = new LoadBalancer(Arrays.asList(a, b), BalancingPolicy.LEAST_OUTSTANDING);
+		final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+		final CountingFactory counting = new CountingFactory(calls);
+		// The circuit of the first endpoint is open.
+		final TransportFactory factory = new TransportFactory() {
+			public Transport createTransport(Transport.Method method, final URL url) {
+				if (url.equals(a) == false) {
+					return counting.createTransport(method, url);
+				}
+				return new ForwardingTransport(url, null) {
+					@Override
+					public <T> T sendRequest(Request<T> msg) throws IOException {
+						calls.putIfAbsent(url.getHost(), new AtomicInteger());
+						calls.get(url.getHost()).incrementAndGet();
+						throw new RequestRejectedException(url, RequestRejectedException.Reason.CIRCUIT_OPEN);
+					}
+				};
+			}
+		};
+		for (int i = 0; i < 5; i++) {
+			new BalancedTransport(a, lb, factory, Transport.Method.GET).sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		}
+		
+		assertEquals(5, calls.get(b.getHost()).get());
+		assertTrue(calls.get(a.getHost()) == null || calls.get(a.getHost()).get() <= 1);
+		assertEquals(0, lb.getEndpoints().get(0).getOutstanding());
+	}
+	
+	public void testPinnedRequestIsNotMovedWhenRejected() throws Exception {
+		final LoadBalancer lb = new LoadBalancer(Arrays.asList(a, b), BalancingPolicy.LEAST_OUTSTANDING);
+		final AtomicInteger rejecting = new AtomicInteger();
+		final TransportFactory factory = new TransportFactory() {
+			public Transport createTransport(Transport.Method method, final URL url) {
+				return new ForwardingTransport(url, null) {
+					@Override
+					public <T> T sendRequest(Request<T> msg) throws IOException {
+						if (rejecting.get() > 0) {
+							throw new RequestRejectedException(url, RequestRejectedException.Reason.CIRCUIT_OPEN);
+						}
+						return null;
+					}
+				};
+			}
+		};
+		final BalancedTransport transport = new BalancedTransport(a, lb, factory, Transport.Method.POST);
+		transport.sendRequest(new PkiOperation());
+		final URL pinned = transport.getPinnedUrl();
+		rejecting.set(1);
+		try {
+			transport.sendRequest(new PkiOperation());
+			fail();
+		} catch (RequestRejectedException e) {
+			// Expected
+		}
+		
+		assertEquals(pinned, transport.getPinnedUrl());
+	}
+	
+	private static final class PkiOperation extends Request<Object> {
+		@Override
+		public Operation getOperation() {
+			return Operation.PKIOperation;
+		}
+		
+		@Override
+		public String getMessage() {
+			return "";
+		}
+		
+		@Override
+		public org.jscep.content.ScepContentHandler<Object> getContentHandler() {
+			return null;
+		}
+	}
+	
+	private static final class CountingFactory implements TransportFactory {
+		private final ConcurrentMap<String, AtomicInteger> calls;
+		
+		private CountingFactory(ConcurrentMap<String, AtomicInteger> calls) {
+			this.calls = calls;
+		}
+		
+		public Transport createTransport(Transport.Method method, final URL url) {
+			calls.putIfAbsent(url.getHost(), new AtomicInteger());
+			return new ForwardingTransport(url, null) {
+				@Override
+				public <T> T sendRequest(Request<T> msg) throws IOException {
+					calls.get(url.getHost()).incrementAndGet();
+					return null;
+				}
+			};
+		}
+	}
+}
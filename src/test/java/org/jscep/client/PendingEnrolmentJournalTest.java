@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class PendingEnrolmentJournalTest extends TestCase {
+	private File file;
+	private X509Certificate issuer;
+	private X509Certificate identity;
+	
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("journal", ".jnl");
+		file.delete();
+		issuer = TestCertificates.createSelfSigned("CN=CA", TestCertificates.createKeyPair());
+		identity = TestCertificates.createSelfSigned("CN=Client", TestCertificates.createKeyPair());
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		new File(file.getPath() + ".compact").delete();
+	}
+	
+	public void testPendingEnrolmentsAreReplayed() throws Exception {
+		final PendingEnrolment first = newEnrolment();
+		final PendingEnrolment second = newEnrolment();
+		final PendingEnrolment third = newEnrolment();
+		
+		PendingEnrolmentJournal journal = new PendingEnrolmentJournal(file);
+		journal.add(first);
+		journal.add(second);
+		journal.add(third);
+		assertTrue(journal.remove(second.getId()));
+		assertFalse(journal.remove(second.getId()));
+		journal.close();
+		
+		journal = new PendingEnrolmentJournal(file);
+		final List<PendingEnrolment> pending = journal.getPending();
+		journal.close();
+		
+		assertEquals(2, pending.size());
+		assertEquals(first.getId(), pending.get(0).getId());
+		assertEquals(third.getId(), pending.get(1).getId());
+		assertEquals(issuer, pending.get(0).getIssuer());
+		assertEquals(identity, pending.get(0).getIdentity());
+		assertEquals(first.getId(), PendingEnrolment.idOf(pending.get(0).getCertificationRequest()));
+	}
+	
+	public void testIncompleteRecordIsDiscarded() throws Exception {
+		final PendingEnrolment first = newEnrolment();
+		
+		PendingEnrolmentJournal journal = new PendingEnrolmentJournal(file);
+		journal.add(first);
+		journal.add(newEnrolment());
+		journal.close();
+		
+		// Corrupt the last byte of the second record.
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long end = 8;
+			raf.seek(end);
+			int length;
+			long last = end;
+			while ((length = raf.readInt()) != 0) {
+				last = end;
+				end += 8 + length;
+				raf.seek(end);
+			}
+			raf.seek(end - 1);
+			final int b = raf.read();
+			raf.seek(end - 1);
+			raf.write(b ^ 0xff);
+			assertTrue(last > 8);
+		} finally {
+			raf.close();
+		}
+		
+		journal = new PendingEnrolmentJournal(file);
+		assertEquals(1, journal.getPending().size());
+		assertEquals(first.getId(), journal.getPending().get(0).getId());
+		
+		// New records replace the discarded one.
+		final PendingEnrolment third = newEnrolment();
+		journal.add(third);
+		journal.close();
+		
+		journal = new PendingEnrolmentJournal(file);
+		assertEquals(2, journal.getPending().size());
+		assertEquals(third.getId(), journal.getPending().get(1).getId());
+		journal.close();
+	}
+	
+	public void testCompaction() throws Exception {
+		final PendingEnrolment kept = newEnrolment();
+		final PendingEnrolment removed = newEnrolment();
+		
+		PendingEnrolmentJournal journal = new PendingEnrolmentJournal(file);
+		journal.setSyncOnWrite(false);
+		journal.add(kept);
+		for (int i = 0; i < 600; i++) {
+			journal.add(removed);
+			journal.remove(removed.getId());
+		}
+		journal.close();
+		
+		journal = new PendingEnrolmentJournal(file);
+		assertEquals(1, journal.getPending().size());
+		assertEquals(kept.getId(), journal.getPending().get(0).getId());
+		journal.close();
+	}
+	
+	public void testJournalIsLocked() throws Exception {
+		final PendingEnrolmentJournal journal = new PendingEnrolmentJournal(file);
+		try {
+			new PendingEnrolmentJournal(file);
+			fail();
+		} catch (Exception e) {
+			// Expected
+		} finally {
+			journal.close();
+		}
+	}
+	
+	private PendingEnrolment newEnrolment() throws Exception {
+		final KeyPair keyPair = TestCertificates.createKeyPair();
+		
+		return new PendingEnrolment(TestCertificates.createCsr("CN=Device", keyPair), issuer, identity);
+	}
+}
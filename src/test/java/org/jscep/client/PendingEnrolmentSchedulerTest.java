@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.net.URL;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+
+import junit.framework.TestCase;
+
+public class PendingEnrolmentSchedulerTest extends TestCase {
+	private PendingEnrolmentScheduler scheduler;
+	
+	@Override
+	protected void setUp() throws Exception {
+		final KeyPair keyPair = TestCertificates.createKeyPair();
+		final CallbackHandler cbh = new CallbackHandler() {
+			public void handle(Callback[] callbacks) {
+			}
+		};
+		final Client client = new Client(new URL("http://localhost/scep"), TestCertificates.createSelfSigned("CN=Client", keyPair), keyPair.getPrivate(), cbh);
+		scheduler = new PendingEnrolmentScheduler(client, 1);
+		scheduler.setInitialDelay(10, TimeUnit.SECONDS);
+		scheduler.setMaxDelay(60, TimeUnit.SECONDS);
+		scheduler.setMultiplier(2);
+		scheduler.setJitter(0.5);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		scheduler.shutdown();
+	}
+	
+	public void testDelayGrowsExponentially() {
+		assertEquals(10000, scheduler.getDelay(0, 0));
+		assertEquals(20000, scheduler.getDelay(1, 0));
+		assertEquals(40000, scheduler.getDelay(2, 0));
+	}
+	
+	public void testDelayIsCapped() {
+		assertEquals(60000, scheduler.getDelay(3, 0));
+		assertEquals(60000, scheduler.getDelay(1000, 0));
+	}
+	
+	public void testJitterShortensDelay() {
+		assertEquals(5000, scheduler.getDelay(0, 1));
+		assertEquals(7500, scheduler.getDelay(0, 0.5));
+	}
+}
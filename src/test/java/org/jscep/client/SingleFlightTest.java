@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jscep.transport.Deadline;
+import org.jscep.transport.Timeouts;
+
+public class SingleFlightTest extends TestCase {
+	private SingleFlight<String, String> flights;
+	private AtomicInteger loads;
+	private CountDownLatch release;
+	private ExecutorService executor;
+	
+	@Override
+	protected void setUp() throws Exception {
+		flights = new SingleFlight<String, String>();
+		loads = new AtomicInteger();
+		release = new CountDownLatch(1);
+		executor = Executors.newCachedThreadPool();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+	}
+	
+	public void testConcurrentCallsShareOneLoad() throws Exception {
+		final List<Future<String>> results = submit(50, new BlockingLoader("caps", null));
+		awaitLoads(1);
+		release.countDown();
+		for (Future<String> result : results) {
+			assertEquals("caps", result.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, loads.get());
+		assertEquals(0, flights.size());
+	}
+	
+	public void testFailureIsSharedByAllCallers() throws Exception {
+		final IOException failure = new IOException("Connection refused");
+		final List<Future<String>> results = submit(10, new BlockingLoader(null, failure));
+		awaitLoads(1);
+		release.countDown();
+		for (Future<String> result : results) {
+			try {
+				result.get(5, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertSame(failure, e.getCause());
+			}
+		}
+		assertEquals(1, loads.get());
+	}
+	
+	public void testCompletedCallIsNotReused() throws Exception {
+		release.countDown();
+		assertEquals("caps", flights.execute("key", new BlockingLoader("caps", null)));
+		assertEquals("caps", flights.execute("key", new BlockingLoader("caps", null)));
+		assertEquals(2, loads.get());
+	}
+	
+	public void testWaiterHonoursDeadline() throws Exception {
+		submit(1, new BlockingLoader("caps", null));
+		awaitLoads(1);
+		final Deadline previous = Deadline.enter(new Timeouts(0, 0, 0, 100, TimeUnit.MILLISECONDS));
+		try {
+			flights.execute("key", new BlockingLoader("caps", null));
+			fail();
+		} catch (SocketTimeoutException e) {
+			// Expected
+		} finally {
+			Deadline.restore(previous);
+			release.countDown();
+		}
+		assertEquals(1, loads.get());
+	}
+	
+	private List<Future<String>> submit(int n, final SingleFlight.Loader<String> loader) {
+		final List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < n; i++) {
+			results.add(executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return flights.execute("key", loader);
+				}
+			}));
+		}
+		return results;
+	}
+	
+	private void awaitLoads(int n) throws InterruptedException {
+		while (loads.get() < n) {
+			Thread.sleep(5);
+		}
+		// Give the other callers time to join the call in progress.
+		Thread.sleep(100);
+	}
+	
+	private final class BlockingLoader implements SingleFlight.Loader<String> {
+		private final String value;
+		private final IOException failure;
+		
+		private BlockingLoader(String value, IOException failure) {
+			this.value = value;
+			this.failure = failure;
+		}
+		
+		public String load() throws IOException {
+			loads.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.security.KeyPair;
+import java.security.cert.CertStore;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.util.encoders.Base64;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.jscep.message.CertRep;
+import org.jscep.message.GetCRL;
+import org.jscep.message.GetCert;
+import org.jscep.message.GetCertInitial;
+import org.jscep.message.PkcsPkiEnvelopeDecoder;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkcsReq;
+import org.jscep.message.PkiMessage;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.Nonce;
+import org.jscep.transport.Http2StubServer;
+import org.jscep.transport.Http2StubServer.Response;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * An in-process SCEP server for tests, benchmarks and load tests.
+ * <p>
+ * The server answers GetCACaps, GetCACert, GetNextCACert and the PKCSReq,
+ * GetCertInitial, GetCert and GetCRL PKI operations.  Latency, pending
+ * responses, rejections and HTTP errors can be injected.  Random choices
+ * are made from a seeded generator, so a run can be repeated exactly.
+ */
+@SuppressWarnings("deprecation")
+public class StubScepServer {
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	private final HttpServer server;
+	private final boolean secure;
+	private final ExecutorService executor;
+	private final KeyPair caKeyPair;
+	private final X509Certificate ca;
+	private final KeyPair raKeyPair;
+	private final X509Certificate ra;
+	private final List<X509Certificate> chain;
+	private final ConcurrentMap<BigInteger, X509Certificate> issued = new ConcurrentHashMap<BigInteger, X509Certificate>();
+	private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+	private final ConcurrentMap<String, AtomicLong> requestCounts = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<InetSocketAddress, Boolean> connections = new ConcurrentHashMap<InetSocketAddress, Boolean>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private final Random random = new Random(0);
+	private volatile String[] capabilities = {"GetNextCACert", "POSTPKIOperation", "SHA-1", "DES3"};
+	private volatile List<X509Certificate> rolloverChain;
+	private volatile long minLatency;
+	private volatile long maxLatency;
+	private volatile int pendingPolls;
+	private volatile double rejectionRate;
+	private volatile double errorRate;
+	private Http2StubServer http2;
+	
+	/**
+	 * Creates a new server on an ephemeral port of the loopback interface.
+	 * 
+	 * @param withRa true if the CA should use an RA.
+	 * @throws Exception if the server cannot be created.
+	 */
+	public StubScepServer(boolean withRa) throws Exception {
+		this(withRa, 0);
+	}
+	
+	/**
+	 * Creates a new server on an ephemeral port of the loopback interface.
+	 * 
+	 * @param withRa true if the CA should use an RA.
+	 * @param threads the number of request threads, or 0 for no limit.
+	 * @throws Exception if the server cannot be created.
+	 */
+	public StubScepServer(boolean withRa, int threads) throws Exception {
+		this(withRa, threads, null);
+	}
+	
+	/**
+	 * Creates a new server on an ephemeral port of the loopback interface.
+	 * 
+	 * @param withRa true if the CA should use an RA.
+	 * @param threads the number of request threads, or 0 for no limit.
+	 * @param sslContext the context for HTTPS, or null for HTTP.
+	 * @throws Exception if the server cannot be created.
+	 */
+	public StubScepServer(boolean withRa, int threads, SSLContext sslContext) throws Exception {
+		caKeyPair = TestCertificates.createKeyPair();
+		ca = TestCertificates.createCa("CN=Stub CA", caKeyPair);
+		if (withRa) {
+			raKeyPair = TestCertificates.createKeyPair();
+			ra = TestCertificates.createRa("CN=Stub RA", raKeyPair.getPublic(), KeyUsage.digitalSignature | KeyUsage.keyEncipherment, ca, caKeyPair);
+			chain = new ArrayList<X509Certificate>();
+			chain.add(ca);
+			chain.add(ra);
+		} else {
+			raKeyPair = caKeyPair;
+			ra = ca;
+			chain = Collections.singletonList(ca);
+		}
+		secure = sslContext != null;
+		if (secure) {
+			final HttpsServer https = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+			https.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+			server = https;
+		} else {
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		}
+		server.createContext("/scep", new ScepHandler());
+		executor = threads == 0 ? Executors.newCachedThreadPool() : Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+	}
+	
+	public void start() {
+		server.start();
+	}
+	
+	/**
+	 * Starts answering the same requests over cleartext HTTP/2 on a 
+	 * second port, for clients which use prior knowledge.
+	 * 
+	 * @return the URL of the HTTP/2 endpoint.
+	 * @throws IOException if the port cannot be opened.
+	 */
+	public synchronized URL startHttp2() throws IOException {
+		if (http2 == null) {
+			http2 = new Http2StubServer(new Http2Handler());
+			http2.start();
+		}
+		return http2.getUrl();
+	}
+	
+	public synchronized void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+		if (http2 != null) {
+			http2.stop();
+		}
+	}
+	
+	public URL getUrl() throws IOException {
+		return new URL(secure ? "https" : "http", "127.0.0.1", server.getAddress().getPort(), "/scep");
+	}
+	
+	public X509Certificate getCaCertificate() {
+		return ca;
+	}
+	
+	public List<X509Certificate> getCaChain() {
+		return chain;
+	}
+	
+	public void setCapabilities(String... capabilities) {
+		this.capabilities = capabilities.clone();
+	}
+	
+	/**
+	 * Delays every response by a random time in the given range.
+	 */
+	public void setLatency(long min, long max, TimeUnit unit) {
+		if (min > max) {
+			throw new IllegalArgumentException();
+		}
+		minLatency = unit.toMillis(min);
+		maxLatency = unit.toMillis(max);
+	}
+	
+	/**
+	 * Leaves each PKCSReq pending until it has been polled the given number
+	 * of times with GetCertInitial.
+	 */
+	public void setPendingPolls(int polls) {
+		pendingPolls = polls;
+	}
+	
+	/**
+	 * Rejects the given fraction of PKI operations with badRequest.
+	 */
+	public void setRejectionRate(double rate) {
+		rejectionRate = rate;
+	}
+	
+	/**
+	 * Answers the given fraction of all requests with HTTP 500.
+	 */
+	public void setErrorRate(double rate) {
+		errorRate = rate;
+	}
+	
+	/**
+	 * Creates a new CA certificate to be returned by GetNextCACert.
+	 * 
+	 * @param notBefore when the new certificate becomes valid.
+	 * @return the new CA certificate.
+	 */
+	public X509Certificate createRollover(Date notBefore) throws Exception {
+		final KeyPair nextKeyPair = TestCertificates.createKeyPair();
+		final X509Certificate next = TestCertificates.createCa("CN=Stub CA", nextKeyPair, notBefore);
+		rolloverChain = Collections.singletonList(next);
+		
+		return next;
+	}
+	
+	/**
+	 * Returns the number of requests received for the given operation, 
+	 * such as GetCACert or PKCSReq.
+	 */
+	public long getRequestCount(String operation) {
+		final AtomicLong count = requestCounts.get(operation);
+		
+		return count == null ? 0 : count.get();
+	}
+	
+	public void resetRequestCounts() {
+		requestCounts.clear();
+		connections.clear();
+		maxInFlight.set(0);
+	}
+	
+	/**
+	 * Returns the largest number of PKI operations which have been in 
+	 * progress at once since the counts were last reset.
+	 * 
+	 * @return the number of operations.
+	 */
+	public int getMaxConcurrentOperations() {
+		return maxInFlight.get();
+	}
+	
+	/**
+	 * Returns the number of distinct client connections which have sent 
+	 * requests since the counts were last reset.
+	 * 
+	 * @return the number of connections.
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+	
+	private void count(String operation) {
+		AtomicLong count = requestCounts.get(operation);
+		if (count == null) {
+			final AtomicLong existing = requestCounts.putIfAbsent(operation, count = new AtomicLong());
+			if (existing != null) {
+				count = existing;
+			}
+		}
+		count.incrementAndGet();
+	}
+	
+	private double nextDouble() {
+		synchronized (random) {
+			return random.nextDouble();
+		}
+	}
+	
+	private byte[] getCapabilities() throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		for (String capability : capabilities) {
+			sb.append(capability).append('\n');
+		}
+		return sb.toString().getBytes("US-ASCII");
+	}
+	
+	private byte[] getNextCaCert() throws Exception {
+		final List<X509Certificate> next = rolloverChain;
+		if (next == null) {
+			return null;
+		}
+		// The new chain is signed by the current CA, or its RA.
+		final CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+		generator.addSigner(raKeyPair.getPrivate(), ra, CMSSignedDataGenerator.DIGEST_SHA1);
+		generator.addCertificatesAndCRLs(CertStore.getInstance("Collection", new CollectionCertStoreParameters(chain)));
+		final byte[] content = certsOnly(next).getEncoded();
+		
+		return generator.generate(new CMSProcessableByteArray(content), true, "BC").getEncoded();
+	}
+	
+	private byte[] pkiOperation(byte[] body) throws Exception {
+		final CMSSignedData signedData = new CMSSignedData(body);
+		final PkiMessageDecoder decoder = new PkiMessageDecoder(new PkcsPkiEnvelopeDecoder(raKeyPair.getPrivate()));
+		final PkiMessage<?> req = decoder.decode(signedData);
+		count(req.getMessageType().toString());
+		
+		final CertRep rep;
+		if (rejectionRate > 0 && nextDouble() < rejectionRate) {
+			rep = failure(req, FailInfo.badRequest);
+		} else if (req instanceof PkcsReq) {
+			final CertificationRequest csr = (CertificationRequest) req.getMessageData();
+			if (pendingPolls > 0) {
+				pending.put(String.valueOf(req.getTransactionId()), new Pending(csr, pendingPolls));
+				rep = new CertRep(req.getTransactionId(), Nonce.nextNonce(), req.getSenderNonce());
+			} else {
+				rep = success(req, Collections.singletonList(issue(csr)));
+			}
+		} else if (req instanceof GetCertInitial) {
+			final Pending p = pending.get(String.valueOf(req.getTransactionId()));
+			if (p == null) {
+				rep = failure(req, FailInfo.badCertId);
+			} else if (p.polls.decrementAndGet() > 0) {
+				rep = new CertRep(req.getTransactionId(), Nonce.nextNonce(), req.getSenderNonce());
+			} else {
+				pending.remove(String.valueOf(req.getTransactionId()));
+				rep = success(req, Collections.singletonList(issue(p.csr)));
+			}
+		} else if (req instanceof GetCert) {
+			final IssuerAndSerialNumber iasn = (IssuerAndSerialNumber) req.getMessageData();
+			final X509Certificate cert = issued.get(iasn.getSerialNumber().getValue());
+			if (cert == null) {
+				rep = failure(req, FailInfo.badCertId);
+			} else {
+				rep = success(req, Collections.singletonList(cert));
+			}
+		} else if (req instanceof GetCRL) {
+			rep = new CertRep(req.getTransactionId(), Nonce.nextNonce(), req.getSenderNonce(), crlOnly(createCrl()));
+		} else {
+			rep = failure(req, FailInfo.badRequest);
+		}
+		return encode(rep, getRequester(signedData));
+	}
+	
+	private CertRep success(PkiMessage<?> req, Collection<X509Certificate> certs) throws Exception {
+		return new CertRep(req.getTransactionId(), Nonce.nextNonce(), req.getSenderNonce(), certsOnly(certs));
+	}
+	
+	private CertRep failure(PkiMessage<?> req, FailInfo failInfo) {
+		return new CertRep(req.getTransactionId(), Nonce.nextNonce(), req.getSenderNonce(), failInfo);
+	}
+	
+	byte[] encode(CertRep rep, X509Certificate requester) throws IOException {
+		final PkiMessageEncoder encoder = new PkiMessageEncoder(raKeyPair.getPrivate(), ra, new PkcsPkiEnvelopeEncoder(requester));
+		
+		return encoder.encode(rep).getEncoded();
+	}
+	
+	X509Certificate issue(CertificationRequest csr) throws Exception {
+		final PKCS10CertificationRequest pkcs10 = new PKCS10CertificationRequest(csr.getEncoded());
+		final X500Principal subject = new X500Principal(csr.getCertificationRequestInfo().getSubject().getEncoded());
+		final X509Certificate cert = TestCertificates.createCertificate(subject, pkcs10.getPublicKey(), ca, caKeyPair.getPrivate());
+		issued.put(cert.getSerialNumber(), cert);
+		
+		return cert;
+	}
+	
+	private X509CRL createCrl() throws Exception {
+		final long now = System.currentTimeMillis();
+		final X509V2CRLGenerator generator = new X509V2CRLGenerator();
+		generator.setIssuerDN(ca.getSubjectX500Principal());
+		generator.setThisUpdate(new Date(now));
+		generator.setNextUpdate(new Date(now + DAY));
+		generator.setSignatureAlgorithm("SHA1withRSA");
+		
+		return generator.generate(caKeyPair.getPrivate());
+	}
+	
+	static CMSSignedData certsOnly(Collection<X509Certificate> certs) throws Exception {
+		final CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+		generator.addCertificatesAndCRLs(CertStore.getInstance("Collection", new CollectionCertStoreParameters(certs)));
+		
+		return generator.generate(new CMSProcessableByteArray(new byte[0]), "BC");
+	}
+	
+	static CMSSignedData crlOnly(X509CRL crl) throws Exception {
+		final CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+		generator.addCertificatesAndCRLs(CertStore.getInstance("Collection", new CollectionCertStoreParameters(Collections.singletonList(crl))));
+		
+		return generator.generate(new CMSProcessableByteArray(new byte[0]), "BC");
+	}
+	
+	private static X509Certificate getRequester(CMSSignedData signedData) throws Exception {
+		final Collection<?> certs = signedData.getCertificatesAndCRLs("Collection", "BC").getCertificates(null);
+		
+		return (X509Certificate) certs.iterator().next();
+	}
+	
+	private void delay() throws InterruptedException {
+		final long min = minLatency;
+		final long max = maxLatency;
+		if (max == 0) {
+			return;
+		}
+		Thread.sleep(min + (long) (nextDouble() * (max - min)));
+	}
+	
+	private Response handle(String method, String query, byte[] body, InetSocketAddress remote) throws Exception {
+		connections.putIfAbsent(remote, Boolean.TRUE);
+		final Map<String, String> params = parseQuery(query);
+		final String operation = params.get("operation");
+		final boolean pki = "PKIOperation".equals(operation);
+		if (pki) {
+			final int n = inFlight.incrementAndGet();
+			int max;
+			while (n > (max = maxInFlight.get()) && maxInFlight.compareAndSet(max, n) == false) {
+				// Retry until the maximum is at least n.
+			}
+		}
+		try {
+			delay();
+		} finally {
+			if (pki) {
+				inFlight.decrementAndGet();
+			}
+		}
+		if (errorRate > 0 && nextDouble() < errorRate) {
+			return new Response(500, "text/plain", new byte[0]);
+		}
+		if ("GetCACaps".equals(operation)) {
+			count(operation);
+			return new Response(200, "text/plain", getCapabilities());
+		} else if ("GetCACert".equals(operation)) {
+			count(operation);
+			if (chain.size() == 1) {
+				return new Response(200, "application/x-x509-ca-cert", ca.getEncoded());
+			} else {
+				return new Response(200, "application/x-x509-ca-ra-cert", certsOnly(chain).getEncoded());
+			}
+		} else if ("GetNextCACert".equals(operation)) {
+			count(operation);
+			final byte[] next = getNextCaCert();
+			if (next == null) {
+				return new Response(404, "text/plain", new byte[0]);
+			} else {
+				return new Response(200, "application/x-x509-next-ca-cert", next);
+			}
+		} else if ("PKIOperation".equals(operation)) {
+			final byte[] message;
+			if ("POST".equals(method)) {
+				message = body;
+			} else {
+				message = Base64.decode(params.get("message"));
+			}
+			return new Response(200, "application/x-pki-message", pkiOperation(message));
+		} else {
+			return new Response(400, "text/plain", new byte[0]);
+		}
+	}
+	
+	private final class ScepHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				final byte[] body = readAll(exchange.getRequestBody());
+				final Response response = StubScepServer.this.handle(exchange.getRequestMethod(), exchange.getRequestURI().getRawQuery(), body, exchange.getRemoteAddress());
+				respond(exchange, response.getStatus(), response.getContentType(), response.getBody());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				respond(exchange, 500, "text/plain", String.valueOf(e).getBytes("UTF-8"));
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+	
+	private final class Http2Handler implements Http2StubServer.Handler {
+		public Response handle(String method, String target, byte[] body, InetSocketAddress remote) throws Exception {
+			final int query = target.indexOf('?');
+			
+			return StubScepServer.this.handle(method, query == -1 ? null : target.substring(query + 1), body, remote);
+		}
+	}
+	
+	private static final class Pending {
+		private final CertificationRequest csr;
+		private final AtomicInteger polls;
+		
+		private Pending(CertificationRequest csr, int polls) {
+			this.csr = csr;
+			this.polls = new AtomicInteger(polls);
+		}
+	}
+	
+	static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		final OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+	
+	static Map<String, String> parseQuery(String query) throws IOException {
+		final Map<String, String> params = new HashMap<String, String>();
+		if (query == null) {
+			return params;
+		}
+		for (String param : query.split("&")) {
+			final int eq = param.indexOf('=');
+			if (eq > 0) {
+				params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+	
+	static byte[] readAll(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+/**
+ * Creates keys and certificates for use in tests.
+ */
+@SuppressWarnings("deprecation")
+public final class TestCertificates {
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	private static final AtomicLong SERIAL = new AtomicLong(System.currentTimeMillis());
+	
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	private TestCertificates() {
+	}
+	
+	public static KeyPair createKeyPair() throws GeneralSecurityException {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		
+		return generator.generateKeyPair();
+	}
+	
+	public static X509Certificate createCa(String name, KeyPair keyPair) throws GeneralSecurityException {
+		return createCa(name, keyPair, new Date(System.currentTimeMillis() - DAY));
+	}
+	
+	public static X509Certificate createCa(String name, KeyPair keyPair, Date notBefore) throws GeneralSecurityException {
+		final X500Principal subject = new X500Principal(name);
+		final X509V3CertificateGenerator generator = newGenerator(subject, subject, keyPair.getPublic());
+		generator.setNotBefore(notBefore);
+		generator.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(0));
+		generator.addExtension(X509Extensions.KeyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign | KeyUsage.digitalSignature));
+		
+		return generator.generate(keyPair.getPrivate());
+	}
+	
+	public static X509Certificate createRa(String name, PublicKey key, int keyUsage, X509Certificate ca, KeyPair caKeyPair) throws GeneralSecurityException {
+		final X509V3CertificateGenerator generator = newGenerator(ca.getSubjectX500Principal(), new X500Principal(name), key);
+		generator.addExtension(X509Extensions.AuthorityKeyIdentifier, false, new AuthorityKeyIdentifier(keyIdentifier(caKeyPair.getPublic())));
+		generator.addExtension(X509Extensions.KeyUsage, true, new KeyUsage(keyUsage));
+		
+		return generator.generate(caKeyPair.getPrivate());
+	}
+	
+	public static X509Certificate createCertificate(X500Principal subject, PublicKey key, X509Certificate issuer, PrivateKey issuerKey) throws GeneralSecurityException {
+		return newGenerator(issuer.getSubjectX500Principal(), subject, key).generate(issuerKey);
+	}
+	
+	/**
+	 * Creates a TLS server certificate with the given subjectAltName entries.
+	 */
+	public static X509Certificate createServer(String name, PublicKey key, X509Certificate ca, KeyPair caKeyPair, GeneralName... altNames) throws GeneralSecurityException {
+		final X509V3CertificateGenerator generator = newGenerator(ca.getSubjectX500Principal(), new X500Principal(name), key);
+		if (altNames.length > 0) {
+			final ASN1EncodableVector v = new ASN1EncodableVector();
+			for (GeneralName altName : altNames) {
+				v.add(altName);
+			}
+			generator.addExtension(X509Extensions.SubjectAlternativeName, false, GeneralNames.getInstance(new DERSequence(v)));
+		}
+		return generator.generate(caKeyPair.getPrivate());
+	}
+	
+	/**
+	 * Creates a TLS context which presents the given certificate, if any, 
+	 * and trusts the given CA.
+	 */
+	public static SSLContext createSslContext(KeyPair keyPair, X509Certificate cert, X509Certificate ca) throws Exception {
+		final char[] password = "changeit".toCharArray();
+		final KeyStore keyStore = KeyStore.getInstance("JKS");
+		keyStore.load(null, password);
+		keyStore.setCertificateEntry("ca", ca);
+		KeyManagerFactory kmf = null;
+		if (cert != null) {
+			keyStore.setKeyEntry("server", keyPair.getPrivate(), password, new X509Certificate[] {cert, ca});
+			kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(keyStore, password);
+		}
+		final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(keyStore);
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf == null ? null : kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+		
+		return context;
+	}
+	
+	public static X509Certificate createSelfSigned(String name, KeyPair keyPair) throws GeneralSecurityException {
+		final X500Principal subject = new X500Principal(name);
+		
+		return newGenerator(subject, subject, keyPair.getPublic()).generate(keyPair.getPrivate());
+	}
+	
+	public static PKCS10CertificationRequest createCsr(String name, KeyPair keyPair) throws GeneralSecurityException {
+		return new PKCS10CertificationRequest("SHA1withRSA", new X500Principal(name), keyPair.getPublic(), null, keyPair.getPrivate());
+	}
+	
+	private static X509V3CertificateGenerator newGenerator(X500Principal issuer, X500Principal subject, PublicKey key) throws GeneralSecurityException {
+		final long now = System.currentTimeMillis();
+		final X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.valueOf(SERIAL.incrementAndGet()));
+		generator.setIssuerDN(issuer);
+		generator.setSubjectDN(subject);
+		generator.setNotBefore(new Date(now - DAY));
+		generator.setNotAfter(new Date(now + 365 * DAY));
+		generator.setPublicKey(key);
+		generator.setSignatureAlgorithm("SHA1withRSA");
+		generator.addExtension(X509Extensions.SubjectKeyIdentifier, false, new SubjectKeyIdentifier(keyIdentifier(key)));
+		
+		return generator;
+	}
+	
+	private static byte[] keyIdentifier(PublicKey key) throws GeneralSecurityException {
+		return MessageDigest.getInstance("SHA-1").digest(key.getEncoded());
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jscep.content.CaCapabilitiesContentHandler;
+import org.jscep.request.GetCaCaps;
+import org.jscep.request.Request;
+import org.jscep.transport.ForwardingTransport;
+import org.jscep.transport.Transport;
+
+public class TokenBucketTest extends TestCase {
+	public void testBurstThenWait() {
+		final TokenBucket bucket = new TokenBucket(10, 3);
+		final long now = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, bucket.tryAcquire(now));
+		}
+		final long wait = bucket.tryAcquire(now);
+		assertTrue(wait > 0);
+		assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(100));
+		assertEquals(0, bucket.tryAcquire(now + wait));
+	}
+	
+	public void testConcurrentAcquireHonoursBurst() throws Exception {
+		final TokenBucket bucket = new TokenBucket(0.001, 50);
+		final AtomicInteger acquired = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < 100; j++) {
+						if (bucket.tryAcquire(System.nanoTime()) == 0) {
+							acquired.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(50, acquired.get());
+	}
+	
+	public void testFailFast() throws Exception {
+		final URL url = new URL("http://127.0.0.1/scep");
+		final AtomicInteger calls = new AtomicInteger();
+		final SimpleClientMetrics metrics = new SimpleClientMetrics();
+		final Transport transport = new RateLimitedTransport(url, new CountingTransport(url, calls), new RateLimiter(0, 0.001, 2, false), null, metrics);
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		try {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+			fail();
+		} catch (RequestRejectedException e) {
+			assertEquals(RequestRejectedException.Reason.RATE_LIMITED, e.getReason());
+		}
+		assertEquals(2, calls.get());
+		assertEquals(1, metrics.getRejectionCount(RequestRejectedException.Reason.RATE_LIMITED));
+	}
+	
+	public void testBlockingWaitsForToken() throws Exception {
+		final URL url = new URL("http://127.0.0.1/scep");
+		final AtomicInteger calls = new AtomicInteger();
+		final Transport transport = new RateLimitedTransport(url, new CountingTransport(url, calls), new RateLimiter(0, 20, 1, true), null, NoOpClientMetrics.INSTANCE);
+		final long start = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		}
+		assertEquals(5, calls.get());
+		// Four waits of 50ms after the first token.
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(190));
+	}
+	
+	public void testProfilesHaveSeparateBuckets() throws Exception {
+		final URL url = new URL("http://127.0.0.1/scep");
+		final RateLimiter limiter = new RateLimiter(1, 1, 1, false);
+		assertSame(limiter.getBucket(url, "a", true), limiter.getBucket(url, "a", true));
+		assertNotSame(limiter.getBucket(url, "a", true), limiter.getBucket(url, "b", true));
+		assertNotSame(limiter.getBucket(url, "a", true), limiter.getBucket(url, "a", false));
+		assertNull(new RateLimiter(0, 1, 1, false).getBucket(url, "a", true));
+	}
+	
+	private static final class CountingTransport extends ForwardingTransport {
+		private final AtomicInteger calls;
+		
+		private CountingTransport(URL url, AtomicInteger calls) {
+			super(url, null);
+			this.calls = calls;
+		}
+		
+		@Override
+		public <T> T sendRequest(Request<T> msg) throws IOException {
+			calls.incrementAndGet();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+public class VerificationCacheTest extends TestCase {
+	private static final String FIRST = repeat('a');
+	private static final String SECOND = repeat('b');
+	private static final String THIRD = repeat('c');
+	private File pinFile;
+	
+	@Override
+	protected void setUp() throws Exception {
+		pinFile = File.createTempFile("pins", ".txt");
+		pinFile.delete();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		pinFile.delete();
+	}
+	
+	public void testLeastRecentlyUsedIsEvicted() throws Exception {
+		final VerificationCache cache = new VerificationCache(2);
+		cache.addVerified(FIRST);
+		cache.addVerified(SECOND);
+		assertTrue(cache.isVerified(FIRST));
+		cache.addVerified(THIRD);
+		
+		assertTrue(cache.isVerified(FIRST));
+		assertFalse(cache.isVerified(SECOND));
+		assertTrue(cache.isVerified(THIRD));
+	}
+	
+	public void testPinsSurviveRestart() throws Exception {
+		new VerificationCache(2, pinFile).addVerified(FIRST);
+		
+		final VerificationCache restarted = new VerificationCache(2, pinFile);
+		assertTrue(restarted.isVerified(FIRST));
+		assertFalse(restarted.isVerified(SECOND));
+	}
+	
+	public void testEvictedPinIsFoundInFile() throws Exception {
+		final VerificationCache cache = new VerificationCache(1, pinFile);
+		cache.addVerified(FIRST);
+		cache.addVerified(SECOND);
+		
+		assertTrue(cache.isVerified(FIRST));
+	}
+	
+	public void testInvalidPinsAreIgnored() throws Exception {
+		final FileOutputStream out = new FileOutputStream(pinFile);
+		try {
+			out.write(("# Pinned CAs\nnot-a-fingerprint\n" + FIRST + "\n").getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		final VerificationCache cache = new VerificationCache(2, pinFile);
+		
+		assertTrue(cache.isVerified(FIRST));
+		assertFalse(cache.isVerified("not-a-fingerprint"));
+	}
+	
+	public void testInvalidFingerprintIsRejected() throws Exception {
+		try {
+			new VerificationCache().addVerified("ABC");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	private static String repeat(char c) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 64; i++) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class DeadlineTest extends TestCase {
+	@Override
+	protected void tearDown() throws Exception {
+		Deadline.restore(null);
+	}
+	
+	public void testNoDeadline() throws Exception {
+		assertNull(Deadline.current());
+		assertEquals(250, Deadline.getReadMillis(250));
+		assertEquals(0, Deadline.getReadMillis(0));
+	}
+	
+	public void testPhaseTimeoutIsUsed() throws Exception {
+		final Deadline previous = Deadline.enter(new Timeouts(100, 0, 0, 0, TimeUnit.MILLISECONDS));
+		try {
+			assertEquals(100, Deadline.getConnectMillis(0));
+			assertEquals(50, Deadline.getConnectMillis(50));
+			assertEquals(0, Deadline.getHandshakeMillis(0));
+		} finally {
+			Deadline.restore(previous);
+		}
+		assertNull(Deadline.current());
+	}
+	
+	public void testNestedDeadlineIsNoLaterThanOuter() throws Exception {
+		final Deadline outer = Deadline.enter(new Timeouts(0, 0, 0, 100, TimeUnit.MILLISECONDS));
+		final Deadline inner = Deadline.enter(new Timeouts(0, 0, 0, 10, TimeUnit.SECONDS));
+		try {
+			assertTrue(Deadline.current().getRemaining(TimeUnit.MILLISECONDS) <= 100);
+			assertTrue(Deadline.getReadMillis(0) <= 100);
+		} finally {
+			Deadline.restore(inner);
+		}
+		assertNotNull(Deadline.current());
+		Deadline.restore(outer);
+	}
+	
+	public void testExpiredDeadline() throws Exception {
+		Deadline.enter(new Timeouts(0, 0, 0, 1, TimeUnit.MILLISECONDS));
+		Thread.sleep(10);
+		
+		assertTrue(Deadline.current().isExpired());
+		try {
+			Deadline.getReadMillis(0);
+			fail();
+		} catch (SocketTimeoutException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.jscep.client.TestCertificates;
+
+public class HostnameMatcherTest extends TestCase {
+	private KeyPair caKeyPair;
+	private X509Certificate ca;
+	
+	@Override
+	protected void setUp() throws Exception {
+		caKeyPair = TestCertificates.createKeyPair();
+		ca = TestCertificates.createCa("CN=CA", caKeyPair);
+	}
+	
+	public void testDnsNameIsMatched() throws Exception {
+		final X509Certificate cert = create("CN=Other", new GeneralName(GeneralName.dNSName, "CA.Example.com"));
+		
+		assertTrue(HostnameMatcher.matches("ca.example.com", cert));
+		assertTrue(HostnameMatcher.matches("ca.example.com.", cert));
+		assertFalse(HostnameMatcher.matches("ra.example.com", cert));
+	}
+	
+	public void testCommonNameIsIgnoredWithDnsNames() throws Exception {
+		final X509Certificate cert = create("CN=ca.example.com", new GeneralName(GeneralName.dNSName, "ra.example.com"));
+		
+		assertFalse(HostnameMatcher.matches("ca.example.com", cert));
+	}
+	
+	public void testCommonNameIsUsedWithoutDnsNames() throws Exception {
+		assertTrue(HostnameMatcher.matches("ca.example.com", create("O=Example, CN=ca.example.com")));
+	}
+	
+	public void testWildcardMatchesOneLabel() throws Exception {
+		final X509Certificate cert = create("CN=Other", new GeneralName(GeneralName.dNSName, "*.example.com"));
+		
+		assertTrue(HostnameMatcher.matches("ca.example.com", cert));
+		assertFalse(HostnameMatcher.matches("a.ca.example.com", cert));
+		assertFalse(HostnameMatcher.matches("example.com", cert));
+	}
+	
+	public void testTopLevelWildcardIsRejected() throws Exception {
+		assertFalse(HostnameMatcher.matches("example.com", create("CN=Other", new GeneralName(GeneralName.dNSName, "*.com"))));
+	}
+	
+	public void testIpAddressOnlyMatchesIpAddresses() throws Exception {
+		final X509Certificate cert = create("CN=127.0.0.1", new GeneralName(GeneralName.iPAddress, "127.0.0.1"));
+		
+		assertTrue(HostnameMatcher.matches("127.0.0.1", cert));
+		assertFalse(HostnameMatcher.matches("127.0.0.2", cert));
+		assertFalse(HostnameMatcher.matches("127.0.0.1", create("CN=127.0.0.1")));
+	}
+	
+	private X509Certificate create(String name, GeneralName... altNames) throws Exception {
+		return TestCertificates.createServer(name, TestCertificates.createKeyPair().getPublic(), ca, caKeyPair, altNames);
+	}
+}
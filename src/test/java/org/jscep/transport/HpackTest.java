@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * The examples are taken from Appendix C of RFC 7541.
+ */
+public class HpackTest extends TestCase {
+	public void testRequestsWithHuffmanCoding() throws Exception {
+		final Hpack.Decoder decoder = new Hpack.Decoder(4096);
+		
+		assertEquals(Arrays.asList(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"), 
+				decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+		assertEquals(Arrays.asList(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com", "cache-control: no-cache"), 
+				decode(decoder, "828684be5886a8eb10649cbf"));
+		assertEquals(Arrays.asList(":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com", "custom-key: custom-value"), 
+				decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+	}
+	
+	public void testResponsesEvictFromDynamicTable() throws Exception {
+		final Hpack.Decoder decoder = new Hpack.Decoder(256);
+		
+		assertEquals(Arrays.asList(":status: 302", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT", "location: https://www.example.com"), 
+				decode(decoder, "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3"));
+		assertEquals(Arrays.asList(":status: 307", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT", "location: https://www.example.com"), 
+				decode(decoder, "4883640effc1c0bf"));
+		assertEquals(Arrays.asList(":status: 200", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:22 GMT", "location: https://www.example.com", "content-encoding: gzip", "set-cookie: foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"), 
+				decode(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007"));
+	}
+	
+	public void testEncodedFieldsAreDecoded() throws Exception {
+		final StringBuilder longName = new StringBuilder("x-");
+		while (longName.length() < 200) {
+			longName.append('a');
+		}
+		final ByteArrayOutputStream block = new ByteArrayOutputStream();
+		Hpack.encode(block, ":method", "POST");
+		Hpack.encode(block, ":path", "/scep?operation=PKIOperation");
+		Hpack.encode(block, "content-length", "1024");
+		Hpack.encode(block, longName.toString(), "value");
+		
+		assertEquals(Arrays.asList(":method: POST", ":path: /scep?operation=PKIOperation", "content-length: 1024", longName + ": value"), 
+				decode(new Hpack.Decoder(4096), block.toByteArray()));
+		// The method matches an entry of the static table.
+		assertEquals((byte) 0x83, block.toByteArray()[0]);
+	}
+	
+	public void testInvalidPaddingIsRejected() throws Exception {
+		try {
+			// The last three bits of the string are zeros, not ones.
+			decode(new Hpack.Decoder(4096), "048100");
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+	
+	public void testTruncatedBlockIsRejected() throws Exception {
+		try {
+			decode(new Hpack.Decoder(4096), "0485ff");
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+	
+	private static List<String> decode(Hpack.Decoder decoder, String hex) throws IOException {
+		final byte[] block = new byte[hex.length() / 2];
+		for (int i = 0; i < block.length; i++) {
+			block[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return decode(decoder, block);
+	}
+	
+	private static List<String> decode(Hpack.Decoder decoder, byte[] block) throws IOException {
+		final List<String> fields = new ArrayList<String>();
+		for (String[] field : decoder.decode(block)) {
+			fields.add(field[0] + ": " + field[1]);
+		}
+		return fields;
+	}
+}
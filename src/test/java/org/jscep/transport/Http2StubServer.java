@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cleartext HTTP/2 server for tests and benchmarks, which expects 
+ * clients to connect with prior knowledge.
+ * <p>
+ * Each request is passed to a {@link Handler} on a thread of its own, so 
+ * slow responses do not hold up other streams.  Refused streams, dropped 
+ * connections and GOAWAY can be injected.
+ */
+public class Http2StubServer {
+	private final ServerSocket socket;
+	private final Handler handler;
+	private final ExecutorService executor;
+	private final List<Socket> accepted = new CopyOnWriteArrayList<Socket>();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private final AtomicInteger refuse = new AtomicInteger();
+	private final AtomicInteger drop = new AtomicInteger();
+	private volatile int maxConcurrentStreams = 100;
+	private volatile int goAwayAfter;
+	
+	/**
+	 * Creates a new server on an ephemeral port of the loopback interface.
+	 * 
+	 * @param handler the handler for every request.
+	 * @throws IOException if the server cannot be created.
+	 */
+	public Http2StubServer(Handler handler) throws IOException {
+		this.handler = handler;
+		this.socket = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "h2-stub");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	public void start() {
+		final Thread acceptor = new Thread("h2-stub-accept") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket conn = socket.accept();
+						accepted.add(conn);
+						final Thread reader = new Thread(new Connection(conn), "h2-stub-reader");
+						reader.setDaemon(true);
+						reader.start();
+					}
+				} catch (IOException e) {
+					// The server has been stopped.
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	public void stop() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing more can be done.
+		}
+		for (Socket conn : accepted) {
+			closeQuietly(conn);
+		}
+		executor.shutdownNow();
+	}
+	
+	public URL getUrl() throws IOException {
+		return new URL("http", "127.0.0.1", socket.getLocalPort(), "/scep");
+	}
+	
+	/**
+	 * Sets the number of concurrent streams allowed on each connection.
+	 */
+	public void setMaxConcurrentStreams(int max) {
+		maxConcurrentStreams = max;
+	}
+	
+	/**
+	 * Refuses the next requests with REFUSED_STREAM, without handling them.
+	 */
+	public void refuseNext(int requests) {
+		refuse.set(requests);
+	}
+	
+	/**
+	 * Closes the connection of each of the next requests, once the request
+	 * has been handled but before the response is sent.
+	 */
+	public void dropNext(int requests) {
+		drop.set(requests);
+	}
+	
+	/**
+	 * Sends GOAWAY on each connection once it has handled the given number 
+	 * of requests.
+	 */
+	public void setGoAwayAfter(int requests) {
+		goAwayAfter = requests;
+	}
+	
+	/**
+	 * Returns the number of connections accepted.
+	 */
+	public int getConnectionCount() {
+		return accepted.size();
+	}
+	
+	/**
+	 * Returns the number of requests passed to the handler.
+	 */
+	public int getRequestCount() {
+		return requests.get();
+	}
+	
+	/**
+	 * Returns the largest number of requests handled at once.
+	 */
+	public int getMaxConcurrentRequests() {
+		return maxInFlight.get();
+	}
+	
+	private static void closeQuietly(Socket conn) {
+		try {
+			conn.close();
+		} catch (IOException e) {
+			// Nothing more can be done.
+		}
+	}
+	
+	/**
+	 * Handles the requests received by a {@link Http2StubServer}.
+	 */
+	public interface Handler {
+		/**
+		 * Handles a request.
+		 * 
+		 * @param method the HTTP method.
+		 * @param target the path and query.
+		 * @param body the request body, which may be empty.
+		 * @param remote the address of the client.
+		 * @return the response.
+		 * @throws Exception if the request cannot be handled.
+		 */
+		Response handle(String method, String target, byte[] body, InetSocketAddress remote) throws Exception;
+	}
+	
+	/**
+	 * A response to be sent by a {@link Http2StubServer}.
+	 */
+	public static final class Response {
+		private final int status;
+		private final String contentType;
+		private final byte[] body;
+		
+		public Response(int status, String contentType, byte[] body) {
+			this.status = status;
+			this.contentType = contentType;
+			this.body = body;
+		}
+		
+		public int getStatus() {
+			return status;
+		}
+		
+		public String getContentType() {
+			return contentType;
+		}
+		
+		public byte[] getBody() {
+			return body;
+		}
+	}
+	
+	private final class Connection implements Runnable {
+		private final Socket conn;
+		private final OutputStream out;
+		private final InputStream in;
+		private final Hpack.Decoder decoder = new Hpack.Decoder(Http2Frame.DEFAULT_HEADER_TABLE_SIZE);
+		// Only accessed by the reader thread.
+		private final Map<Integer, ByteArrayOutputStream> bodies = new HashMap<Integer, ByteArrayOutputStream>();
+		private final Map<Integer, String[]> heads = new HashMap<Integer, String[]>();
+		private final AtomicInteger handled = new AtomicInteger();
+		// The last stream which will be handled, once GOAWAY has been sent.
+		private volatile int lastStreamId = Integer.MAX_VALUE;
+		private ByteArrayOutputStream headerBlock;
+		private int headerStreamId;
+		private boolean headerEndStream;
+		// Guarded by this.
+		private final Map<Integer, long[]> windows = new HashMap<Integer, long[]>();
+		private long sendWindow = Http2Frame.DEFAULT_WINDOW;
+		private int initialWindow = Http2Frame.DEFAULT_WINDOW;
+		private boolean closed;
+		
+		private Connection(Socket conn) throws IOException {
+			this.conn = conn;
+			this.in = new BufferedInputStream(conn.getInputStream());
+			this.out = new BufferedOutputStream(conn.getOutputStream());
+		}
+		
+		public void run() {
+			try {
+				final byte[] preface = new byte[Http2Frame.PREFACE.length];
+				int n = 0;
+				while (n < preface.length) {
+					final int r = in.read(preface, n, preface.length - n);
+					if (r == -1) {
+						return;
+					}
+					n += r;
+				}
+				if (Arrays.equals(preface, Http2Frame.PREFACE) == false) {
+					return;
+				}
+				synchronized (out) {
+					Http2Frame.writeSettings(out, Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+					out.flush();
+				}
+				while (true) {
+					handle(Http2Frame.read(in, Http2Frame.DEFAULT_MAX_FRAME_SIZE));
+				}
+			} catch (IOException e) {
+				// The connection has been closed.
+			} finally {
+				synchronized (this) {
+					closed = true;
+					notifyAll();
+				}
+				closeQuietly(conn);
+			}
+		}
+		
+		private void handle(Http2Frame frame) throws IOException {
+			final int id = frame.getStreamId();
+			switch (frame.getType()) {
+			case Http2Frame.SETTINGS:
+				if (frame.hasFlag(Http2Frame.FLAG_ACK) == false) {
+					final byte[] payload = frame.getPayload();
+					synchronized (this) {
+						for (int i = 0; i < payload.length; i += 6) {
+							if (((payload[i] & 0xff) << 8 | (payload[i + 1] & 0xff)) == Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE) {
+								final int value = frame.getInt(i + 2);
+								for (long[] window : windows.values()) {
+									window[0] += value - initialWindow;
+								}
+								initialWindow = value;
+							}
+						}
+						notifyAll();
+					}
+					synchronized (out) {
+						Http2Frame.write(out, Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, payload, 0, 0);
+						out.flush();
+					}
+				}
+				break;
+			case Http2Frame.HEADERS:
+				headerStreamId = id;
+				headerEndStream = frame.hasFlag(Http2Frame.FLAG_END_STREAM);
+				headerBlock = new ByteArrayOutputStream();
+				headerBlock.write(frame.getFragment());
+				if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+					onHeaders();
+				}
+				break;
+			case Http2Frame.CONTINUATION:
+				headerBlock.write(frame.getPayload());
+				if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+					onHeaders();
+				}
+				break;
+			case Http2Frame.DATA:
+				final int length = frame.getPayload().length;
+				if (length > 0) {
+					synchronized (out) {
+						Http2Frame.writeInts(out, Http2Frame.WINDOW_UPDATE, 0, length);
+						if (frame.hasFlag(Http2Frame.FLAG_END_STREAM) == false) {
+							Http2Frame.writeInts(out, Http2Frame.WINDOW_UPDATE, id, length);
+						}
+						out.flush();
+					}
+				}
+				final ByteArrayOutputStream body = bodies.get(id);
+				if (body != null) {
+					body.write(frame.getFragment());
+					if (frame.hasFlag(Http2Frame.FLAG_END_STREAM)) {
+						dispatch(id, heads.remove(id), bodies.remove(id).toByteArray());
+					}
+				}
+				break;
+			case Http2Frame.WINDOW_UPDATE:
+				synchronized (this) {
+					final int increment = frame.getInt(0) & Integer.MAX_VALUE;
+					if (id == 0) {
+						sendWindow += increment;
+					} else if (windows.containsKey(id)) {
+						windows.get(id)[0] += increment;
+					}
+					notifyAll();
+				}
+				break;
+			case Http2Frame.PING:
+				if (frame.hasFlag(Http2Frame.FLAG_ACK) == false) {
+					synchronized (out) {
+						Http2Frame.write(out, Http2Frame.PING, Http2Frame.FLAG_ACK, 0, frame.getPayload(), 0, 8);
+						out.flush();
+					}
+				}
+				break;
+			case Http2Frame.RST_STREAM:
+				synchronized (this) {
+					windows.remove(id);
+					notifyAll();
+				}
+				break;
+			case Http2Frame.GOAWAY:
+				throw new IOException("Client is going away");
+			default:
+				// Ignored.
+			}
+		}
+		
+		private void onHeaders() throws IOException {
+			final String[] head = new String[2];
+			for (String[] field : decoder.decode(headerBlock.toByteArray())) {
+				if (field[0].equals(":method")) {
+					head[0] = field[1];
+				} else if (field[0].equals(":path")) {
+					head[1] = field[1];
+				}
+			}
+			headerBlock = null;
+			synchronized (this) {
+				windows.put(headerStreamId, new long[] {initialWindow});
+			}
+			if (headerEndStream) {
+				dispatch(headerStreamId, head, new byte[0]);
+			} else {
+				heads.put(headerStreamId, head);
+				bodies.put(headerStreamId, new ByteArrayOutputStream());
+			}
+		}
+		
+		private void dispatch(final int id, final String[] head, final byte[] body) throws IOException {
+			if (id > lastStreamId) {
+				return;
+			}
+			if (refuse.getAndDecrement() > 0) {
+				synchronized (out) {
+					Http2Frame.writeInts(out, Http2Frame.RST_STREAM, id, Http2Frame.REFUSED_STREAM);
+					out.flush();
+				}
+				return;
+			}
+			executor.execute(new Runnable() {
+				public void run() {
+					requests.incrementAndGet();
+					final int n = inFlight.incrementAndGet();
+					int max;
+					while (n > (max = maxInFlight.get()) && maxInFlight.compareAndSet(max, n) == false) {
+						// Retry until the maximum is at least n.
+					}
+					Response response;
+					try {
+						response = handler.handle(head[0], head[1], body, (InetSocketAddress) conn.getRemoteSocketAddress());
+					} catch (Exception e) {
+						response = new Response(500, "text/plain", new byte[0]);
+					} finally {
+						inFlight.decrementAndGet();
+					}
+					if (drop.getAndDecrement() > 0) {
+						closeQuietly(conn);
+						return;
+					}
+					try {
+						respond(id, response);
+						if (handled.incrementAndGet() == goAwayAfter) {
+							lastStreamId = id;
+							synchronized (out) {
+								Http2Frame.writeInts(out, Http2Frame.GOAWAY, 0, id, Http2Frame.NO_ERROR);
+								out.flush();
+							}
+						}
+					} catch (IOException e) {
+						closeQuietly(conn);
+					}
+				}
+			});
+		}
+		
+		private void respond(int id, Response response) throws IOException {
+			final ByteArrayOutputStream block = new ByteArrayOutputStream();
+			Hpack.encode(block, ":status", Integer.toString(response.status));
+			Hpack.encode(block, "content-type", response.contentType);
+			Hpack.encode(block, "content-length", Integer.toString(response.body.length));
+			final byte[] headers = block.toByteArray();
+			synchronized (out) {
+				Http2Frame.write(out, Http2Frame.HEADERS, Http2Frame.FLAG_END_HEADERS | (response.body.length == 0 ? Http2Frame.FLAG_END_STREAM : 0), id, headers, 0, headers.length);
+				out.flush();
+			}
+			int offset = 0;
+			while (offset < response.body.length) {
+				final int length;
+				synchronized (this) {
+					long[] window;
+					while ((window = windows.get(id)) != null && closed == false && (sendWindow <= 0 || window[0] <= 0)) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							throw new IOException("Interrupted");
+						}
+					}
+					if (window == null || closed) {
+						return;
+					}
+					length = (int) Math.min(Math.min(response.body.length - offset, Http2Frame.DEFAULT_MAX_FRAME_SIZE), Math.min(sendWindow, window[0]));
+					sendWindow -= length;
+					window[0] -= length;
+				}
+				synchronized (out) {
+					Http2Frame.write(out, Http2Frame.DATA, offset + length == response.body.length ? Http2Frame.FLAG_END_STREAM : 0, id, response.body, offset, length);
+					out.flush();
+				}
+				offset += length;
+			}
+			synchronized (this) {
+				windows.remove(id);
+			}
+		}
+	}
+}
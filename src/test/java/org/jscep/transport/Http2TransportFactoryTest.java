@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.jscep.content.CaCapabilitiesContentHandler;
+import org.jscep.content.ScepContentHandler;
+import org.jscep.request.GetCaCaps;
+import org.jscep.request.Operation;
+import org.jscep.request.Request;
+
+public class Http2TransportFactoryTest extends TestCase {
+	private static final byte[] LARGE = new byte[1024 * 1024];
+	private Http2StubServer server;
+	private Http2TransportFactory factory;
+	private volatile long latency;
+	
+	static {
+		for (int i = 0; i < LARGE.length; i++) {
+			LARGE[i] = (byte) i;
+		}
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new Http2StubServer(new Http2StubServer.Handler() {
+			public Http2StubServer.Response handle(String method, String target, byte[] body, InetSocketAddress remote) throws Exception {
+				if (latency > 0) {
+					Thread.sleep(latency);
+				}
+				if (target.contains("operation=GetCACaps")) {
+					return new Http2StubServer.Response(200, "text/plain", "POSTPKIOperation\nSHA-1\n".getBytes("US-ASCII"));
+				}
+				if (target.contains("operation=GetCACert")) {
+					return new Http2StubServer.Response(200, "application/x-x509-ca-cert", LARGE);
+				}
+				if (method.equals("POST")) {
+					return new Http2StubServer.Response(200, "application/x-pki-message", body);
+				}
+				return new Http2StubServer.Response(404, "text/plain", new byte[0]);
+			}
+		});
+		server.start();
+		factory = new Http2TransportFactory();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		factory.close();
+		server.stop();
+	}
+	
+	public void testRequestsShareOneConnection() throws Exception {
+		latency = 50;
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		final int requests = 50;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch done = new CountDownLatch(requests);
+		for (int i = 0; i < requests; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+					} catch (Throwable t) {
+						failure.set(t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		
+		assertNull(failure.get());
+		assertEquals(requests, server.getRequestCount());
+		assertEquals(1, server.getConnectionCount());
+		assertTrue(server.getMaxConcurrentRequests() > 1);
+	}
+	
+	public void testConnectionIsAddedWhenStreamsRunOut() throws Exception {
+		latency = 50;
+		server.setMaxConcurrentStreams(5);
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		// The first request learns the server's limit.
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		final int requests = 30;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch done = new CountDownLatch(requests);
+		for (int i = 0; i < requests; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+					} catch (Throwable t) {
+						failure.set(t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		
+		assertNull(failure.get());
+		assertEquals(Http2TransportFactory.DEFAULT_MAX_CONNECTIONS, server.getConnectionCount());
+		assertTrue(server.getMaxConcurrentRequests() <= 5 * Http2TransportFactory.DEFAULT_MAX_CONNECTIONS);
+	}
+	
+	public void testRequestLargerThanWindow() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.POST, server.getUrl());
+		final byte[] body = Arrays.copyOf(LARGE, 200 * 1024);
+		
+		assertTrue(Arrays.equals(body, transport.sendRequest(new Echo(body))));
+	}
+	
+	public void testLargeResponse() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		
+		assertTrue(Arrays.equals(LARGE, transport.sendRequest(new Download())));
+		assertTrue(Arrays.equals(LARGE, transport.sendRequest(new Download())));
+	}
+	
+	public void testRefusedStreamIsResent() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.POST, server.getUrl());
+		server.refuseNext(1);
+		final byte[] body = {1, 2, 3};
+		
+		assertTrue(Arrays.equals(body, transport.sendRequest(new Echo(body))));
+		assertEquals(1, server.getRequestCount());
+	}
+	
+	public void testGetIsResentWhenConnectionIsLost() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		server.dropNext(1);
+		
+		assertNotNull(transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler())));
+		assertEquals(2, server.getRequestCount());
+		assertEquals(2, server.getConnectionCount());
+	}
+	
+	public void testPostIsNotResentWhenConnectionIsLost() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.POST, server.getUrl());
+		server.dropNext(1);
+		try {
+			transport.sendRequest(new Echo(new byte[] {1, 2, 3}));
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+		
+		assertEquals(1, server.getRequestCount());
+	}
+	
+	public void testGoAwayMovesToNewConnection() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		server.setGoAwayAfter(2);
+		for (int i = 0; i < 5; i++) {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		}
+		
+		assertEquals(5, server.getRequestCount());
+		assertEquals(3, server.getConnectionCount());
+	}
+	
+	public void testTotalTimeout() throws Exception {
+		latency = 2000;
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		final Deadline previous = Deadline.enter(new Timeouts(0, 0, 0, 100, TimeUnit.MILLISECONDS));
+		final long start = System.nanoTime();
+		try {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+			fail();
+		} catch (SocketTimeoutException e) {
+			// Expected
+		} finally {
+			Deadline.restore(previous);
+		}
+		
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		// The stream was cancelled, but the connection is still usable.
+		latency = 0;
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		assertEquals(1, server.getConnectionCount());
+	}
+	
+	public void testHttpsIsRejected() throws Exception {
+		try {
+			factory.createTransport(Transport.Method.GET, new URL("https://127.0.0.1/scep"));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, n);
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static final class Echo extends Request<byte[]> {
+		private final byte[] body;
+		
+		private Echo(byte[] body) {
+			this.body = body;
+		}
+		
+		@Override
+		public Operation getOperation() {
+			return Operation.PKIOperation;
+		}
+		
+		@Override
+		public String getMessage() {
+			try {
+				return new String(Base64.encode(body), "US-ASCII");
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		@Override
+		public ScepContentHandler<byte[]> getContentHandler() {
+			return new ScepContentHandler<byte[]>() {
+				public byte[] getContent(InputStream in, String mimeType) throws IOException {
+					return readAll(in);
+				}
+			};
+		}
+	}
+	
+	private static final class Download extends Request<byte[]> {
+		@Override
+		public Operation getOperation() {
+			return Operation.GetCACert;
+		}
+		
+		@Override
+		public String getMessage() {
+			return null;
+		}
+		
+		@Override
+		public ScepContentHandler<byte[]> getContentHandler() {
+			return new ScepContentHandler<byte[]>() {
+				public byte[] getContent(InputStream in, String mimeType) throws IOException {
+					return readAll(in);
+				}
+			};
+		}
+	}
+}
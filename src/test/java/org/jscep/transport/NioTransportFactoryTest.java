@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.jscep.client.StubScepServer;
+import org.jscep.content.CaCapabilitiesContentHandler;
+import org.jscep.content.ScepContentHandler;
+import org.jscep.request.GetCaCaps;
+import org.jscep.request.Operation;
+import org.jscep.request.Request;
+import org.jscep.response.Capabilities;
+
+public class NioTransportFactoryTest extends TestCase {
+	private StubScepServer server;
+	private NioTransportFactory factory;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new StubScepServer(false);
+		server.start();
+		factory = new NioTransportFactory(2);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		factory.close();
+		server.stop();
+	}
+	
+	public void testConnectionIsReused() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		for (int i = 0; i < 3; i++) {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		}
+		
+		assertEquals(3, server.getRequestCount("GetCACaps"));
+		assertEquals(1, server.getConnectionCount());
+	}
+	
+	public void testManyRequestsShareFewConnections() throws Exception {
+		factory.setMaxConnectionsPerHost(4);
+		server.setLatency(5, 5, TimeUnit.MILLISECONDS);
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		final int requests = 200;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch done = new CountDownLatch(requests);
+		for (int i = 0; i < requests; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+					} catch (Throwable t) {
+						failure.set(t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		
+		assertNull(failure.get());
+		assertEquals(requests, server.getRequestCount("GetCACaps"));
+		assertTrue(server.getConnectionCount() <= 4);
+	}
+	
+	public void testTotalTimeout() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		server.setLatency(2, 2, TimeUnit.SECONDS);
+		final Deadline previous = Deadline.enter(new Timeouts(0, 0, 0, 100, TimeUnit.MILLISECONDS));
+		final long start = System.nanoTime();
+		try {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getCause() instanceof SocketTimeoutException);
+		} finally {
+			Deadline.restore(previous);
+		}
+		
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+	}
+	
+	public void testAsyncRequestsHoldNoThread() throws Exception {
+		factory.setMaxConnectionsPerHost(4);
+		server.setLatency(5, 5, TimeUnit.MILLISECONDS);
+		final AsyncTransport transport = (AsyncTransport) factory.createTransport(Transport.Method.GET, server.getUrl());
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final int requests = 500;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicInteger capabilities = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(requests);
+		try {
+			// Every request is sent by this thread, and every response is 
+			// handled by the single executor thread.
+			for (int i = 0; i < requests; i++) {
+				transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()), executor, new ResponseCallback<Capabilities>() {
+					public void onResponse(Capabilities response) {
+						if (response != null) {
+							capabilities.incrementAndGet();
+						}
+						done.countDown();
+					}
+					
+					public void onFailure(Throwable cause) {
+						failure.set(cause);
+						done.countDown();
+					}
+				});
+			}
+			assertTrue(done.await(30, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+		
+		assertNull(failure.get());
+		assertEquals(requests, capabilities.get());
+		assertEquals(requests, server.getRequestCount("GetCACaps"));
+		assertTrue(server.getConnectionCount() <= 4);
+	}
+	
+	public void testAsyncRequestIsBoundedByDeadline() throws Exception {
+		final AsyncTransport transport = (AsyncTransport) factory.createTransport(Transport.Method.GET, server.getUrl());
+		server.setLatency(2, 2, TimeUnit.SECONDS);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch done = new CountDownLatch(1);
+		final Deadline previous = Deadline.enter(new Timeouts(0, 0, 0, 100, TimeUnit.MILLISECONDS));
+		try {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()), executor, new ResponseCallback<Capabilities>() {
+				public void onResponse(Capabilities response) {
+					done.countDown();
+				}
+				
+				public void onFailure(Throwable cause) {
+					failure.set(cause);
+					done.countDown();
+				}
+			});
+		} finally {
+			Deadline.restore(previous);
+		}
+		try {
+			assertTrue(done.await(1, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+		
+		assertTrue(failure.get() instanceof SocketTimeoutException);
+	}
+	
+	public void testResponsesSplitAcrossManyReads() throws Exception {
+		final byte[] body = new byte[1024 * 1024];
+		for (int i = 0; i < body.length; i++) {
+			body[i] = (byte) i;
+		}
+		final ServerSocket socket = new ServerSocket(0);
+		final Thread dribbler = new Thread() {
+			@Override
+			public void run() {
+				try {
+					final Socket conn = socket.accept();
+					try {
+						final InputStream in = conn.getInputStream();
+						final OutputStream out = conn.getOutputStream();
+						readHead(in);
+						out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes("ISO-8859-1"));
+						for (int offset = 0; offset < body.length; offset += 1000) {
+							final int length = Math.min(1000, body.length - offset);
+							out.write((Integer.toHexString(length) + "\r\n").getBytes("ISO-8859-1"));
+							out.flush();
+							out.write(body, offset, length);
+							out.write("\r\n".getBytes("ISO-8859-1"));
+						}
+						out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+						out.flush();
+						readHead(in);
+						out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+						for (int offset = 0; offset < body.length; offset += 1000) {
+							out.write(body, offset, Math.min(1000, body.length - offset));
+							out.flush();
+						}
+					} finally {
+						conn.close();
+					}
+				} catch (IOException e) {
+					// The test will fail.
+				}
+			}
+		};
+		dribbler.setDaemon(true);
+		dribbler.start();
+		try {
+			final Transport transport = factory.createTransport(Transport.Method.GET, new URL("http", "127.0.0.1", socket.getLocalPort(), "/scep"));
+			
+			assertTrue(Arrays.equals(body, transport.sendRequest(new Download())));
+			assertTrue(Arrays.equals(body, transport.sendRequest(new Download())));
+		} finally {
+			socket.close();
+		}
+	}
+	
+	public void testHttpsIsRejected() throws Exception {
+		try {
+			factory.createTransport(Transport.Method.GET, new URL("https://127.0.0.1/scep"));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	private static void readHead(InputStream in) throws IOException {
+		final StringBuilder head = new StringBuilder();
+		while (head.indexOf("\r\n\r\n") == -1) {
+			final int b = in.read();
+			if (b == -1) {
+				throw new IOException("Connection closed");
+			}
+			head.append((char) b);
+		}
+	}
+	
+	private static final class Download extends Request<byte[]> {
+		@Override
+		public Operation getOperation() {
+			return Operation.GetCACert;
+		}
+		
+		@Override
+		public String getMessage() {
+			return null;
+		}
+		
+		@Override
+		public ScepContentHandler<byte[]> getContentHandler() {
+			return new ScepContentHandler<byte[]>() {
+				public byte[] getContent(InputStream in, String mimeType) throws IOException {
+					final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					final byte[] buffer = new byte[4096];
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						bytes.write(buffer, 0, n);
+					}
+					return bytes.toByteArray();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.jscep.client.StubScepServer;
+import org.jscep.client.TestCertificates;
+import org.jscep.content.CaCapabilitiesContentHandler;
+import org.jscep.request.GetCaCaps;
+
+public class PooledTransportFactoryTest extends TestCase {
+	private static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+	private StubScepServer server;
+	private PooledTransportFactory factory;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new StubScepServer(false);
+		server.start();
+		factory = new PooledTransportFactory();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		factory.close();
+		server.stop();
+	}
+	
+	public void testConnectionIsReused() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		for (int i = 0; i < 3; i++) {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		}
+		
+		assertEquals(3, server.getRequestCount("GetCACaps"));
+		assertEquals(1, factory.getPool().getOpenedCount());
+		assertEquals(1, factory.getPool().getIdleCount());
+	}
+	
+	public void testConnectionsAreBounded() throws Exception {
+		factory.setMaxConnectionsPerHost(2);
+		server.setLatency(20, 20, TimeUnit.MILLISECONDS);
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch done = new CountDownLatch(8);
+		for (int i = 0; i < 8; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+					} catch (Throwable t) {
+						failure.set(t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		
+		assertNull(failure.get());
+		assertEquals(8, server.getRequestCount("GetCACaps"));
+		assertTrue(factory.getPool().getOpenedCount() <= 2);
+	}
+	
+	public void testIdleConnectionsAreEvicted() throws Exception {
+		factory.setIdleTimeout(100, TimeUnit.MILLISECONDS);
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		assertEquals(1, factory.getPool().getIdleCount());
+		
+		Thread.sleep(500);
+		
+		assertEquals(0, factory.getPool().getIdleCount());
+	}
+	
+	public void testFirstByteTimeout() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		server.setLatency(2, 2, TimeUnit.SECONDS);
+		final Deadline previous = Deadline.enter(new Timeouts(0, 0, 100, 0, TimeUnit.MILLISECONDS));
+		final long start = System.nanoTime();
+		try {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+			fail();
+		} catch (SocketTimeoutException e) {
+			// Expected
+		} finally {
+			Deadline.restore(previous);
+		}
+		
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+	}
+	
+	public void testServerErrorIsReported() throws Exception {
+		final Transport transport = factory.createTransport(Transport.Method.GET, server.getUrl());
+		server.setErrorRate(1.0);
+		try {
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+		server.setErrorRate(0);
+		transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+		
+		assertEquals(1, server.getRequestCount("GetCACaps"));
+	}
+	
+	public void testHttpsRoundTrip() throws Exception {
+		final StubScepServer secure = startSecure(new GeneralName(GeneralName.iPAddress, "127.0.0.1"));
+		try {
+			final Transport transport = factory.createTransport(Transport.Method.GET, secure.getUrl());
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+			
+			assertEquals(1, secure.getRequestCount("GetCACaps"));
+		} finally {
+			secure.stop();
+		}
+	}
+	
+	public void testHttpsRejectsOtherHost() throws Exception {
+		final StubScepServer secure = startSecure(new GeneralName(GeneralName.dNSName, "ca.example.com"));
+		try {
+			final Transport transport = factory.createTransport(Transport.Method.GET, secure.getUrl());
+			try {
+				transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+				fail();
+			} catch (IOException e) {
+				// Expected
+			}
+			assertEquals(0, secure.getRequestCount("GetCACaps"));
+		} finally {
+			secure.stop();
+		}
+	}
+	
+	public void testHostnameVerifierIsAskedWhenHostDoesNotMatch() throws Exception {
+		final StubScepServer secure = startSecure(new GeneralName(GeneralName.dNSName, "ca.example.com"));
+		factory.setHostnameVerifier(new HostnameVerifier() {
+			public boolean verify(String hostname, SSLSession session) {
+				return hostname.equals("127.0.0.1");
+			}
+		});
+		try {
+			final Transport transport = factory.createTransport(Transport.Method.GET, secure.getUrl());
+			transport.sendRequest(new GetCaCaps(null, new CaCapabilitiesContentHandler()));
+			
+			assertEquals(1, secure.getRequestCount("GetCACaps"));
+		} finally {
+			secure.stop();
+		}
+	}
+	
+	public void testProxiedUrlIsNotPooled() throws Exception {
+		final String previous = System.getProperty("http.proxyHost");
+		System.setProperty("http.proxyHost", "proxy.example.com");
+		try {
+			final Transport transport = factory.createTransport(Transport.Method.GET, new URL("http://ca.example.com/scep"));
+			
+			assertFalse(transport instanceof PooledTransport);
+			assertTrue(factory.createTransport(Transport.Method.GET, server.getUrl()) instanceof PooledTransport);
+		} finally {
+			if (previous == null) {
+				System.clearProperty("http.proxyHost");
+			} else {
+				System.setProperty("http.proxyHost", previous);
+			}
+		}
+	}
+	
+	public void testGetIsResentWhenIdleConnectionWasClosed() throws Exception {
+		final ScriptedServer scripted = new ScriptedServer();
+		scripted.reply(OK, true);
+		scripted.reply(OK, false);
+		final ConnectionPool pool = factory.getPool();
+		try {
+			pool.execute(scripted.getUrl(), "GET", "/scep", null);
+			
+			assertEquals(200, pool.execute(scripted.getUrl(), "GET", "/scep", null).getStatus());
+			assertEquals(2, scripted.getRequestCount());
+			assertEquals(2, pool.getOpenedCount());
+		} finally {
+			scripted.close();
+		}
+	}
+	
+	public void testPostIsNotSentOnClosedIdleConnection() throws Exception {
+		final ScriptedServer scripted = new ScriptedServer();
+		scripted.reply(OK, true);
+		scripted.reply(OK, false);
+		final ConnectionPool pool = factory.getPool();
+		try {
+			pool.execute(scripted.getUrl(), "GET", "/scep", null);
+			// Let the close reach the client.
+			Thread.sleep(100);
+			
+			assertEquals(200, pool.execute(scripted.getUrl(), "POST", "/scep", new byte[] {1}).getStatus());
+			assertEquals(2, scripted.getRequestCount());
+		} finally {
+			scripted.close();
+		}
+	}
+	
+	public void testPostIsNotResentAfterPartialResponse() throws Exception {
+		final ScriptedServer scripted = new ScriptedServer();
+		scripted.reply(OK, false);
+		scripted.reply("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nabc", true);
+		scripted.reply(OK, false);
+		final ConnectionPool pool = factory.getPool();
+		try {
+			pool.execute(scripted.getUrl(), "GET", "/scep", null);
+			try {
+				pool.execute(scripted.getUrl(), "POST", "/scep", new byte[] {1});
+				fail();
+			} catch (IOException e) {
+				// Expected
+			}
+			
+			assertEquals(2, scripted.getRequestCount());
+		} finally {
+			scripted.close();
+		}
+	}
+	
+	private StubScepServer startSecure(GeneralName altName) throws Exception {
+		final KeyPair caKeyPair = TestCertificates.createKeyPair();
+		final X509Certificate ca = TestCertificates.createCa("CN=TLS CA", caKeyPair);
+		final KeyPair keyPair = TestCertificates.createKeyPair();
+		final X509Certificate cert = TestCertificates.createServer("CN=Stub", keyPair.getPublic(), ca, caKeyPair, altName);
+		final StubScepServer secure = new StubScepServer(false, 0, TestCertificates.createSslContext(keyPair, cert, ca));
+		secure.start();
+		final SSLContext client = TestCertificates.createSslContext(null, null, ca);
+		factory.setSSLSocketFactory(client.getSocketFactory());
+		
+		return secure;
+	}
+	
+	/**
+	 * This class is a server which answers each request, on whichever 
+	 * connection it arrives, with the next of a fixed list of responses.
+	 */
+	private static final class ScriptedServer extends Thread {
+		private final ServerSocket socket = new ServerSocket(0);
+		private final List<String> responses = new CopyOnWriteArrayList<String>();
+		private final List<Boolean> closes = new CopyOnWriteArrayList<Boolean>();
+		private final AtomicInteger requests = new AtomicInteger();
+		
+		private ScriptedServer() throws IOException {
+			setDaemon(true);
+			start();
+		}
+		
+		private void reply(String response, boolean close) {
+			closes.add(close);
+			responses.add(response);
+		}
+		
+		private URL getUrl() throws IOException {
+			return new URL("http", "127.0.0.1", socket.getLocalPort(), "/scep");
+		}
+		
+		private int getRequestCount() {
+			return requests.get();
+		}
+		
+		private void close() throws IOException {
+			socket.close();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket conn = socket.accept();
+					try {
+						final InputStream in = conn.getInputStream();
+						final OutputStream out = conn.getOutputStream();
+						while (readRequest(in)) {
+							final int i = requests.getAndIncrement();
+							out.write(responses.get(i).getBytes("ISO-8859-1"));
+							out.flush();
+							if (closes.get(i)) {
+								break;
+							}
+						}
+					} finally {
+						conn.close();
+					}
+				}
+			} catch (IOException e) {
+				// The server has been closed.
+			}
+		}
+		
+		private static boolean readRequest(InputStream in) throws IOException {
+			final StringBuilder head = new StringBuilder();
+			int b;
+			while (head.indexOf("\r\n\r\n") == -1) {
+				if ((b = in.read()) == -1) {
+					return false;
+				}
+				head.append((char) b);
+			}
+			final int i = head.indexOf("Content-Length: ");
+			if (i != -1) {
+				final int length = Integer.parseInt(head.substring(i + 16, head.indexOf("\r\n", i)));
+				for (int n = 0; n < length; n++) {
+					in.read();
+				}
+			}
+			return true;
+		}
+	}
+}